@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+
+import org.easymock.EasyMock;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.service.discovery.client.ReadOnlyDiscoveryClient;
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.MemCacheDaemon;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap.EvictionPolicy;
+
+/**
+ * Throughput and latency percentiles of the cache operations for every cache type, going through
+ * {@link NessCache} the same way service code does. MEMCACHE runs against an in-process jmemcached.
+ *
+ * Thread count is a JMH option, e.g. <tt>-Dbenchmark.args="-t 8"</tt>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-XX:MaxDirectMemorySize=2g"})
+public class CacheProviderBenchmark
+{
+    private static final String NAMESPACE = "benchmark";
+
+    @Param({"NONE", "JVM", "JVM_NO_EVICTION", "JVM_TINYLFU", "JVM_OFFHEAP", "MEMCACHE"})
+    public String cacheType;
+
+    @Param({"1000", "100000"})
+    public int keyCount;
+
+    @Param({"64", "4096"})
+    public int valueSize;
+
+    @Param({"1", "16"})
+    public int batchSize;
+
+    private MemCacheDaemon<LocalCacheElement> daemon;
+    private Lifecycle lifecycle;
+    private NessCache cache;
+
+    private String [] keys;
+    private byte [] value;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        final int port = NetUtils.findUnusedPort();
+        if (CacheConfiguration.CacheType.MEMCACHE == CacheConfiguration.CacheType.valueOf(cacheType)) {
+            daemon = new MemCacheDaemon<LocalCacheElement>();
+            final CacheStorage<com.thimbleware.jmemcached.Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(EvictionPolicy.FIFO, keyCount * 2, keyCount * (valueSize + 256L) * 2);
+            daemon.setCache(new CacheImpl(storage));
+            daemon.setBinary(true);
+            daemon.setAddr(new InetSocketAddress("127.0.0.1", port));
+            daemon.start();
+        }
+
+        final Config config = Config.getFixedConfig("ness.cache", cacheType,
+                                                    "ness.cache.synchronous", "true",
+                                                    "ness.cache.uri", "memcache://localhost:" + port,
+                                                    "ness.cache.jmx", "false");
+
+        final Injector injector = Guice.createInjector(new CacheModule("benchmark"),
+                                                       new LifecycleModule(),
+                                                       new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind (ReadOnlyDiscoveryClient.class).toInstance(EasyMock.createNiceMock(ReadOnlyDiscoveryClient.class));
+                bind (Config.class).toInstance(config);
+            }
+        });
+
+        // The cache must exist before the lifecycle starts, so that the memcached client gets started.
+        cache = injector.getInstance(Key.get(NessCache.class, Names.named("benchmark")));
+        lifecycle = injector.getInstance(Lifecycle.class);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+
+        keys = new String [keyCount];
+        value = new byte [valueSize];
+        new Random(1234L).nextBytes(value);
+
+        final List<CacheStore<byte []>> stores = Lists.newArrayList();
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "key-" + i;
+            stores.add(CacheStores.fromSharedBytes(keys[i], value, expiry()));
+            if (stores.size() == 1000) {
+                cache.set(NAMESPACE, stores);
+                stores.clear();
+            }
+        }
+        cache.set(NAMESPACE, stores);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        if (daemon != null) {
+            daemon.stop();
+            daemon = null;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Batch
+    {
+        private final Random random = new Random();
+
+        List<String> nextKeys(final CacheProviderBenchmark benchmark)
+        {
+            final List<String> result = Lists.newArrayListWithCapacity(benchmark.batchSize);
+            for (int i = 0; i < benchmark.batchSize; i++) {
+                result.add(benchmark.keys[random.nextInt(benchmark.keyCount)]);
+            }
+            return result;
+        }
+
+        List<CacheStore<byte []>> nextStores(final CacheProviderBenchmark benchmark)
+        {
+            return storesFor(benchmark, nextKeys(benchmark));
+        }
+
+        List<CacheStore<byte []>> storesFor(final CacheProviderBenchmark benchmark, final Collection<String> keys)
+        {
+            final List<CacheStore<byte []>> result = Lists.newArrayListWithCapacity(keys.size());
+            for (final String key : keys) {
+                result.add(CacheStores.fromSharedBytes(key, benchmark.value, expiry()));
+            }
+            return result;
+        }
+    }
+
+    @Benchmark
+    public Map<String, byte []> get(final Batch batch)
+    {
+        return cache.get(NAMESPACE, batch.nextKeys(this));
+    }
+
+    @Benchmark
+    public void set(final Batch batch)
+    {
+        cache.set(NAMESPACE, batch.nextStores(this));
+    }
+
+    @Benchmark
+    public Map<String, Boolean> add(final Batch batch)
+    {
+        return cache.add(NAMESPACE, batch.nextStores(this));
+    }
+
+    /**
+     * Clears and re-sets the same keys, so that the key population stays stable across the run.
+     */
+    @Benchmark
+    public void clearAndSet(final Batch batch)
+    {
+        final List<String> keys = batch.nextKeys(this);
+        cache.clear(NAMESPACE, keys);
+        cache.set(NAMESPACE, batch.storesFor(this, keys));
+    }
+
+    private static DateTime expiry()
+    {
+        return new DateTime().plusHours(1);
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+import org.easymock.EasyMock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.nesscomputing.cache.CacheConfiguration.NodeLocatorType;
+
+/**
+ * Cost of finding the server for a key with every {@link NodeLocatorType}, for several server counts. Before
+ * measuring, every trial prints how evenly the locator spreads keys and which fraction of them moves when a
+ * server is added at the end of the list or removed from its middle, e.g.
+ *
+ * <pre>
+ * RENDEZVOUS, 16 servers: max/mean load 1.03, stddev 1.6%; add: 3.9% moved (ideal 4.0%); remove: 4.2% moved (ideal 4.2%)
+ * </pre>
+ *
+ * Every other server has weight 2, so the ideal fractions count weights, not servers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class NodeLocatorBenchmark
+{
+    private static final int KEY_COUNT = 100000;
+
+    @Param({"KETAMA", "JUMP", "RENDEZVOUS"})
+    public String locatorType;
+
+    @Param({"4", "16", "64"})
+    public int serverCount;
+
+    private NodeLocator locator;
+    private String [] keys;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        keys = new String [KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = "benchmark-key-" + i;
+        }
+
+        final NodeLocatorType type = NodeLocatorType.valueOf(locatorType);
+        final List<MemcachedNode> nodes = nodes(serverCount + 1);
+        final Map<InetSocketAddress, Integer> weights = Maps.newHashMap();
+        for (int i = 1; i < nodes.size(); i += 2) {
+            weights.put((InetSocketAddress) nodes.get(i).getSocketAddress(), 2);
+        }
+
+        final List<MemcachedNode> servers = nodes.subList(0, serverCount);
+        locator = new WeightedNodeLocator(type, servers, weights);
+        final NodeLocator added = new WeightedNodeLocator(type, nodes, weights);
+        final List<MemcachedNode> remaining = Lists.newArrayList(servers);
+        final MemcachedNode removedNode = remaining.remove(serverCount / 2);
+        final NodeLocator removed = new WeightedNodeLocator(type, remaining, weights);
+
+        final int [] counts = new int [serverCount];
+        int movedOnAdd = 0;
+        int movedOnRemove = 0;
+        for (final String key : keys) {
+            final MemcachedNode node = locator.getPrimary(key);
+            final int server = servers.indexOf(node);
+            counts[server]++;
+            if (added.getPrimary(key) != node) {
+                movedOnAdd++;
+            }
+            if (removed.getPrimary(key) != node) {
+                movedOnRemove++;
+            }
+        }
+
+        double variance = 0.0;
+        double maxLoad = 0.0;
+        int totalWeight = 0;
+        for (int i = 0; i < serverCount; i++) {
+            totalWeight += weight(weights, servers.get(i));
+        }
+        for (int i = 0; i < serverCount; i++) {
+            final double ideal = KEY_COUNT * weight(weights, servers.get(i)) / (double) totalWeight;
+            final double load = counts[i] / ideal;
+            maxLoad = Math.max(maxLoad, load);
+            variance += (load - 1.0) * (load - 1.0);
+        }
+
+        System.out.println(String.format("%s, %d servers: max/mean load %.2f, stddev %.1f%%; add: %.1f%% moved (ideal %.1f%%); remove: %.1f%% moved (ideal %.1f%%)",
+                                         type, serverCount, maxLoad, 100.0 * Math.sqrt(variance / serverCount),
+                                         100.0 * movedOnAdd / KEY_COUNT, 100.0 * weight(weights, nodes.get(serverCount)) / (totalWeight + weight(weights, nodes.get(serverCount))),
+                                         100.0 * movedOnRemove / KEY_COUNT, 100.0 * weight(weights, removedNode) / totalWeight));
+    }
+
+    private static int weight(final Map<InetSocketAddress, Integer> weights, final MemcachedNode node)
+    {
+        final Integer weight = weights.get(node.getSocketAddress());
+        return weight == null ? 1 : weight;
+    }
+
+    private static List<MemcachedNode> nodes(final int count)
+    {
+        final List<MemcachedNode> result = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            final MemcachedNode node = EasyMock.createNiceMock(MemcachedNode.class);
+            EasyMock.expect(node.getSocketAddress()).andReturn(new InetSocketAddress("10.0." + (i / 250) + "." + (i % 250 + 1), 11211)).anyTimes();
+            EasyMock.replay(node);
+            result.add(node);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public MemcachedNode getPrimary()
+    {
+        final String key = keys[next];
+        next = (next + 1) % KEY_COUNT;
+        return locator.getPrimary(key);
+    }
+}
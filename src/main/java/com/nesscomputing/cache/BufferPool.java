@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import org.weakref.jmx.MBeanExporter;
+import org.weakref.jmx.Managed;
+
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleListener;
+import com.nesscomputing.lifecycle.LifecycleStage;
+
+/**
+ * Recycles the buffers that cache reads decompress and reassemble values into. Buffers come in power of two size
+ * classes, so a buffer is usually longer than what it holds. Every thread keeps one small buffer per size class for
+ * itself; everything else goes through shared queues which hold at most the configured number of bytes.
+ *
+ * With a size of 0 nothing is pooled, every buffer is freshly allocated and the statistics still say how many would
+ * have been needed.
+ */
+@Singleton
+class BufferPool
+{
+    private static final int MIN_CLASS_SHIFT = 10;
+    private static final int MAX_CLASS_SHIFT = 24;
+    private static final int CLASS_COUNT = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+    /** Buffers up to this size are also kept in a per-thread slot. */
+    private static final int MAX_THREAD_LOCAL_SIZE = 64 * 1024;
+
+    private final long maxPooledBytes;
+    private final boolean jmxEnabled;
+    private final String cacheName;
+
+    private final Queue<byte []> [] shared;
+    private final ThreadLocal<byte [][]> threadLocal = new ThreadLocal<byte [][]>() {
+        @Override
+        protected byte [][] initialValue()
+        {
+            return new byte [CLASS_COUNT][];
+        }
+    };
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    @Inject
+    BufferPool(final CacheConfiguration config, @Nullable @Named("cacheName") final String cacheName)
+    {
+        this(config.getMemcachedBufferPoolSize(), config.isJmxEnabled(), cacheName);
+    }
+
+    @SuppressWarnings("unchecked")
+    BufferPool(final long maxPooledBytes, final boolean jmxEnabled, @Nullable final String cacheName)
+    {
+        Preconditions.checkArgument(maxPooledBytes >= 0, "negative pool size");
+        this.maxPooledBytes = maxPooledBytes;
+        this.jmxEnabled = jmxEnabled;
+        this.cacheName = cacheName;
+        this.shared = new Queue [CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            shared[i] = new ConcurrentLinkedQueue<byte []>();
+        }
+    }
+
+    @Inject(optional=true)
+    void injectOptionalDependencies(final Lifecycle lifecycle, final MBeanExporter exporter)
+    {
+        if (!jmxEnabled) {
+            return;
+        }
+        final String objectName = "ness.cache:type=BufferPool,name=" + (cacheName == null ? "default" : cacheName);
+        exporter.export(objectName, this);
+        lifecycle.addListener(LifecycleStage.STOP_STAGE, new LifecycleListener() {
+            @Override
+            public void onStage(final LifecycleStage lifecycleStage) {
+                exporter.unexport(objectName);
+            }
+        });
+    }
+
+    /**
+     * @return a buffer of at least the given size. Give it back with {@link #release(byte[])} once nothing refers to it any more.
+     */
+    byte [] acquire(final int size)
+    {
+        Preconditions.checkArgument(size >= 0, "negative size");
+        acquired.incrementAndGet();
+
+        final int sizeClass = sizeClass(size);
+        if (sizeClass < 0 || maxPooledBytes == 0) {
+            return new byte [size];
+        }
+
+        final byte [][] local = threadLocal.get();
+        byte [] buffer = local[sizeClass];
+        if (buffer != null) {
+            local[sizeClass] = null;
+            hits.incrementAndGet();
+            return buffer;
+        }
+
+        buffer = shared[sizeClass].poll();
+        if (buffer != null) {
+            pooledBytes.addAndGet(-buffer.length);
+            hits.incrementAndGet();
+            return buffer;
+        }
+        return new byte [1 << (sizeClass + MIN_CLASS_SHIFT)];
+    }
+
+    /**
+     * Returns a buffer from {@link #acquire(int)} to the pool. The buffer must not be used afterwards.
+     */
+    void release(final byte [] buffer)
+    {
+        released.incrementAndGet();
+
+        final int sizeClass = sizeClass(buffer.length);
+        if (sizeClass < 0 || maxPooledBytes == 0 || buffer.length != 1 << (sizeClass + MIN_CLASS_SHIFT)) {
+            discarded.incrementAndGet();
+            return;
+        }
+
+        if (buffer.length <= MAX_THREAD_LOCAL_SIZE) {
+            final byte [][] local = threadLocal.get();
+            if (local[sizeClass] == null) {
+                local[sizeClass] = buffer;
+                return;
+            }
+        }
+
+        if (pooledBytes.addAndGet(buffer.length) > maxPooledBytes) {
+            pooledBytes.addAndGet(-buffer.length);
+            discarded.incrementAndGet();
+            return;
+        }
+        shared[sizeClass].offer(buffer);
+    }
+
+    /**
+     * @return the index of the smallest size class holding the given size, or -1 if it is too large to be pooled.
+     */
+    private static int sizeClass(final int size)
+    {
+        if (size <= 1 << MIN_CLASS_SHIFT) {
+            return 0;
+        }
+        final int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_CLASS_SHIFT ? -1 : shift - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * Number of buffers handed out.
+     */
+    @Managed
+    public long getAcquired()
+    {
+        return acquired.get();
+    }
+
+    /**
+     * Number of buffers handed out that came from the pool.
+     */
+    @Managed
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Fraction of buffers handed out that came from the pool.
+     */
+    @Managed
+    public double getHitRate()
+    {
+        final long acquiredCount = acquired.get();
+        return acquiredCount == 0 ? 0.0 : (double) hits.get() / acquiredCount;
+    }
+
+    /**
+     * Number of buffers given back.
+     */
+    @Managed
+    public long getReleased()
+    {
+        return released.get();
+    }
+
+    /**
+     * Number of buffers given back that did not fit into the pool.
+     */
+    @Managed
+    public long getDiscarded()
+    {
+        return discarded.get();
+    }
+
+    /**
+     * Number of buffers handed out and not given back yet, e.g. values leased and not released.
+     */
+    @Managed
+    public long getOutstanding()
+    {
+        return acquired.get() - released.get();
+    }
+
+    /**
+     * Bytes held in the shared pool.
+     */
+    @Managed
+    public long getPooledBytes()
+    {
+        return pooledBytes.get();
+    }
+}
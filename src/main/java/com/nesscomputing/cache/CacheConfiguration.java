@@ -15,6 +15,7 @@
  */
 package com.nesscomputing.cache;
 
+import java.io.File;
 import java.net.URI;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -36,14 +37,42 @@ public abstract class CacheConfiguration {
         JVM,
         /** In-JVM. Does not evict keys when low on memory (you will get an OOM error) */
         JVM_NO_EVICTION,
+        /** In-JVM, bounded by bytes held, W-TinyLFU eviction and timer wheel expiry */
+        JVM_TINYLFU,
+        /** In-JVM, values held in direct memory outside of the garbage collected heap */
+        JVM_OFFHEAP,
         /** External Memcache server */
-        MEMCACHE
+        MEMCACHE,
+        /** External Memcache server with a bounded in-JVM near cache in front of it */
+        MEMCACHE_NEAR
     }
 
     public enum EncodingType {
         NONE,
         BASE64
     }
+
+    public enum CompressionType {
+        NONE,
+        DEFLATE
+    }
+
+    public enum ReplicaReadStrategy {
+        /** Every client reads a key from its own choice of copy, so a hot key's readers spread over all copies. */
+        HASH,
+        /** Read from the copy on the server with the fewest reads this client is waiting for. */
+        LEAST_OUTSTANDING
+    }
+
+    public enum NodeLocatorType {
+        /** Consistent hashing on a ring of MD5 points, 160 per unit of weight. Same as spymemcached's Ketama for equal weights. */
+        KETAMA,
+        /** Jump consistent hash over the servers in order. Moves the fewest keys when servers are added or removed at the end. */
+        JUMP,
+        /** Highest random weight: every key goes to the server with the best weighted score for it. */
+        RENDEZVOUS
+    }
+
     /**
      * @return the requested type of caching
      */
@@ -72,7 +101,8 @@ public abstract class CacheConfiguration {
     }
 
     /**
-     * @return the cache locations to use; overrides and disables discovery.
+     * @return the cache locations to use; overrides and disables discovery. A <code>weight</code> query parameter,
+     * e.g. <code>memcache://host:11211?weight=2</code>, gives a server a larger share of the keys.
      */
     @Config({"ness.cache.${cacheName}.uri", "ness.cache.uri"})
     @DefaultNull
@@ -121,6 +151,122 @@ public abstract class CacheConfiguration {
         }
     };
 
+    /**
+     * @return the maximum number of bytes (keys, values and bookkeeping) held by the JVM_TINYLFU cache.
+     */
+    @Config({"ness.cache.${cacheName}.jvm.max-bytes", "ness.cache.jvm.max-bytes"})
+    @Default("134217728")
+    public long getJvmMaxBytes() {
+        return 134217728L;
+    }
+
+    //
+    // Off heap (JVM_OFFHEAP) settings
+    //
+
+    /**
+     * @return the maximum number of bytes of direct memory used for values by the JVM_OFFHEAP cache.
+     * The JVM must allow at least this much direct memory (-XX:MaxDirectMemorySize).
+     */
+    @Config({"ness.cache.${cacheName}.offheap.max-bytes", "ness.cache.offheap.max-bytes"})
+    @Default("1073741824")
+    public long getOffHeapMaxBytes() {
+        return 1073741824L;
+    }
+
+    /**
+     * @return the number of independently locked segments of the JVM_OFFHEAP cache. Must be a power of two.
+     */
+    @Config({"ness.cache.${cacheName}.offheap.segments", "ness.cache.offheap.segments"})
+    @Default("16")
+    public int getOffHeapSegments() {
+        return 16;
+    }
+
+    /**
+     * @return the size of a single direct memory slab. Values larger than a slab are not cached.
+     */
+    @Config({"ness.cache.${cacheName}.offheap.slab-bytes", "ness.cache.offheap.slab-bytes"})
+    @Default("16777216")
+    public int getOffHeapSlabBytes() {
+        return 16777216;
+    }
+
+    //
+    // Near cache (MEMCACHE_NEAR) settings
+    //
+
+    /**
+     * @return the maximum number of bytes (keys and values) held by the in-JVM near cache.
+     */
+    @Config({"ness.cache.${cacheName}.near-cache.max-bytes", "ness.cache.near-cache.max-bytes"})
+    @Default("67108864")
+    public long getNearCacheMaxBytes() {
+        return 67108864L;
+    }
+
+    /**
+     * Upper bound for how long a value may be served from the near cache without going back to memcached.
+     * Values written by other JVMs become visible after at most this long.
+     */
+    @Config({"ness.cache.${cacheName}.near-cache.max-staleness", "ness.cache.near-cache.max-staleness"})
+    @Default("5s")
+    public TimeSpan getNearCacheMaxStaleness() {
+        return new TimeSpan(5, TimeUnit.SECONDS);
+    }
+
+    //
+    // Hot key detection
+    //
+
+    /**
+     * Reads per second above which a key counts as hot. Hot keys are served from a small in-JVM cache for
+     * {@link #getHotKeyTtl()} instead of going to the cache every time. 0 turns hot key detection off.
+     */
+    @Config({"ness.cache.${cacheName}.hot-keys.threshold", "ness.cache.hot-keys.threshold"})
+    @Default("0")
+    public double getHotKeyThreshold() {
+        return 0.0;
+    }
+
+    /**
+     * @return the number of keys per namespace whose read rates are tracked, the most that can be hot at once.
+     */
+    @Config({"ness.cache.${cacheName}.hot-keys.capacity", "ness.cache.hot-keys.capacity"})
+    @Default("64")
+    public int getHotKeyCapacity() {
+        return 64;
+    }
+
+    /**
+     * Period over which read rates are measured. The keys that were hot in one period are served from the JVM
+     * during the next.
+     */
+    @Config({"ness.cache.${cacheName}.hot-keys.window", "ness.cache.hot-keys.window"})
+    @Default("10s")
+    public TimeSpan getHotKeyWindow() {
+        return new TimeSpan(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Upper bound for how long the value of a hot key is served from the JVM. Values written by other JVMs become
+     * visible after at most this long.
+     */
+    @Config({"ness.cache.${cacheName}.hot-keys.ttl", "ness.cache.hot-keys.ttl"})
+    @Default("1s")
+    public TimeSpan getHotKeyTtl() {
+        return new TimeSpan(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the maximum number of values of hot keys held in the JVM, over all namespaces.
+     */
+    @Config({"ness.cache.${cacheName}.hot-keys.max-entries", "ness.cache.hot-keys.max-entries"})
+    @Default("1000")
+    public int getHotKeyMaxEntries() {
+        return 1000;
+    }
+
     //
     // Everything below is memcached specific
     //
@@ -159,7 +305,205 @@ public abstract class CacheConfiguration {
     	return 1034240;
     }
 
-    @Config({"ness.cache.${cacheName}.read-queue", "ness.cache.read-queue"})
+    /**
+     * Compression applied to values before they go to memcached. Reads work whatever this is set to, as every
+     * value records how it was compressed; only readers running older code can not read compressed values.
+     */
+    @Config({"ness.cache.${cacheName}.compression", "ness.cache.compression"})
+    @Default("NONE")
+    public CompressionType getMemcachedCompression() {
+        return CompressionType.NONE;
+    }
+
+    /**
+     * Values smaller than this many bytes are never compressed.
+     */
+    @Config({"ness.cache.${cacheName}.compression-threshold", "ness.cache.compression-threshold"})
+    @Default("1024")
+    public int getMemcachedCompressionThreshold() {
+        return 1024;
+    }
+
+    /**
+     * Directory with preset compression dictionaries, one file named <code>&lt;namespace&gt;.dict</code> per namespace
+     * (see {@link DictionaryTrainer}). Values of namespaces with a dictionary are compressed with it, whatever the
+     * compression setting is.
+     */
+    @Config({"ness.cache.${cacheName}.compression-dictionaries", "ness.cache.compression-dictionaries"})
+    @DefaultNull
+    public File getMemcachedCompressionDictionaries() {
+        return null;
+    }
+
+    /**
+     * Values smaller than this many bytes are not compressed with a dictionary. Dictionaries pay off for much
+     * smaller values than plain compression does.
+     */
+    @Config({"ness.cache.${cacheName}.dictionary-compression-threshold", "ness.cache.dictionary-compression-threshold"})
+    @Default("64")
+    public int getMemcachedDictionaryCompressionThreshold() {
+        return 64;
+    }
+
+    /**
+     * Maximum size of a value before compression. Larger values are not written, and compressed values that
+     * claim to be larger are misses, so a damaged length never gets a buffer of that size. 0 means no limit.
+     */
+    @Config({"ness.cache.${cacheName}.max-decompressed-value-size", "ness.cache.max-decompressed-value-size"})
+    @Default("16777216")
+    public int getMemcachedMaxDecompressedValueSize() {
+        return 16777216;
+    }
+
+    /**
+     * Values larger than the maximum value size, but no larger than this, are split into chunks stored under
+     * separate keys and put back together on read. A missing or damaged chunk turns the value into a miss.
+     * 0 disables chunking, so larger values are dropped.
+     */
+    @Config({"ness.cache.${cacheName}.max-chunked-value-size", "ness.cache.max-chunked-value-size"})
+    @Default("0")
+    public int getMemcachedMaxChunkedValueSize() {
+        return 0;
+    }
+
+    /**
+     * Size of the chunks that large values are split into. Never larger than the maximum value size.
+     */
+    @Config({"ness.cache.${cacheName}.chunk-size", "ness.cache.chunk-size"})
+    @Default("1000000")
+    public int getMemcachedChunkSize() {
+        return 1000000;
+    }
+
+    /**
+     * Maximum number of bytes kept around for reuse by reads that decompress or reassemble values, and by
+     * leased values (see {@link NamespacedCache#lease(String)}). 0 turns pooling off.
+     */
+    @Config({"ness.cache.${cacheName}.buffer-pool-size", "ness.cache.buffer-pool-size"})
+    @Default("0")
+    public long getMemcachedBufferPoolSize() {
+        return 0L;
+    }
+
+    /**
+     * Namespaces whose reads are checked against a client side filter of the keys written to them first. Keys the
+     * filter has never seen are misses without asking memcached. Keys written by other clients are only known after
+     * the next filter snapshot, so this suits namespaces with a bounded set of keys that are mostly read for keys
+     * that were never written. Needs {@link #getMembershipFilterSnapshotInterval()}, reads are not filtered without it.
+     */
+    @Config({"ness.cache.${cacheName}.membership-filter.namespaces", "ness.cache.membership-filter.namespaces"})
+    @DefaultNull
+    public List<String> getMembershipFilterNamespaces() {
+        return null;
+    }
+
+    /**
+     * Number of keys per namespace the membership filters are sized for. Each takes about 4.8 bytes per key at a
+     * 1% false positive rate.
+     */
+    @Config({"ness.cache.${cacheName}.membership-filter.expected-keys", "ness.cache.membership-filter.expected-keys"})
+    @Default("1000000")
+    public long getMembershipFilterExpectedKeys() {
+        return 1000000L;
+    }
+
+    /**
+     * Fraction of absent keys a full membership filter lets through to memcached.
+     */
+    @Config({"ness.cache.${cacheName}.membership-filter.false-positive-rate", "ness.cache.membership-filter.false-positive-rate"})
+    @Default("0.01")
+    public double getMembershipFilterFalsePositiveRate() {
+        return 0.01;
+    }
+
+    /**
+     * How often the membership filters are merged with the copies in memcached and written back, so that clients
+     * learn about each other's keys and a restarted client starts out with them. Null turns snapshots, and with them
+     * the membership filters, off.
+     */
+    @Config({"ness.cache.${cacheName}.membership-filter.snapshot-interval", "ness.cache.membership-filter.snapshot-interval"})
+    @DefaultNull
+    public TimeSpan getMembershipFilterSnapshotInterval() {
+        return null;
+    }
+
+    /**
+     * Namespaces whose values are stored on more than one memcached server, as <code>namespace</code> or
+     * <code>namespace:copies</code>. Reads are spread over the copies and fall back to the others on a miss.
+     * Values too large for a single item are not replicated.
+     */
+    @Config({"ness.cache.${cacheName}.replication.namespaces", "ness.cache.replication.namespaces"})
+    @DefaultNull
+    public List<String> getReplicatedNamespaces() {
+        return null;
+    }
+
+    /**
+     * Number of copies of each value of a replicated namespace that does not say otherwise, at most one per server.
+     */
+    @Config({"ness.cache.${cacheName}.replication.factor", "ness.cache.replication.factor"})
+    @Default("2")
+    public int getReplicationFactor() {
+        return 2;
+    }
+
+    @Config({"ness.cache.${cacheName}.replication.read-strategy", "ness.cache.replication.read-strategy"})
+    @Default("HASH")
+    public ReplicaReadStrategy getReplicaReadStrategy() {
+        return ReplicaReadStrategy.HASH;
+    }
+
+    /**
+     * How keys are spread over the memcached servers. All clients of a cache must use the same.
+     */
+    @Config({"ness.cache.${cacheName}.locator", "ness.cache.locator"})
+    @Default("KETAMA")
+    public NodeLocatorType getNodeLocator() {
+        return NodeLocatorType.KETAMA;
+    }
+
+    /**
+     * Apply changes of the server list to the running client, keeping the connections to servers that stay. If
+     * false, every change creates a new client.
+     */
+    @Config({"ness.cache.${cacheName}.topology.incremental", "ness.cache.topology.incremental"})
+    @Default("true")
+    public boolean isTopologyIncremental() {
+        return true;
+    }
+
+    /**
+     * How long a removed server, or the client replaced by a new one, gets to complete the operations already sent
+     * to it before it is shut down.
+     */
+    @Config({"ness.cache.${cacheName}.topology.drain-timeout", "ness.cache.topology.drain-timeout"})
+    @Default("2s")
+    public TimeSpan getTopologyDrainTimeout() {
+        return new TimeSpan(2, TimeUnit.SECONDS);
+    }
+
+    /**
+     * For how long after a change of the server list the servers before the change stay connected. Until then, a
+     * miss for a key that moved to another server is read again from the server it was on before, and a value
+     * found there is copied to its new server. 0 turns this off.
+     */
+    @Config({"ness.cache.${cacheName}.topology.warm-up", "ness.cache.topology.warm-up"})
+    @Default("0s")
+    public TimeSpan getTopologyWarmUp() {
+        return new TimeSpan(0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Expiration of the values copied to their new server during warm-up that do not record their own expiry
+     * (see {@link CacheEnvelope}). Memcached does not tell how long a value it returns has left to live.
+     */
+    @Config({"ness.cache.${cacheName}.topology.warm-up.expiration", "ness.cache.topology.warm-up.expiration"})
+    @Default("5m")
+    public TimeSpan getTopologyWarmUpExpiration() {
+        return new TimeSpan(5, TimeUnit.MINUTES);
+    }
+
+    @Config({"ness.cache.${cacheName}.read-queue","ness.cache.read-queue"})
     @Default("-1") // -1 == 'use default'
     public int getMemcachedReadQueueSize() {
         return -1;
@@ -195,6 +539,18 @@ public abstract class CacheConfiguration {
         return new TimeSpan(1, TimeUnit.SECONDS);
     }
 
+    /**
+     * Let the memcached client merge consecutive stores for the same server into pipelined quiet sets terminated
+     * by a single noop, so a batch of writes costs one round trip per server instead of one per key.
+     * Failed adds are only reported correctly if the server answers quiet operations that fail, which
+     * memcached does but some embedded test servers do not.
+     */
+    @Config({"ness.cache.${cacheName}.optimize-writes", "ness.cache.optimize-writes"})
+    @Default("false")
+    public boolean isMemcachedOptimizeWrites() {
+        return false;
+    }
+
     @Config({"ness.cache.${cacheName}.daemon-threads", "ness.cache.daemon-threads"})
     @Default("false")
     public boolean isMemcachedDaemonThreads() {
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A cached value together with a small header recording how long the value took to compute and when it
+ * logically expires. The header lets readers decide to refresh a value before the cache drops it.
+ *
+ * <p>Layout: 4 magic bytes, one flags byte, the compute time in milliseconds as an int and the logical
+ * expiry in milliseconds since the epoch as a long, followed by the payload.
+ *
+ * <p>An envelope with the tombstone flag and no payload records a cached miss: the source of truth was asked
+ * and had nothing, so there is no point in asking it again until the tombstone expires.
+ */
+public final class CacheEnvelope
+{
+    private static final byte [] MAGIC = new byte [] { (byte) 0xfe, 'N', 'E', '1' };
+
+    public static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + 8;
+
+    static final int FLAG_TOMBSTONE = 1;
+
+    private final byte [] data;
+    private final int flags;
+    private final int computeMillis;
+    private final long expiryMillis;
+
+    private volatile byte [] payload = null;
+
+    private CacheEnvelope(final byte [] data, final int flags, final int computeMillis, final long expiryMillis)
+    {
+        this.data = data;
+        this.flags = flags;
+        this.computeMillis = computeMillis;
+        this.expiryMillis = expiryMillis;
+    }
+
+    /**
+     * Prepend an envelope header to a payload.
+     *
+     * @param computeMillis how long it took to produce the payload.
+     * @param expiryMillis the logical expiry of the payload, in milliseconds since the epoch.
+     */
+    @Nonnull
+    public static byte [] wrap(@Nonnull final byte [] payload, final long computeMillis, final long expiryMillis)
+    {
+        return wrap(payload, 0, computeMillis, expiryMillis);
+    }
+
+    static byte [] wrap(@Nonnull final byte [] payload, final int flags, final long computeMillis, final long expiryMillis)
+    {
+        Preconditions.checkNotNull(payload, "null payload");
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        buffer.put(MAGIC);
+        buffer.put((byte) flags);
+        buffer.putInt((int) Math.min(Integer.MAX_VALUE, Math.max(0L, computeMillis)));
+        buffer.putLong(expiryMillis);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    /**
+     * @return a marker for a cached miss, see {@link #isTombstone(byte[])}.
+     * @param expiryMillis when the miss expires, in milliseconds since the epoch.
+     */
+    @Nonnull
+    public static byte [] tombstone(final long expiryMillis)
+    {
+        return wrap(new byte [0], FLAG_TOMBSTONE, 0L, expiryMillis);
+    }
+
+    /**
+     * @return true if the data was written by {@link #tombstone(long)}. Cheap enough to call on every value read.
+     */
+    public static boolean isTombstone(@Nullable final byte [] data)
+    {
+        if (data == null || data.length != HEADER_LENGTH || (data[MAGIC.length] & FLAG_TOMBSTONE) == 0) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the envelope, or null if the data was not written by {@link #wrap(byte[], long, long)}, e.g. because
+     * it was cached before envelopes were turned on.
+     */
+    @CheckForNull
+    public static CacheEnvelope unwrap(@Nonnull final byte [] data)
+    {
+        if (data.length < HEADER_LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return null;
+            }
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(data, MAGIC.length, HEADER_LENGTH - MAGIC.length);
+        final int flags = buffer.get() & 0xff;
+        final int computeMillis = buffer.getInt();
+        final long expiryMillis = buffer.getLong();
+        return new CacheEnvelope(data, flags, computeMillis, expiryMillis);
+    }
+
+    /**
+     * @return a copy of the payload, made on first use.
+     */
+    @Nonnull
+    public byte [] getPayload()
+    {
+        byte [] result = payload;
+        if (result == null) {
+            result = Arrays.copyOfRange(data, HEADER_LENGTH, data.length);
+            payload = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return a read-only view of the payload, without copying it.
+     */
+    @Nonnull
+    public ByteBuffer getPayloadBuffer()
+    {
+        return ByteBuffer.wrap(data, HEADER_LENGTH, data.length - HEADER_LENGTH).slice().asReadOnlyBuffer();
+    }
+
+    public int getComputeMillis()
+    {
+        return computeMillis;
+    }
+
+    public long getExpiryMillis()
+    {
+        return expiryMillis;
+    }
+
+    int getFlags()
+    {
+        return flags;
+    }
+
+    public boolean isTombstone()
+    {
+        return (flags & FLAG_TOMBSTONE) != 0;
+    }
+
+    /**
+     * Probabilistic early expiration ("XFetch"): returns true with a probability that grows as the logical expiry
+     * approaches, and faster for values that are expensive to compute. Once the expiry has passed, always returns true.
+     *
+     * @param beta scales how early refreshes happen, 1.0 is a good default; larger values refresh earlier.
+     */
+    public boolean shouldRefreshEarly(final long nowMillis, final double beta)
+    {
+        final double random = 1.0 - ThreadLocalRandom.current().nextDouble(); // (0, 1]
+        return nowMillis - computeMillis * beta * Math.log(random) >= expiryMillis;
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A cached value that may live in a pooled buffer. The buffer goes back to the pool when the lease is closed, so
+ * the value must not be used afterwards; leases that are never closed are simply garbage collected.
+ *
+ * @see NamespacedCache#lease(String)
+ */
+public final class CacheLease implements Closeable
+{
+    private final byte [] buffer;
+    private final int length;
+    private final BufferPool pool;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private CacheLease(final byte [] buffer, final int length, @Nullable final BufferPool pool)
+    {
+        this.buffer = buffer;
+        this.length = length;
+        this.pool = pool;
+    }
+
+    /**
+     * A lease on a value that does not belong to a pool.
+     */
+    static CacheLease of(final byte [] data)
+    {
+        return new CacheLease(data, data.length, null);
+    }
+
+    /**
+     * Leases on values that do not belong to a pool, for providers that do not pool buffers.
+     */
+    static Map<String, CacheLease> of(final Map<String, byte []> values)
+    {
+        final ImmutableMap.Builder<String, CacheLease> builder = ImmutableMap.builder();
+        for (final Map.Entry<String, byte []> entry : values.entrySet()) {
+            builder.put(entry.getKey(), of(entry.getValue()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * A lease on the first length bytes of a buffer from the pool.
+     */
+    static CacheLease pooled(final byte [] buffer, final int length, final BufferPool pool)
+    {
+        Preconditions.checkPositionIndex(length, buffer.length);
+        return new CacheLease(buffer, length, pool);
+    }
+
+    /**
+     * @return a read-only view of the value.
+     */
+    public ByteBuffer getBuffer()
+    {
+        Preconditions.checkState(!closed.get(), "lease was closed");
+        return ByteBuffer.wrap(buffer, 0, length).slice().asReadOnlyBuffer();
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Gives the buffer back. Closing a lease more than once does nothing.
+     */
+    @Override
+    public void close()
+    {
+        if (closed.compareAndSet(false, true) && pool != null) {
+            pool.release(buffer);
+        }
+    }
+}
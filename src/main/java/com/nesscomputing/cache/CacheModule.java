@@ -111,9 +111,18 @@ public class CacheModule extends AbstractModule {
         case JVM_NO_EVICTION:
             return new NonEvictingJvmCacheModule();
 
+        case JVM_TINYLFU:
+            return new TinyLfuCacheModule();
+
+        case JVM_OFFHEAP:
+            return new OffHeapCacheModule();
+
         case MEMCACHE:
             return new MemcacheCacheModule();
 
+        case MEMCACHE_NEAR:
+            return new NearMemcacheCacheModule();
+
         default:
             throw new IllegalStateException("Unrecognized cache type " + cacheConfig.getCacheType());
         }
@@ -138,6 +147,11 @@ public class CacheModule extends AbstractModule {
                 {
                     bind(CacheStatisticsManager.class).to(JmxCacheStatisticsManager.class);
                 }
+
+                if (cacheConfig.getHotKeyThreshold() > 0)
+                {
+                    bind(HotKeys.class);
+                }
             }
         };
     }
@@ -169,6 +183,24 @@ public class CacheModule extends AbstractModule {
         }
     }
 
+    static class TinyLfuCacheModule extends AbstractModule
+    {
+        @Override
+        protected void configure()
+        {
+            bind(InternalCacheProvider.class).to(TinyLfuCacheProvider.class);
+        }
+    }
+
+    static class OffHeapCacheModule extends AbstractModule
+    {
+        @Override
+        protected void configure()
+        {
+            bind(InternalCacheProvider.class).to(OffHeapCacheProvider.class);
+        }
+    }
+
     static class MemcacheCacheModule extends AbstractModule
     {
         @Override
@@ -176,6 +208,25 @@ public class CacheModule extends AbstractModule {
         {
             bind(InternalCacheProvider.class).to(MemcacheProvider.class);
             bind(NessMemcachedConnectionFactory.class);
+            bind(CompressionDictionaries.class);
+            bind(BufferPool.class);
+            bind(MembershipFilters.class);
+            bind(MemcachedClientFactory.class);
+            bind(CacheTopologyProvider.class);
+        }
+    }
+
+    static class NearMemcacheCacheModule extends AbstractModule
+    {
+        @Override
+        protected void configure()
+        {
+            bind(InternalCacheProvider.class).to(NearCacheProvider.class);
+            bind(MemcacheProvider.class);
+            bind(NessMemcachedConnectionFactory.class);
+            bind(CompressionDictionaries.class);
+            bind(BufferPool.class);
+            bind(MembershipFilters.class);
             bind(MemcachedClientFactory.class);
             bind(CacheTopologyProvider.class);
         }
@@ -15,11 +15,14 @@
  */
 package com.nesscomputing.cache;
 
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.concurrent.ThreadSafe;
 
+import com.google.common.collect.ImmutableMap;
+
 import org.weakref.jmx.Managed;
 
 import com.nesscomputing.logging.Log;
@@ -35,8 +38,10 @@ public class CacheStatistics {
     private static final int MS_ELAPSED_TO_LOG = 1000;
     private static final int HISTOGRAM_COUNT = CacheOperation.values().length;
     private final AtomicIntegerArray[] operationCounts;
-    private final AtomicLong storeKeys, storeOperations, fetchKeys, fetchOperations, hitKeys, hitOperations, clearKeys, clearOperations, oversizedStores;
+    private final AtomicLong storeKeys, storeOperations, fetchKeys, fetchOperations, hitKeys, hitOperations, clearKeys, clearOperations, oversizedStores, chunkedStores, nearCacheHits, negativeHits, hotKeyHits, warmUpHits;
+    private final AtomicLong filterRejectedKeys, filterAvoidedFetches, filterPassedKeys, filterFalsePositives;
     private final String namespace;
+    private volatile Map<String, Double> topKeys = ImmutableMap.of();
 
     public CacheStatistics(String namespace) {
         this.namespace = namespace;
@@ -49,6 +54,15 @@ public class CacheStatistics {
         clearKeys = new AtomicLong();
         clearOperations = new AtomicLong();
         oversizedStores = new AtomicLong();
+        chunkedStores = new AtomicLong();
+        nearCacheHits = new AtomicLong();
+        negativeHits = new AtomicLong();
+        hotKeyHits = new AtomicLong();
+        warmUpHits = new AtomicLong();
+        filterRejectedKeys = new AtomicLong();
+        filterAvoidedFetches = new AtomicLong();
+        filterPassedKeys = new AtomicLong();
+        filterFalsePositives = new AtomicLong();
         operationCounts = new AtomicIntegerArray[HISTOGRAM_COUNT];
         for (int i=0; i<HISTOGRAM_COUNT; i++) {
             operationCounts[i] = new AtomicIntegerArray(HISTOGRAM_MS_BOUNDS.length);
@@ -148,6 +162,110 @@ public class CacheStatistics {
         return oversizedStores.get();
     }
 
+    /**
+     * @return number of values that were too large for a single memcached item and got stored in chunks.
+     */
+    @Managed
+    public long getChunkedStores() {
+        return chunkedStores.get();
+    }
+
+    /**
+     * @return number of keys served from the in-JVM near cache without a memcached round trip.
+     */
+    @Managed
+    public long getNearCacheHits() {
+        return nearCacheHits.get();
+    }
+
+    /**
+     * @return number of hits that found a cached miss ({@link CacheEnvelope#tombstone(long)}) rather than a value.
+     * Also counted as hits.
+     */
+    @Managed
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    /**
+     * @return number of keys served from the in-JVM copy of a hot key (see {@link CacheConfiguration#getHotKeyThreshold()}).
+     */
+    @Managed
+    public long getHotKeyHits() {
+        return hotKeyHits.get();
+    }
+
+    /**
+     * @return number of keys missed on their server but found on the server they were on before the last change of
+     * the server list (see {@link CacheConfiguration#getTopologyWarmUp()}). Also counted as hits.
+     */
+    @Managed
+    public long getWarmUpHits() {
+        return warmUpHits.get();
+    }
+
+    /**
+     * @return the keys read most often during the last hot key window, with their reads per second.
+     */
+    @Managed
+    public String getTopKeys() {
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, Double> entry : topKeys.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append('=').append(String.format("%.1f/s", entry.getValue()));
+        }
+        return sb.toString();
+    }
+
+    public Map<String, Double> getTopKeyRates() {
+        return topKeys;
+    }
+
+    public void setTopKeys(Map<String, Double> topKeys) {
+        this.topKeys = ImmutableMap.copyOf(topKeys);
+    }
+
+    /**
+     * @return number of keys read that the namespace's membership filter knew to be absent, so they were not fetched.
+     */
+    @Managed
+    public long getFilterRejectedKeys() {
+        return filterRejectedKeys.get();
+    }
+
+    /**
+     * @return number of reads the membership filter answered completely, saving a round trip to memcached.
+     */
+    @Managed
+    public long getFilterAvoidedFetches() {
+        return filterAvoidedFetches.get();
+    }
+
+    /**
+     * @return number of keys read that the membership filter let through.
+     */
+    @Managed
+    public long getFilterPassedKeys() {
+        return filterPassedKeys.get();
+    }
+
+    /**
+     * @return number of keys the membership filter let through that were not found after all. Besides real false
+     * positives these are keys that expired or were evicted.
+     */
+    @Managed
+    public long getFilterFalsePositives() {
+        return filterFalsePositives.get();
+    }
+
+    @Managed
+    public double getFilterFalsePositiveRate() {
+        final long passed = filterPassedKeys.get();
+        return passed == 0 ? 0.0 : (double) filterFalsePositives.get() / passed;
+    }
+
     public void setHits(long hits) {
         this.hitKeys.set(hits);
     }
@@ -186,6 +304,47 @@ public class CacheStatistics {
         this.oversizedStores.addAndGet(additionalOversizedStores);
     }
 
+    public void incrementChunkedStores(int additionalChunkedStores)
+    {
+        this.chunkedStores.addAndGet(additionalChunkedStores);
+    }
+
+    public void incrementNearCacheHits(int hits)
+    {
+        this.nearCacheHits.addAndGet(hits);
+    }
+
+    public void incrementNegativeHits(int hits)
+    {
+        this.negativeHits.addAndGet(hits);
+    }
+
+    public void incrementHotKeyHits(int hits)
+    {
+        this.hotKeyHits.addAndGet(hits);
+    }
+
+    public void incrementWarmUpHits(int hits)
+    {
+        this.warmUpHits.addAndGet(hits);
+    }
+
+    public void incrementFilterRejectedKeys(int keys)
+    {
+        this.filterRejectedKeys.addAndGet(keys);
+    }
+
+    public void incrementFilterAvoidedFetches()
+    {
+        this.filterAvoidedFetches.incrementAndGet();
+    }
+
+    public void incrementFilterPassedKeys(int keys, int falsePositives)
+    {
+        this.filterPassedKeys.addAndGet(keys);
+        this.filterFalsePositives.addAndGet(falsePositives);
+    }
+
     @Managed
     public double getHitKeysPercentage() {
         return 100.0 * getHitKeys() / getFetchKeys();
@@ -287,6 +446,15 @@ public class CacheStatistics {
         clearKeys.set(0);
         clearOperations.set(0);
         oversizedStores.set(0);
+        chunkedStores.set(0);
+        nearCacheHits.set(0);
+        negativeHits.set(0);
+        hotKeyHits.set(0);
+        warmUpHits.set(0);
+        filterRejectedKeys.set(0);
+        filterAvoidedFetches.set(0);
+        filterPassedKeys.set(0);
+        filterFalsePositives.set(0);
         for (int i=0; i<HISTOGRAM_COUNT; i++) {
             for (int j=0; j<HISTOGRAM_MS_BOUNDS.length; j++) {
                 operationCounts[i].set(j, 0);
@@ -57,6 +57,18 @@ public class CacheStore<D> {
         this.expiry = expiry;
     }
 
+    /**
+     * Create a store for the same key and expiry as the given one, but with different data. The expiry is
+     * not checked again.
+     */
+    @SuppressWarnings("EI_EXPOSE_REP")
+    CacheStore(@Nonnull final CacheStore<?> original,
+               @Nullable final D data) {
+        this.key = original.getKey();
+        this.data = data;
+        this.expiry = original.getExpiry();
+    }
+
     /**
      * Returns the store key.
      */
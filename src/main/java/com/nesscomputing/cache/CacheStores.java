@@ -15,6 +15,7 @@
  */
 package com.nesscomputing.cache;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 
@@ -40,7 +41,7 @@ public final class CacheStores
      * @param data the data to store; this data is shared (not copied) for efficiency and should never be modified after being handed off.
      * @param expiry the expiration instant; this is advisory and cache entries may expire sooner (or later, in certain circumstances)
      */
-    static CacheStore<byte []> fromSharedBytes(final String key, byte[] data, DateTime expiry) {
+    public static CacheStore<byte []> fromSharedBytes(final String key, byte[] data, DateTime expiry) {
         return new CacheStore<byte []>(key, data, expiry);
     }
 
@@ -53,6 +54,18 @@ public final class CacheStores
         return new CacheStore<byte []>(key, Arrays.copyOf(data, data.length), expiry);
     }
 
+    /**
+     * Create a new cache entry by letting the writer serialize the value. The value is collected in segments and
+     * copied once into an array of its final size, which is what the providers store.
+     * @param expiry the expiration instant; this is advisory and cache entries may expire sooner (or later, in certain circumstances)
+     */
+    public static CacheStore<byte []> fromWriter(final String key, final CacheValueWriter writer, DateTime expiry) throws IOException {
+        Preconditions.checkArgument(writer != null, "null writer");
+        final SegmentedOutputStream out = new SegmentedOutputStream();
+        writer.writeTo(out);
+        return new CacheStore<byte []>(key, out.toByteArray(), expiry);
+    }
+
     static Collection<CacheStore<Void>> forKeys(final Collection<String> keys, final DateTime expiry)
     {
         return Collections2.transform(keys, new Function<String, CacheStore<Void>>() {
@@ -20,12 +20,20 @@ import java.net.URI;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
@@ -50,8 +58,16 @@ class CacheTopologyProvider {
         }
     };
 
+    /**
+     * Discovery property and URI query parameter with the weight of a server, see {@link WeightedNodeLocator}.
+     * Servers without a weight have weight 1.
+     */
+    static final String WEIGHT = "weight";
+
     private static final Log LOG = Log.findLog();
     private final ImmutableList<InetSocketAddress> addrs;
+    private final ImmutableMap<InetSocketAddress, Integer> configuredWeights;
+    private final AtomicReference<ImmutableMap<InetSocketAddress, Integer>> discoveredWeights = new AtomicReference<ImmutableMap<InetSocketAddress, Integer>>(ImmutableMap.<InetSocketAddress, Integer>of());
     private final ReadOnlyDiscoveryClient discoveryClient;
     private final String cacheName;
 
@@ -63,17 +79,25 @@ class CacheTopologyProvider {
         List<URI> uris = config.getCacheUri();
         if (uris != null) {
             ImmutableList.Builder<InetSocketAddress> addrBuilder = ImmutableList.builder();
+            ImmutableMap.Builder<InetSocketAddress, Integer> weightBuilder = ImmutableMap.builder();
             for (URI uri : uris) {
                 if ("memcache".equals(uri.getScheme())) {
-                    addrBuilder.add(new InetSocketAddress(uri.getHost(), uri.getPort()));
+                    final InetSocketAddress addr = new InetSocketAddress(uri.getHost(), uri.getPort());
+                    addrBuilder.add(addr);
+                    final Integer weight = parseWeight(findQueryParameter(uri, WEIGHT), addr);
+                    if (weight != null) {
+                        weightBuilder.put(addr, weight);
+                    }
                 } else {
                     LOG.warn("Ignored uri %s due to wrong scheme", uri);
                 }
             }
             addrs = addrBuilder.build();
+            configuredWeights = weightBuilder.build();
             LOG.info("Using configured caches: %s", addrs);
         } else {
             addrs = null;
+            configuredWeights = null;
             LOG.info("Using dynamically discovered caches.");
         }
     }
@@ -104,8 +128,54 @@ class CacheTopologyProvider {
             }
         });
 
-        final List<InetSocketAddress> results = Lists.newArrayList(Collections2.transform(discoverInformation, SERVICE_INFORMATION_TO_INET_SOCKET_ADDRESS));
+        final List<InetSocketAddress> results = Lists.newArrayList();
+        final Map<InetSocketAddress, Integer> weights = Maps.newHashMap();
+        for (final ServiceInformation information : discoverInformation) {
+            final InetSocketAddress addr = SERVICE_INFORMATION_TO_INET_SOCKET_ADDRESS.apply(information);
+            results.add(addr);
+            final Integer weight = parseWeight(information.getProperty(WEIGHT), addr);
+            if (weight != null) {
+                weights.put(addr, weight);
+            }
+        }
+        discoveredWeights.set(ImmutableMap.copyOf(weights));
+
 		Collections.sort(results, InetSocketAddressComparator.DEFAULT);
 		return ImmutableList.copyOf(results);
     }
+
+    /**
+     * @return the weights of the servers returned by the last call to {@link #get()}, leaving out the servers
+     * without one.
+     */
+    public ImmutableMap<InetSocketAddress, Integer> getWeights() {
+        return configuredWeights != null ? configuredWeights : discoveredWeights.get();
+    }
+
+    @CheckForNull
+    private static String findQueryParameter(final URI uri, final String name) {
+        final String query = uri.getQuery();
+        if (query == null) {
+            return null;
+        }
+        for (final String parameter : StringUtils.split(query, '&')) {
+            if (parameter.startsWith(name + "=")) {
+                return parameter.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    @CheckForNull
+    private static Integer parseWeight(@Nullable final String value, final InetSocketAddress addr) {
+        if (value == null) {
+            return null;
+        }
+        final Integer weight = Ints.tryParse(value.trim());
+        if (weight == null || weight < 1) {
+            LOG.warn("Ignored weight '%s' of %s, must be a positive number", value, addr);
+            return null;
+        }
+        return weight;
+    }
 }
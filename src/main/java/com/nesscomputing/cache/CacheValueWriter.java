@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a value to be cached. Saves callers from serializing large values into a growing array of their own first;
+ * the value is still collected into one array of its final size before it is handed to the cache, which compresses
+ * and chunks it from there.
+ *
+ * @see NamespacedCache#set(String, CacheValueWriter, org.joda.time.DateTime)
+ * @see CacheStores#fromWriter(String, CacheValueWriter, org.joda.time.DateTime)
+ */
+public interface CacheValueWriter
+{
+    /**
+     * Write the value to the stream. The stream must not be used after this method returns; closing it is not necessary.
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
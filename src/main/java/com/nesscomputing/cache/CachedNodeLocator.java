@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.NodeLocator;
+
+/**
+ * Keeps the node locator of a memcached client. The client hands out a fresh copy of its locator on every call,
+ * which is too expensive to do per key; the copy is only taken again for a new client or a new server list (see
+ * {@link MemcachedClientFactory#getTopologyGeneration()}).
+ */
+final class CachedNodeLocator
+{
+    private final AtomicReference<ClientLocator> current = new AtomicReference<ClientLocator>();
+
+    NodeLocator get(final MemcachedClient client, final int generation)
+    {
+        ClientLocator result = current.get();
+        if (result == null || result.client != client || result.generation != generation) {
+            result = new ClientLocator(client, generation);
+            current.set(result);
+        }
+        return result.locator;
+    }
+
+    private static final class ClientLocator
+    {
+        private final MemcachedClient client;
+        private final int generation;
+        private final NodeLocator locator;
+
+        ClientLocator(final MemcachedClient client, final int generation)
+        {
+            this.client = client;
+            this.generation = generation;
+            this.locator = client.getNodeLocator();
+        }
+    }
+}
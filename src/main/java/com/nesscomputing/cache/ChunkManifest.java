@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Stored in place of a value that is too large for a single memcached item. The value itself is split into
+ * chunks which live under their own keys; the manifest records how to find and verify them. Chunk keys contain
+ * the manifest version, so chunks written by concurrent writers of the same key never get mixed up.
+ *
+ * The chunks hold the value as it was sent to memcached, i.e. compressed with the manifest's codec. The codec
+ * travels in the item flags of the manifest, not in its bytes.
+ */
+final class ChunkManifest
+{
+    private static final byte FORMAT = 1;
+    private static final int ENCODED_LENGTH = 1 + 8 + 4 + 4 + 4;
+
+    private final long version;
+    private final int length;
+    private final int chunkSize;
+    private final int checksum;
+    private final MemcacheCodec codec;
+
+    private ChunkManifest(final long version, final int length, final int chunkSize, final int checksum, final MemcacheCodec codec)
+    {
+        this.version = version;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.checksum = checksum;
+        this.codec = codec;
+    }
+
+    static ChunkManifest forValue(final byte [] data, final int chunkSize)
+    {
+        return forValue(data, chunkSize, MemcacheCodec.NONE);
+    }
+
+    /**
+     * @param data the value, already compressed with the given codec.
+     */
+    static ChunkManifest forValue(final byte [] data, final int chunkSize, final MemcacheCodec codec)
+    {
+        Preconditions.checkArgument(chunkSize > 0, "chunk size must be positive!");
+        return new ChunkManifest(ThreadLocalRandom.current().nextLong(), data.length, chunkSize, checksum(data), codec);
+    }
+
+    /**
+     * @return the manifest, or null if the bytes are not a manifest this code understands.
+     */
+    @CheckForNull
+    static ChunkManifest fromBytes(final byte [] bytes)
+    {
+        return fromBytes(bytes, MemcacheCodec.NONE);
+    }
+
+    @CheckForNull
+    static ChunkManifest fromBytes(final byte [] bytes, final MemcacheCodec codec)
+    {
+        if (bytes == null || bytes.length != ENCODED_LENGTH || bytes[0] != FORMAT) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, ENCODED_LENGTH - 1);
+        final long version = buffer.getLong();
+        final int length = buffer.getInt();
+        final int chunkSize = buffer.getInt();
+        final int checksum = buffer.getInt();
+        if (length < 0 || chunkSize <= 0) {
+            return null;
+        }
+        return new ChunkManifest(version, length, chunkSize, checksum, codec);
+    }
+
+    byte [] toBytes()
+    {
+        return ByteBuffer.allocate(ENCODED_LENGTH).put(FORMAT).putLong(version).putInt(length).putInt(chunkSize).putInt(checksum).array();
+    }
+
+    /**
+     * @return the length of the value as it was stored, i.e. before decompression.
+     */
+    int getLength()
+    {
+        return length;
+    }
+
+    MemcacheCodec getCodec()
+    {
+        return codec;
+    }
+
+    int getChunkCount()
+    {
+        return (int) ((length + (long) chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @return the key of the given chunk for a value stored under the given key.
+     */
+    String getChunkKey(final String key, final int index)
+    {
+        return key + "#" + Long.toHexString(version) + "." + index;
+    }
+
+    List<byte []> split(final byte [] data)
+    {
+        Preconditions.checkArgument(data.length == length, "data does not match the manifest!");
+        final List<byte []> chunks = Lists.newArrayListWithCapacity(getChunkCount());
+        for (int offset = 0; offset < length; offset += chunkSize) {
+            chunks.add(Arrays.copyOfRange(data, offset, Math.min(length, offset + chunkSize)));
+        }
+        return chunks;
+    }
+
+    /**
+     * @param chunks the chunks in order; missing chunks are null.
+     * @return the value as it was stored (still compressed), or null if a chunk is missing or does not match the manifest.
+     */
+    @CheckForNull
+    byte [] reassemble(final List<byte []> chunks)
+    {
+        if (chunks.size() != getChunkCount()) {
+            return null;
+        }
+        final byte [] result = new byte [length];
+        return reassemble(chunks, result) ? result : null;
+    }
+
+    /**
+     * Puts the value back together at the start of target, which must have room for {@link #getLength()} bytes.
+     *
+     * @return false if a chunk is missing, has the wrong length or the checksum does not match.
+     */
+    boolean reassemble(final List<byte []> chunks, final byte [] target)
+    {
+        Preconditions.checkArgument(target.length >= length, "target too small");
+        if (chunks.size() != getChunkCount()) {
+            return false;
+        }
+        int offset = 0;
+        for (final byte [] chunk : chunks) {
+            if (chunk == null || chunk.length != Math.min(chunkSize, length - offset)) {
+                return false;
+            }
+            System.arraycopy(chunk, 0, target, offset, chunk.length);
+            offset += chunk.length;
+        }
+        return checksum(target, length) == checksum;
+    }
+
+    private static int checksum(final byte [] data)
+    {
+        return checksum(data, data.length);
+    }
+
+    private static int checksum(final byte [] data, final int length)
+    {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Preset dictionaries for deflate, one per namespace. Small values of a namespace tend to share most of their
+ * structure (field names, enum values, common prefixes) but are too small to compress well on their own; with a
+ * dictionary trained from samples of that namespace (see {@link DictionaryTrainer}) they do.
+ *
+ * Dictionaries are read at startup from the configured directory, one file named <code>&lt;namespace&gt;.dict</code>
+ * per namespace. Values compressed with a dictionary record its id, so a value can be read as long as its dictionary
+ * is loaded, no matter which namespace it is in; values whose dictionary is gone read as misses.
+ */
+@Singleton
+class CompressionDictionaries
+{
+    private static final Log LOG = Log.findLog();
+
+    /** Codec id kept in the item flags of values compressed with a dictionary. */
+    static final int CODEC_ID = 2;
+
+    static final String FILE_SUFFIX = ".dict";
+
+    private final Map<String, MemcacheCodec> codecs;
+    private final Map<Integer, byte []> dictionaries;
+    private final MemcacheCodec decoder = new DictionaryCodec(null, 0);
+
+    @Inject
+    CompressionDictionaries(final CacheConfiguration config)
+    {
+        this(load(config.getMemcachedCompressionDictionaries()));
+    }
+
+    CompressionDictionaries(final Map<String, byte []> namespaceDictionaries)
+    {
+        final ImmutableMap.Builder<String, MemcacheCodec> codecBuilder = ImmutableMap.builder();
+        final Map<Integer, byte []> dictionaryMap = Maps.newHashMap();
+
+        for (final Map.Entry<String, byte []> entry : namespaceDictionaries.entrySet()) {
+            final byte [] dictionary = entry.getValue();
+            Preconditions.checkArgument(dictionary.length > 0, "dictionary for namespace %s is empty!", entry.getKey());
+            final int id = getDictionaryId(dictionary);
+            dictionaryMap.put(id, dictionary);
+            codecBuilder.put(entry.getKey(), new DictionaryCodec(dictionary, id));
+        }
+
+        this.codecs = codecBuilder.build();
+        this.dictionaries = ImmutableMap.copyOf(dictionaryMap);
+    }
+
+    static CompressionDictionaries none()
+    {
+        return new CompressionDictionaries(ImmutableMap.<String, byte []>of());
+    }
+
+    /**
+     * @return the codec that compresses values of the namespace with its dictionary, or null if it has none.
+     */
+    @CheckForNull
+    MemcacheCodec forNamespace(final String namespace)
+    {
+        return codecs.get(namespace);
+    }
+
+    /**
+     * @return a codec that reads values compressed with any of the loaded dictionaries.
+     */
+    MemcacheCodec getDecoder()
+    {
+        return decoder;
+    }
+
+    /**
+     * The same checksum zlib uses to identify preset dictionaries.
+     */
+    static int getDictionaryId(final byte [] dictionary)
+    {
+        final Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        return (int) adler.getValue();
+    }
+
+    private static Map<String, byte []> load(@Nullable final File directory)
+    {
+        if (directory == null) {
+            return ImmutableMap.of();
+        }
+        Preconditions.checkState(directory.isDirectory(), "compression dictionary directory %s does not exist!", directory);
+
+        final ImmutableMap.Builder<String, byte []> builder = ImmutableMap.builder();
+        final File [] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                if (file.isFile() && name.endsWith(FILE_SUFFIX) && name.length() > FILE_SUFFIX.length()) {
+                    final String namespace = name.substring(0, name.length() - FILE_SUFFIX.length());
+                    try {
+                        final byte [] dictionary = Files.toByteArray(file);
+                        LOG.info("Loaded %d byte compression dictionary for namespace %s", dictionary.length, namespace);
+                        builder.put(namespace, dictionary);
+                    }
+                    catch (IOException ioe) {
+                        throw Throwables.propagate(ioe);
+                    }
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * The id of the dictionary and the uncompressed length as four byte ints, followed by raw deflate data
+     * compressed with the dictionary.
+     */
+    private class DictionaryCodec extends MemcacheCodec
+    {
+        private final byte [] dictionary;
+        private final int dictionaryId;
+
+        DictionaryCodec(@Nullable final byte [] dictionary, final int dictionaryId)
+        {
+            super(CODEC_ID);
+            this.dictionary = dictionary;
+            this.dictionaryId = dictionaryId;
+        }
+
+        @Override
+        byte [] compress(final byte [] data)
+        {
+            Preconditions.checkState(dictionary != null, "this codec can only decompress!");
+            final byte [] result = deflate(data, dictionary, 8);
+            ByteBuffer.wrap(result).putInt(dictionaryId).putInt(data.length);
+            return result;
+        }
+
+        @Override
+        int getDecompressedLength(final byte [] data, final int length)
+            throws DataFormatException
+        {
+            if (length < 8) {
+                throw new DataFormatException("missing header");
+            }
+            return ByteBuffer.wrap(data).getInt(4);
+        }
+
+        @Override
+        void decompress(final byte [] data, final int length, final byte [] target)
+            throws DataFormatException
+        {
+            final int id = ByteBuffer.wrap(data).getInt();
+            final byte [] valueDictionary = dictionaries.get(id);
+            if (valueDictionary == null) {
+                throw new DataFormatException("unknown dictionary " + Integer.toHexString(id));
+            }
+            inflate(data, 8, length, target, getDecompressedLength(data, length), valueDictionary);
+        }
+    }
+}
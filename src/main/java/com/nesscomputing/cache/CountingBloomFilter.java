@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+
+/**
+ * Bloom filter with four bit counters instead of bits, so that keys can be removed again. A counter that reaches
+ * its maximum sticks there, removing keys never decrements it. Removing a key that was never added may remove
+ * other keys as well, which turns them into misses.
+ */
+final class CountingBloomFilter
+{
+    private static final int COUNTER_BITS = 4;
+    private static final int COUNTERS_PER_WORD = Long.SIZE / COUNTER_BITS;
+    private static final long MAX_COUNT = (1L << COUNTER_BITS) - 1;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final AtomicLongArray words;
+    private final long slots;
+    private final int hashes;
+
+    CountingBloomFilter(final long slots, final int hashes)
+    {
+        Preconditions.checkArgument(slots > 0, "need at least one slot");
+        Preconditions.checkArgument(hashes > 0, "need at least one hash");
+        this.words = new AtomicLongArray(Ints.checkedCast((slots + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD));
+        this.slots = slots;
+        this.hashes = hashes;
+    }
+
+    /**
+     * @return a filter that reports about the given fraction of absent keys as present once it holds the expected number of keys.
+     */
+    static CountingBloomFilter forExpectedKeys(final long expectedKeys, final double falsePositiveRate)
+    {
+        Preconditions.checkArgument(expectedKeys > 0, "expected keys must be positive");
+        Preconditions.checkArgument(falsePositiveRate > 0.0 && falsePositiveRate < 1.0, "false positive rate must be between 0 and 1");
+        final long slots = Math.max(COUNTERS_PER_WORD, (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+        final int hashes = Math.max(1, (int) Math.round((double) slots / expectedKeys * Math.log(2)));
+        return new CountingBloomFilter(slots, hashes);
+    }
+
+    void add(final String key)
+    {
+        final long [] hash = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            increment(slot(hash, i), MAX_COUNT);
+        }
+    }
+
+    /**
+     * Removes a key, unless the filter knows it was never added.
+     */
+    void remove(final String key)
+    {
+        final long [] hash = hash(key);
+        if (!mightContain(hash)) {
+            return;
+        }
+        for (int i = 0; i < hashes; i++) {
+            decrement(slot(hash, i));
+        }
+    }
+
+    /**
+     * @return false if the key was definitely not added (or was removed again), true if it may have been.
+     */
+    boolean mightContain(final String key)
+    {
+        return mightContain(hash(key));
+    }
+
+    private boolean mightContain(final long [] hash)
+    {
+        for (int i = 0; i < hashes; i++) {
+            final long slot = slot(hash, i);
+            if (count(words.get(word(slot)), slot) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long getSlots()
+    {
+        return slots;
+    }
+
+    int getHashes()
+    {
+        return hashes;
+    }
+
+    /**
+     * @return the filter's dimensions followed by one bit per counter that is set if the counter is not zero.
+     */
+    byte [] toSnapshot()
+    {
+        final int bitBytes = Ints.checkedCast((slots + 7) / 8);
+        final ByteBuffer buffer = ByteBuffer.allocate(8 + 4 + bitBytes);
+        buffer.putLong(slots);
+        buffer.putInt(hashes);
+        final byte [] bits = new byte [bitBytes];
+        for (long slot = 0; slot < slots; slot++) {
+            if (count(words.get(word(slot)), slot) != 0) {
+                bits[(int) (slot >>> 3)] |= 1 << (slot & 7);
+            }
+        }
+        buffer.put(bits);
+        return buffer.array();
+    }
+
+    /**
+     * Adds everything a snapshot of a filter with the same dimensions holds. Keys in both stay, keys only removed
+     * on one side come back.
+     *
+     * @return false if the snapshot does not fit this filter.
+     */
+    boolean merge(@CheckForNull final byte [] snapshot)
+    {
+        return merge(snapshot, Collections.<String>emptySet());
+    }
+
+    /**
+     * Like {@link #merge(byte[])}, but the counters of the removed keys that are zero here stay zero, so that the
+     * removals win over the snapshot. Other keys sharing those counters become misses.
+     *
+     * @return false if the snapshot does not fit this filter.
+     */
+    boolean merge(@CheckForNull final byte [] snapshot, final Collection<String> removed)
+    {
+        if (snapshot == null || snapshot.length < 12) {
+            return false;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+        if (buffer.getLong() != slots || buffer.getInt() != hashes || buffer.remaining() != (slots + 7) / 8) {
+            return false;
+        }
+        final Set<Long> cleared = Sets.newHashSet();
+        for (final String key : removed) {
+            final long [] hash = hash(key);
+            for (int i = 0; i < hashes; i++) {
+                final long slot = slot(hash, i);
+                if (count(words.get(word(slot)), slot) == 0) {
+                    cleared.add(slot);
+                }
+            }
+        }
+        final int offset = buffer.position();
+        for (long slot = 0; slot < slots; slot++) {
+            if ((snapshot[offset + (int) (slot >>> 3)] & 1 << (slot & 7)) != 0 && !cleared.contains(slot)) {
+                increment(slot, 1);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Increments a counter if it is below the limit.
+     */
+    private void increment(final long slot, final long limit)
+    {
+        final int word = word(slot);
+        final int shift = shift(slot);
+        while (true) {
+            final long current = words.get(word);
+            if (count(current, slot) >= limit || words.compareAndSet(word, current, current + (1L << shift))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decrements a counter unless it is zero or stuck at the maximum.
+     */
+    private void decrement(final long slot)
+    {
+        final int word = word(slot);
+        final int shift = shift(slot);
+        while (true) {
+            final long current = words.get(word);
+            final long count = count(current, slot);
+            if (count == 0 || count == MAX_COUNT || words.compareAndSet(word, current, current - (1L << shift))) {
+                return;
+            }
+        }
+    }
+
+    private static long count(final long word, final long slot)
+    {
+        return (word >>> shift(slot)) & MAX_COUNT;
+    }
+
+    private static int word(final long slot)
+    {
+        return (int) (slot / COUNTERS_PER_WORD);
+    }
+
+    private static int shift(final long slot)
+    {
+        return (int) (slot % COUNTERS_PER_WORD) * COUNTER_BITS;
+    }
+
+    /**
+     * Double hashing: the i-th slot of a key is h1 + i * h2.
+     */
+    private long slot(final long [] hash, final int i)
+    {
+        return ((hash[0] + i * hash[1]) & Long.MAX_VALUE) % slots;
+    }
+
+    private static long [] hash(final String key)
+    {
+        final ByteBuffer bytes = ByteBuffer.wrap(HASH.hashString(key, Charsets.UTF_8).asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        return new long [] { bytes.getLong(0), bytes.getLong(8) };
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+/**
+ * Builds a preset compression dictionary for a namespace from sample values, to be dropped into the directory
+ * configured as <code>ness.cache.compression-dictionaries</code> (see {@link CompressionDictionaries}).
+ *
+ * The dictionary is made of the byte sequences that occur in the most samples. Deflate can reference only the
+ * last 32k of a dictionary and references to nearby bytes are cheaper, so the dictionary is capped at that size
+ * and the most common sequences go last.
+ *
+ * Run with <code>java com.nesscomputing.cache.DictionaryTrainer &lt;output file&gt; &lt;sample&gt; ...</code>,
+ * where every sample is either a file with one value per line or a directory with one value per file.
+ */
+public final class DictionaryTrainer
+{
+    /** Deflate does not look further back than this. */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int GRAM_LENGTH = 12;
+    private static final int MIN_OVERLAP = GRAM_LENGTH / 2;
+
+    private final Multiset<String> grams = HashMultiset.create();
+    private final int maxSize;
+    private int sampleCount = 0;
+
+    public DictionaryTrainer()
+    {
+        this(MAX_DICTIONARY_SIZE);
+    }
+
+    public DictionaryTrainer(final int maxSize)
+    {
+        Preconditions.checkArgument(maxSize > 0 && maxSize <= MAX_DICTIONARY_SIZE, "dictionary size must be between 1 and %s!", MAX_DICTIONARY_SIZE);
+        this.maxSize = maxSize;
+    }
+
+    public DictionaryTrainer addSample(final byte [] sample)
+    {
+        // Latin-1 maps every byte to exactly one char, so this is just a cheap way to hash byte sequences.
+        final String value = new String(sample, Charsets.ISO_8859_1);
+        final Set<String> sampleGrams = Sets.newHashSet();
+        for (int i = 0; i + GRAM_LENGTH <= value.length(); i++) {
+            sampleGrams.add(value.substring(i, i + GRAM_LENGTH));
+        }
+        grams.addAll(sampleGrams);
+        sampleCount++;
+        return this;
+    }
+
+    public int getSampleCount()
+    {
+        return sampleCount;
+    }
+
+    /**
+     * @return the dictionary, or an empty array if the samples have nothing in common.
+     */
+    public byte [] train()
+    {
+        final List<Multiset.Entry<String>> candidates = Lists.newArrayList(grams.entrySet());
+        Collections.sort(candidates, new Comparator<Multiset.Entry<String>>() {
+            @Override
+            public int compare(final Multiset.Entry<String> a, final Multiset.Entry<String> b)
+            {
+                return b.getCount() - a.getCount();
+            }
+        });
+
+        final List<String> pieces = Lists.newArrayList();
+        int size = 0;
+        for (final Multiset.Entry<String> candidate : candidates) {
+            if (candidate.getCount() < 2 || size >= maxSize) {
+                break;
+            }
+            final String gram = candidate.getElement();
+            if (!contains(pieces, gram)) {
+                pieces.add(gram);
+                size += gram.length();
+            }
+        }
+
+        // Overlapping grams of a common longer sequence rank alike; stitch them back together.
+        stitch(pieces);
+
+        final StringBuilder result = new StringBuilder(size);
+        for (final String piece : Lists.reverse(pieces)) {
+            result.append(piece);
+        }
+        final byte [] dictionary = result.toString().getBytes(Charsets.ISO_8859_1);
+        return dictionary.length > maxSize ? Arrays.copyOfRange(dictionary, dictionary.length - maxSize, dictionary.length) : dictionary;
+    }
+
+    private static boolean contains(final List<String> pieces, final String gram)
+    {
+        for (final String piece : pieces) {
+            if (piece.contains(gram)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Joins pieces that overlap into one, which keeps the position of the more common one.
+     */
+    private static void stitch(final List<String> pieces)
+    {
+        for (int i = 0; i < pieces.size(); i++) {
+            for (int j = i + 1; j < pieces.size(); j++) {
+                final String joined = join(pieces.get(i), pieces.get(j));
+                if (joined != null) {
+                    pieces.set(i, joined);
+                    pieces.remove(j);
+                    // The longer piece may overlap pieces it did not overlap before.
+                    j = i;
+                }
+            }
+        }
+    }
+
+    @CheckForNull
+    private static String join(final String a, final String b)
+    {
+        if (a.contains(b)) {
+            return a;
+        }
+        if (b.contains(a)) {
+            return b;
+        }
+        for (int overlap = Math.min(a.length(), b.length()) - 1; overlap >= MIN_OVERLAP; overlap--) {
+            if (a.endsWith(b.substring(0, overlap))) {
+                return a + b.substring(overlap);
+            }
+            if (b.endsWith(a.substring(0, overlap))) {
+                return b + a.substring(overlap);
+            }
+        }
+        return null;
+    }
+
+    public static void main(final String [] args)
+        throws IOException
+    {
+        if (args.length < 2) {
+            System.err.println("Usage: DictionaryTrainer <output file> <sample file or directory> ...");
+            System.exit(1);
+        }
+
+        final DictionaryTrainer trainer = new DictionaryTrainer();
+        for (final String arg : Arrays.asList(args).subList(1, args.length)) {
+            final File input = new File(arg);
+            if (input.isDirectory()) {
+                final File [] files = input.listFiles();
+                if (files != null) {
+                    for (final File file : files) {
+                        if (file.isFile()) {
+                            trainer.addSample(Files.toByteArray(file));
+                        }
+                    }
+                }
+            }
+            else {
+                for (final String line : Files.readLines(input, Charsets.ISO_8859_1)) {
+                    trainer.addSample(line.getBytes(Charsets.ISO_8859_1));
+                }
+            }
+        }
+
+        final byte [] dictionary = trainer.train();
+        Files.write(dictionary, new File(args[0]));
+        System.out.println("Wrote " + dictionary.length + " byte dictionary from " + trainer.getSampleCount() + " samples to " + args[0]);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Space-Saving sketch of the most frequent keys in a stream. Tracks at most <code>capacity</code> keys. A key that
+ * is not tracked takes the place of the one with the smallest count and inherits that count as its error, so the
+ * count of a tracked key may be too high by its error, but never too low. Every key seen more than
+ * <code>n / capacity</code> times out of <code>n</code> is tracked.
+ */
+@NotThreadSafe
+final class HotKeySketch
+{
+    private static final Comparator<Counter> BY_COUNT = new Comparator<Counter>() {
+        @Override
+        public int compare(final Counter a, final Counter b) {
+            return Long.compare(b.count, a.count);
+        }
+    };
+
+    private final int capacity;
+    private final Map<String, Counter> counters;
+
+    HotKeySketch(final int capacity)
+    {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        this.capacity = capacity;
+        this.counters = Maps.newHashMapWithExpectedSize(capacity);
+    }
+
+    void add(final String key)
+    {
+        final Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.count++;
+        }
+        else if (counters.size() < capacity) {
+            counters.put(key, new Counter(key, 1, 0));
+        }
+        else {
+            // The capacity is small, so a scan for the smallest counter is cheaper than keeping them sorted.
+            Counter min = null;
+            for (final Counter candidate : counters.values()) {
+                if (min == null || candidate.count < min.count) {
+                    min = candidate;
+                }
+            }
+            counters.remove(min.key);
+            counters.put(key, new Counter(key, min.count + 1, min.count));
+        }
+    }
+
+    /**
+     * @return the estimated counts of all tracked keys, highest first. Each may be too high by at most the smallest
+     * count.
+     */
+    Map<String, Long> getCounts()
+    {
+        final List<Counter> sorted = Lists.newArrayList(counters.values());
+        Collections.sort(sorted, BY_COUNT);
+        final Map<String, Long> result = Maps.newLinkedHashMap();
+        for (final Counter counter : sorted) {
+            result.put(counter.key, counter.count);
+        }
+        return result;
+    }
+
+    /**
+     * @return the keys that were certainly seen at least the given number of times.
+     */
+    Set<String> getKeysSeenAtLeast(final long count)
+    {
+        final ImmutableSet.Builder<String> result = ImmutableSet.builder();
+        for (final Counter counter : counters.values()) {
+            if (counter.count - counter.error >= count) {
+                result.add(counter.key);
+            }
+        }
+        return result.build();
+    }
+
+    void clear()
+    {
+        counters.clear();
+    }
+
+    private static final class Counter
+    {
+        private final String key;
+        private final long error;
+        private long count;
+
+        private Counter(final String key, final long count, final long error)
+        {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+    }
+}
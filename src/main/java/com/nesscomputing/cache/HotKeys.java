@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Finds the keys read most often in every namespace and serves them from a small in-JVM cache, so that a sudden run
+ * on a single key does not all go to the one cache server holding it. Read rates are measured over a window (see
+ * {@link CacheConfiguration#getHotKeyWindow()}) with a {@link HotKeySketch}; the keys above the threshold in one
+ * window are hot during the next. Writes and clears through this cache drop the local copy, writes by other JVMs
+ * become visible within {@link CacheConfiguration#getHotKeyTtl()}.
+ */
+@Singleton
+final class HotKeys
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final int STRIPES = 4;
+    private static final int STRIPE_MASK = STRIPES - 1;
+    private static final int READ_BUFFER_SIZE = 128;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    private final double threshold;
+    private final int capacity;
+    private final long windowNanos;
+    private final Ticker ticker;
+
+    private final ConcurrentMap<String, Window> windows = Maps.newConcurrentMap();
+    private final Cache<Entry<String, String>, byte []> local;
+    private final KeyGenerations generations = new KeyGenerations();
+
+    @Inject
+    HotKeys(final CacheConfiguration config)
+    {
+        this(config, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    HotKeys(final CacheConfiguration config, final Ticker ticker)
+    {
+        this.threshold = config.getHotKeyThreshold();
+        this.capacity = config.getHotKeyCapacity();
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(config.getHotKeyWindow().getMillis());
+        this.ticker = ticker;
+        this.local = CacheBuilder.newBuilder()
+            .maximumSize(config.getHotKeyMaxEntries())
+            .expireAfterWrite(config.getHotKeyTtl().getMillis(), TimeUnit.MILLISECONDS)
+            .ticker(ticker)
+            .build();
+    }
+
+    /**
+     * Records reads of the given keys.
+     *
+     * @return the values of the keys that are hot and held locally.
+     */
+    Map<String, byte []> get(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final Set<String> hot = findWindow(namespace).record(keys, ticker.read(), cacheStatistics);
+        if (hot.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, byte []> result = Maps.newHashMap();
+        for (final String key : keys) {
+            if (hot.contains(key)) {
+                final byte [] value = local.getIfPresent(Maps.immutableEntry(namespace, key));
+                if (value != null) {
+                    result.put(key, value);
+                }
+            }
+        }
+
+        if (cacheStatistics != null && !result.isEmpty()) {
+            cacheStatistics.incrementHotKeyHits(result.size());
+        }
+        return result;
+    }
+
+    /**
+     * Remembers the invalidations of the hot keys among the given ones, before they are read from the cache.
+     */
+    KeyGenerations.Snapshot snapshot(final String namespace, final Collection<String> keys)
+    {
+        final Set<String> hot = findWindow(namespace).getHot();
+        if (hot.isEmpty()) {
+            return generations.emptySnapshot(namespace);
+        }
+        final List<String> hotKeys = Lists.newArrayList();
+        for (final String key : keys) {
+            if (hot.contains(key)) {
+                hotKeys.add(key);
+            }
+        }
+        return generations.snapshot(namespace, hotKeys);
+    }
+
+    /**
+     * Keeps the values of hot keys read from the cache, unless they were invalidated since the snapshot was taken.
+     */
+    void put(final String namespace, final Map<String, byte []> values, final KeyGenerations.Snapshot snapshot)
+    {
+        for (final Map.Entry<String, byte []> value : values.entrySet()) {
+            final String key = value.getKey();
+            if (snapshot.isCurrent(key)) {
+                final Entry<String, String> localKey = Maps.immutableEntry(namespace, key);
+                local.put(localKey, value.getValue());
+                if (!snapshot.isCurrent(key)) {
+                    local.asMap().remove(localKey, value.getValue());
+                }
+            }
+        }
+    }
+
+    void invalidate(final String namespace, final Collection<String> keys)
+    {
+        for (final String key : keys) {
+            generations.invalidate(namespace, key);
+            local.invalidate(Maps.immutableEntry(namespace, key));
+        }
+    }
+
+    private Window findWindow(final String namespace)
+    {
+        Window window = windows.get(namespace);
+        if (window == null) {
+            final Window newWindow = new Window(namespace, ticker.read());
+            window = windows.putIfAbsent(namespace, newWindow);
+            if (window == null) {
+                window = newWindow;
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Reads are offered to small lossy buffers, one per stripe of threads, and only fed into the sketch by whichever
+     * reader gets the lock without waiting for it. Under contention some reads are overwritten before they are counted,
+     * which samples the busiest keys a little less but never blocks a reader.
+     */
+    private final class Window
+    {
+        private final String namespace;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ReadBuffer [] buffers = new ReadBuffer [STRIPES];
+
+        @GuardedBy("lock")
+        private final HotKeySketch sketch = new HotKeySketch(capacity);
+        private volatile long start;
+
+        private volatile Set<String> hot = ImmutableSet.of();
+
+        private Window(final String namespace, final long start)
+        {
+            this.namespace = namespace;
+            this.start = start;
+            for (int i = 0; i < STRIPES; i++) {
+                buffers[i] = new ReadBuffer();
+            }
+        }
+
+        private Set<String> record(final Collection<String> keys, final long now, @Nullable final CacheStatistics cacheStatistics)
+        {
+            if (now - start >= windowNanos && lock.tryLock()) {
+                try {
+                    // Another reader may have rolled the window while this one waited for the lock.
+                    if (now - start >= windowNanos) {
+                        drain();
+                        roll(now, cacheStatistics);
+                    }
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+
+            final ReadBuffer buffer = buffers[(int) Thread.currentThread().getId() & STRIPE_MASK];
+            for (final String key : keys) {
+                if (buffer.offer(key) && lock.tryLock()) {
+                    try {
+                        drain();
+                    }
+                    finally {
+                        lock.unlock();
+                    }
+                }
+            }
+            return hot;
+        }
+
+        @GuardedBy("lock")
+        private void drain()
+        {
+            for (final ReadBuffer buffer : buffers) {
+                buffer.drainTo(sketch);
+            }
+        }
+
+        @GuardedBy("lock")
+        private void roll(final long now, @Nullable final CacheStatistics cacheStatistics)
+        {
+            final double seconds = (now - start) / (double) TimeUnit.SECONDS.toNanos(1);
+            final Set<String> newHot = sketch.getKeysSeenAtLeast((long) Math.ceil(threshold * seconds));
+            if (!newHot.equals(hot)) {
+                LOG.debug("Hot keys in %s: %s", namespace, newHot);
+            }
+            hot = newHot;
+
+            if (cacheStatistics != null) {
+                final ImmutableMap.Builder<String, Double> rates = ImmutableMap.builder();
+                for (final Map.Entry<String, Long> count : sketch.getCounts().entrySet()) {
+                    rates.put(count.getKey(), count.getValue() / seconds);
+                }
+                cacheStatistics.setTopKeys(rates.build());
+            }
+            sketch.clear();
+            start = now;
+        }
+
+        private Set<String> getHot()
+        {
+            return hot;
+        }
+    }
+
+    private static final class ReadBuffer
+    {
+        private final AtomicReferenceArray<String> slots = new AtomicReferenceArray<String>(READ_BUFFER_SIZE);
+        private final AtomicLong index = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        /**
+         * @return true if the buffer should be drained.
+         */
+        private boolean offer(final String key)
+        {
+            // Lossy: an undrained slot is simply overwritten, which only costs a little accuracy of the counts.
+            slots.lazySet((int) (index.getAndIncrement() & READ_BUFFER_MASK), key);
+            return pending.incrementAndGet() >= READ_BUFFER_DRAIN_THRESHOLD;
+        }
+
+        private void drainTo(final HotKeySketch sketch)
+        {
+            pending.set(0);
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                final String key = slots.getAndSet(i, null);
+                if (key != null) {
+                    sketch.add(key);
+                }
+            }
+        }
+    }
+}
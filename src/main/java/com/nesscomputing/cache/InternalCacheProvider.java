@@ -20,6 +20,8 @@ import java.util.Map;
 
 import javax.annotation.Nullable;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Basic operations a cache backend must provide.
  */
@@ -35,6 +37,11 @@ interface InternalCacheProvider {
      */
     Map<String, byte[]> get(String namespace, Collection<String> keys, @Nullable CacheStatistics cacheStatistics);
 
+    /**
+     * Bulk fetch a collection of keys, possibly into pooled buffers which are given back when the leases are closed.
+     */
+    Map<String, CacheLease> lease(String namespace, Collection<String> keys, @Nullable CacheStatistics cacheStatistics);
+
     /**
      * Remove a collection of keys
      */
@@ -46,4 +53,27 @@ interface InternalCacheProvider {
      * This is an optional operation.
      */
     Map<String, Boolean> add(String namespace, Collection<CacheStore<byte []>> stores, @Nullable CacheStatistics cacheStatistics);
+
+    /**
+     * Asynchronous version of {@link #set(String, Collection, CacheStatistics)}. The future completes once all stores
+     * have been acknowledged (or have failed) by the backend.
+     */
+    ListenableFuture<Void> setAsync(String namespace, Collection<CacheStore<byte []>> stores, @Nullable CacheStatistics cacheStatistics);
+
+    /**
+     * Asynchronous version of {@link #get(String, Collection, CacheStatistics)}.
+     */
+    ListenableFuture<Map<String, byte[]>> getAsync(String namespace, Collection<String> keys, @Nullable CacheStatistics cacheStatistics);
+
+    /**
+     * Asynchronous version of {@link #clear(String, Collection, CacheStatistics)}.
+     */
+    ListenableFuture<Void> clearAsync(String namespace, Collection<String> keys, @Nullable CacheStatistics cacheStatistics);
+
+    /**
+     * Asynchronous version of {@link #add(String, Collection, CacheStatistics)}.
+     *
+     * This is an optional operation.
+     */
+    ListenableFuture<Map<String, Boolean>> addAsync(String namespace, Collection<CacheStore<byte []>> stores, @Nullable CacheStatistics cacheStatistics);
 }
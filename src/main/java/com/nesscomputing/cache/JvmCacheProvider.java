@@ -46,7 +46,7 @@ import com.nesscomputing.lifecycle.LifecycleStage;
  * An in-JVM cache, currently backed by EHCache
  */
 @Singleton
-public class JvmCacheProvider implements InternalCacheProvider {
+public class JvmCacheProvider extends SynchronousCacheProvider {
 
     private final Cache ehCache;
 
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Invalidation counters for keys copied into the JVM. A reader takes a snapshot of the keys before it reads them from
+ * the cache and keeps a local copy only while the snapshot is still current, so a write or clear that happened during
+ * the read is not undone by the value read before it. Keys share counters by hash, an invalidation of one key may
+ * cause a local copy of another to be skipped.
+ */
+final class KeyGenerations
+{
+    private static final int STRIPES = 1024;
+    private static final int STRIPE_MASK = STRIPES - 1;
+
+    private final AtomicLongArray generations = new AtomicLongArray(STRIPES);
+
+    /**
+     * Marks a key as changed. Must be called before the local copy of the key is dropped or replaced.
+     */
+    void invalidate(final String namespace, final String key)
+    {
+        generations.incrementAndGet(stripe(namespace, key));
+    }
+
+    Snapshot snapshot(final String namespace, final Collection<String> keys)
+    {
+        final Map<String, Long> result = Maps.newHashMapWithExpectedSize(keys.size());
+        for (final String key : keys) {
+            result.put(key, generations.get(stripe(namespace, key)));
+        }
+        return new Snapshot(namespace, result);
+    }
+
+    Snapshot emptySnapshot(final String namespace)
+    {
+        return new Snapshot(namespace, Collections.<String, Long>emptyMap());
+    }
+
+    private static int stripe(final String namespace, final String key)
+    {
+        int hash = 31 * namespace.hashCode() + key.hashCode();
+        hash ^= hash >>> 16;
+        return hash & STRIPE_MASK;
+    }
+
+    final class Snapshot
+    {
+        private final String namespace;
+        private final Map<String, Long> snapshot;
+
+        private Snapshot(final String namespace, final Map<String, Long> snapshot)
+        {
+            this.namespace = namespace;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * @return true if the key was part of the snapshot and has not been invalidated since. A local copy should be
+         * checked again after it was stored and removed if this turned false meanwhile.
+         */
+        boolean isCurrent(final String key)
+        {
+            final Long generation = snapshot.get(key);
+            return generation != null && generation.longValue() == generations.get(stripe(namespace, key));
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.OperationTimeoutException;
+
+import org.skife.config.TimeSpan;
+
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.OnStage;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Client side {@link CountingBloomFilter}s of the keys written to the namespaces configured in
+ * {@link CacheConfiguration#getMembershipFilterNamespaces()}. Reads of keys a filter has never seen are misses
+ * without a round trip to memcached.
+ *
+ * <p>Each filter is periodically merged with the copy stored in memcached and written back. Keys cleared since the
+ * last snapshot stay cleared, so the merge does not bring them back. Until the first snapshot has been read, reads
+ * are not filtered, so a restarted client does not miss the keys written before. Without snapshots, a client would
+ * miss every key written by others or before it started, so nothing is filtered unless snapshots are configured.
+ */
+@Singleton
+class MembershipFilters
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final String SNAPSHOT_PREFIX = "ness.cache.membership-filter:";
+
+    private final Map<String, CountingBloomFilter> filters;
+    private final Map<String, Queue<String>> clears;
+    private final MemcachedClientFactory clientFactory;
+    private final TimeSpan snapshotInterval;
+    private final int snapshotPartSize;
+    private final String cacheName;
+
+    private final AtomicReference<ScheduledExecutorService> snapshotService = new AtomicReference<ScheduledExecutorService>();
+    private volatile boolean loaded;
+
+    @Inject
+    MembershipFilters(final CacheConfiguration config,
+                      final MemcachedClientFactory clientFactory,
+                      @Nullable @Named("cacheName") final String cacheName)
+    {
+        final ImmutableMap.Builder<String, CountingBloomFilter> builder = ImmutableMap.builder();
+        final ImmutableMap.Builder<String, Queue<String>> clearsBuilder = ImmutableMap.builder();
+        final List<String> namespaces = config.getMembershipFilterNamespaces();
+        this.snapshotInterval = config.getMembershipFilterSnapshotInterval();
+        if (namespaces != null && !namespaces.isEmpty() && snapshotInterval == null) {
+            LOG.warn("Not filtering reads of namespaces %s, membership filters need a snapshot interval", namespaces);
+        }
+        else if (namespaces != null) {
+            for (final String namespace : namespaces) {
+                builder.put(namespace, CountingBloomFilter.forExpectedKeys(config.getMembershipFilterExpectedKeys(), config.getMembershipFilterFalsePositiveRate()));
+                clearsBuilder.put(namespace, new ConcurrentLinkedQueue<String>());
+            }
+        }
+        this.filters = builder.build();
+        this.clears = clearsBuilder.build();
+        this.clientFactory = clientFactory;
+        this.snapshotPartSize = config.getMemcachedMaxValueSize() > 0 ? config.getMemcachedMaxValueSize() : config.getMemcachedChunkSize();
+        this.cacheName = Objects.firstNonNull(cacheName, "<default>");
+
+        if (!filters.isEmpty()) {
+            LOG.info("Filtering reads of namespaces %s", filters.keySet());
+        }
+    }
+
+    private MembershipFilters()
+    {
+        this.filters = Collections.emptyMap();
+        this.clears = Collections.emptyMap();
+        this.clientFactory = null;
+        this.snapshotInterval = null;
+        this.snapshotPartSize = 0;
+        this.cacheName = null;
+        this.loaded = true;
+    }
+
+    /**
+     * @return filters that never filter anything.
+     */
+    static MembershipFilters none()
+    {
+        return new MembershipFilters();
+    }
+
+    @OnStage(LifecycleStage.START)
+    public void start()
+    {
+        if (snapshotInterval == null || filters.isEmpty()) {
+            return;
+        }
+        final ThreadFactory tf = new ThreadFactoryBuilder().setNameFormat("memcached-membership-filter-" + cacheName).setDaemon(true).build();
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, tf);
+        if (snapshotService.compareAndSet(null, executor)) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    snapshot();
+                }
+            }, 0L, snapshotInterval.getMillis(), TimeUnit.MILLISECONDS);
+        }
+        else {
+            executor.shutdown();
+        }
+    }
+
+    @OnStage(LifecycleStage.STOP)
+    public void stop()
+    {
+        final ScheduledExecutorService executor = snapshotService.getAndSet(null);
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Called before keys are written, so that readers never skip a key that is being written.
+     */
+    void recordWrites(final String namespace, final Collection<? extends CacheStore<?>> stores)
+    {
+        final CountingBloomFilter filter = filters.get(namespace);
+        if (filter != null) {
+            for (final CacheStore<?> store : stores) {
+                filter.add(store.getKey());
+            }
+        }
+    }
+
+    void recordClears(final String namespace, final Collection<String> keys)
+    {
+        final CountingBloomFilter filter = filters.get(namespace);
+        if (filter != null) {
+            final Queue<String> cleared = clears.get(namespace);
+            for (final String key : keys) {
+                filter.remove(key);
+                cleared.add(key);
+            }
+        }
+    }
+
+    /**
+     * @return the keys that may be cached; all of them unless the namespace is filtered.
+     */
+    Collection<String> mightContain(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final CountingBloomFilter filter = forReads(namespace);
+        if (filter == null) {
+            return keys;
+        }
+        final List<String> result = Lists.newArrayListWithCapacity(keys.size());
+        for (final String key : keys) {
+            if (filter.mightContain(key)) {
+                result.add(key);
+            }
+        }
+        if (cacheStatistics != null) {
+            cacheStatistics.incrementFilterRejectedKeys(keys.size() - result.size());
+            if (result.isEmpty() && !keys.isEmpty()) {
+                cacheStatistics.incrementFilterAvoidedFetches();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Records how many of the keys that passed {@link #mightContain(String, Collection, CacheStatistics)} were actually found.
+     */
+    void recordHits(final String namespace, final int passed, final int hits, @Nullable final CacheStatistics cacheStatistics)
+    {
+        if (cacheStatistics != null && passed > 0 && forReads(namespace) != null) {
+            cacheStatistics.incrementFilterPassedKeys(passed, passed - hits);
+        }
+    }
+
+    @CheckForNull
+    private CountingBloomFilter forReads(final String namespace)
+    {
+        return loaded ? filters.get(namespace) : null;
+    }
+
+    /**
+     * Merges every filter with its copy in memcached and writes the result back. Keys cleared since the last snapshot
+     * are not taken from the copy, so the clears reach the other clients as well. The snapshot is split into parts
+     * no larger than the maximum value size; if a part is missing, e.g. because memcached evicted it, only the write happens.
+     */
+    void snapshot()
+    {
+        final MemcachedClient client = clientFactory.get();
+        if (client == null) {
+            return;
+        }
+
+        boolean complete = true;
+        for (final Map.Entry<String, CountingBloomFilter> entry : filters.entrySet()) {
+            final String namespace = entry.getKey();
+            final CountingBloomFilter filter = entry.getValue();
+            final Queue<String> cleared = clears.get(namespace);
+            final List<String> removed = Lists.newArrayList();
+            for (String key = cleared.poll(); key != null; key = cleared.poll()) {
+                removed.add(key);
+            }
+            try {
+                final byte [] local = filter.toSnapshot();
+                final List<String> partKeys = Lists.newArrayList();
+                final String prefix = MemcacheKeyEncoder.BASE64.encode(SNAPSHOT_PREFIX, namespace) + ":";
+                for (int i = 0; i * snapshotPartSize < local.length; i++) {
+                    partKeys.add(prefix + i);
+                }
+
+                final byte [] remote = join(partKeys, client.getBulk(partKeys), local.length);
+                if (remote != null && !filter.merge(remote, removed)) {
+                    LOG.warn("Ignoring membership filter snapshot of %s, it was written with different settings", namespace);
+                }
+
+                final byte [] merged = filter.toSnapshot();
+                for (int i = 0; i < partKeys.size(); i++) {
+                    client.set(partKeys.get(i), 0, Arrays.copyOfRange(merged, i * snapshotPartSize, Math.min(merged.length, (i + 1) * snapshotPartSize)));
+                }
+                LOG.debug("Wrote membership filter snapshot of %s in %d parts", namespace, partKeys.size());
+            }
+            catch (OperationTimeoutException | IllegalStateException e) {
+                // IllegalStateException covers cancelled operations and full queues
+                LOG.warnDebug(e, "Could not snapshot membership filter of %s", namespace);
+                cleared.addAll(removed);
+                complete = false;
+            }
+        }
+        if (complete) {
+            loaded = true;
+        }
+    }
+
+    @CheckForNull
+    private static byte [] join(final List<String> partKeys, final Map<String, Object> parts, final int length)
+    {
+        final byte [] result = new byte [length];
+        int pos = 0;
+        for (final String key : partKeys) {
+            final Object part = parts.get(key);
+            if (!(part instanceof byte []) || pos + ((byte []) part).length > length) {
+                return null;
+            }
+            System.arraycopy(part, 0, result, pos, ((byte []) part).length);
+            pos += ((byte []) part).length;
+        }
+        return pos == length ? result : null;
+    }
+}
@@ -15,25 +15,116 @@
  */
 package com.nesscomputing.cache;
 
+import java.util.zip.DataFormatException;
+
+import javax.annotation.Nullable;
+
 import net.spy.memcached.CachedData;
 import net.spy.memcached.transcoders.Transcoder;
 
-final class MemcacheByteArrayTranscoder implements Transcoder<byte[]> {
+import com.nesscomputing.logging.Log;
+
+/**
+ * Stores byte arrays as they are. The flags mark non-null values and values that are chunk manifests rather than
+ * data; the upper bits hold the id of the {@link MemcacheCodec} the value was compressed with. Cached misses
+ * ({@link CacheEnvelope#tombstone(long)}) are stored without any flags, so readers that do not know them yet
+ * read them as null, i.e. as misses.
+ */
+final class MemcacheByteArrayTranscoder implements Transcoder<Object> {
+    private static final Log LOG = Log.findLog();
+
+    static final int FLAG_NONNULL = 1;
+    static final int FLAG_CHUNK_MANIFEST = 2;
+
+    private static final int CODEC_SHIFT = 4;
+    private static final int CODEC_MASK = 0xf;
+
+    private final CompressionDictionaries dictionaries;
+    private final BufferPool pool;
+    private final int maxLength;
+
+    MemcacheByteArrayTranscoder()
+    {
+        this(CompressionDictionaries.none());
+    }
+
+    MemcacheByteArrayTranscoder(final CompressionDictionaries dictionaries)
+    {
+        this(dictionaries, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param pool if not null, values are decoded into {@link CacheLease}s, compressed ones into buffers from the pool.
+     * @param maxLength compressed values that would decompress to more bytes than this are misses.
+     */
+    MemcacheByteArrayTranscoder(final CompressionDictionaries dictionaries, @Nullable final BufferPool pool, final int maxLength)
+    {
+        this.dictionaries = dictionaries;
+        this.pool = pool;
+        this.maxLength = maxLength;
+    }
+
     @Override
     public boolean asyncDecode(CachedData d) {
         return false;
     }
 
     @Override
-    public CachedData encode(byte[] data) {
+    public CachedData encode(Object o) {
+        if (o instanceof ChunkManifest) {
+            final ChunkManifest manifest = (ChunkManifest) o;
+            return new CachedData(FLAG_NONNULL | FLAG_CHUNK_MANIFEST | manifest.getCodec().getId() << CODEC_SHIFT, manifest.toBytes(), getMaxSize());
+        }
+        if (o instanceof MemcacheCodec.Compressed) {
+            final MemcacheCodec.Compressed compressed = (MemcacheCodec.Compressed) o;
+            return new CachedData(FLAG_NONNULL | compressed.getCodec().getId() << CODEC_SHIFT, compressed.getData(), getMaxSize());
+        }
+        final byte [] data = (byte []) o;
+        if (CacheEnvelope.isTombstone(data)) {
+            return new CachedData(0, data, getMaxSize());
+        }
         // Apparently Memcache does not differentiate between a byte[0] and null,
         // so use the flag field to mark nonnull values
-        return new CachedData(data == null ? 0 : 1, data, getMaxSize());
+        return new CachedData(data == null ? 0 : FLAG_NONNULL, data, getMaxSize());
     }
 
+    /**
+     * @return the stored bytes (or a {@link CacheLease} on them), a {@link ChunkManifest}, or null. Values that can not be read back are
+     * returned as null, i.e. they look like misses.
+     */
     @Override
-    public byte[] decode(CachedData d) {
-        return d.getFlags() == 0 ? null : d.getData();
+    public Object decode(CachedData d) {
+        final int flags = d.getFlags();
+        final int codecId = (flags >>> CODEC_SHIFT) & CODEC_MASK;
+        final MemcacheCodec codec = codecId == CompressionDictionaries.CODEC_ID ? dictionaries.getDecoder() : MemcacheCodec.forId(codecId);
+        if (codec == null) {
+            LOG.debug("Ignoring value compressed with unknown codec (flags %s)", flags);
+            return null;
+        }
+        if ((flags & FLAG_CHUNK_MANIFEST) != 0) {
+            final ChunkManifest manifest = ChunkManifest.fromBytes(d.getData(), codec);
+            if (manifest != null && manifest.getLength() > maxLength) {
+                LOG.debug("Ignoring chunked value of length %d, maximum is %d", manifest.getLength(), maxLength);
+                return null;
+            }
+            return manifest;
+        }
+        if ((flags & FLAG_NONNULL) == 0) {
+            if (!CacheEnvelope.isTombstone(d.getData())) {
+                return null;
+            }
+            return pool != null ? CacheLease.of(d.getData()) : d.getData();
+        }
+        try {
+            if (pool != null) {
+                return codec == MemcacheCodec.NONE ? CacheLease.of(d.getData()) : codec.decompress(d.getData(), d.getData().length, maxLength, pool);
+            }
+            return codec.decompress(d.getData(), d.getData().length, maxLength);
+        }
+        catch (DataFormatException dfe) {
+            LOG.warnDebug(dfe, "Ignoring value that could not be decompressed");
+            return null;
+        }
     }
 
     @Override
@@ -0,0 +1,298 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Compresses values on their way to memcached. The id of the codec is kept in the item flags, so every value
+ * says how to read it back; id 0 means "stored as is", which is what all values written before compression
+ * existed look like.
+ */
+abstract class MemcacheCodec
+{
+    /**
+     * Values are stored as they are.
+     */
+    static final MemcacheCodec NONE = new MemcacheCodec(0) {
+        @Override
+        byte [] compress(final byte [] data)
+        {
+            return data;
+        }
+
+        @Override
+        byte [] decompress(final byte [] data)
+        {
+            return data;
+        }
+
+        @Override
+        int getDecompressedLength(final byte [] data, final int length)
+        {
+            return length;
+        }
+
+        @Override
+        void decompress(final byte [] data, final int length, final byte [] target)
+        {
+            System.arraycopy(data, 0, target, 0, length);
+        }
+    };
+
+    /**
+     * The uncompressed length as a four byte int, followed by raw deflate data. Uses the fastest compression
+     * level; the JSON and Smile we store still shrinks a lot and writes stay cheap.
+     */
+    static final MemcacheCodec DEFLATE = new MemcacheCodec(1) {
+        @Override
+        byte [] compress(final byte [] data)
+        {
+            final byte [] result = deflate(data, null, 4);
+            ByteBuffer.wrap(result).putInt(data.length);
+            return result;
+        }
+
+        @Override
+        int getDecompressedLength(final byte [] data, final int length)
+            throws DataFormatException
+        {
+            if (length < 4) {
+                throw new DataFormatException("missing length");
+            }
+            return ByteBuffer.wrap(data).getInt();
+        }
+
+        @Override
+        void decompress(final byte [] data, final int length, final byte [] target)
+            throws DataFormatException
+        {
+            inflate(data, 4, length, target, getDecompressedLength(data, length), null);
+        }
+    };
+
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue()
+        {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue()
+        {
+            return new Inflater(true);
+        }
+    };
+
+    private final int id;
+
+    MemcacheCodec(final int id)
+    {
+        this.id = id;
+    }
+
+    /**
+     * @return the codec with the given id, or null if this code does not know it (e.g. it was written by a newer version).
+     */
+    @CheckForNull
+    static MemcacheCodec forId(final int id)
+    {
+        switch (id) {
+        case 0:
+            return NONE;
+        case 1:
+            return DEFLATE;
+        default:
+            return null;
+        }
+    }
+
+    static MemcacheCodec forType(final CacheConfiguration.CompressionType type)
+    {
+        switch (type) {
+        case NONE:
+            return NONE;
+        case DEFLATE:
+            return DEFLATE;
+        default:
+            throw new IllegalArgumentException("Unknown compression type " + type);
+        }
+    }
+
+    int getId()
+    {
+        return id;
+    }
+
+    abstract byte [] compress(byte [] data);
+
+    /**
+     * @return the length of the value the first length bytes of data decompress to.
+     */
+    abstract int getDecompressedLength(byte [] data, int length) throws DataFormatException;
+
+    /**
+     * Decompresses the first length bytes of data into the start of target, which must have room for at least
+     * {@link #getDecompressedLength(byte[], int)} bytes. Lets callers decompress into buffers they reuse.
+     */
+    abstract void decompress(byte [] data, int length, byte [] target) throws DataFormatException;
+
+    byte [] decompress(final byte [] data) throws DataFormatException
+    {
+        return decompress(data, data.length, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the first length bytes of data, decompressed. Values that would be longer than maxLength are not decompressed.
+     */
+    byte [] decompress(final byte [] data, final int length, final int maxLength) throws DataFormatException
+    {
+        final byte [] result = new byte [checkLength(getDecompressedLength(data, length), maxLength)];
+        decompress(data, length, result);
+        return result;
+    }
+
+    /**
+     * Decompresses the first length bytes of data into a buffer from the pool, unless it would be longer than maxLength.
+     */
+    CacheLease decompress(final byte [] data, final int length, final int maxLength, final BufferPool pool) throws DataFormatException
+    {
+        final int decompressedLength = checkLength(getDecompressedLength(data, length), maxLength);
+        final byte [] buffer = pool.acquire(decompressedLength);
+        try {
+            decompress(data, length, buffer);
+        }
+        catch (DataFormatException dfe) {
+            pool.release(buffer);
+            throw dfe;
+        }
+        return CacheLease.pooled(buffer, decompressedLength, pool);
+    }
+
+    /**
+     * The length comes from the cached value, so it is checked before anything is allocated for it.
+     */
+    private static int checkLength(final int length, final int maxLength) throws DataFormatException
+    {
+        if (length < 0 || length > maxLength) {
+            throw new DataFormatException("bad length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * @return the longest value, before compression, that is written to or read from memcached with this configuration.
+     */
+    static int getMaxLength(final CacheConfiguration config)
+    {
+        final int maxLength = config.getMemcachedMaxDecompressedValueSize();
+        return maxLength > 0 ? maxLength : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return raw deflate data, preceded by headerLength bytes that are left for the caller to fill in.
+     */
+    static byte [] deflate(final byte [] data, @Nullable final byte [] dictionary, final int headerLength)
+    {
+        final Deflater deflater = DEFLATERS.get();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data);
+            deflater.finish();
+
+            byte [] result = new byte [headerLength + Math.max(64, data.length / 2)];
+            int length = headerLength;
+            while (!deflater.finished()) {
+                if (length == result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                length += deflater.deflate(result, length, result.length - length);
+            }
+            return Arrays.copyOf(result, length);
+        }
+        finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Inflates the raw deflate data between offset and end, which must turn into exactly length bytes, into the
+     * start of target.
+     */
+    static void inflate(final byte [] data, final int offset, final int end, final byte [] target, final int length, @Nullable final byte [] dictionary)
+        throws DataFormatException
+    {
+        if (length < 0 || length > target.length) {
+            throw new DataFormatException("bad length " + length);
+        }
+
+        final Inflater inflater = INFLATERS.get();
+        try {
+            if (dictionary != null) {
+                inflater.setDictionary(dictionary);
+            }
+            inflater.setInput(data, offset, end - offset);
+            int inflatedLength = 0;
+            while (inflatedLength < length) {
+                final int inflated = inflater.inflate(target, inflatedLength, length - inflatedLength);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("value is truncated");
+                }
+                inflatedLength += inflated;
+            }
+        }
+        finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * A compressed value on its way to memcached.
+     */
+    static final class Compressed
+    {
+        private final MemcacheCodec codec;
+        private final byte [] data;
+
+        Compressed(final MemcacheCodec codec, final byte [] data)
+        {
+            this.codec = codec;
+            this.data = data;
+        }
+
+        MemcacheCodec getCodec()
+        {
+            return codec;
+        }
+
+        byte [] getData()
+        {
+            return data;
+        }
+    }
+}
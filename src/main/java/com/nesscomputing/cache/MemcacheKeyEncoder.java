@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+/**
+ * Turns a namespace prefix and a cache key into the key sent to memcached.
+ */
+abstract class MemcacheKeyEncoder
+{
+    /**
+     * Plain concatenation, for namespaces and keys that are known to be memcached safe.
+     */
+    static final MemcacheKeyEncoder NONE = new MemcacheKeyEncoder() {
+        @Override
+        String encode(final String prefix, final String key)
+        {
+            return prefix.concat(key);
+        }
+    };
+
+    /**
+     * Base64 of the UTF-8 bytes of the key, appended to the prefix. Produces exactly the same keys as
+     * {@link Base64#encode(String)}, but encodes straight into a per thread buffer so that only the
+     * resulting String is allocated.
+     *
+     * Uses the standard alphabet (and not the URL safe one) because it has to match the keys
+     * already stored in memcached.
+     */
+    static final MemcacheKeyEncoder BASE64 = new MemcacheKeyEncoder() {
+        private final char [] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+        private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+            @Override
+            protected Buffers initialValue()
+            {
+                return new Buffers();
+            }
+        };
+
+        @Override
+        String encode(final String prefix, final String key)
+        {
+            final Buffers buf = buffers.get();
+            final byte [] bytes = buf.bytes(key.length() * 3);
+            final int byteLength = utf8(key, bytes);
+
+            final int prefixLength = prefix.length();
+            final char [] chars = buf.chars(prefixLength + ((byteLength + 2) / 3) * 4);
+            prefix.getChars(0, prefixLength, chars, 0);
+
+            int pos = prefixLength;
+            int i = 0;
+            for (; i + 2 < byteLength; i += 3) {
+                final int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+                chars[pos++] = alphabet[bits >>> 18];
+                chars[pos++] = alphabet[(bits >>> 12) & 0x3f];
+                chars[pos++] = alphabet[(bits >>> 6) & 0x3f];
+                chars[pos++] = alphabet[bits & 0x3f];
+            }
+
+            switch (byteLength - i) {
+            case 1: {
+                final int bits = (bytes[i] & 0xff) << 16;
+                chars[pos++] = alphabet[bits >>> 18];
+                chars[pos++] = alphabet[(bits >>> 12) & 0x3f];
+                chars[pos++] = '=';
+                chars[pos++] = '=';
+                break;
+            }
+            case 2: {
+                final int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8;
+                chars[pos++] = alphabet[bits >>> 18];
+                chars[pos++] = alphabet[(bits >>> 12) & 0x3f];
+                chars[pos++] = alphabet[(bits >>> 6) & 0x3f];
+                chars[pos++] = '=';
+                break;
+            }
+            default:
+                break;
+            }
+
+            return new String(chars, 0, pos);
+        }
+    };
+
+    /**
+     * @return prefix followed by the encoded form of key.
+     */
+    abstract String encode(String prefix, String key);
+
+    /**
+     * UTF-8 encode a String the same way {@link String#getBytes(java.nio.charset.Charset)} does,
+     * including replacing unpaired surrogates with '?'.
+     *
+     * @return the number of bytes written.
+     */
+    static int utf8(final String value, final byte [] bytes)
+    {
+        final int length = value.length();
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xc0 | (c >>> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isSurrogate(c)) {
+                final int codePoint;
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    codePoint = Character.toCodePoint(c, value.charAt(++i));
+                }
+                else {
+                    bytes[pos++] = (byte) '?';
+                    continue;
+                }
+                bytes[pos++] = (byte) (0xf0 | (codePoint >>> 18));
+                bytes[pos++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            else {
+                bytes[pos++] = (byte) (0xe0 | (c >>> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+
+    private static final class Buffers
+    {
+        private byte [] bytes = new byte [256];
+        private char [] chars = new char [512];
+
+        byte [] bytes(final int size)
+        {
+            if (bytes.length < size) {
+                bytes = new byte [Math.max(size, bytes.length * 2)];
+            }
+            return bytes;
+        }
+
+        char [] chars(final int size)
+        {
+            if (chars.length < size) {
+                chars = new char [Math.max(size, chars.length * 2)];
+            }
+            return chars;
+        }
+    }
+}
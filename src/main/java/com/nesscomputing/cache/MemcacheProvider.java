@@ -15,6 +15,7 @@
  */
 package com.nesscomputing.cache;
 
+import java.net.SocketAddress;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -24,23 +25,38 @@ import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
 
-import com.google.common.base.Charsets;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
+import net.spy.memcached.KeyUtil;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
 import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+import net.spy.memcached.internal.BulkGetFuture;
+import net.spy.memcached.internal.OperationCompletionListener;
+import net.spy.memcached.internal.OperationFuture;
 
 import org.joda.time.DateTime;
 
@@ -55,38 +71,36 @@ final class MemcacheProvider implements InternalCacheProvider
 {
     private final ConcurrentMap<String, NamespaceInfo> namespaceMap = Maps.newConcurrentMap();
 
-    private static final Function<String, String> BASE64_ENCODER = new Function<String, String>() {
+    private static final Callback<Boolean, Object> ADD_CALLBACK = new Callback<Boolean, Object>() {
         @Override
-        public String apply(final String input) {
-            if (input == null) {
-                return null;
-            }
-            return new String(Base64.encode(input), Charsets.UTF_8);
+        public OperationFuture<Boolean> callback(final MemcachedClient client, final String key, final CacheStore<Object> cacheStore) throws InterruptedException {
+            return client.add(key,
+                              computeMemcacheExpiry(cacheStore.getExpiry()),
+                              cacheStore.getData());
         }
     };
 
-    private static final Function<String, String> BASE64_DECODER = new Function<String, String>() {
+    private static final Callback<Boolean, Object> SET_CALLBACK = new Callback<Boolean, Object>() {
         @Override
-        public String apply(final String input) {
-            if (input == null) {
-                return null;
-            }
-            return new String(Base64.decode(input), Charsets.UTF_8);
+        public OperationFuture<Boolean> callback(final MemcachedClient client, final String key, final CacheStore<Object> cacheStore) throws InterruptedException {
+            return client.set(key,
+                              computeMemcacheExpiry(cacheStore.getExpiry()),
+                              cacheStore.getData());
         }
     };
 
-    private static final Callback<Boolean, byte[]> ADD_CALLBACK = new Callback<Boolean, byte[]>() {
+    private static final Callback<Boolean, ChunkManifest> ADD_MANIFEST_CALLBACK = new Callback<Boolean, ChunkManifest>() {
         @Override
-        public Future<Boolean> callback(final MemcachedClient client, final String key, final CacheStore<byte []> cacheStore) throws InterruptedException {
+        public OperationFuture<Boolean> callback(final MemcachedClient client, final String key, final CacheStore<ChunkManifest> cacheStore) throws InterruptedException {
             return client.add(key,
                               computeMemcacheExpiry(cacheStore.getExpiry()),
                               cacheStore.getData());
         }
     };
 
-    private static final Callback<Boolean, byte[]> SET_CALLBACK = new Callback<Boolean, byte[]>() {
+    private static final Callback<Boolean, ChunkManifest> SET_MANIFEST_CALLBACK = new Callback<Boolean, ChunkManifest>() {
         @Override
-        public Future<Boolean> callback(final MemcachedClient client, final String key, final CacheStore<byte []> cacheStore) throws InterruptedException {
+        public OperationFuture<Boolean> callback(final MemcachedClient client, final String key, final CacheStore<ChunkManifest> cacheStore) throws InterruptedException {
             return client.set(key,
                               computeMemcacheExpiry(cacheStore.getExpiry()),
                               cacheStore.getData());
@@ -95,23 +109,50 @@ final class MemcacheProvider implements InternalCacheProvider
 
     private static final Callback<Boolean, Void> CLEAR_CALLBACK = new Callback<Boolean, Void>() {
         @Override
-        public Future<Boolean> callback(final MemcachedClient client, final String key, final CacheStore<Void> cacheStore) throws InterruptedException {
+        public OperationFuture<Boolean> callback(final MemcachedClient client, final String key, final CacheStore<Void> cacheStore) throws InterruptedException {
             return client.delete(key);
         }
     };
 
 
+    private static final Function<Object, Void> TO_VOID = Functions.<Void>constant(null);
+
+    private final BulkRead<byte []> bulkGet = new BulkRead<byte []>() {
+        @Override
+        public Map<String, byte []> read(final MemcachedClient client, final String namespace, final Map<String, String> preparedKeys) {
+            return getBulk(client, namespace, preparedKeys);
+        }
+    };
+
+    private final BulkRead<CacheLease> bulkLease = new BulkRead<CacheLease>() {
+        @Override
+        public Map<String, CacheLease> read(final MemcachedClient client, final String namespace, final Map<String, String> preparedKeys) {
+            return leaseBulk(client, namespace, preparedKeys);
+        }
+    };
+
     private static final Log LOG = Log.findLog();
 
     private final MemcachedClientFactory clientFactory;
     private final CacheConfiguration config;
-    private final Function<String,String> encoder;
-    private final Function<String,String> decoder;
+    private final MemcacheKeyEncoder encoder;
+    private final MemcacheCodec codec;
+    private final CompressionDictionaries dictionaries;
+    private final BufferPool bufferPool;
+    @VisibleForTesting
+    final MembershipFilters membershipFilters;
+    private final MemcacheByteArrayTranscoder leaseTranscoder;
+    private final int maxLength;
+    private final MemcacheReplicas replicas;
+    private final MemcacheWarmUp warmUp;
     private final String separator;
 
     @Inject
     MemcacheProvider(final CacheConfiguration config,
-                     final MemcachedClientFactory clientFactory)
+                     final MemcachedClientFactory clientFactory,
+                     final CompressionDictionaries dictionaries,
+                     final BufferPool bufferPool,
+                     final MembershipFilters membershipFilters)
     {
         this.config = config;
         this.clientFactory = clientFactory;
@@ -119,53 +160,72 @@ final class MemcacheProvider implements InternalCacheProvider
 
         switch(encodingType) {
         case BASE64:
-            this.encoder = BASE64_ENCODER;
-            this.decoder = BASE64_DECODER;
+            this.encoder = MemcacheKeyEncoder.BASE64;
             break;
         case NONE:
-            this.encoder = Functions.identity();
-            this.decoder = Functions.identity();
+            this.encoder = MemcacheKeyEncoder.NONE;
             break;
         default:
             throw new IllegalArgumentException("Unknown encoding type " + encodingType);
         }
 
         this.separator = config.getMemcachedSeparator();
+        this.codec = MemcacheCodec.forType(config.getMemcachedCompression());
+        this.dictionaries = dictionaries;
+        this.bufferPool = bufferPool;
+        this.membershipFilters = membershipFilters;
+        this.maxLength = MemcacheCodec.getMaxLength(config);
+        this.leaseTranscoder = new MemcacheByteArrayTranscoder(dictionaries, bufferPool, maxLength);
+        this.replicas = new MemcacheReplicas(config, clientFactory);
+        this.warmUp = new MemcacheWarmUp(config, clientFactory);
     }
 
     @Override
     public void set(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable CacheStatistics cacheStatistics)
     {
-        Collection<CacheStore<byte[]>> validStores = Collections2.filter(stores, validateWritePredicate);
-        if (cacheStatistics != null) {
-            cacheStatistics.incrementOversizedStores(stores.size() - validStores.size());
-        }
-        processOps(namespace, false, validStores, SET_CALLBACK);
+        set(namespace, stores, cacheStatistics, Lists.<String>newArrayList());
+    }
+
+    /**
+     * Same as {@link #set(String, Collection, CacheStatistics)}, and adds the keys of the values rejected as too
+     * large to the given collection.
+     */
+    void set(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable CacheStatistics cacheStatistics, final Collection<String> rejected)
+    {
+        membershipFilters.recordWrites(namespace, stores);
+        final Writes writes = prepareWrites(namespace, stores, cacheStatistics);
+        rejected.addAll(writes.rejected);
+        processOps(namespace, false, writes.single, SET_CALLBACK);
+        writeChunked(namespace, false, writes, SET_MANIFEST_CALLBACK);
+        replicate(namespace, writes, null);
     }
 
     @Override
     public Map<String, Boolean> add(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable CacheStatistics cacheStatistics)
     {
-        ImmutableMap.Builder<String, Boolean> builder = ImmutableMap.builder();
-        List<CacheStore<byte[]>> validStores = Lists.newArrayListWithExpectedSize(stores.size());
-        for (CacheStore<byte[]> store : stores) {
-            if (validateWrite(store)) {
-                validStores.add(store);
-            } else {
-                builder.put(Maps.immutableEntry(store.getKey(), false));
-            }
+        membershipFilters.recordWrites(namespace, stores);
+        final Writes writes = prepareWrites(namespace, stores, cacheStatistics);
+        final Map<String, Boolean> results = Maps.newHashMap();
+        for (final String key : writes.rejected) {
+            results.put(key, false);
         }
-        if (cacheStatistics != null) {
-            cacheStatistics.incrementOversizedStores(stores.size() - validStores.size());
-        }
-        builder.putAll(processOps(namespace, true, validStores, ADD_CALLBACK));
-        return builder.build();
+        results.putAll(processOps(namespace, true, writes.single, ADD_CALLBACK));
+        results.putAll(writeChunked(namespace, true, writes, ADD_MANIFEST_CALLBACK));
+        replicate(namespace, writes, results);
+        return ImmutableMap.copyOf(results);
     }
 
     @Override
     public void clear(final String namespace, final Collection<String> keys, @Nullable CacheStatistics cacheStatistics)
     {
-        processOps(namespace, false, CacheStores.forKeys(keys, null), CLEAR_CALLBACK);
+        final Collection<CacheStore<Void>> clears = CacheStores.forKeys(keys, null);
+        processOps(namespace, false, clears, CLEAR_CALLBACK);
+        final Map<String, CacheStore<Void>> copies = findReplicaStores(namespace, clears);
+        if (!copies.isEmpty()) {
+            processOps(namespace, false, copies, CLEAR_CALLBACK);
+        }
+        clearPrevious(namespace, keys);
+        membershipFilters.recordClears(namespace, keys);
     }
 
     @Override
@@ -176,59 +236,714 @@ final class MemcacheProvider implements InternalCacheProvider
             return Collections.emptyMap();
         }
 
-        final NamespaceInfo namespaceInfo = findNamespace(namespace);
-        final int prefixLength = namespaceInfo.getPrefixLength();
+        final Collection<String> candidates = membershipFilters.mightContain(namespace, keys, cacheStatistics);
+        if (candidates.isEmpty()) {
+            return Collections.emptyMap();
+        }
 
-        final Collection<String> preparedKeys = makeKeys(namespaceInfo, keys);
-        final Map<String, Object> internalResult;
+        final Map<String, String> preparedKeys = makeKeys(findNamespace(namespace), candidates);
+        final Map<String, byte[]> found = read(client, namespace, preparedKeys, bulkGet);
+        final Map<String, byte[]> moved = readPrevious(client, namespace, preparedKeys, found.keySet(), cacheStatistics);
+        final Map<String, byte[]> result = moved.isEmpty() ? found : ImmutableMap.<String, byte[]>builder().putAll(found).putAll(moved).build();
+        membershipFilters.recordHits(namespace, candidates.size(), result.size(), cacheStatistics);
+        return result;
+    }
+
+    private Map<String, byte[]> getBulk(final MemcachedClient client, final String namespace, final Map<String, String> preparedKeys)
+    {
         try {
-            // The assertion above protects this somewhat dodgy-looking cast.  Since the transcoder always
-            // returns byte[], it is safe to cast the value Object to byte[].
-            internalResult = client.getBulk(preparedKeys);
+            final Map<String, Object> internalResult = client.getBulk(preparedKeys.keySet());
+            return transformResults(preparedKeys, internalResult, getChunks(client, namespace, internalResult));
+        }
+        catch (OperationTimeoutException ote) {
+            LOG.errorDebug(ote, "Operation timed out while loading keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+        }
+        catch (CancellationException ce) {
+            LOG.errorDebug(ce, "Operation cancelled while loading keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+        }
+        catch (IllegalStateException ise) {
+            LOG.errorDebug(ise, "Memcache Queue was full while loading keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+        }
+        return Collections.emptyMap();
+    }
 
-            final ImmutableMap.Builder<String, byte[]> transformedResults = ImmutableMap.builder();
+    @Override
+    public ListenableFuture<Void> setAsync(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable CacheStatistics cacheStatistics)
+    {
+        return setAsync(namespace, stores, cacheStatistics, Lists.<String>newArrayList());
+    }
+
+    /**
+     * Same as {@link #setAsync(String, Collection, CacheStatistics)}, and adds the keys of the values rejected as
+     * too large to the given collection before returning.
+     */
+    ListenableFuture<Void> setAsync(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable CacheStatistics cacheStatistics, final Collection<String> rejected)
+    {
+        membershipFilters.recordWrites(namespace, stores);
+        final Writes writes = prepareWrites(namespace, stores, cacheStatistics);
+        rejected.addAll(writes.rejected);
+        final List<ListenableFuture<?>> futures = ImmutableList.<ListenableFuture<?>>of(processOpsAsync(namespace, writes.single, SET_CALLBACK),
+                                                                                      writeChunkedAsync(namespace, writes, SET_MANIFEST_CALLBACK),
+                                                                                      replicateAsync(namespace, writes, null));
+        return Futures.transform(Futures.allAsList(futures), TO_VOID);
+    }
 
-            for (Entry<String, Object> e : internalResult.entrySet()) {
-                if (e.getValue() == null) {
-                    continue;
+    @Override
+    public ListenableFuture<Map<String, Boolean>> addAsync(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable CacheStatistics cacheStatistics)
+    {
+        membershipFilters.recordWrites(namespace, stores);
+        final Writes writes = prepareWrites(namespace, stores, cacheStatistics);
+        final List<ListenableFuture<Map<String, Boolean>>> futures = ImmutableList.of(processOpsAsync(namespace, writes.single, ADD_CALLBACK),
+                                                                                      writeChunkedAsync(namespace, writes, ADD_MANIFEST_CALLBACK));
+
+        return Futures.transform(Futures.allAsList(futures), new AsyncFunction<List<Map<String, Boolean>>, Map<String, Boolean>>() {
+            @Override
+            public ListenableFuture<Map<String, Boolean>> apply(final List<Map<String, Boolean>> results) {
+                final Map<String, Boolean> merged = Maps.newHashMap();
+                for (final String key : writes.rejected) {
+                    merged.put(key, false);
                 }
+                for (final Map<String, Boolean> result : results) {
+                    merged.putAll(result);
+                }
+                return Futures.transform(replicateAsync(namespace, writes, merged), Functions.<Map<String, Boolean>>constant(ImmutableMap.copyOf(merged)));
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> clearAsync(final String namespace, final Collection<String> keys, @Nullable CacheStatistics cacheStatistics)
+    {
+        final Collection<CacheStore<Void>> clears = CacheStores.forKeys(keys, null);
+        final List<ListenableFuture<Map<String, Boolean>>> futures = ImmutableList.of(processOpsAsync(namespace, clears, CLEAR_CALLBACK),
+                                                                                      processOpsAsync(namespace, findReplicaStores(namespace, clears), CLEAR_CALLBACK));
+        final ListenableFuture<Void> result = Futures.transform(Futures.allAsList(futures), TO_VOID);
+        clearPrevious(namespace, keys);
+        membershipFilters.recordClears(namespace, keys);
+        return result;
+    }
+
+    /**
+     * Issues a bulk get without blocking. The returned future is completed from the memcached I/O thread
+     * once all responses have arrived; failures and timeouts are reported as an empty result, same as
+     * the synchronous {@link #get(String, Collection, CacheStatistics)}.
+     */
+    @Override
+    public ListenableFuture<Map<String, byte[]>> getAsync(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final MemcachedClient client = clientFactory.get();
+        if (client == null) {
+            return Futures.<Map<String, byte[]>>immediateFuture(Collections.<String, byte[]>emptyMap());
+        }
+
+        final Collection<String> candidates = membershipFilters.mightContain(namespace, keys, cacheStatistics);
+        if (candidates.isEmpty()) {
+            return Futures.<Map<String, byte[]>>immediateFuture(Collections.<String, byte[]>emptyMap());
+        }
+
+        final Map<String, String> preparedKeys = makeKeys(findNamespace(namespace), candidates);
+        final ListenableFuture<Map<String, byte[]>> result;
+        if (replicas.getFactor(namespace) < 2) {
+            result = getBulkAsync(client, namespace, preparedKeys);
+        }
+        else {
+            result = readReplicasAsync(client, namespace, orderCopies(client, namespace, preparedKeys), Collections.<String, byte[]>emptyMap(), 0);
+        }
+
+        return Futures.transform(readPreviousAsync(client, namespace, preparedKeys, result, cacheStatistics), new Function<Map<String, byte[]>, Map<String, byte[]>>() {
+            @Override
+            public Map<String, byte[]> apply(final Map<String, byte[]> values) {
+                membershipFilters.recordHits(namespace, candidates.size(), values.size(), cacheStatistics);
+                return values;
+            }
+        });
+    }
 
-                // This cast better works, otherwise, the memcached returned something besides a byte [] as value.
-                transformedResults.put(decoder.apply(e.getKey().substring(prefixLength)), byte [].class.cast(e.getValue()));
+    /**
+     * Like {@link #read(MemcachedClient, String, Map, BulkRead)} for a replicated namespace, without blocking: reads
+     * the copies of the given round, then starts the next round for the keys still missing.
+     */
+    private ListenableFuture<Map<String, byte[]>> readReplicasAsync(final MemcachedClient client,
+                                                                    final String namespace,
+                                                                    final Map<String, List<String>> copies,
+                                                                    final Map<String, byte[]> found,
+                                                                    final int round)
+    {
+        final Map<String, String> roundKeys = nextCopies(copies, found.keySet(), round);
+        if (roundKeys.isEmpty()) {
+            return Futures.immediateFuture(found);
+        }
+
+        final List<SocketAddress> servers = replicas.startReads(client, roundKeys.keySet());
+        final ListenableFuture<Map<String, byte[]>> roundFuture = getBulkAsync(client, namespace, roundKeys);
+        roundFuture.addListener(new Runnable() {
+            @Override
+            public void run() {
+                replicas.finishReads(servers);
             }
+        }, MoreExecutors.sameThreadExecutor());
+        return Futures.transform(roundFuture, new AsyncFunction<Map<String, byte[]>, Map<String, byte[]>>() {
+            @Override
+            public ListenableFuture<Map<String, byte[]>> apply(final Map<String, byte[]> values) {
+                final Map<String, byte[]> next = Maps.newHashMap(found);
+                next.putAll(values);
+                return readReplicasAsync(client, namespace, copies, next, round + 1);
+            }
+        });
+    }
 
-            return transformedResults.build();
+    private ListenableFuture<Map<String, byte[]>> getBulkAsync(final MemcachedClient client, final String namespace, final Map<String, String> preparedKeys)
+    {
+        final BulkFuture<Map<String, Object>> bulkFuture;
+        try {
+            bulkFuture = client.asyncGetBulk(preparedKeys.keySet());
+        }
+        catch (IllegalStateException ise) {
+            LOG.errorDebug(ise, "Memcache Queue was full while loading keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+            return Futures.<Map<String, byte[]>>immediateFuture(Collections.<String, byte[]>emptyMap());
+        }
+
+        final SettableFuture<Map<String, byte[]>> result = SettableFuture.create();
+        bulkFuture.addListener(new BulkGetCompletionListener() {
+            @Override
+            public void onComplete(final BulkGetFuture<?> future) {
+                try {
+                    final Map<String, Object> internalResult = bulkFuture.get();
+                    final List<String> chunkKeys = findChunkKeys(internalResult);
+                    if (chunkKeys.isEmpty()) {
+                        result.set(transformResults(preparedKeys, internalResult, Collections.<String, Object>emptyMap()));
+                    }
+                    else {
+                        getChunksAsync(client, namespace, preparedKeys, internalResult, chunkKeys, result);
+                    }
+                    return;
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException ee) {
+                    LOG.errorDebug(ee.getCause(), "Operation failed while loading keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+                }
+                catch (OperationTimeoutException ote) {
+                    LOG.errorDebug(ote, "Operation timed out while loading keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+                }
+                catch (CancellationException ce) {
+                    LOG.errorDebug(ce, "Operation cancelled while loading keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+                }
+                result.set(Collections.<String, byte[]>emptyMap());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Fetches the second half of a bulk get that found large values: all of their chunks, in one go. Values whose
+     * chunks can not be loaded turn into misses.
+     */
+    private void getChunksAsync(final MemcachedClient client,
+                                final String namespace,
+                                final Map<String, String> preparedKeys,
+                                final Map<String, Object> internalResult,
+                                final List<String> chunkKeys,
+                                final SettableFuture<Map<String, byte[]>> result)
+    {
+        final BulkFuture<Map<String, Object>> chunkFuture;
+        try {
+            chunkFuture = client.asyncGetBulk(chunkKeys);
+        }
+        catch (IllegalStateException ise) {
+            LOG.errorDebug(ise, "Memcache Queue was full while loading chunks for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+            result.set(transformResults(preparedKeys, internalResult, Collections.<String, Object>emptyMap()));
+            return;
+        }
+
+        chunkFuture.addListener(new BulkGetCompletionListener() {
+            @Override
+            public void onComplete(final BulkGetFuture<?> future) {
+                Map<String, Object> chunks = Collections.emptyMap();
+                try {
+                    chunks = chunkFuture.get();
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException ee) {
+                    LOG.errorDebug(ee.getCause(), "Operation failed while loading chunks for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+                }
+                catch (OperationTimeoutException ote) {
+                    LOG.errorDebug(ote, "Operation timed out while loading chunks for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+                }
+                catch (CancellationException ce) {
+                    LOG.errorDebug(ce, "Operation cancelled while loading chunks for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+                }
+                result.set(transformResults(preparedKeys, internalResult, chunks));
+            }
+        });
+    }
+
+    /**
+     * Like {@link #get(String, Collection, CacheStatistics)}, but compressed and chunked values are put into buffers
+     * from the pool, which go back to it when the leases are closed.
+     */
+    @Override
+    public Map<String, CacheLease> lease(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final MemcachedClient client = clientFactory.get();
+        if (client == null) {
+            return Collections.emptyMap();
+        }
+
+        final Collection<String> candidates = membershipFilters.mightContain(namespace, keys, cacheStatistics);
+        if (candidates.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, String> preparedKeys = makeKeys(findNamespace(namespace), candidates);
+        final Map<String, CacheLease> found = read(client, namespace, preparedKeys, bulkLease);
+        final Map<String, byte[]> moved = readPrevious(client, namespace, preparedKeys, found.keySet(), cacheStatistics);
+        final Map<String, CacheLease> result = moved.isEmpty() ? found : ImmutableMap.<String, CacheLease>builder().putAll(found).putAll(CacheLease.of(moved)).build();
+        membershipFilters.recordHits(namespace, candidates.size(), result.size(), cacheStatistics);
+        return result;
+    }
+
+    private Map<String, CacheLease> leaseBulk(final MemcachedClient client, final String namespace, final Map<String, String> preparedKeys)
+    {
+        try {
+            final Map<String, Object> internalResult = client.getBulk(preparedKeys.keySet(), leaseTranscoder);
+            return transformLeases(preparedKeys, internalResult, getChunks(client, namespace, internalResult));
         }
         catch (OperationTimeoutException ote) {
-            LOG.errorDebug(ote, "Operation timed out while loading keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+            LOG.errorDebug(ote, "Operation timed out while leasing keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
         }
         catch (CancellationException ce) {
-            LOG.errorDebug(ce, "Operation cancelled while loading keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+            LOG.errorDebug(ce, "Operation cancelled while leasing keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
         }
         catch (IllegalStateException ise) {
-            LOG.errorDebug(ise, "Memcache Queue was full while loading keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+            LOG.errorDebug(ise, "Memcache Queue was full while leasing keys for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Reads the given keys. In a replicated namespace, every key is first read from its preferred copy, then from the
+     * next copy if that missed, until all copies have been tried.
+     */
+    private <V> Map<String, V> read(final MemcachedClient client, final String namespace, final Map<String, String> preparedKeys, final BulkRead<V> bulkRead)
+    {
+        if (replicas.getFactor(namespace) < 2) {
+            return bulkRead.read(client, namespace, preparedKeys);
+        }
+
+        final Map<String, List<String>> copies = orderCopies(client, namespace, preparedKeys);
+        final Map<String, V> result = Maps.newHashMap();
+        for (int round = 0; ; round++) {
+            final Map<String, String> roundKeys = nextCopies(copies, result.keySet(), round);
+            if (roundKeys.isEmpty()) {
+                return ImmutableMap.copyOf(result);
+            }
+            final List<SocketAddress> servers = replicas.startReads(client, roundKeys.keySet());
+            try {
+                result.putAll(bulkRead.read(client, namespace, roundKeys));
+            }
+            finally {
+                replicas.finishReads(servers);
+            }
+        }
+    }
+
+    /**
+     * @return the memcached keys of the copies of every key, in the order to read them, by original key.
+     */
+    private Map<String, List<String>> orderCopies(final MemcachedClient client, final String namespace, final Map<String, String> preparedKeys)
+    {
+        final int factor = replicas.getFactor(namespace);
+        final Map<String, List<String>> result = Maps.newLinkedHashMap();
+        for (final Entry<String, String> entry : preparedKeys.entrySet()) {
+            result.put(entry.getValue(), replicas.orderForRead(client, entry.getValue(), replicas.getCopies(client, entry.getKey(), factor)));
+        }
+        return result;
+    }
+
+    /**
+     * @return a map from the memcached key to the original key for the copies to read in the given round, leaving
+     * out the keys already found.
+     */
+    private static Map<String, String> nextCopies(final Map<String, List<String>> copies, final Collection<String> found, final int round)
+    {
+        final Map<String, String> result = Maps.newLinkedHashMap();
+        for (final Entry<String, List<String>> entry : copies.entrySet()) {
+            if (round < entry.getValue().size() && !found.contains(entry.getKey())) {
+                result.put(entry.getValue().get(round), entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * During the warm-up after a change of the server list, reads the keys that were not found and moved to another
+     * server from the server they were on before, and copies the values found there to their new server.
+     *
+     * @return the values found on the previous servers, by original key.
+     */
+    private Map<String, byte[]> readPrevious(final MemcachedClient client,
+                                             final String namespace,
+                                             final Map<String, String> preparedKeys,
+                                             final Collection<String> found,
+                                             @Nullable final CacheStatistics cacheStatistics)
+    {
+        final MemcachedClient previousClient = warmUp.getPreviousClient();
+        if (previousClient == null) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, String> moved = warmUp.findMoved(client, previousClient, preparedKeys, found);
+        if (moved.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, byte[]> result = getBulk(previousClient, namespace, moved);
+        copyForward(namespace, result, cacheStatistics);
+        return result;
+    }
+
+    /**
+     * Like {@link #readPrevious(MemcachedClient, String, Map, Collection, CacheStatistics)}, once the values read from
+     * the current servers are there.
+     *
+     * @return the values found on the current servers together with the ones found on the previous servers.
+     */
+    private ListenableFuture<Map<String, byte[]>> readPreviousAsync(final MemcachedClient client,
+                                                                    final String namespace,
+                                                                    final Map<String, String> preparedKeys,
+                                                                    final ListenableFuture<Map<String, byte[]>> current,
+                                                                    @Nullable final CacheStatistics cacheStatistics)
+    {
+        final MemcachedClient previousClient = warmUp.getPreviousClient();
+        if (previousClient == null) {
+            return current;
+        }
+
+        return Futures.transform(current, new AsyncFunction<Map<String, byte[]>, Map<String, byte[]>>() {
+            @Override
+            public ListenableFuture<Map<String, byte[]>> apply(final Map<String, byte[]> found) {
+                final Map<String, String> moved = warmUp.findMoved(client, previousClient, preparedKeys, found.keySet());
+                if (moved.isEmpty()) {
+                    return Futures.immediateFuture(found);
+                }
+                return Futures.transform(getBulkAsync(previousClient, namespace, moved), new Function<Map<String, byte[]>, Map<String, byte[]>>() {
+                    @Override
+                    public Map<String, byte[]> apply(final Map<String, byte[]> values) {
+                        if (values.isEmpty()) {
+                            return found;
+                        }
+                        copyForward(namespace, values, cacheStatistics);
+                        return ImmutableMap.<String, byte[]>builder().putAll(found).putAll(values).build();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Writes values read from their previous servers to their current ones, unless something was written there in
+     * the meantime. Does not wait for the writes.
+     */
+    private void copyForward(final String namespace, final Map<String, byte[]> values, @Nullable final CacheStatistics cacheStatistics)
+    {
+        if (values.isEmpty()) {
+            return;
+        }
+        if (cacheStatistics != null) {
+            cacheStatistics.incrementWarmUpHits(values.size());
+        }
+
+        final long now = System.currentTimeMillis();
+        final List<CacheStore<byte []>> stores = Lists.newArrayListWithCapacity(values.size());
+        for (final Entry<String, byte[]> entry : values.entrySet()) {
+            final DateTime expiry = warmUp.getExpiry(entry.getValue(), now);
+            if (expiry != null) {
+                stores.add(CacheStores.fromSharedBytes(entry.getKey(), entry.getValue(), expiry));
+            }
+        }
+        if (!stores.isEmpty()) {
+            addAsync(namespace, stores, null);
+        }
+    }
+
+    /**
+     * During the warm-up after a change of the server list, also removes the keys that moved to another server from
+     * the server they were on before. Otherwise a miss after the clear would find the old value there.
+     */
+    private void clearPrevious(final String namespace, final Collection<String> keys)
+    {
+        final MemcachedClient client = clientFactory.get();
+        final MemcachedClient previousClient = warmUp.getPreviousClient();
+        if (client == null || previousClient == null) {
+            return;
+        }
+
+        try {
+            for (final String nsKey : warmUp.findMoved(client, previousClient, makeKeys(findNamespace(namespace), keys).keySet())) {
+                previousClient.delete(nsKey);
+            }
+        }
+        catch (IllegalStateException ise) {
+            LOG.errorDebug(ise, "Memcache Queue was full while clearing previous servers for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+        }
+    }
+
+    /**
+     * Loads the chunks of all large values in a bulk get result with a single bulk get.
+     *
+     * @return the chunks by memcached key; empty if there were no large values or loading their chunks failed.
+     */
+    private Map<String, Object> getChunks(final MemcachedClient client, final String namespace, final Map<String, Object> internalResult)
+    {
+        final List<String> chunkKeys = findChunkKeys(internalResult);
+        if (chunkKeys.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        try {
+            return client.getBulk(chunkKeys);
+        }
+        catch (OperationTimeoutException ote) {
+            LOG.errorDebug(ote, "Operation timed out while loading chunks for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+        }
+        catch (CancellationException ce) {
+            LOG.errorDebug(ce, "Operation cancelled while loading chunks for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
+        }
+        catch (IllegalStateException ise) {
+            LOG.errorDebug(ise, "Memcache Queue was full while loading chunks for cache %s, namespace %s!", clientFactory.getCacheName(), namespace);
         }
         return Collections.emptyMap();
     }
 
+    private static List<String> findChunkKeys(final Map<String, Object> internalResult)
+    {
+        final List<String> chunkKeys = Lists.newArrayList();
+        for (final Entry<String, Object> e : internalResult.entrySet()) {
+            if (e.getValue() instanceof ChunkManifest) {
+                final ChunkManifest manifest = (ChunkManifest) e.getValue();
+                for (int i = 0; i < manifest.getChunkCount(); i++) {
+                    chunkKeys.add(manifest.getChunkKey(e.getKey(), i));
+                }
+            }
+        }
+        return chunkKeys;
+    }
+
+    /**
+     * Maps the memcached results back to the caller's keys. The key map goes from encoded key to original
+     * key, so nothing needs to be decoded. Large values are put back together from their chunks.
+     */
+    private Map<String, byte[]> transformResults(final Map<String, String> preparedKeys, final Map<String, Object> internalResult, final Map<String, Object> chunks)
+    {
+        final ImmutableMap.Builder<String, byte[]> transformedResults = ImmutableMap.builder();
+
+        for (Entry<String, Object> e : internalResult.entrySet()) {
+            final Object value = e.getValue();
+            if (value == null) {
+                continue;
+            }
+
+            if (value instanceof ChunkManifest) {
+                final byte [] data = reassemble(preparedKeys.get(e.getKey()), e.getKey(), (ChunkManifest) value, chunks);
+                if (data != null) {
+                    transformedResults.put(preparedKeys.get(e.getKey()), data);
+                }
+                continue;
+            }
+
+            // This cast better works, otherwise, the memcached returned something besides a byte [] as value.
+            transformedResults.put(preparedKeys.get(e.getKey()), byte [].class.cast(value));
+        }
+
+        return transformedResults.build();
+    }
+
+    /**
+     * Like {@link #transformResults(Map, Map, Map)}, for results decoded by the lease transcoder.
+     */
+    private Map<String, CacheLease> transformLeases(final Map<String, String> preparedKeys, final Map<String, Object> internalResult, final Map<String, Object> chunks)
+    {
+        final ImmutableMap.Builder<String, CacheLease> leases = ImmutableMap.builder();
+
+        for (Entry<String, Object> e : internalResult.entrySet()) {
+            final Object value = e.getValue();
+            if (value instanceof ChunkManifest) {
+                final CacheLease lease = reassembleLease(preparedKeys.get(e.getKey()), e.getKey(), (ChunkManifest) value, chunks);
+                if (lease != null) {
+                    leases.put(preparedKeys.get(e.getKey()), lease);
+                }
+            }
+            else if (value != null) {
+                leases.put(preparedKeys.get(e.getKey()), CacheLease.class.cast(value));
+            }
+        }
+
+        return leases.build();
+    }
+
+    /**
+     * Puts a large value back together from its chunks and decompresses it. The compressed value only lives
+     * in a pooled buffer.
+     *
+     * @return the value, or null if chunks are missing or damaged.
+     */
+    @CheckForNull
+    private byte [] reassemble(final String key, final String nsKey, final ChunkManifest manifest, final Map<String, Object> chunks)
+    {
+        final List<byte []> parts = findChunks(nsKey, manifest, chunks);
+        if (manifest.getCodec() == MemcacheCodec.NONE) {
+            final byte [] data = manifest.reassemble(parts);
+            if (data == null) {
+                LOG.debug("Chunks of %s are missing or damaged, treating it as a miss", key);
+            }
+            return data;
+        }
+
+        final byte [] buffer = bufferPool.acquire(manifest.getLength());
+        try {
+            if (!manifest.reassemble(parts, buffer)) {
+                LOG.debug("Chunks of %s are missing or damaged, treating it as a miss", key);
+                return null;
+            }
+            return manifest.getCodec().decompress(buffer, manifest.getLength(), maxLength);
+        }
+        catch (DataFormatException dfe) {
+            LOG.warnDebug(dfe, "Could not decompress %s, treating it as a miss", key);
+            return null;
+        }
+        finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Like {@link #reassemble(String, String, ChunkManifest, Map)}, but the value ends up in a pooled buffer as well.
+     */
+    @CheckForNull
+    private CacheLease reassembleLease(final String key, final String nsKey, final ChunkManifest manifest, final Map<String, Object> chunks)
+    {
+        final byte [] buffer = bufferPool.acquire(manifest.getLength());
+        boolean leased = false;
+        try {
+            if (!manifest.reassemble(findChunks(nsKey, manifest, chunks), buffer)) {
+                LOG.debug("Chunks of %s are missing or damaged, treating it as a miss", key);
+                return null;
+            }
+            if (manifest.getCodec() == MemcacheCodec.NONE) {
+                leased = true;
+                return CacheLease.pooled(buffer, manifest.getLength(), bufferPool);
+            }
+            return manifest.getCodec().decompress(buffer, manifest.getLength(), maxLength, bufferPool);
+        }
+        catch (DataFormatException dfe) {
+            LOG.warnDebug(dfe, "Could not decompress %s, treating it as a miss", key);
+            return null;
+        }
+        finally {
+            if (!leased) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    private static List<byte []> findChunks(final String nsKey, final ChunkManifest manifest, final Map<String, Object> chunks)
+    {
+        final List<byte []> parts = Lists.newArrayListWithCapacity(manifest.getChunkCount());
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            parts.add((byte []) chunks.get(manifest.getChunkKey(nsKey, i)));
+        }
+        return parts;
+    }
+
     /** Memcache expects expiration dates in seconds since the epoch. */
     public static int computeMemcacheExpiry(@Nullable DateTime when)
     {
         return when == null ? -1 : Ints.saturatedCast(when.getMillis() / 1000);
     }
 
-    private Collection<String> makeKeys(final NamespaceInfo namespaceInfo, Collection<String> keys) {
+    /**
+     * @return a map from the memcached key to the original key, in iteration order of the given keys.
+     */
+    private Map<String, String> makeKeys(final NamespaceInfo namespaceInfo, final Collection<String> keys) {
         final String encodedNamespace = namespaceInfo.getEncodedNamespace();
-        return Collections2.transform(keys, new Function<String, String>() {
-            @Override
-            public String apply(final String key) {
-                return encodedNamespace + encoder.apply(key);
+        final Map<String, String> result = Maps.newLinkedHashMap();
+        for (final String key : keys) {
+            result.put(encoder.encode(encodedNamespace, key), key);
+        }
+        return result;
+    }
+
+    /**
+     * Brings the other copies of the values written to a replicated namespace in line with their first copy. Values
+     * too large for a single item are only stored once, so any older copies of them are removed instead.
+     *
+     * @param results the results of the writes, to only replicate the ones that succeeded; null to replicate all.
+     */
+    private void replicate(final String namespace, final Writes writes, @Nullable final Map<String, Boolean> results)
+    {
+        if (replicas.getFactor(namespace) < 2) {
+            return;
+        }
+
+        final Map<String, CacheStore<Object>> copies = findReplicaStores(namespace, writes.getSingle(results));
+        if (!copies.isEmpty()) {
+            processOps(namespace, false, copies, SET_CALLBACK);
+        }
+        final Map<String, CacheStore<Void>> stale = findReplicaStores(namespace, CacheStores.forKeys(writes.getChunkedKeys(results), null));
+        if (!stale.isEmpty()) {
+            processOps(namespace, false, stale, CLEAR_CALLBACK);
+        }
+    }
+
+    /**
+     * Like {@link #replicate(String, Writes, Map)}, without waiting for the writes.
+     */
+    private ListenableFuture<?> replicateAsync(final String namespace, final Writes writes, @Nullable final Map<String, Boolean> results)
+    {
+        if (replicas.getFactor(namespace) < 2) {
+            return Futures.immediateFuture(null);
+        }
+
+        return Futures.allAsList(processOpsAsync(namespace, findReplicaStores(namespace, writes.getSingle(results)), SET_CALLBACK),
+                                 processOpsAsync(namespace, findReplicaStores(namespace, CacheStores.forKeys(writes.getChunkedKeys(results), null)), CLEAR_CALLBACK));
+    }
+
+    /**
+     * @return the stores for all copies but the first of the given values, by memcached key. Empty if the namespace
+     * is not replicated.
+     */
+    private <D> Map<String, CacheStore<D>> findReplicaStores(final String namespace, final Collection<CacheStore<D>> stores)
+    {
+        final int factor = replicas.getFactor(namespace);
+        final MemcachedClient client = clientFactory.get();
+        if (factor < 2 || client == null || stores.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, CacheStore<D>> result = Maps.newLinkedHashMap();
+        for (final Map.Entry<String, CacheStore<D>> entry : encodeKeys(findNamespace(namespace), stores).entrySet()) {
+            final List<String> copies = replicas.getCopies(client, entry.getKey(), factor);
+            for (final String copy : copies.subList(1, copies.size())) {
+                result.put(copy, entry.getValue());
             }
-        });
+        }
+        return result;
     }
 
     private long lastWarnAboutNullClient = 0;
     private <F, D> Map<String, F> processOps(final String namespace, final boolean wait, final Collection<CacheStore<D>> stores, Callback<F, D> callback)
+    {
+        return processOps(namespace, wait, encodeKeys(findNamespace(namespace), stores), callback);
+    }
+
+    /**
+     * @param stores the stores to process by memcached key.
+     */
+    private <F, D> Map<String, F> processOps(final String namespace, final boolean wait, final Map<String, CacheStore<D>> stores, Callback<F, D> callback)
     {
         final MemcachedClient client = clientFactory.get();
         if (client == null) {
@@ -240,28 +955,35 @@ final class MemcacheProvider implements InternalCacheProvider
             return Collections.emptyMap();
         }
 
-        final NamespaceInfo namespaceInfo = findNamespace(namespace);
-        final String encodedNamespace = namespaceInfo.getEncodedNamespace();
-        final Map<String, Future<F>> futures = Maps.newHashMap();
+        final Map<String, CacheStore<D>> batch = groupByNode(client, stores);
+        final Map<String, Future<F>> futures = Maps.newLinkedHashMap();
 
         try {
-            for (final CacheStore<D> cacheStore : stores) {
+            // Queue every operation before waiting for any of them, so that the whole batch gets pipelined
+            // to the servers instead of paying one round trip per key. With write optimization turned on,
+            // the client merges the consecutive stores for a server into quiet sets followed by a single noop.
+            for (final Map.Entry<String, CacheStore<D>> entry : batch.entrySet()) {
 
-                final String key = cacheStore.getKey();
+                final String key = entry.getValue().getKey();
 
-                Future<F> future = null;
                 try {
-                    future = callback.callback(client, encodedNamespace + encoder.apply(key), cacheStore);
-                    futures.put(key, future);
+                    // By memcached key, the copies of a replicated value share their key.
+                    futures.put(entry.getKey(), callback.callback(client, entry.getKey(), entry.getValue()));
                 } catch (IllegalStateException ise) {
                     LOG.errorDebug(ise, "Memcache Queue was full while storing %s:%s", namespace, key);
                 }
+            }
 
-                syncCheck(future, namespace, cacheStore);
+            for (final Map.Entry<String, Future<F>> entry : futures.entrySet()) {
+                syncCheck(entry.getValue(), namespace, batch.get(entry.getKey()).getKey());
             }
 
             if (wait) {
-                return waitFutures(namespace, futures);
+                final Map<String, F> results = Maps.newHashMap();
+                for (final Map.Entry<String, F> entry : waitFutures(namespace, futures).entrySet()) {
+                    results.put(batch.get(entry.getKey()).getKey(), entry.getValue());
+                }
+                return results;
             }
         }
         catch (InterruptedException ie) {
@@ -271,7 +993,127 @@ final class MemcacheProvider implements InternalCacheProvider
         return Collections.emptyMap();
     }
 
-    private void syncCheck(final Future<?> future, final String namespace, final CacheStore<?> cacheStore)
+    /**
+     * @return a map from the memcached key to its store.
+     */
+    private <D> Map<String, CacheStore<D>> encodeKeys(final NamespaceInfo namespaceInfo, final Collection<CacheStore<D>> stores)
+    {
+        final String encodedNamespace = namespaceInfo.getEncodedNamespace();
+        final Map<String, CacheStore<D>> result = Maps.newLinkedHashMap();
+        for (final CacheStore<D> cacheStore : stores) {
+            result.put(encoder.encode(encodedNamespace, cacheStore.getKey()), cacheStore);
+        }
+        return result;
+    }
+
+    /**
+     * Orders a batch so that all keys living on the same server are submitted back to back. That lets the client
+     * coalesce them into one pipelined write per server.
+     */
+    private <D> Map<String, CacheStore<D>> groupByNode(final MemcachedClient client, final Map<String, CacheStore<D>> stores)
+    {
+        if (stores.size() < 2 || !config.isMemcachedOptimizeWrites()) {
+            return stores;
+        }
+
+        final NodeLocator locator = client.getNodeLocator();
+        final Map<MemcachedNode, Map<String, CacheStore<D>>> nodes = Maps.newLinkedHashMap();
+        for (final Map.Entry<String, CacheStore<D>> entry : stores.entrySet()) {
+            final MemcachedNode node = locator.getPrimary(entry.getKey());
+            Map<String, CacheStore<D>> nodeStores = nodes.get(node);
+            if (nodeStores == null) {
+                nodeStores = Maps.newLinkedHashMap();
+                nodes.put(node, nodeStores);
+            }
+            nodeStores.put(entry.getKey(), entry.getValue());
+        }
+
+        final Map<String, CacheStore<D>> result = Maps.newLinkedHashMap();
+        for (final Map<String, CacheStore<D>> nodeStores : nodes.values()) {
+            result.putAll(nodeStores);
+        }
+        return result;
+    }
+
+    /**
+     * Submit all operations without waiting for them. The returned future completes once every operation has
+     * finished; operations that failed or were cancelled are logged and left out of the result map.
+     */
+    private <F, D> ListenableFuture<Map<String, F>> processOpsAsync(final String namespace, final Collection<CacheStore<D>> stores, final Callback<F, D> callback)
+    {
+        return processOpsAsync(namespace, encodeKeys(findNamespace(namespace), stores), callback);
+    }
+
+    /**
+     * @param stores the stores to process by memcached key.
+     */
+    private <F, D> ListenableFuture<Map<String, F>> processOpsAsync(final String namespace, final Map<String, CacheStore<D>> stores, final Callback<F, D> callback)
+    {
+        final MemcachedClient client = clientFactory.get();
+        if (client == null) {
+            return Futures.<Map<String, F>>immediateFuture(Collections.<String, F>emptyMap());
+        }
+
+        final List<String> keys = Lists.newArrayListWithExpectedSize(stores.size());
+        final List<ListenableFuture<F>> futures = Lists.newArrayListWithExpectedSize(stores.size());
+
+        try {
+            for (final Map.Entry<String, CacheStore<D>> entry : groupByNode(client, stores).entrySet()) {
+                final String key = entry.getValue().getKey();
+                try {
+                    futures.add(toListenableFuture(namespace, key, callback.callback(client, entry.getKey(), entry.getValue())));
+                    keys.add(key);
+                } catch (IllegalStateException ise) {
+                    LOG.errorDebug(ise, "Memcache Queue was full while storing %s:%s", namespace, key);
+                }
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        return Futures.transform(Futures.successfulAsList(futures), new Function<List<F>, Map<String, F>>() {
+            @Override
+            public Map<String, F> apply(final List<F> values) {
+                final Map<String, F> results = Maps.newHashMap();
+                for (int i = 0; i < values.size(); i++) {
+                    final F value = values.get(i);
+                    if (value != null) {
+                        results.put(keys.get(i), value);
+                    }
+                }
+                return results;
+            }
+        });
+    }
+
+    private static <T> ListenableFuture<T> toListenableFuture(final String namespace, final String key, final OperationFuture<T> operationFuture)
+    {
+        final SettableFuture<T> result = SettableFuture.create();
+        operationFuture.addListener(new OperationCompletionListener() {
+            @Override
+            public void onComplete(final OperationFuture<?> future) {
+                try {
+                    result.set(operationFuture.get());
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    result.setException(ie);
+                }
+                catch (ExecutionException e) {
+                    LOG.errorDebug(e.getCause(), "Cache entry %s:%s", namespace, key);
+                    result.setException(e.getCause());
+                }
+                catch (RuntimeException re) {
+                    LOG.trace("Cache entry %s:%s was cancelled", namespace, key);
+                    result.setException(re);
+                }
+            }
+        });
+        return result;
+    }
+
+    private void syncCheck(final Future<?> future, final String namespace, final String key)
         throws InterruptedException
     {
         if (future != null && config.isCacheSynchronous()) {
@@ -281,10 +1123,10 @@ final class MemcacheProvider implements InternalCacheProvider
                 }
             }
             catch (ExecutionException e) {
-                LOG.errorDebug(e.getCause(), "Cache entry %s:%s", namespace, cacheStore.getKey());
+                LOG.errorDebug(e.getCause(), "Cache entry %s:%s", namespace, key);
             }
             catch (CancellationException ce) {
-                LOG.trace("Cache entry %s:%s was cancelled", namespace, cacheStore.getKey());
+                LOG.trace("Cache entry %s:%s was cancelled", namespace, key);
             }
         }
     }
@@ -323,47 +1165,193 @@ final class MemcacheProvider implements InternalCacheProvider
         return namespaceInfo;
     }
 
-    private final Predicate<CacheStore<byte[]>> validateWritePredicate = new Predicate<CacheStore<byte[]>>() {
-        @Override
-        public boolean apply(@Nullable CacheStore<byte[]> input) {
-            return validateWrite(input);
+    /**
+     * Compresses the values of a batch of writes, if configured and worth it, and sorts them into values that fit
+     * into a single memcached item, values that get split into chunks and values that are too large to be stored at all.
+     */
+    private Writes prepareWrites(final String namespace, final Collection<CacheStore<byte[]>> stores, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final int maxValueSize = config.getMemcachedMaxValueSize();
+        final int maxChunkedValueSize = config.getMemcachedMaxChunkedValueSize();
+        final int chunkSize = maxValueSize > 0 ? Math.min(config.getMemcachedChunkSize(), maxValueSize) : config.getMemcachedChunkSize();
+        final MemcacheCodec dictionaryCodec = dictionaries.forNamespace(namespace);
+        final MemcacheCodec writeCodec = dictionaryCodec == null ? codec : dictionaryCodec;
+        final int compressionThreshold = dictionaryCodec == null ? config.getMemcachedCompressionThreshold() : config.getMemcachedDictionaryCompressionThreshold();
+        final String encodedNamespace = findNamespace(namespace).getEncodedNamespace();
+
+        final Writes writes = new Writes();
+        for (final CacheStore<byte[]> store : stores) {
+            byte[] data = store.getData();
+            if (data != null && data.length > maxLength) {
+                // Readers would not decompress it
+                LOG.debug("Rejecting write of %s because length %s exceeds maximum %s", store.getKey(), data.length, maxLength);
+                writes.rejected.add(store.getKey());
+                continue;
+            }
+            MemcacheCodec valueCodec = MemcacheCodec.NONE;
+            if (writeCodec != MemcacheCodec.NONE && data != null && data.length >= compressionThreshold) {
+                final byte[] compressed = writeCodec.compress(data);
+                if (compressed.length < data.length) {
+                    data = compressed;
+                    valueCodec = writeCodec;
+                }
+            }
+
+            if (maxValueSize <= 0 || data == null || data.length <= maxValueSize) {
+                writes.single.add(new CacheStore<Object>(store, valueCodec == MemcacheCodec.NONE ? data : new MemcacheCodec.Compressed(valueCodec, data)));
+            }
+            else if (data.length > maxChunkedValueSize || !writes.addChunked(encoder.encode(encodedNamespace, store.getKey()), store, data, valueCodec, chunkSize)) {
+                LOG.debug("Rejecting write of %s because length %s exceeds maximum %s", store.getKey(), data.length, Math.max(maxValueSize, maxChunkedValueSize));
+                writes.rejected.add(store.getKey());
+            }
         }
-    };
 
-    private boolean validateWrite(CacheStore<byte[]> input) {
-        int maxValueSize = config.getMemcachedMaxValueSize();
-        byte[] data = input.getData();
-        if (maxValueSize > 0 && data != null && data.length > maxValueSize) {
-            LOG.debug("Rejecting write of %s because length %s exceeds maximum %s", input.getKey(), data.length, maxValueSize);
-            return false;
+        if (cacheStatistics != null) {
+            cacheStatistics.incrementOversizedStores(writes.rejected.size());
+            cacheStatistics.incrementChunkedStores(writes.manifests.size());
         }
-        return true;
+        return writes;
+    }
+
+    /**
+     * Stores the chunks of large values and then, once they are in place, the manifests pointing to them.
+     *
+     * @return the results of storing the manifests, if asked to wait for them.
+     */
+    private Map<String, Boolean> writeChunked(final String namespace, final boolean wait, final Writes writes, final Callback<Boolean, ChunkManifest> manifestCallback)
+    {
+        if (writes.manifests.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Boolean> chunkResults = processOps(namespace, true, writes.chunks, SET_CALLBACK);
+        return processOps(namespace, wait, writes.completeManifests(chunkResults), manifestCallback);
+    }
+
+    private ListenableFuture<Map<String, Boolean>> writeChunkedAsync(final String namespace, final Writes writes, final Callback<Boolean, ChunkManifest> manifestCallback)
+    {
+        if (writes.manifests.isEmpty()) {
+            return Futures.<Map<String, Boolean>>immediateFuture(Collections.<String, Boolean>emptyMap());
+        }
+        return Futures.transform(processOpsAsync(namespace, writes.chunks, SET_CALLBACK), new AsyncFunction<Map<String, Boolean>, Map<String, Boolean>>() {
+            @Override
+            public ListenableFuture<Map<String, Boolean>> apply(final Map<String, Boolean> chunkResults) {
+                return processOpsAsync(namespace, writes.completeManifests(chunkResults), manifestCallback);
+            }
+        });
     }
 
     public interface Callback<F, D>
     {
-        Future<F> callback(MemcachedClient client, String nsKey, CacheStore<D> data) throws InterruptedException;
+        OperationFuture<F> callback(MemcachedClient client, String nsKey, CacheStore<D> data) throws InterruptedException;
+    }
+
+    private interface BulkRead<V>
+    {
+        /**
+         * @param preparedKeys a map from the memcached key to the original key.
+         * @return the values found by original key; empty if the read failed.
+         */
+        Map<String, V> read(MemcachedClient client, String namespace, Map<String, String> preparedKeys);
+    }
+
+    private static final class Writes
+    {
+        private final List<CacheStore<Object>> single = Lists.newArrayList();
+        private final List<String> rejected = Lists.newArrayList();
+
+        /** Chunks of large values by memcached key. */
+        private final Map<String, CacheStore<Object>> chunks = Maps.newLinkedHashMap();
+        /** Manifests of large values by memcached key. */
+        private final Map<String, CacheStore<ChunkManifest>> manifests = Maps.newLinkedHashMap();
+
+        /**
+         * @param results the results of the writes; null for all stores.
+         * @return the stores of values small enough for a single item that were written successfully.
+         */
+        private List<CacheStore<Object>> getSingle(@Nullable final Map<String, Boolean> results)
+        {
+            if (results == null) {
+                return single;
+            }
+            final List<CacheStore<Object>> written = Lists.newArrayList();
+            for (final CacheStore<Object> store : single) {
+                if (Boolean.TRUE.equals(results.get(store.getKey()))) {
+                    written.add(store);
+                }
+            }
+            return written;
+        }
+
+        /**
+         * @param results the results of the writes; null for all keys.
+         * @return the original keys of the large values that were written successfully.
+         */
+        private List<String> getChunkedKeys(@Nullable final Map<String, Boolean> results)
+        {
+            final List<String> written = Lists.newArrayList();
+            for (final CacheStore<ChunkManifest> manifest : manifests.values()) {
+                if (results == null || Boolean.TRUE.equals(results.get(manifest.getKey()))) {
+                    written.add(manifest.getKey());
+                }
+            }
+            return written;
+        }
+
+        /**
+         * @param data the value of the store, compressed with the given codec.
+         * @return false if the value can not be chunked because its chunk keys would be too long.
+         */
+        private boolean addChunked(final String nsKey, final CacheStore<byte[]> store, final byte[] data, final MemcacheCodec valueCodec, final int chunkSize)
+        {
+            final ChunkManifest manifest = ChunkManifest.forValue(data, chunkSize, valueCodec);
+            if (KeyUtil.getKeyBytes(manifest.getChunkKey(nsKey, manifest.getChunkCount() - 1)).length > MemcachedClientIF.MAX_KEY_LENGTH) {
+                return false;
+            }
+
+            final List<byte[]> parts = manifest.split(data);
+            for (int i = 0; i < parts.size(); i++) {
+                chunks.put(manifest.getChunkKey(nsKey, i), new CacheStore<Object>(manifest.getChunkKey(store.getKey(), i), parts.get(i), store.getExpiry()));
+            }
+            manifests.put(nsKey, new CacheStore<ChunkManifest>(store, manifest));
+            return true;
+        }
+
+        /**
+         * @return the manifests of all values whose chunks were all stored successfully.
+         */
+        private Map<String, CacheStore<ChunkManifest>> completeManifests(final Map<String, Boolean> chunkResults)
+        {
+            final Map<String, CacheStore<ChunkManifest>> result = Maps.newLinkedHashMap();
+            for (final Map.Entry<String, CacheStore<ChunkManifest>> entry : manifests.entrySet()) {
+                final CacheStore<ChunkManifest> store = entry.getValue();
+                final ChunkManifest manifest = store.getData();
+                boolean complete = true;
+                for (int i = 0; complete && i < manifest.getChunkCount(); i++) {
+                    complete = Boolean.TRUE.equals(chunkResults.get(manifest.getChunkKey(store.getKey(), i)));
+                }
+                if (complete) {
+                    result.put(entry.getKey(), store);
+                }
+                else {
+                    LOG.debug("Could not store all chunks of %s, skipping it", store.getKey());
+                }
+            }
+            return result;
+        }
     }
 
     private class NamespaceInfo
     {
         private final String encodedNamespace;
-        private final int prefixLength;
 
         private NamespaceInfo(final String namespace)
         {
-            this.encodedNamespace = encoder.apply(namespace) + separator;
-            this.prefixLength = encodedNamespace.length();
+            this.encodedNamespace = encoder.encode("", namespace) + separator;
         }
 
         private String getEncodedNamespace()
         {
             return encodedNamespace;
         }
-
-        private int getPrefixLength()
-        {
-            return prefixLength;
-        }
     }
 }
@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+
+import net.spy.memcached.KeyUtil;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedClientIF;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+import com.nesscomputing.cache.CacheConfiguration.ReplicaReadStrategy;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Places the copies of values of replicated namespaces (see {@link CacheConfiguration#getReplicatedNamespaces()}) and
+ * picks the copy to read. The first copy lives under the value's own key; every further copy lives under a derived
+ * key, <code>key~r&lt;n&gt;</code>, with the smallest <code>n</code> that puts it on a server none of the earlier
+ * copies are on. All clients with the same servers derive the same keys.
+ */
+final class MemcacheReplicas
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final String REPLICA_SEPARATOR = "~r";
+
+    /** How many derived keys to try per copy before settling for fewer copies. */
+    private static final int MAX_ATTEMPTS_PER_COPY = 32;
+
+    private final Map<String, Integer> factors;
+    private final ReplicaReadStrategy readStrategy;
+    private final MemcachedClientFactory clientFactory;
+    private final int salt = ThreadLocalRandom.current().nextInt();
+
+    private final ConcurrentMap<SocketAddress, AtomicInteger> outstanding = Maps.newConcurrentMap();
+    private final CachedNodeLocator locator = new CachedNodeLocator();
+    private volatile NodeLocator lastLocator;
+
+    MemcacheReplicas(final CacheConfiguration config, final MemcachedClientFactory clientFactory)
+    {
+        this.clientFactory = clientFactory;
+        final ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+        final List<String> namespaces = config.getReplicatedNamespaces();
+        if (namespaces != null) {
+            for (final String entry : namespaces) {
+                final int colon = entry.lastIndexOf(':');
+                final Integer factor = colon < 0 ? null : Ints.tryParse(entry.substring(colon + 1));
+                if (factor == null) {
+                    builder.put(entry, config.getReplicationFactor());
+                }
+                else {
+                    builder.put(entry.substring(0, colon), factor);
+                }
+            }
+        }
+        this.factors = builder.build();
+        this.readStrategy = config.getReplicaReadStrategy();
+
+        if (!factors.isEmpty()) {
+            LOG.info("Replicating namespaces %s", factors);
+        }
+    }
+
+    /**
+     * @return the number of copies to keep of the namespace's values; 1 if it is not replicated.
+     */
+    int getFactor(final String namespace)
+    {
+        final Integer factor = factors.get(namespace);
+        return factor == null ? 1 : Math.max(1, factor);
+    }
+
+    /**
+     * @return the memcached keys of all copies of a value, its own key first. Fewer than the factor if there are
+     * not enough servers.
+     */
+    List<String> getCopies(final MemcachedClient client, final String nsKey, final int factor)
+    {
+        if (factor < 2) {
+            return ImmutableList.of(nsKey);
+        }
+        final NodeLocator nodeLocator = getLocator(client);
+        final int copies = Math.min(factor, nodeLocator.getAll().size());
+
+        final List<String> result = Lists.newArrayListWithCapacity(copies);
+        result.add(nsKey);
+        final Set<SocketAddress> used = Sets.newHashSet();
+        used.add(nodeLocator.getPrimary(nsKey).getSocketAddress());
+
+        for (int n = 1; result.size() < copies && n <= copies * MAX_ATTEMPTS_PER_COPY; n++) {
+            final String candidate = nsKey + REPLICA_SEPARATOR + n;
+            if (KeyUtil.getKeyBytes(candidate).length > MemcachedClientIF.MAX_KEY_LENGTH) {
+                break;
+            }
+            if (used.add(nodeLocator.getPrimary(candidate).getSocketAddress())) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the copies of a value with the one to read first at the front, followed by the others in order.
+     */
+    List<String> orderForRead(final MemcachedClient client, final String key, final List<String> copies)
+    {
+        if (copies.size() < 2) {
+            return copies;
+        }
+        int first = ((key.hashCode() ^ salt) & Integer.MAX_VALUE) % copies.size();
+        if (readStrategy == ReplicaReadStrategy.LEAST_OUTSTANDING) {
+            final NodeLocator nodeLocator = getLocator(client);
+            int least = Integer.MAX_VALUE;
+            for (int i = 0; i < copies.size(); i++) {
+                final int index = (first + i) % copies.size();
+                final int count = counter(nodeLocator.getPrimary(copies.get(index)).getSocketAddress()).get();
+                if (count < least) {
+                    least = count;
+                    first = index;
+                }
+            }
+        }
+        final List<String> result = Lists.newArrayListWithCapacity(copies.size());
+        result.addAll(copies.subList(first, copies.size()));
+        result.addAll(copies.subList(0, first));
+        return result;
+    }
+
+    /**
+     * Counts reads of the given memcached keys as outstanding until {@link #finishReads(Collection)}.
+     *
+     * @return the servers counted, one per key, to be handed to {@link #finishReads(Collection)}.
+     */
+    List<SocketAddress> startReads(final MemcachedClient client, final Collection<String> nsKeys)
+    {
+        if (readStrategy != ReplicaReadStrategy.LEAST_OUTSTANDING) {
+            return Collections.emptyList();
+        }
+        final NodeLocator nodeLocator = getLocator(client);
+        final List<SocketAddress> result = Lists.newArrayListWithCapacity(nsKeys.size());
+        for (final String nsKey : nsKeys) {
+            final SocketAddress address = nodeLocator.getPrimary(nsKey).getSocketAddress();
+            counter(address).incrementAndGet();
+            result.add(address);
+        }
+        return result;
+    }
+
+    /**
+     * Ends reads counted by {@link #startReads(MemcachedClient, Collection)}, even if the servers changed meanwhile.
+     */
+    void finishReads(final Collection<SocketAddress> addresses)
+    {
+        for (final SocketAddress address : addresses) {
+            // Servers that left since the read started have no counter any more.
+            final AtomicInteger counter = outstanding.get(address);
+            if (counter != null) {
+                counter.decrementAndGet();
+            }
+        }
+    }
+
+    private AtomicInteger counter(final SocketAddress address)
+    {
+        AtomicInteger counter = outstanding.get(address);
+        if (counter == null) {
+            final AtomicInteger newCounter = new AtomicInteger();
+            counter = outstanding.putIfAbsent(address, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    private void forgetRemovedServers(final NodeLocator nodeLocator)
+    {
+        final Set<SocketAddress> current = Sets.newHashSet();
+        for (final MemcachedNode node : nodeLocator.getAll()) {
+            current.add(node.getSocketAddress());
+        }
+        outstanding.keySet().retainAll(current);
+    }
+
+    /**
+     * A new locator may come with a new server list, so the counters of servers that left are dropped with it.
+     */
+    private NodeLocator getLocator(final MemcachedClient client)
+    {
+        final NodeLocator result = locator.get(client, clientFactory.getTopologyGeneration());
+        if (result != lastLocator) {
+            lastLocator = result;
+            forgetRemovedServers(result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.NodeLocator;
+
+import org.joda.time.DateTime;
+
+/**
+ * Finds the keys that moved to another server with the last change of the server list, while the warm-up after
+ * that change lasts (see {@link CacheConfiguration#getTopologyWarmUp()}). A miss for such a key is read again
+ * from the server it was on before, and a value found there is copied to its new server.
+ */
+final class MemcacheWarmUp
+{
+    private final MemcachedClientFactory clientFactory;
+    private final boolean enabled;
+    private final long expirationMillis;
+
+    private final CachedNodeLocator current = new CachedNodeLocator();
+    /** The previous client never changes its servers. */
+    private final CachedNodeLocator previous = new CachedNodeLocator();
+
+    MemcacheWarmUp(final CacheConfiguration config, final MemcachedClientFactory clientFactory)
+    {
+        this.clientFactory = clientFactory;
+        this.enabled = config.getTopologyWarmUp().getMillis() > 0;
+        this.expirationMillis = config.getTopologyWarmUpExpiration().getMillis();
+    }
+
+    /**
+     * @return the client for the servers before the last change, or null if there is no warm-up going on.
+     */
+    @CheckForNull
+    MemcachedClient getPreviousClient()
+    {
+        return enabled ? clientFactory.getPreviousClient() : null;
+    }
+
+    /**
+     * @param preparedKeys the keys that were read, a map from the memcached key to the original key.
+     * @param found the original keys that were found.
+     * @return the keys that were not found and were on a different server before the last change, same form
+     * as the prepared keys.
+     */
+    Map<String, String> findMoved(final MemcachedClient client,
+                                  final MemcachedClient previousClient,
+                                  final Map<String, String> preparedKeys,
+                                  final Collection<String> found)
+    {
+        if (found.size() >= preparedKeys.size()) {
+            return Collections.emptyMap();
+        }
+
+        final NodeLocator currentLocator = current.get(client, clientFactory.getTopologyGeneration());
+        final NodeLocator previousLocator = previous.get(previousClient, 0);
+
+        final Map<String, String> result = Maps.newLinkedHashMap();
+        for (final Entry<String, String> entry : preparedKeys.entrySet()) {
+            if (!found.contains(entry.getValue()) && !isSameServer(currentLocator, previousLocator, entry.getKey())) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the keys, by memcached key, that were on a different server before the last change.
+     */
+    Collection<String> findMoved(final MemcachedClient client, final MemcachedClient previousClient, final Collection<String> nsKeys)
+    {
+        final NodeLocator currentLocator = current.get(client, clientFactory.getTopologyGeneration());
+        final NodeLocator previousLocator = previous.get(previousClient, 0);
+
+        final Collection<String> result = Lists.newArrayList();
+        for (final String nsKey : nsKeys) {
+            if (!isSameServer(currentLocator, previousLocator, nsKey)) {
+                result.add(nsKey);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return when a value copied to its new server should expire: the expiry it records (see {@link CacheEnvelope})
+     * or the configured warm-up expiration. Null if the value has expired already or is a cached miss; memcached
+     * does not hand back the expiry of a miss, so a copy of it could outlive the original and shadow later adds.
+     */
+    @CheckForNull
+    DateTime getExpiry(final byte [] value, final long nowMillis)
+    {
+        if (CacheEnvelope.isTombstone(value)) {
+            return null;
+        }
+        final CacheEnvelope envelope = CacheEnvelope.unwrap(value);
+        if (envelope == null) {
+            return new DateTime(nowMillis + expirationMillis);
+        }
+        return envelope.getExpiryMillis() > nowMillis ? new DateTime(envelope.getExpiryMillis()) : null;
+    }
+
+    private static boolean isSameServer(final NodeLocator currentLocator, final NodeLocator previousLocator, final String nsKey)
+    {
+        return currentLocator.getPrimary(nsKey).getSocketAddress().equals(previousLocator.getPrimary(nsKey).getSocketAddress());
+    }
+}
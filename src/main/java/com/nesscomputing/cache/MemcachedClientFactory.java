@@ -20,13 +20,16 @@ import com.nesscomputing.lifecycle.guice.OnStage;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -35,33 +38,49 @@ import net.spy.memcached.MemcachedClient;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.nesscomputing.logging.Log;
 
+import org.weakref.jmx.MBeanExporter;
+
 /**
  * Maintain a {@link MemcachedClient} which is always connected to the currently operating
  * memcached cluster.  Periodically uses the {@link CacheTopologyProvider} and if there is a change,
- * recreate the client.
+ * applies it to the running client (see {@link NessMemcachedClient#reconfigure(java.util.List, java.util.Map, TopologyStatistics)}),
+ * or recreates the client if that is not possible. With a warm-up (see {@link CacheConfiguration#getTopologyWarmUp()}),
+ * a client for the servers before the change stays around for a while, see {@link #getPreviousClient()}.
  */
 @Singleton
 @ThreadSafe
 class MemcachedClientFactory {
     private static final Log LOG = Log.findLog();
 
+    /** How long to wait for the I/O thread of the client to apply a new server list. */
+    private static final long RECONFIGURE_TIMEOUT_SECONDS = 10;
+
     private final AtomicReference<MemcachedClient> client = new AtomicReference<MemcachedClient>();
     private final AtomicReference<ScheduledExecutorService> clientReconfigurationService = new AtomicReference<ScheduledExecutorService>();
     private final AtomicInteger topologyGeneration = new AtomicInteger();
 
+    private final AtomicReference<PreviousRing> previousRing = new AtomicReference<PreviousRing>();
+
     private final AtomicReference<ImmutableList<InetSocketAddress>> addrHolder = new AtomicReference<ImmutableList<InetSocketAddress>>();
+    private volatile ImmutableMap<InetSocketAddress, Integer> weights = ImmutableMap.of();
 
     private final CacheTopologyProvider cacheTopology;
 
     private final NessMemcachedConnectionFactory connectionFactory;
     private final String cacheName;
     private final CacheConfiguration configuration;
+    private final TopologyStatistics topologyStatistics;
+    private final long warmUpMillis;
+
+    private MBeanExporter exporter = null;
+    private String exportedName = null;
 
     @Inject
     MemcachedClientFactory(final CacheConfiguration configuration,
@@ -75,6 +94,14 @@ class MemcachedClientFactory {
         this.configuration = configuration;
 
         this.connectionFactory = connectionFactory;
+        this.topologyStatistics = new TopologyStatistics(this.cacheName);
+        this.warmUpMillis = configuration.getTopologyWarmUp().getMillis();
+    }
+
+    @Inject(optional=true)
+    void injectMBeanExporter(final MBeanExporter injectExporter)
+    {
+        this.exporter = injectExporter;
     }
 
     @OnStage(LifecycleStage.START)
@@ -85,6 +112,11 @@ class MemcachedClientFactory {
         final ThreadFactory tf = new ThreadFactoryBuilder().setNameFormat("memcached-discovery-" + cacheName).setDaemon(true).build();
         final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, tf);
         if(clientReconfigurationService.compareAndSet(null, executor)) {
+            if (configuration.isJmxEnabled() && exporter != null) {
+                exportedName = "ness.cache:topology=" + cacheName.replaceAll("[,=:*?]", "_");
+                exporter.export(exportedName, topologyStatistics);
+            }
+
             LOG.info("Kicking off memcache topology discovery thread");
             final MemcachedDiscoveryUpdate updater = new MemcachedDiscoveryUpdate();
 
@@ -115,6 +147,12 @@ class MemcachedClientFactory {
             if (clientToShutdown != null) {
                 clientToShutdown.shutdown(30, TimeUnit.SECONDS); // Shut down gracefully
             }
+            endWarmUp(previousRing.getAndSet(null));
+
+            if (exportedName != null) {
+                exporter.unexport(exportedName);
+                exportedName = null;
+            }
 
             LOG.info("Caching system stopped");
         }
@@ -139,35 +177,65 @@ class MemcachedClientFactory {
 
             // Discover potentially new cluster topology
             final ImmutableList<InetSocketAddress> newAddrs = cacheTopology.get();
+            final ImmutableMap<InetSocketAddress, Integer> newWeights = cacheTopology.getWeights();
             final ImmutableList<InetSocketAddress> addrs = addrHolder.get();
+            final ImmutableMap<InetSocketAddress, Integer> previousWeights = weights;
 
-            if (addrs != null && addrs.equals(newAddrs)) {
+            if (addrs != null && addrs.equals(newAddrs) && previousWeights.equals(newWeights)) {
                 LOG.trace("Topology change ignored, identical list of servers (%s)", addrs);
             }
             else {
                 if(addrHolder.compareAndSet(addrs, newAddrs)) {
+                    weights = newWeights;
                     try {
                         LOG.info("Processing topology change for %s", cacheName);
+                        final long startTime = System.nanoTime();
+
+                        final MemcachedClient currentClient = client.get();
+                        final boolean warmUp = warmUpMillis > 0 && addrs != null && !addrs.isEmpty() && !newAddrs.isEmpty();
+                        MemcachedClient previousClient = null;
+                        boolean incremental = false;
+                        if (!newAddrs.isEmpty() && canReconfigure(currentClient)) {
+                            // The running client moves on to the new servers, so the old ones need a client of their own.
+                            previousClient = warmUp ? connectPrevious(addrs, previousWeights) : null;
+                            incremental = reconfigure((NessMemcachedClient) currentClient, newAddrs, newWeights);
+                            if (!incremental && previousClient != null) {
+                                previousClient.shutdown(0, TimeUnit.MILLISECONDS);
+                                previousClient = null;
+                            }
+                        }
 
                         final MemcachedClient newClient;
-                        if (newAddrs.isEmpty()) {
-                            newClient = null;
-                            LOG.warn("All memcached servers disappeared!");
+                        if (incremental) {
+                            newClient = currentClient;
                         }
                         else {
-                            LOG.info("Creating new client...");
-                            newClient = new MemcachedClient(connectionFactory, newAddrs);
-                            LOG.info("Finished creating new client.");
+                            if (newAddrs.isEmpty()) {
+                                newClient = null;
+                                LOG.warn("All memcached servers disappeared!");
+                            }
+                            else {
+                                LOG.info("Creating new client...");
+                                newClient = new NessMemcachedClient(connectionFactory, newAddrs, newWeights);
+                                LOG.info("Finished creating new client.");
+                            }
+
+                            final MemcachedClient oldClient = client.getAndSet(newClient);
+                            if (oldClient != null && warmUp) {
+                                // Still connected to the old servers, keep it around for the warm-up.
+                                previousClient = oldClient;
+                            }
+                            else if (oldClient != null) {
+                                LOG.info("Shutting down old client...");
+                                oldClient.shutdown(configuration.getTopologyDrainTimeout().getMillis(), TimeUnit.MILLISECONDS);
+                                LOG.info("Finished shutting down old client.");
+                            }
                         }
 
-                        final MemcachedClient oldClient = client.getAndSet(newClient);
-                        if (oldClient != null) {
-                            LOG.info("Shutting down old client...");
-                            oldClient.shutdown(100, TimeUnit.MILLISECONDS);
-                            LOG.info("Finished shutting down old client.");
-                        }
+                        startWarmUp(previousClient);
 
                         final int topologyCount = topologyGeneration.incrementAndGet();
+                        topologyStatistics.recordChange(topologyCount, incremental, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
 
                         LOG.info("Finished processing topology change for %s.  Generation is now %d, client is now: %s", cacheName, topologyCount, newClient);
                     }
@@ -183,6 +251,92 @@ class MemcachedClientFactory {
     }
 
 
+    private boolean canReconfigure(@Nullable final MemcachedClient currentClient)
+    {
+        return currentClient instanceof NessMemcachedClient && configuration.isTopologyIncremental();
+    }
+
+    /**
+     * Applies a new server list to the running client.
+     *
+     * @return false if applying the change failed.
+     */
+    private boolean reconfigure(final NessMemcachedClient currentClient,
+                                final ImmutableList<InetSocketAddress> newAddrs,
+                                final ImmutableMap<InetSocketAddress, Integer> newWeights)
+    {
+        try {
+            currentClient.reconfigure(newAddrs, newWeights, topologyStatistics).get(RECONFIGURE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return true;
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ee) {
+            LOG.warnDebug(ee.getCause(), "Could not change servers of the client for %s, creating a new one", cacheName);
+        }
+        catch (TimeoutException te) {
+            LOG.warn("Changing servers of the client for %s timed out, creating a new one", cacheName);
+        }
+        return false;
+    }
+
+    @CheckForNull
+    private MemcachedClient connectPrevious(final ImmutableList<InetSocketAddress> addrs, final ImmutableMap<InetSocketAddress, Integer> addrWeights)
+    {
+        try {
+            return new NessMemcachedClient(connectionFactory, addrs, addrWeights);
+        }
+        catch (IOException ioe) {
+            LOG.warnDebug(ioe, "Could not connect to the previous servers of %s, no warm-up", cacheName);
+            return null;
+        }
+    }
+
+    /**
+     * Makes the given client the one for the servers before the last change, until the warm-up ends. A previous
+     * client from an earlier change is shut down.
+     *
+     * @param previousClient null if there is no warm-up for the last change.
+     */
+    private void startWarmUp(@Nullable final MemcachedClient previousClient)
+    {
+        final PreviousRing ring = previousClient == null ? null : new PreviousRing(previousClient, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmUpMillis));
+        endWarmUp(previousRing.getAndSet(ring));
+
+        final ScheduledExecutorService executor = clientReconfigurationService.get();
+        if (ring != null && executor != null) {
+            LOG.info("Reading keys that moved from the previous servers of %s for %dms", cacheName, warmUpMillis);
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (previousRing.compareAndSet(ring, null)) {
+                        endWarmUp(ring);
+                    }
+                }
+            }, warmUpMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void endWarmUp(@Nullable final PreviousRing ring)
+    {
+        if (ring != null) {
+            LOG.info("Warm-up for %s is over, shutting down the client for the previous servers", cacheName);
+            ring.client.shutdown(configuration.getTopologyDrainTimeout().getMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the client for the servers before the last change of the server list while the warm-up after that
+     * change lasts (see {@link CacheConfiguration#getTopologyWarmUp()}), otherwise null.
+     */
+    @CheckForNull
+    MemcachedClient getPreviousClient()
+    {
+        final PreviousRing ring = previousRing.get();
+        return ring == null || System.nanoTime() - ring.deadlineNanos >= 0 ? null : ring.client;
+    }
+
     void waitTopologyChange(final int generation) throws InterruptedException
     {
         while (topologyGeneration.get() <=  generation) {
@@ -195,7 +349,24 @@ class MemcachedClientFactory {
         return topologyGeneration.get();
     }
 
+    TopologyStatistics getTopologyStatistics()
+    {
+        return topologyStatistics;
+    }
+
     public String getCacheName() {
         return cacheName;
     }
+
+    private static final class PreviousRing
+    {
+        private final MemcachedClient client;
+        private final long deadlineNanos;
+
+        PreviousRing(final MemcachedClient client, final long deadlineNanos)
+        {
+            this.client = client;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
 }
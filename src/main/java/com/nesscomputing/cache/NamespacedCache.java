@@ -15,6 +15,10 @@
  */
 package com.nesscomputing.cache;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
@@ -28,12 +32,23 @@ import org.joda.time.DateTime;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * A facade over a {@link NessCache} which has the namespace field
  * pre-filled.
  */
 public class NamespacedCache {
+    private static final Function<byte[], ByteBuffer> AS_BUFFER = new Function<byte[], ByteBuffer>() {
+        @Override
+        public ByteBuffer apply(final byte[] value) {
+            return asBuffer(value);
+        }
+    };
+
     private final NessCache cache;
     private final String namespace;
 
@@ -56,6 +71,15 @@ public class NamespacedCache {
         cache.set(namespace, Collections.singleton(CacheStores.fromSharedBytes(key, value, expiry)));
     }
 
+    /**
+     * Set a cache entry whose value is written by the given writer, e.g. a serializer that writes to streams. Saves
+     * the copies of a growing array, the value still ends up in one array of its final size.
+     * @see CacheStores#fromWriter(String, CacheValueWriter, DateTime)
+     */
+    public void set(String key, CacheValueWriter writer, DateTime expiry) throws IOException {
+        cache.set(namespace, Collections.singleton(CacheStores.fromWriter(key, writer, expiry)));
+    }
+
     /**
      * Tries to add a cache entry if it does not already exist.
      *
@@ -80,6 +104,14 @@ public class NamespacedCache {
         }));
     }
 
+    /**
+     * Set many cache entries, each with its own expiration date, in one bulk operation.
+     * @see NessCache#set(String, Collection)
+     * @see CacheStores#fromSharedBytes(String, byte[], DateTime)
+     */
+    public void set(Collection<CacheStore<byte[]>> stores) {
+        cache.set(namespace, stores);
+    }
 
     /**
      * Add many cache entries with given values and expiration date.  Note that the value byte array
@@ -113,6 +145,76 @@ public class NamespacedCache {
         return cache.get(namespace, keys);
     }
 
+    /**
+     * Single key fetch which returns a read-only view of the cached bytes rather than the array itself, e.g. for
+     * parsers that read from buffers. Returns null if no entry exists.
+     */
+    @CheckForNull
+    public ByteBuffer getBuffer(String key) {
+        return asBuffer(get(key));
+    }
+
+    /**
+     * Bulk fetch which returns read-only views of the cached bytes.
+     * @see #getBuffer(String)
+     */
+    @Nonnull
+    public Map<String, ByteBuffer> getBuffers(Collection<String> keys) {
+        return Maps.transformValues(get(keys), AS_BUFFER);
+    }
+
+    /**
+     * Single key fetch which returns a stream over the cached bytes, for parsers that read from streams. Returns
+     * null if no entry exists.
+     */
+    @CheckForNull
+    public InputStream getStream(String key) {
+        final byte[] value = get(key);
+        return value == null ? null : new ByteArrayInputStream(value);
+    }
+
+    /**
+     * Single key fetch which hands a read-only view of the cached bytes straight to a deserializer. Returns null
+     * if no entry exists.
+     */
+    @CheckForNull
+    public <V> V get(String key, Function<ByteBuffer, ? extends V> deserializer) {
+        final ByteBuffer value = getBuffer(key);
+        return value == null ? null : deserializer.apply(value);
+    }
+
+    /**
+     * Bulk fetch which hands read-only views of the cached bytes straight to a deserializer.
+     * @see #get(String, Function)
+     */
+    @Nonnull
+    public <V> Map<String, V> get(Collection<String> keys, Function<ByteBuffer, ? extends V> deserializer) {
+        final ImmutableMap.Builder<String, V> builder = ImmutableMap.builder();
+        for (final Map.Entry<String, byte[]> entry : get(keys).entrySet()) {
+            builder.put(entry.getKey(), deserializer.apply(asBuffer(entry.getValue())));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Single key fetch which may hand out the value in a pooled buffer. Close the lease once done with the
+     * value, e.g. with try-with-resources. Returns null if no entry exists.
+     * @see NessCache#lease(String, Collection)
+     */
+    @CheckForNull
+    public CacheLease lease(String key) {
+        return cache.lease(namespace, Collections.singleton(key)).get(key);
+    }
+
+    /**
+     * Bulk fetch which may hand out values in pooled buffers. Close every lease once done with its value.
+     * @see NessCache#lease(String, Collection)
+     */
+    @Nonnull
+    public Map<String, CacheLease> lease(Collection<String> keys) {
+        return cache.lease(namespace, keys);
+    }
+
     /**
      * Clear a single key
      * @see NessCache#clear(String, java.util.Collection)
@@ -128,4 +230,90 @@ public class NamespacedCache {
     public void clear(Collection<String> keys) {
         cache.clear(namespace, keys);
     }
+
+    /**
+     * Asynchronously set a cache entry.
+     * @see NessCache#setAsync(String, Collection)
+     */
+    public ListenableFuture<Void> setAsync(String key, byte[] value, DateTime expiry) {
+        return cache.setAsync(namespace, Collections.singleton(CacheStores.fromSharedBytes(key, value, expiry)));
+    }
+
+    /**
+     * Asynchronously set a cache entry whose value is written by the given writer. The value is written before
+     * this method returns.
+     * @see #set(String, CacheValueWriter, DateTime)
+     */
+    public ListenableFuture<Void> setAsync(String key, CacheValueWriter writer, DateTime expiry) throws IOException {
+        return cache.setAsync(namespace, Collections.singleton(CacheStores.fromWriter(key, writer, expiry)));
+    }
+
+    /**
+     * Asynchronously set many cache entries with the same expiration date.
+     * @see NessCache#setAsync(String, Collection)
+     */
+    public ListenableFuture<Void> setAsync(Map<String, byte[]> entries, final DateTime expiry) {
+        return cache.setAsync(namespace, Collections2.transform(entries.entrySet(), new Function<Map.Entry<String, byte []>, CacheStore<byte []>>() {
+            @Override
+            public CacheStore<byte[]> apply(final Entry<String, byte[]> entry) {
+                return CacheStores.fromSharedBytes(entry.getKey(), entry.getValue(), expiry);
+            }
+        }));
+    }
+
+    /**
+     * Asynchronously add a cache entry if it does not already exist.
+     *
+     * This is an optional operation.
+     */
+    public ListenableFuture<Boolean> addAsync(final String key, byte[] value, DateTime expiry) {
+        return Futures.transform(cache.addAsync(namespace, Collections.singleton(CacheStores.fromSharedBytes(key, value, expiry))), new Function<Map<String, Boolean>, Boolean>() {
+            @Override
+            public Boolean apply(final Map<String, Boolean> result) {
+                return BooleanUtils.toBoolean(result.get(key));
+            }
+        });
+    }
+
+    /**
+     * Asynchronous single key fetch.  The future yields null if no entry exists.
+     * @see NessCache#getAsync(String, Collection)
+     */
+    public ListenableFuture<byte[]> getAsync(final String key) {
+        return Futures.transform(cache.getAsync(namespace, Collections.singleton(key)), new Function<Map<String, byte[]>, byte[]>() {
+            @Override
+            public byte[] apply(final Map<String, byte[]> result) {
+                return result.get(key);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous bulk fetch.
+     * @see NessCache#getAsync(String, Collection)
+     */
+    public ListenableFuture<Map<String, byte[]>> getAsync(Collection<String> keys) {
+        return cache.getAsync(namespace, keys);
+    }
+
+    /**
+     * Asynchronously clear a single key
+     * @see NessCache#clearAsync(String, Collection)
+     */
+    public ListenableFuture<Void> clearAsync(String key) {
+        return clearAsync(Collections.singleton(key));
+    }
+
+    /**
+     * Asynchronous bulk clear
+     * @see NessCache#clearAsync(String, Collection)
+     */
+    public ListenableFuture<Void> clearAsync(Collection<String> keys) {
+        return cache.clearAsync(namespace, keys);
+    }
+
+    @CheckForNull
+    private static ByteBuffer asBuffer(@CheckForNull byte[] value) {
+        return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
 }
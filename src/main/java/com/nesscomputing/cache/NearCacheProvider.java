@@ -0,0 +1,311 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Two tier cache provider. Keeps a bounded, size weighted copy of recently read and written values
+ * in the JVM in front of the memcached provider. Local entries live at most until the expiry of the
+ * cache store and never longer than the configured maximum staleness, so values changed by other
+ * JVMs become visible after that window. Values read from the remote cache are only kept if none of their keys was
+ * written or cleared through this JVM while they were being read (see {@link KeyGenerations}).
+ */
+@Singleton
+final class NearCacheProvider implements InternalCacheProvider
+{
+    private static final Log LOG = Log.findLog();
+
+    /** Rough per entry overhead of the local cache (key entry, holder object, references). */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final MemcacheProvider remote;
+    private final Cache<Entry<String, String>, NearEntry> local;
+    private final KeyGenerations generations = new KeyGenerations();
+
+    @Inject
+    NearCacheProvider(final CacheConfiguration config, final MemcacheProvider remote)
+    {
+        this.remote = remote;
+        this.local = CacheBuilder.newBuilder()
+            .maximumWeight(config.getNearCacheMaxBytes())
+            .weigher(new Weigher<Entry<String, String>, NearEntry>() {
+                @Override
+                public int weigh(final Entry<String, String> key, final NearEntry value) {
+                    return ENTRY_OVERHEAD + 2 * (key.getKey().length() + key.getValue().length()) + value.getData().length;
+                }
+            })
+            .expireAfterWrite(config.getNearCacheMaxStaleness().getMillis(), TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    @Override
+    public void set(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final List<String> rejected = Lists.newArrayList();
+        remote.set(namespace, stores, cacheStatistics, rejected);
+        putAccepted(namespace, stores, rejected);
+    }
+
+    @Override
+    public Map<String, byte[]> get(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final Map<String, byte[]> result = Maps.newHashMap();
+        final List<String> misses = getLocal(namespace, keys, result, cacheStatistics);
+
+        if (!misses.isEmpty()) {
+            final KeyGenerations.Snapshot snapshot = generations.snapshot(namespace, misses);
+            final Map<String, byte[]> remoteResult = remote.get(namespace, misses, cacheStatistics);
+            putLocal(namespace, remoteResult, snapshot);
+            result.putAll(remoteResult);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Values from the remote cache are kept locally as well, so they can not live in pooled buffers.
+     */
+    @Override
+    public Map<String, CacheLease> lease(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        return CacheLease.of(get(namespace, keys, cacheStatistics));
+    }
+
+    @Override
+    public void clear(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        invalidateLocal(namespace, keys);
+        remote.clear(namespace, keys, cacheStatistics);
+        // Readers that started before the clear reached the cache may have kept the old value meanwhile.
+        invalidateLocal(namespace, keys);
+    }
+
+    @Override
+    public Map<String, Boolean> add(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final Map<String, Boolean> result = remote.add(namespace, stores, cacheStatistics);
+        updateLocalAfterAdd(namespace, stores, result);
+        return result;
+    }
+
+    @Override
+    public ListenableFuture<Void> setAsync(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final List<String> rejected = Lists.newArrayList();
+        final ListenableFuture<Void> result = remote.setAsync(namespace, stores, cacheStatistics, rejected);
+        putAccepted(namespace, stores, rejected);
+        // Readers that started before the write reached the cache may have kept the old value meanwhile.
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                putAccepted(namespace, stores, rejected);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    @Override
+    public ListenableFuture<Map<String, byte[]>> getAsync(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final Map<String, byte[]> localResult = Maps.newHashMap();
+        final List<String> misses = getLocal(namespace, keys, localResult, cacheStatistics);
+
+        if (misses.isEmpty()) {
+            return Futures.<Map<String, byte[]>>immediateFuture(Collections.unmodifiableMap(localResult));
+        }
+
+        final KeyGenerations.Snapshot snapshot = generations.snapshot(namespace, misses);
+        return Futures.transform(remote.getAsync(namespace, misses, cacheStatistics), new Function<Map<String, byte[]>, Map<String, byte[]>>() {
+            @Override
+            public Map<String, byte[]> apply(final Map<String, byte[]> remoteResult) {
+                putLocal(namespace, remoteResult, snapshot);
+                localResult.putAll(remoteResult);
+                return Collections.unmodifiableMap(localResult);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> clearAsync(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        invalidateLocal(namespace, keys);
+        final ListenableFuture<Void> result = remote.clearAsync(namespace, keys, cacheStatistics);
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                invalidateLocal(namespace, keys);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    @Override
+    public ListenableFuture<Map<String, Boolean>> addAsync(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable final CacheStatistics cacheStatistics)
+    {
+        return Futures.transform(remote.addAsync(namespace, stores, cacheStatistics), new Function<Map<String, Boolean>, Map<String, Boolean>>() {
+            @Override
+            public Map<String, Boolean> apply(final Map<String, Boolean> result) {
+                updateLocalAfterAdd(namespace, stores, result);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Fill the result map with all locally present keys and return the keys that must be fetched remotely.
+     */
+    private List<String> getLocal(final String namespace, final Collection<String> keys, final Map<String, byte[]> result, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final List<String> misses = Lists.newArrayListWithExpectedSize(keys.size());
+        final long now = System.currentTimeMillis();
+
+        for (final String key : keys) {
+            final Entry<String, String> localKey = Maps.immutableEntry(namespace, key);
+            final NearEntry entry = local.getIfPresent(localKey);
+            if (entry == null) {
+                misses.add(key);
+            }
+            else if (entry.isExpired(now)) {
+                local.invalidate(localKey);
+                misses.add(key);
+            }
+            else {
+                result.put(key, entry.getData());
+            }
+        }
+
+        final int hits = result.size();
+        if (cacheStatistics != null && hits > 0) {
+            cacheStatistics.incrementNearCacheHits(hits);
+        }
+        LOG.trace("near cache %s: %d local hits, %d remote lookups", namespace, hits, misses.size());
+        return misses;
+    }
+
+    /**
+     * Keeps the values the remote cache accepted. A rejected write leaves whatever the remote cache had before, which
+     * may not be what is held locally.
+     */
+    private void putAccepted(final String namespace, final Collection<CacheStore<byte []>> stores, final Collection<String> rejected)
+    {
+        for (final CacheStore<byte []> store : stores) {
+            if (rejected.contains(store.getKey())) {
+                invalidateLocal(namespace, store.getKey());
+            }
+            else {
+                putLocal(namespace, store);
+            }
+        }
+    }
+
+    private void putLocal(final String namespace, final CacheStore<byte []> store)
+    {
+        final Entry<String, String> localKey = Maps.immutableEntry(namespace, store.getKey());
+        final byte [] data = store.getData();
+        generations.invalidate(namespace, store.getKey());
+        if (data == null) {
+            local.invalidate(localKey);
+        }
+        else {
+            local.put(localKey, new NearEntry(data, store.getExpiry() == null ? Long.MAX_VALUE : store.getExpiry().getMillis()));
+        }
+    }
+
+    private void putLocal(final String namespace, final Map<String, byte[]> values, final KeyGenerations.Snapshot snapshot)
+    {
+        for (final Map.Entry<String, byte[]> value : values.entrySet()) {
+            final String key = value.getKey();
+            if (snapshot.isCurrent(key)) {
+                final Entry<String, String> localKey = Maps.immutableEntry(namespace, key);
+                // The remote expiry is unknown, so these entries are only bounded by the maximum staleness.
+                final NearEntry entry = new NearEntry(value.getValue(), Long.MAX_VALUE);
+                local.put(localKey, entry);
+                if (!snapshot.isCurrent(key)) {
+                    local.asMap().remove(localKey, entry);
+                }
+            }
+        }
+    }
+
+    private void invalidateLocal(final String namespace, final Collection<String> keys)
+    {
+        for (final String key : keys) {
+            invalidateLocal(namespace, key);
+        }
+    }
+
+    private void invalidateLocal(final String namespace, final String key)
+    {
+        generations.invalidate(namespace, key);
+        local.invalidate(Maps.immutableEntry(namespace, key));
+    }
+
+    private void updateLocalAfterAdd(final String namespace, final Collection<CacheStore<byte []>> stores, final Map<String, Boolean> result)
+    {
+        for (final CacheStore<byte []> store : stores) {
+            if (Boolean.TRUE.equals(result.get(store.getKey()))) {
+                putLocal(namespace, store);
+            }
+            else {
+                // Someone else owns this key; do not trust whatever we have locally.
+                invalidateLocal(namespace, store.getKey());
+            }
+        }
+    }
+
+    private static final class NearEntry
+    {
+        private final byte [] data;
+        private final long expiryMillis;
+
+        private NearEntry(final byte [] data, final long expiryMillis)
+        {
+            this.data = data;
+            this.expiryMillis = expiryMillis;
+        }
+
+        private byte [] getData()
+        {
+            return data;
+        }
+
+        private boolean isExpired(final long now)
+        {
+            return now >= expiryMillis;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.nesscomputing.cache;
 import java.util.Collection;
 import java.util.Map;
 
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * Provides a provider-neutral caching layer which has asynchronous writes and synchronous
@@ -48,6 +49,12 @@ public interface NessCache {
      */
     Map<String, byte[]> get(String namespace, Collection<String> keys);
 
+    /**
+     * Bulk fetch a collection of keys without copying the values. Values may live in pooled buffers, which
+     * go back to the pool once the leases are closed.
+     */
+    Map<String, CacheLease> lease(String namespace, Collection<String> keys);
+
     /**
      * Remove a collection of keys
      */
@@ -59,4 +66,27 @@ public interface NessCache {
      * This is an optional operation.
      */
     Map<String, Boolean> add(String namespace, Collection<CacheStore<byte []>> stores);
+
+    /**
+     * Asynchronously store a collection of keys. The future completes when the provider has finished
+     * processing all stores; individual store failures are logged and do not fail the future.
+     */
+    ListenableFuture<Void> setAsync(String namespace, Collection<CacheStore<byte []>> stores);
+
+    /**
+     * Asynchronously bulk fetch a collection of keys. The calling thread never waits for the cache backend.
+     */
+    ListenableFuture<Map<String, byte[]>> getAsync(String namespace, Collection<String> keys);
+
+    /**
+     * Asynchronously remove a collection of keys.
+     */
+    ListenableFuture<Void> clearAsync(String namespace, Collection<String> keys);
+
+    /**
+     * Asynchronously try to add a collection of keys and corresponding values.
+     *
+     * This is an optional operation.
+     */
+    ListenableFuture<Map<String, Boolean>> addAsync(String namespace, Collection<CacheStore<byte []>> stores);
 }
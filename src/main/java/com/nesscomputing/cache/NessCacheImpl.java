@@ -16,9 +16,17 @@
 package com.nesscomputing.cache;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
@@ -39,6 +47,8 @@ public class NessCacheImpl implements NessCache {
 
     private CacheStatisticsManager cacheStatistics = null;
 
+    private HotKeys hotKeys = null;
+
     @Inject
     protected NessCacheImpl(InternalCacheProvider provider) {
         this.provider = provider;
@@ -50,6 +60,12 @@ public class NessCacheImpl implements NessCache {
         this.cacheStatistics = injectCacheStatistics;
     }
 
+    @Inject(optional=true)
+    void injectHotKeys(final HotKeys injectHotKeys)
+    {
+        this.hotKeys = injectHotKeys;
+    }
+
     /**
      * Provide a view of this cache which automatically has the given namespace filled in.  Intended to be used
      * in constructors, e.g.
@@ -75,7 +91,10 @@ public class NessCacheImpl implements NessCache {
             stats = cacheStatistics.getCacheStatistics(namespace);
             stats.incrementStores(stores.size());
         }
+        invalidateHotKeys(namespace, stores);
         provider.set(namespace, stores, stats);
+        // Readers that started before the write reached the cache may have kept the old value meanwhile.
+        invalidateHotKeys(namespace, stores);
         recordElapsedTime(stats, startTime, stores.size(), CacheOperation.STORE_KEYS, CacheOperation.STORE_OPERATIONS);
     }
 
@@ -88,7 +107,9 @@ public class NessCacheImpl implements NessCache {
             stats = cacheStatistics.getCacheStatistics(namespace);
             stats.incrementStores(stores.size());
         }
+        invalidateHotKeys(namespace, stores);
         Map<String, Boolean> result = provider.add(namespace, stores, stats);
+        invalidateHotKeys(namespace, stores);
         recordElapsedTime(stats, startTime, stores.size(), CacheOperation.STORE_KEYS, CacheOperation.STORE_OPERATIONS);
         return result;
     }
@@ -101,15 +122,33 @@ public class NessCacheImpl implements NessCache {
             stats = cacheStatistics.getCacheStatistics(namespace);
             stats.incrementFetches(keys.size());
         }
-        Map<String, byte[]> result = provider.get(namespace, keys, stats);
+        Map<String, byte[]> result = hotKeys == null ? provider.get(namespace, keys, stats) : getWithHotKeys(namespace, keys, stats);
         if (stats != null) {
             stats.incrementHits(result.size());
+            stats.incrementNegativeHits(countTombstones(result.values()));
         }
         recordElapsedTime(stats, startTime, keys.size(), CacheOperation.FETCH_KEYS, CacheOperation.FETCH_OPERATIONS);
         LOG.trace("get(%s, %s) hit %d", namespace, keys, result.size());
         return result;
     }
 
+    @Override
+    public Map<String, CacheLease> lease(String namespace, Collection<String> keys) {
+        long startTime = System.currentTimeMillis();
+        CacheStatistics stats = null;
+        if (cacheStatistics != null) {
+            stats = cacheStatistics.getCacheStatistics(namespace);
+            stats.incrementFetches(keys.size());
+        }
+        Map<String, CacheLease> result = provider.lease(namespace, keys, stats);
+        if (stats != null) {
+            stats.incrementHits(result.size());
+        }
+        recordElapsedTime(stats, startTime, keys.size(), CacheOperation.FETCH_KEYS, CacheOperation.FETCH_OPERATIONS);
+        LOG.trace("lease(%s, %s) hit %d", namespace, keys, result.size());
+        return result;
+    }
+
     @Override
     public void clear(String namespace, Collection<String> keys) {
         long startTime = System.currentTimeMillis();
@@ -119,14 +158,211 @@ public class NessCacheImpl implements NessCache {
             stats = cacheStatistics.getCacheStatistics(namespace);
             stats.incrementClears(keys.size());
         }
+        if (hotKeys != null) {
+            hotKeys.invalidate(namespace, keys);
+        }
         provider.clear(namespace, keys, stats);
+        if (hotKeys != null) {
+            hotKeys.invalidate(namespace, keys);
+        }
         recordElapsedTime(stats, startTime, keys.size(), CacheOperation.CLEAR_KEYS, CacheOperation.CLEAR_OPERATIONS);
     }
 
+    @Override
+    public ListenableFuture<Void> setAsync(String namespace, Collection<CacheStore<byte []>> stores) {
+        long startTime = System.currentTimeMillis();
+        CacheStatistics stats = null;
+        LOG.trace("setAsync(%s, %s)", namespace, stores);
+        if (cacheStatistics != null) {
+            stats = cacheStatistics.getCacheStatistics(namespace);
+            stats.incrementStores(stores.size());
+        }
+        invalidateHotKeys(namespace, stores);
+        ListenableFuture<Void> result = provider.setAsync(namespace, stores, stats);
+        if (hotKeys != null) {
+            invalidateHotKeysOnCompletion(result, namespace, keysOf(stores));
+        }
+        recordElapsedTimeOnCompletion(result, stats, startTime, stores.size(), CacheOperation.STORE_KEYS, CacheOperation.STORE_OPERATIONS);
+        return result;
+    }
+
+    @Override
+    public ListenableFuture<Map<String, Boolean>> addAsync(String namespace, Collection<CacheStore<byte []>> stores) {
+        long startTime = System.currentTimeMillis();
+        CacheStatistics stats = null;
+        LOG.trace("addAsync(%s, %s)", namespace, stores);
+        if (cacheStatistics != null) {
+            stats = cacheStatistics.getCacheStatistics(namespace);
+            stats.incrementStores(stores.size());
+        }
+        invalidateHotKeys(namespace, stores);
+        ListenableFuture<Map<String, Boolean>> result = provider.addAsync(namespace, stores, stats);
+        if (hotKeys != null) {
+            invalidateHotKeysOnCompletion(result, namespace, keysOf(stores));
+        }
+        recordElapsedTimeOnCompletion(result, stats, startTime, stores.size(), CacheOperation.STORE_KEYS, CacheOperation.STORE_OPERATIONS);
+        return result;
+    }
+
+    @Override
+    public ListenableFuture<Map<String, byte[]>> getAsync(final String namespace, final Collection<String> keys) {
+        final long startTime = System.currentTimeMillis();
+        CacheStatistics stats = null;
+        if (cacheStatistics != null) {
+            stats = cacheStatistics.getCacheStatistics(namespace);
+            stats.incrementFetches(keys.size());
+        }
+        final CacheStatistics finalStats = stats;
+        ListenableFuture<Map<String, byte[]>> result = hotKeys == null ? provider.getAsync(namespace, keys, stats) : getAsyncWithHotKeys(namespace, keys, stats);
+        Futures.addCallback(result, new FutureCallback<Map<String, byte[]>>() {
+            @Override
+            public void onSuccess(Map<String, byte[]> value) {
+                if (finalStats != null) {
+                    finalStats.incrementHits(value.size());
+                    finalStats.incrementNegativeHits(countTombstones(value.values()));
+                }
+                recordElapsedTime(finalStats, startTime, keys.size(), CacheOperation.FETCH_KEYS, CacheOperation.FETCH_OPERATIONS);
+                LOG.trace("getAsync(%s, %s) hit %d", namespace, keys, value.size());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                recordElapsedTime(finalStats, startTime, keys.size(), CacheOperation.FETCH_KEYS, CacheOperation.FETCH_OPERATIONS);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public ListenableFuture<Void> clearAsync(String namespace, Collection<String> keys) {
+        long startTime = System.currentTimeMillis();
+        CacheStatistics stats = null;
+        LOG.trace("clearAsync(%s, %s)", namespace, keys);
+        if (cacheStatistics != null) {
+            stats = cacheStatistics.getCacheStatistics(namespace);
+            stats.incrementClears(keys.size());
+        }
+        if (hotKeys != null) {
+            hotKeys.invalidate(namespace, keys);
+        }
+        ListenableFuture<Void> result = provider.clearAsync(namespace, keys, stats);
+        if (hotKeys != null) {
+            invalidateHotKeysOnCompletion(result, namespace, keys);
+        }
+        recordElapsedTimeOnCompletion(result, stats, startTime, keys.size(), CacheOperation.CLEAR_KEYS, CacheOperation.CLEAR_OPERATIONS);
+        return result;
+    }
+
+    /**
+     * Serves the hot keys among the given ones from the JVM and reads the others from the provider.
+     */
+    private Map<String, byte[]> getWithHotKeys(String namespace, Collection<String> keys, CacheStatistics stats) {
+        final Map<String, byte[]> local = hotKeys.get(namespace, keys, stats);
+        if (local.isEmpty()) {
+            final KeyGenerations.Snapshot snapshot = hotKeys.snapshot(namespace, keys);
+            final Map<String, byte[]> remote = provider.get(namespace, keys, stats);
+            hotKeys.put(namespace, remote, snapshot);
+            return remote;
+        }
+
+        final List<String> misses = findMisses(keys, local);
+        if (misses.isEmpty()) {
+            return local;
+        }
+        final KeyGenerations.Snapshot snapshot = hotKeys.snapshot(namespace, misses);
+        final Map<String, byte[]> remote = provider.get(namespace, misses, stats);
+        hotKeys.put(namespace, remote, snapshot);
+        final Map<String, byte[]> result = Maps.newHashMap(local);
+        result.putAll(remote);
+        return result;
+    }
+
+    private ListenableFuture<Map<String, byte[]>> getAsyncWithHotKeys(final String namespace, Collection<String> keys, CacheStatistics stats) {
+        final Map<String, byte[]> local = hotKeys.get(namespace, keys, stats);
+        final List<String> misses = findMisses(keys, local);
+        if (misses.isEmpty()) {
+            return Futures.immediateFuture(local);
+        }
+
+        final KeyGenerations.Snapshot snapshot = hotKeys.snapshot(namespace, misses);
+        return Futures.transform(provider.getAsync(namespace, misses, stats), new Function<Map<String, byte[]>, Map<String, byte[]>>() {
+            @Override
+            public Map<String, byte[]> apply(Map<String, byte[]> remote) {
+                hotKeys.put(namespace, remote, snapshot);
+                if (local.isEmpty()) {
+                    return remote;
+                }
+                final Map<String, byte[]> result = Maps.newHashMap(local);
+                result.putAll(remote);
+                return result;
+            }
+        });
+    }
+
+    private static List<String> findMisses(Collection<String> keys, Map<String, byte[]> found) {
+        final List<String> misses = Lists.newArrayListWithCapacity(keys.size());
+        for (String key : keys) {
+            if (!found.containsKey(key)) {
+                misses.add(key);
+            }
+        }
+        return misses;
+    }
+
+    private void invalidateHotKeys(String namespace, Collection<CacheStore<byte []>> stores) {
+        if (hotKeys != null) {
+            hotKeys.invalidate(namespace, keysOf(stores));
+        }
+    }
+
+    /**
+     * Readers that started before the write reached the cache may still have kept the old value, drop it again.
+     */
+    private void invalidateHotKeysOnCompletion(ListenableFuture<?> future, final String namespace, final Collection<String> keys) {
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                hotKeys.invalidate(namespace, keys);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private static List<String> keysOf(Collection<CacheStore<byte []>> stores) {
+        final List<String> keys = Lists.newArrayListWithCapacity(stores.size());
+        for (CacheStore<byte []> store : stores) {
+            keys.add(store.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Statistics for asynchronous operations are recorded when the operation completes, not when it is submitted.
+     */
+    private void recordElapsedTimeOnCompletion(ListenableFuture<?> future, final CacheStatistics stats, final long startTime, final int keyCount, final CacheOperation keysOperation, final CacheOperation callsOperation) {
+        if (stats != null) {
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    recordElapsedTime(stats, startTime, keyCount, keysOperation, callsOperation);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+    }
+
     private void recordElapsedTime(CacheStatistics stats, long startTime, int keyCount, CacheOperation keysOperation, CacheOperation callsOperation) {
         if (stats != null) {
             long elapsed = System.currentTimeMillis() - startTime;
             stats.recordElapsedTime(elapsed, keyCount, keysOperation, callsOperation);
         }
     }
+
+    private static int countTombstones(Collection<byte[]> values) {
+        int count = 0;
+        for (byte[] value : values) {
+            if (CacheEnvelope.isTombstone(value)) {
+                count++;
+            }
+        }
+        return count;
+    }
 }
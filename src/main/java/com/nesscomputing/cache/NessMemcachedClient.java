@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import net.spy.memcached.MemcachedClient;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A memcached client that can switch to a new list of servers without reconnecting to the servers that stay.
+ */
+final class NessMemcachedClient extends MemcachedClient
+{
+    /**
+     * @param weights the weights of the servers, see {@link WeightedNodeLocator}.
+     */
+    NessMemcachedClient(final NessMemcachedConnectionFactory connectionFactory, final List<InetSocketAddress> addrs, final Map<InetSocketAddress, Integer> weights)
+        throws IOException
+    {
+        super(connectionFactory, addrs);
+        if (!weights.isEmpty()) {
+            ((NessMemcachedConnection) mconn).setWeights(weights);
+        }
+    }
+
+    /**
+     * @see NessMemcachedConnection#reconfigure(List, Map, TopologyStatistics)
+     */
+    ListenableFuture<Void> reconfigure(final List<InetSocketAddress> addrs, final Map<InetSocketAddress, Integer> weights, @Nullable final TopologyStatistics statistics)
+    {
+        return ((NessMemcachedConnection) mconn).reconfigure(addrs, weights, statistics);
+    }
+}
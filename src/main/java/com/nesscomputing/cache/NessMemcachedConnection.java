@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.ConnectionObserver;
+import net.spy.memcached.FailureMode;
+import net.spy.memcached.MemcachedConnection;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.OperationFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * A memcached connection whose servers can be changed while it runs. Connections to servers that stay are kept and
+ * added servers get connected. Removed servers are taken out of the locator right away, so no new operations go to
+ * them, but they are only shut down once the operations already sent to them have completed or the drain timeout
+ * has passed.
+ */
+final class NessMemcachedConnection extends MemcachedConnection
+{
+    private static final Log LOG = Log.findLog();
+
+    /** Counter that {@link MemcachedConnection} decrements for every node it shuts down. */
+    private static final String SHUTDOWN_QUEUE_METRIC = "[MEM] Shutting Down Nodes (NodesToShutdown)";
+
+    private final long drainTimeoutMillis;
+
+    /** Changes waiting for the I/O thread, which owns the nodes. */
+    private final Queue<Reconfiguration> reconfigurations = new ConcurrentLinkedQueue<Reconfiguration>();
+
+    /** Removed nodes with their drain deadline. */
+    private final ConcurrentMap<MemcachedNode, Drain> draining = Maps.newConcurrentMap();
+
+    NessMemcachedConnection(final int bufSize,
+                            final ConnectionFactory connectionFactory,
+                            final List<InetSocketAddress> addrs,
+                            final Collection<ConnectionObserver> observers,
+                            final FailureMode failureMode,
+                            final OperationFactory operationFactory,
+                            final long drainTimeoutMillis)
+        throws IOException
+    {
+        super(bufSize, connectionFactory, addrs, observers, failureMode, operationFactory);
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    /**
+     * Gives the servers weights (see {@link WeightedNodeLocator}) before any operations are sent.
+     */
+    void setWeights(final Map<InetSocketAddress, Integer> weights)
+    {
+        if (locator instanceof WeightedNodeLocator) {
+            ((WeightedNodeLocator) locator).updateLocator(ImmutableList.copyOf(locator.getAll()), weights);
+        }
+    }
+
+    /**
+     * Switches to the given servers. The change is applied by the I/O thread.
+     *
+     * @param weights the weights of the servers, if the locator supports them.
+     * @param statistics records the nodes added, removed and drained; may be null.
+     * @return a future that completes once the locator uses the new servers.
+     */
+    ListenableFuture<Void> reconfigure(final List<InetSocketAddress> addrs, final Map<InetSocketAddress, Integer> weights, @Nullable final TopologyStatistics statistics)
+    {
+        final Reconfiguration reconfiguration = new Reconfiguration(addrs, weights, statistics);
+        reconfigurations.add(reconfiguration);
+        selector.wakeup();
+        return reconfiguration.future;
+    }
+
+    @Override
+    public void handleIO() throws IOException
+    {
+        // The I/O thread is started by the super constructor, so it may get here before the fields are set.
+        if (reconfigurations != null && draining != null) {
+            Reconfiguration reconfiguration;
+            while ((reconfiguration = reconfigurations.poll()) != null) {
+                reconfiguration.apply();
+            }
+            drain();
+        }
+        super.handleIO();
+    }
+
+    @Override
+    public void shutdown() throws IOException
+    {
+        for (final MemcachedNode node : draining.keySet()) {
+            final SocketChannel channel = node.getChannel();
+            if (channel != null) {
+                channel.close();
+            }
+            node.setSk(null);
+        }
+        draining.clear();
+        super.shutdown();
+    }
+
+    /**
+     * Hands the removed nodes that are done, or out of time, to the connection to be shut down. Operations that
+     * were never sent to them go to the new owners of their keys.
+     */
+    private void drain()
+    {
+        if (draining.isEmpty()) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        for (final Iterator<Map.Entry<MemcachedNode, Drain>> it = draining.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<MemcachedNode, Drain> entry = it.next();
+            final MemcachedNode node = entry.getKey();
+            final boolean idle = !node.hasReadOp() && !node.hasWriteOp();
+            if (idle || now >= entry.getValue().deadline) {
+                if (!idle) {
+                    LOG.warn("Shutting down %s with operations still in flight", node.getSocketAddress());
+                }
+                else {
+                    LOG.debug("Drained %s, shutting it down", node.getSocketAddress());
+                }
+                if (entry.getValue().statistics != null) {
+                    entry.getValue().statistics.recordDrained(!idle);
+                }
+                it.remove();
+                metrics.incrementCounter(SHUTDOWN_QUEUE_METRIC);
+                nodesToShutdown.add(node);
+            }
+        }
+    }
+
+    private final class Reconfiguration
+    {
+        private final List<InetSocketAddress> addrs;
+        private final Map<InetSocketAddress, Integer> weights;
+        private final TopologyStatistics statistics;
+        private final SettableFuture<Void> future = SettableFuture.create();
+
+        private Reconfiguration(final List<InetSocketAddress> addrs, final Map<InetSocketAddress, Integer> weights, @Nullable final TopologyStatistics statistics)
+        {
+            this.addrs = addrs;
+            this.weights = weights;
+            this.statistics = statistics;
+        }
+
+        private void apply()
+        {
+            try {
+                final Map<SocketAddress, MemcachedNode> removed = Maps.newLinkedHashMap();
+                for (final MemcachedNode node : locator.getAll()) {
+                    removed.put(node.getSocketAddress(), node);
+                }
+
+                final List<MemcachedNode> nodes = Lists.newArrayListWithCapacity(addrs.size());
+                final List<InetSocketAddress> added = Lists.newArrayList();
+                for (final InetSocketAddress addr : addrs) {
+                    final MemcachedNode node = removed.remove(addr);
+                    if (node == null) {
+                        added.add(addr);
+                    }
+                    else {
+                        nodes.add(node);
+                    }
+                }
+
+                nodes.addAll(createConnections(added));
+                if (locator instanceof WeightedNodeLocator) {
+                    ((WeightedNodeLocator) locator).updateLocator(nodes, weights);
+                }
+                else {
+                    locator.updateLocator(nodes);
+                }
+
+                final Drain drain = new Drain(System.currentTimeMillis() + drainTimeoutMillis, statistics);
+                for (final MemcachedNode node : removed.values()) {
+                    draining.put(node, drain);
+                }
+
+                if (statistics != null) {
+                    statistics.recordNodes(added.size(), removed.size());
+                }
+                LOG.info("Added servers %s, draining servers %s", added, removed.keySet());
+                future.set(null);
+            }
+            catch (IOException | RuntimeException e) {
+                future.setException(e);
+            }
+        }
+    }
+
+    private static final class Drain
+    {
+        private final long deadline;
+        private final TopologyStatistics statistics;
+
+        private Drain(final long deadline, @Nullable final TopologyStatistics statistics)
+        {
+            this.deadline = deadline;
+            this.statistics = statistics;
+        }
+    }
+}
@@ -15,34 +15,67 @@
  */
 package com.nesscomputing.cache;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import net.spy.memcached.FailureMode;
 import net.spy.memcached.KetamaConnectionFactory;
+import net.spy.memcached.MemcachedConnection;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
 import net.spy.memcached.OperationFactory;
 import net.spy.memcached.ops.Operation;
 import net.spy.memcached.protocol.binary.BinaryOperationFactory;
 import net.spy.memcached.transcoders.Transcoder;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+
 /**
- * A ConnectionFactory which is Ketama and Binary capable, and uses the custom Ness transcoder.
+ * A ConnectionFactory which is Binary capable, places keys with the configured {@link WeightedNodeLocator} (Ketama by
+ * default), and uses the custom Ness transcoder.
  */
 public class NessMemcachedConnectionFactory extends KetamaConnectionFactory {
     private final CacheConfiguration configuration;
+    private final CompressionDictionaries dictionaries;
 
     @Inject
-    NessMemcachedConnectionFactory(final CacheConfiguration configuration) {
+    NessMemcachedConnectionFactory(final CacheConfiguration configuration, final CompressionDictionaries dictionaries) {
         this.configuration = configuration;
+        this.dictionaries = dictionaries;
+    }
+
+    /**
+     * Connections that can change their servers, see {@link NessMemcachedClient#reconfigure(List, java.util.Map, TopologyStatistics)}.
+     */
+    @Override
+    public MemcachedConnection createConnection(final List<InetSocketAddress> addrs) throws IOException
+    {
+        return new NessMemcachedConnection(getReadBufSize(), this, addrs, getInitialObservers(), getFailureMode(), getOperationFactory(),
+                                           configuration.getTopologyDrainTimeout().getMillis());
+    }
+
+    /**
+     * Servers start out with weight 1, see {@link NessMemcachedClient}.
+     */
+    @Override
+    public NodeLocator createLocator(final List<MemcachedNode> nodes)
+    {
+        return new WeightedNodeLocator(configuration.getNodeLocator(), nodes, ImmutableMap.<InetSocketAddress, Integer>of());
     }
 
     // Use our custom transcoder
 
-    @SuppressWarnings(value = {"unchecked", "rawtypes"} )
     @Override
     public Transcoder<Object> getDefaultTranscoder() {
-        return (Transcoder) new MemcacheByteArrayTranscoder();
+        return new MemcacheByteArrayTranscoder(dictionaries, null, MemcacheCodec.getMaxLength(configuration));
     }
 
     @Override
@@ -93,12 +126,43 @@ public class NessMemcachedConnectionFactory extends KetamaConnectionFactory {
         return configuration.getMemcachedOperationTimeout().getMillis();
     }
 
+    @Override
+    public boolean shouldOptimize()
+    {
+        return configuration.isMemcachedOptimizeWrites();
+    }
+
     @Override
     public boolean isDaemon()
     {
         return configuration.isMemcachedDaemonThreads();
     }
 
+    /**
+     * The default listener executor hands tasks straight to at most one thread per core and rejects everything
+     * else, which drops completions of async operations when many of them finish at once. Queue them instead.
+     * Every client gets its own executor because the client shuts it down together with itself.
+     */
+    @Override
+    public ExecutorService getListenerExecutorService()
+    {
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                                                                   new LinkedBlockingQueue<Runnable>(),
+                                                                   new ThreadFactoryBuilder()
+                                                                       .setNameFormat("ness-memcached-listener-%d")
+                                                                       .setDaemon(isDaemon())
+                                                                       .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public boolean isDefaultExecutorService()
+    {
+        return true;
+    }
+
     @Override
     public FailureMode getFailureMode()
     {
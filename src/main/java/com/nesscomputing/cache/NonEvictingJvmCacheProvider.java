@@ -35,7 +35,7 @@ import com.nesscomputing.logging.Log;
  *
  */
 @Singleton
-public class NonEvictingJvmCacheProvider implements InternalCacheProvider {
+public class NonEvictingJvmCacheProvider extends SynchronousCacheProvider {
 	private final static Log LOG = Log.findLog();
 	private final ConcurrentMap<Map.Entry<String, String>, byte[]> map = Maps.newConcurrentMap();
 
@@ -24,7 +24,7 @@ import javax.annotation.Nullable;
 /**
  * Basic null cache.  All stores are ignored, all fetches return no entries.
  */
-public class NullProvider implements InternalCacheProvider {
+public class NullProvider extends SynchronousCacheProvider {
     @Override
     public void set(String namespace, Collection<CacheStore<byte []>> stores, @Nullable CacheStatistics statistics) { }
 
@@ -0,0 +1,383 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.joda.time.DateTime;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * In-JVM cache that keeps values in direct memory, so that large caches do not grow the old generation.
+ *
+ * <p>The cache is split into lock-striped segments. Each segment appends values to a ring of direct
+ * {@link ByteBuffer} slabs and keeps a small on-heap index from key to slab location. When the ring is
+ * full, the oldest slab is recycled with a clock (second chance) policy: entries read since the slab
+ * was last recycled are copied forward into it, everything else is dropped.
+ *
+ * <p>Slabs are allocated on demand, but the JVM must be started with a large enough
+ * <tt>-XX:MaxDirectMemorySize</tt> for the configured maximum.
+ */
+@Singleton
+public class OffHeapCacheProvider extends SynchronousCacheProvider
+{
+    private static final Log LOG = Log.findLog();
+
+    private final Segment [] segments;
+    private final int segmentMask;
+
+    @Inject
+    OffHeapCacheProvider(final CacheConfiguration config)
+    {
+        this(config.getOffHeapMaxBytes(), config.getOffHeapSegments(), config.getOffHeapSlabBytes());
+    }
+
+    @VisibleForTesting
+    OffHeapCacheProvider(final long maxBytes, final int segmentCount, final int maxSlabBytes)
+    {
+        Preconditions.checkArgument(maxBytes > 0, "maximum size must be positive");
+        Preconditions.checkArgument(segmentCount > 0 && Integer.bitCount(segmentCount) == 1, "segment count must be a power of two");
+        Preconditions.checkArgument(maxSlabBytes > 0, "slab size must be positive");
+
+        final long segmentBytes = Math.max(1L, maxBytes / segmentCount);
+        // At least two slabs per segment, so that recycling one does not empty the whole segment.
+        final int slabBytes = (int) Math.max(1L, Math.min(maxSlabBytes, segmentBytes / 2));
+        final int slabCount = (int) Math.max(2L, segmentBytes / slabBytes);
+
+        this.segments = new Segment[segmentCount];
+        this.segmentMask = segmentCount - 1;
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(slabCount, slabBytes);
+        }
+        LOG.debug("Off heap cache with %d segments of %d slabs, %d bytes each", segmentCount, slabCount, slabBytes);
+    }
+
+    @Override
+    public void set(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable final CacheStatistics cacheStatistics)
+    {
+        for (final CacheStore<byte []> store : stores) {
+            final Entry<String, String> key = Maps.immutableEntry(namespace, store.getKey());
+            final byte [] value = store.getData();
+            if (value == null) {
+                segmentFor(key).remove(key);
+            }
+            else {
+                segmentFor(key).put(key, value, expiryMillis(store.getExpiry()), false);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> get(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final Map<String, byte []> result = Maps.newHashMap();
+        final long now = System.currentTimeMillis();
+
+        for (final String key : keys) {
+            final Entry<String, String> cacheKey = Maps.immutableEntry(namespace, key);
+            final byte [] data = segmentFor(cacheKey).get(cacheKey, now);
+            if (data != null) {
+                result.put(key, data);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @Override
+    public void clear(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        for (final String key : keys) {
+            final Entry<String, String> cacheKey = Maps.immutableEntry(namespace, key);
+            segmentFor(cacheKey).remove(cacheKey);
+        }
+    }
+
+    @Override
+    public Map<String, Boolean> add(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final Map<String, Boolean> result = Maps.newHashMap();
+
+        for (final CacheStore<byte []> store : stores) {
+            final Entry<String, String> key = Maps.immutableEntry(namespace, store.getKey());
+            final byte [] value = store.getData();
+            if (value == null) {
+                result.put(store.getKey(), !segmentFor(key).contains(key));
+            }
+            else {
+                result.put(store.getKey(), segmentFor(key).put(key, value, expiryMillis(store.getExpiry()), true));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of bytes of direct memory currently allocated by all segments.
+     */
+    @VisibleForTesting
+    long allocatedBytes()
+    {
+        long result = 0L;
+        for (final Segment segment : segments) {
+            result += segment.allocatedBytes();
+        }
+        return result;
+    }
+
+    private Segment segmentFor(final Entry<String, String> key)
+    {
+        int hash = 31 * key.getKey().hashCode() + key.getValue().hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return segments[hash & segmentMask];
+    }
+
+    private static long expiryMillis(@Nullable final DateTime expiry)
+    {
+        return expiry == null ? Long.MAX_VALUE : expiry.getMillis();
+    }
+
+    private static final class Location
+    {
+        private final Entry<String, String> key;
+        private final int slab;
+        private final int offset;
+        private final int length;
+        private final long expiryMillis;
+
+        /** Set on read, cleared when the slab is recycled. Racy by design, readers only hold the read lock. */
+        private volatile boolean referenced;
+
+        Location(final Entry<String, String> key, final int slab, final int offset, final int length, final long expiryMillis)
+        {
+            this.key = key;
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+            this.expiryMillis = expiryMillis;
+        }
+    }
+
+    private static final class Segment
+    {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private final int slabBytes;
+
+        @GuardedBy("lock")
+        private final Map<Entry<String, String>, Location> index = Maps.newHashMap();
+        @GuardedBy("lock")
+        private final ByteBuffer [] slabs;
+        @GuardedBy("lock")
+        private final List<List<Location>> slabEntries;
+        @GuardedBy("lock")
+        private int currentSlab = 0;
+
+        Segment(final int slabCount, final int slabBytes)
+        {
+            this.slabBytes = slabBytes;
+            this.slabs = new ByteBuffer[slabCount];
+            this.slabEntries = Lists.newArrayListWithCapacity(slabCount);
+            for (int i = 0; i < slabCount; i++) {
+                slabEntries.add(Lists.<Location>newArrayList());
+            }
+        }
+
+        byte [] get(final Entry<String, String> key, final long now)
+        {
+            lock.readLock().lock();
+            try {
+                final Location location = index.get(key);
+                if (location == null || location.expiryMillis <= now) {
+                    return null;
+                }
+                location.referenced = true;
+
+                final ByteBuffer buffer = slabs[location.slab].duplicate();
+                buffer.position(location.offset);
+                final byte [] result = new byte [location.length];
+                buffer.get(result);
+                return result;
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        boolean contains(final Entry<String, String> key)
+        {
+            lock.readLock().lock();
+            try {
+                final Location location = index.get(key);
+                return location != null && location.expiryMillis > System.currentTimeMillis();
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return false if onlyIfAbsent was set and a live entry exists, true otherwise.
+         */
+        boolean put(final Entry<String, String> key, final byte [] value, final long expiryMillis, final boolean onlyIfAbsent)
+        {
+            lock.writeLock().lock();
+            try {
+                if (onlyIfAbsent) {
+                    final Location existing = index.get(key);
+                    if (existing != null && existing.expiryMillis > System.currentTimeMillis()) {
+                        return false;
+                    }
+                }
+
+                // The bytes of any old value stay in their slab until it is recycled.
+                index.remove(key);
+
+                if (value.length > slabBytes) {
+                    LOG.debug("Not caching %s, %d bytes exceed slab size %d", key, value.length, slabBytes);
+                    return true;
+                }
+
+                ensureSpace(value.length);
+                append(key, value, expiryMillis);
+                return true;
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(final Entry<String, String> key)
+        {
+            lock.writeLock().lock();
+            try {
+                index.remove(key);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        long allocatedBytes()
+        {
+            lock.readLock().lock();
+            try {
+                long result = 0L;
+                for (final ByteBuffer slab : slabs) {
+                    if (slab != null) {
+                        result += slab.capacity();
+                    }
+                }
+                return result;
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @GuardedBy("lock")
+        private void ensureSpace(final int length)
+        {
+            // Bounded: survivors of a recycle have their referenced bit cleared, so a full turn
+            // of the ring always frees a slab.
+            for (int i = 0; i <= slabs.length; i++) {
+                final ByteBuffer current = slabs[currentSlab];
+                if (current != null && current.remaining() >= length) {
+                    return;
+                }
+                if (current == null) {
+                    slabs[currentSlab] = ByteBuffer.allocateDirect(slabBytes);
+                    continue;
+                }
+                currentSlab = (currentSlab + 1) % slabs.length;
+                if (slabs[currentSlab] == null) {
+                    slabs[currentSlab] = ByteBuffer.allocateDirect(slabBytes);
+                }
+                else {
+                    recycle(currentSlab, slabBytes - length);
+                }
+            }
+            throw new IllegalStateException("Could not free " + length + " bytes in off heap cache segment");
+        }
+
+        /**
+         * Drop all entries held by a slab, except recently read ones that fit into the given budget, which are copied back into it.
+         */
+        @GuardedBy("lock")
+        private void recycle(final int slab, final int budget)
+        {
+            final long now = System.currentTimeMillis();
+            final ByteBuffer buffer = slabs[slab];
+            final List<Location> entries = slabEntries.get(slab);
+
+            final List<Location> survivors = Lists.newArrayList();
+            final List<byte []> survivorData = Lists.newArrayList();
+            int survivorBytes = 0;
+
+            for (final Location location : entries) {
+                if (index.get(location.key) != location) {
+                    continue;
+                }
+                if (location.referenced && location.expiryMillis > now && survivorBytes + location.length <= budget) {
+                    final ByteBuffer source = buffer.duplicate();
+                    source.position(location.offset);
+                    final byte [] data = new byte [location.length];
+                    source.get(data);
+                    survivors.add(location);
+                    survivorData.add(data);
+                    survivorBytes += location.length;
+                }
+                else {
+                    index.remove(location.key);
+                }
+            }
+
+            entries.clear();
+            buffer.clear();
+            for (int i = 0; i < survivors.size(); i++) {
+                final Location location = survivors.get(i);
+                append(location.key, survivorData.get(i), location.expiryMillis);
+            }
+        }
+
+        @GuardedBy("lock")
+        private void append(final Entry<String, String> key, final byte [] value, final long expiryMillis)
+        {
+            final ByteBuffer buffer = slabs[currentSlab];
+            final Location location = new Location(key, currentSlab, buffer.position(), value.length, expiryMillis);
+            buffer.put(value);
+            index.put(key, location);
+            slabEntries.get(currentSlab).add(location);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.util.Random;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonValue;
@@ -46,6 +47,10 @@ public class PrefixedCache<P, K, V>
 
     private final Random random = new Random();
 
+    private final double earlyRefreshBeta;
+    private final long computeMillis;
+    private final Duration negativeExpiration;
+
     private final Function<Pair<P, K>, String> keySerializer;
     private final Function<? super V, byte []> valueSerializer;
     private final Function<byte [] , ? extends V> valueDeserializer;
@@ -59,8 +64,44 @@ public class PrefixedCache<P, K, V>
                          final Function<Pair<P, K>, String> keySerializer,
                          final Function<? super V, byte []> valueSerializer,
                          final Function<byte [] , ? extends V> valueDeserializer)
+    {
+        this(nessCache, namespace, expiration, jitter, keySerializer, valueSerializer, valueDeserializer, 0.0, null);
+    }
+
+    public PrefixedCache(final NessCache nessCache,
+                         final String namespace,
+                         final Duration expiration,
+                         final Duration jitter,
+                         final Function<Pair<P, K>, String> keySerializer,
+                         final Function<? super V, byte []> valueSerializer,
+                         final Function<byte [] , ? extends V> valueDeserializer,
+                         final double earlyRefreshBeta,
+                         final Duration computeTime)
+    {
+        this(nessCache, namespace, expiration, jitter, keySerializer, valueSerializer, valueDeserializer, earlyRefreshBeta, computeTime, null);
+    }
+
+    /**
+     * @param earlyRefreshBeta if positive, values are stored with an {@link CacheEnvelope} and a reader is occasionally
+     * handed a miss shortly before the value expires, so that one caller recomputes it while everybody else still gets
+     * the cached value.
+     * @param computeTime typical time it takes a caller to recompute a value; the earlier refreshes start the larger it is.
+     * @param negativeExpiration how long {@link #putMissing(Object, Object)} remembers a missing value, or null if misses
+     * are not cached.
+     */
+    public PrefixedCache(final NessCache nessCache,
+                         final String namespace,
+                         final Duration expiration,
+                         final Duration jitter,
+                         final Function<Pair<P, K>, String> keySerializer,
+                         final Function<? super V, byte []> valueSerializer,
+                         final Function<byte [] , ? extends V> valueDeserializer,
+                         final double earlyRefreshBeta,
+                         final Duration computeTime,
+                         @Nullable final Duration negativeExpiration)
     {
         Preconditions.checkNotNull(namespace, "the namespace must not be null!");
+        Preconditions.checkArgument(earlyRefreshBeta <= 0 || computeTime != null, "early refresh needs a compute time!");
         this.nessCache = nessCache;
         this.namespace = namespace;
         this.expiration = expiration;
@@ -76,21 +117,45 @@ public class PrefixedCache<P, K, V>
         this.keySerializer = keySerializer;
         this.valueSerializer = valueSerializer;
         this.valueDeserializer = valueDeserializer;
+        this.earlyRefreshBeta = earlyRefreshBeta;
+        this.computeMillis = computeTime == null ? 0L : computeTime.getMillis();
+        this.negativeExpiration = negativeExpiration;
     }
 
 
     public void put(final P prefix, final K key, final V value)
     {
         final String keyString = keySerializer.apply(SerializablePair.of(prefix, key));
-        final byte [] valueBytes = valueSerializer.apply(value);
-        nessCache.set(namespace, Collections.singleton(CacheStores.fromSharedBytes(keyString, valueBytes, getExpiry())));
+        nessCache.set(namespace, Collections.singleton(toStore(keyString, value)));
+    }
+
+    /**
+     * Remember that there is no value for a key, e.g. because the source of truth has no record of it. Until
+     * the negative expiration passes, {@link #getIfCached(Object, Object)} reports the key as missing.
+     */
+    public void putMissing(final P prefix, final K key)
+    {
+        putAllMissing(prefix, Collections.singleton(key));
+    }
+
+    public void putAllMissing(final P prefix, final Collection<? extends K> keys)
+    {
+        Preconditions.checkState(negativeExpiration != null, "no negative expiration configured!");
+        final DateTime expiry = DateTime.now().plus(negativeExpiration);
+        final byte [] tombstone = CacheEnvelope.tombstone(expiry.getMillis());
+        final Function<K, String> prefixFunction = new PrefixFunction<P, K>(prefix, keySerializer);
+        nessCache.set(namespace, Collections2.transform(keys, new Function<K, CacheStore<byte []>>() {
+                    @Override
+                    public CacheStore<byte[]> apply(final K key) {
+                        return CacheStores.fromSharedBytes(prefixFunction.apply(key), tombstone, expiry);
+                    }
+                }));
     }
 
     public boolean add(final P prefix, final K key, final V value)
     {
         final String keyString = keySerializer.apply(SerializablePair.of(prefix, key));
-        final byte [] valueBytes = valueSerializer.apply(value);
-        return BooleanUtils.toBoolean(nessCache.add(namespace, Collections.singleton(CacheStores.fromSharedBytes(keyString, valueBytes, getExpiry()))).get(key));
+        return BooleanUtils.toBoolean(nessCache.add(namespace, Collections.singleton(toStore(keyString, value))).get(key));
     }
 
     public void putAll(final P prefix, final Map<K, ? extends V> entries)
@@ -99,8 +164,7 @@ public class PrefixedCache<P, K, V>
                     @Override
                     public CacheStore<byte[]> apply(final Map.Entry<K, ? extends V> entry) {
                         final String keyString = keySerializer.apply(SerializablePair.of(prefix, entry.getKey()));
-                        final byte [] valueBytes = valueSerializer.apply(entry.getValue());
-                        return CacheStores.fromSharedBytes(keyString, valueBytes, getExpiry());
+                        return toStore(keyString, entry.getValue());
                     }
                 }));
     }
@@ -116,8 +180,7 @@ public class PrefixedCache<P, K, V>
                     @Override
                     public CacheStore<byte[]> apply(final Map.Entry<K, ? extends V> entry) {
                         final String keyString = keySerializer.apply(SerializablePair.of(prefix, entry.getKey()));
-                        final byte [] valueBytes = valueSerializer.apply(entry.getValue());
-                        return CacheStores.fromSharedBytes(keyString, valueBytes, getExpiry());
+                        return toStore(keyString, entry.getValue());
                     }
                 }));
 
@@ -132,10 +195,26 @@ public class PrefixedCache<P, K, V>
     public V get(final P prefix, final K key)
     {
         final String keyString = keySerializer.apply(SerializablePair.of(prefix, key));
-        final byte [] result = nessCache.get(namespace, Collections.singleton(keyString)).get(keyString);
+        final byte [] result = unwrap(nessCache.get(namespace, Collections.singleton(keyString)).get(keyString));
         return result == null ? null : valueDeserializer.apply(result);
     }
 
+    /**
+     * Unlike {@link #get(Object, Object)}, tells a key stored with {@link #putMissing(Object, Object)} apart from
+     * one that is not cached at all.
+     */
+    @Nonnull
+    public Lookup<V> getIfCached(final P prefix, final K key)
+    {
+        final String keyString = keySerializer.apply(SerializablePair.of(prefix, key));
+        final byte [] data = nessCache.get(namespace, Collections.singleton(keyString)).get(keyString);
+        if (CacheEnvelope.isTombstone(data)) {
+            return Lookup.missing();
+        }
+        final byte [] result = unwrap(data);
+        return result == null ? Lookup.<V>notCached() : Lookup.<V>found(valueDeserializer.apply(result));
+    }
+
     @Nonnull
     public Map<K, V> get(P prefix, Collection<? extends K> keys)
     {
@@ -148,7 +227,7 @@ public class PrefixedCache<P, K, V>
         for (final Map.Entry<String, byte[]> entry : res.entrySet()) {
             final K key = keyStrings.get(entry.getKey());
             try {
-                final byte [] result = entry.getValue();
+                final byte [] result = unwrap(entry.getValue());
                 if (result != null) {
                     builder.put(key, valueDeserializer.apply(result));
                 }
@@ -173,6 +252,35 @@ public class PrefixedCache<P, K, V>
         nessCache.clear(namespace, Collections2.transform(keys, prefixFunction));
     }
 
+    private CacheStore<byte []> toStore(final String keyString, final V value)
+    {
+        final DateTime expiry = getExpiry();
+        byte [] valueBytes = valueSerializer.apply(value);
+        if (earlyRefreshBeta > 0) {
+            valueBytes = CacheEnvelope.wrap(valueBytes, computeMillis, expiry.getMillis());
+        }
+        return CacheStores.fromSharedBytes(keyString, valueBytes, expiry);
+    }
+
+    /**
+     * @return the value bytes, or null if there was no value, a cached miss or this reader was picked to refresh it early.
+     */
+    @CheckForNull
+    private byte [] unwrap(@Nullable final byte [] data)
+    {
+        if (CacheEnvelope.isTombstone(data)) {
+            return null;
+        }
+        if (data == null || earlyRefreshBeta <= 0) {
+            return data;
+        }
+        final CacheEnvelope envelope = CacheEnvelope.unwrap(data);
+        if (envelope == null) {
+            return data;
+        }
+        return envelope.shouldRefreshEarly(System.currentTimeMillis(), earlyRefreshBeta) ? null : envelope.getPayload();
+    }
+
     private DateTime getExpiry()
     {
         if (expiration == null) {
@@ -205,6 +313,70 @@ public class PrefixedCache<P, K, V>
         }
     }
 
+    /**
+     * What {@link PrefixedCache#getIfCached(Object, Object)} found for a key.
+     */
+    public static final class Lookup<V>
+    {
+        public enum State {
+            /** Nothing is cached for the key. */
+            NOT_CACHED,
+            /** The key was stored as missing. */
+            MISSING,
+            /** A value is cached for the key. */
+            FOUND
+        }
+
+        private static final Lookup<Object> NOT_CACHED = new Lookup<Object>(State.NOT_CACHED, null);
+        private static final Lookup<Object> MISSING = new Lookup<Object>(State.MISSING, null);
+
+        private final State state;
+        private final V value;
+
+        private Lookup(final State state, @Nullable final V value)
+        {
+            this.state = state;
+            this.value = value;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <V> Lookup<V> notCached()
+        {
+            return (Lookup<V>) NOT_CACHED;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <V> Lookup<V> missing()
+        {
+            return (Lookup<V>) MISSING;
+        }
+
+        static <V> Lookup<V> found(final V value)
+        {
+            return new Lookup<V>(State.FOUND, value);
+        }
+
+        public State getState()
+        {
+            return state;
+        }
+
+        /**
+         * @return the cached value, null unless the state is {@link State#FOUND}.
+         */
+        @CheckForNull
+        public V getValue()
+        {
+            return value;
+        }
+
+        @Override
+        public String toString()
+        {
+            return state == State.FOUND ? "Lookup[" + value + "]" : "Lookup[" + state + "]";
+        }
+    }
+
     public static final class SerializablePair<A, B> extends Pair<A, B>
     {
         private static final long serialVersionUID = 1L;
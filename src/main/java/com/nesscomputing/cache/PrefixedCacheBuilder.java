@@ -45,6 +45,9 @@ public final class PrefixedCacheBuilder<P, K, V> implements Provider<PrefixedCac
     private Class<? extends Annotation> deserializerAnnotation = null;
     private Duration expiration;
     private Duration jitter;
+    private double earlyRefreshBeta = 0.0;
+    private Duration computeTime;
+    private Duration negativeExpiration;
 
     private NessCache nessCache = null;
 
@@ -130,6 +133,38 @@ public final class PrefixedCacheBuilder<P, K, V> implements Provider<PrefixedCac
         return this;
     }
 
+    /**
+     * Occasionally hand a reader a miss shortly before a value expires, so that a single caller recomputes it
+     * while everybody else keeps getting the cached value ("probabilistic early expiration").
+     *
+     * @param beta how eagerly to refresh; 1.0 is a good default, larger values refresh earlier.
+     * @param typicalComputeTime roughly how long a caller takes to recompute a value.
+     */
+    public PrefixedCacheBuilder<P, K, V> withEarlyRefresh(final double beta, final Duration typicalComputeTime)
+    {
+        Preconditions.checkArgument(beta > 0, "beta must be positive!");
+        this.earlyRefreshBeta = beta;
+        this.computeTime = Preconditions.checkNotNull(typicalComputeTime, "the compute time must not be null!");
+
+        return this;
+    }
+
+    /**
+     * Allow {@link PrefixedCache#putMissing(Object, Object)} to remember keys without a value for the given time.
+     */
+    public PrefixedCacheBuilder<P, K, V> withNegativeCaching(final Duration withNegativeExpiration)
+    {
+        this.negativeExpiration = Preconditions.checkNotNull(withNegativeExpiration, "the negative expiration must not be null!");
+
+        return this;
+    }
+
+    public PrefixedCacheBuilder<P, K, V> withNegativeCaching(final TimeSpan withNegativeExpiration)
+    {
+        Preconditions.checkNotNull(withNegativeExpiration, "the negative expiration must not be null!");
+        return withNegativeCaching(new Duration(withNegativeExpiration.getMillis()));
+    }
+
     @Inject
     void setInjector(final Injector inj)
     {
@@ -178,6 +213,6 @@ public final class PrefixedCacheBuilder<P, K, V> implements Provider<PrefixedCac
         Preconditions.checkNotNull(valueSerializer, "No value serializer present!");
         Preconditions.checkNotNull(valueDeserializer, "No value deserializer present!");
 
-        return new PrefixedCache<P, K, V>(nessCache, namespace, expiration, jitter, keySerializer, valueSerializer, valueDeserializer);
+        return new PrefixedCache<P, K, V>(nessCache, namespace, expiration, jitter, keySerializer, valueSerializer, valueDeserializer, earlyRefreshBeta, computeTime, negativeExpiration);
     }
 }
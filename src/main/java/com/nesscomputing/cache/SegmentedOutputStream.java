@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.io.OutputStream;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Collects a value of unknown size. Unlike a {@link java.io.ByteArrayOutputStream}, which copies everything written so
+ * far whenever it runs out of room and once more at the end, this keeps what it has written in segments of growing size
+ * and copies every byte exactly once, into an array of the final size.
+ */
+final class SegmentedOutputStream extends OutputStream
+{
+    private static final int MIN_SEGMENT_SIZE = 4096;
+    private static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    private final List<byte []> segments = Lists.newArrayList();
+    private byte [] current;
+    private int position = 0;
+    private int size = 0;
+
+    SegmentedOutputStream()
+    {
+        this(MIN_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param expectedSize size of the first segment; if the value fits exactly, it is not copied at all.
+     */
+    SegmentedOutputStream(final int expectedSize)
+    {
+        Preconditions.checkArgument(expectedSize >= 0, "negative size");
+        this.current = new byte [expectedSize];
+    }
+
+    @Override
+    public void write(final int b)
+    {
+        if (position == current.length) {
+            nextSegment();
+        }
+        current[position++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(final byte [] b, final int off, final int len)
+    {
+        Preconditions.checkPositionIndexes(off, off + len, b.length);
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            if (position == current.length) {
+                nextSegment();
+            }
+            final int length = Math.min(remaining, current.length - position);
+            System.arraycopy(b, offset, current, position, length);
+            position += length;
+            offset += length;
+            remaining -= length;
+        }
+        size += len;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return everything written so far. The result is not copied on later calls, and must not be modified.
+     */
+    byte [] toByteArray()
+    {
+        if (segments.isEmpty() && position == current.length) {
+            return current;
+        }
+
+        final byte [] result = new byte [size];
+        int offset = 0;
+        for (final byte [] segment : segments) {
+            System.arraycopy(segment, 0, result, offset, segment.length);
+            offset += segment.length;
+        }
+        System.arraycopy(current, 0, result, offset, position);
+
+        segments.clear();
+        current = result;
+        position = result.length;
+        return result;
+    }
+
+    private void nextSegment()
+    {
+        segments.add(current);
+        current = new byte [Math.min(MAX_SEGMENT_SIZE, Math.max(MIN_SEGMENT_SIZE, size))];
+        position = 0;
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+
+import net.spy.memcached.DefaultHashAlgorithm;
+
+import com.nesscomputing.cache.CacheConfiguration.NodeLocatorType;
+
+/**
+ * Maps keys to servers, by their index in the server list. Only depends on the addresses and weights of the servers,
+ * so every client with the same servers places keys the same way.
+ */
+abstract class ServerPlacement
+{
+    private static final HashFunction KEY_HASH = Hashing.murmur3_128();
+
+    /**
+     * @param weights the weight of every server by address; servers without a weight have weight 1.
+     */
+    static ServerPlacement create(final NodeLocatorType type, final List<? extends SocketAddress> servers, final Map<? extends SocketAddress, Integer> weights)
+    {
+        final int [] serverWeights = new int [servers.size()];
+        for (int i = 0; i < serverWeights.length; i++) {
+            final Integer weight = weights.get(servers.get(i));
+            serverWeights[i] = weight == null ? 1 : Math.max(1, weight);
+        }
+
+        switch (type) {
+        case KETAMA:
+            return new Ketama(servers, serverWeights);
+        case JUMP:
+            return new Jump(serverWeights);
+        case RENDEZVOUS:
+            return new Rendezvous(servers, serverWeights);
+        default:
+            throw new IllegalArgumentException("Unknown locator type " + type);
+        }
+    }
+
+    /**
+     * @return the index of the server for the key; undefined if there are no servers.
+     */
+    abstract int getServer(String key);
+
+    private static long hash64(final String value)
+    {
+        return KEY_HASH.hashString(value, Charsets.UTF_8).asLong();
+    }
+
+    /**
+     * Ketama with 160 points per unit of weight on the ring. Points are computed the same way as spymemcached's
+     * <code>KetamaNodeLocator</code> does, so servers of weight 1 own the same keys as there.
+     */
+    private static final class Ketama extends ServerPlacement
+    {
+        private static final int POINTS_PER_WEIGHT = 160;
+
+        private final long [] points;
+        private final int [] owners;
+
+        Ketama(final List<? extends SocketAddress> servers, final int [] weights)
+        {
+            long total = 0;
+            for (final int weight : weights) {
+                total += (long) weight * POINTS_PER_WEIGHT;
+            }
+            final long [] ring = new long [Ints.checkedCast(total)];
+
+            int count = 0;
+            for (int server = 0; server < weights.length; server++) {
+                final String name = getName(servers.get(server));
+                for (int i = 0; i < weights[server] * POINTS_PER_WEIGHT / 4; i++) {
+                    final byte [] digest = DefaultHashAlgorithm.computeMd5(name + "-" + i);
+                    for (int h = 0; h < 4; h++) {
+                        final long point = ((long) (digest[3 + h * 4] & 0xFF) << 24)
+                                         | ((long) (digest[2 + h * 4] & 0xFF) << 16)
+                                         | ((long) (digest[1 + h * 4] & 0xFF) << 8)
+                                         | (digest[h * 4] & 0xFF);
+                        // Points are 32 bit, there is room for the server below them. Sorting by point then
+                        // keeps the servers of equal points in list order, the last one wins as in spymemcached.
+                        ring[count++] = (point << 31) | server;
+                    }
+                }
+            }
+            Arrays.sort(ring, 0, count);
+
+            final long [] uniquePoints = new long [count];
+            final int [] uniqueOwners = new int [count];
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                final long point = ring[i] >>> 31;
+                if (unique > 0 && uniquePoints[unique - 1] == point) {
+                    unique--;
+                }
+                uniquePoints[unique] = point;
+                uniqueOwners[unique] = (int) (ring[i] & Integer.MAX_VALUE);
+                unique++;
+            }
+            this.points = Arrays.copyOf(uniquePoints, unique);
+            this.owners = Arrays.copyOf(uniqueOwners, unique);
+        }
+
+        @Override
+        int getServer(final String key)
+        {
+            final int index = Arrays.binarySearch(points, DefaultHashAlgorithm.KETAMA_HASH.hash(key));
+            if (index >= 0) {
+                return owners[index];
+            }
+            final int insertion = -index - 1;
+            return owners[insertion == points.length ? 0 : insertion];
+        }
+
+        private static String getName(final SocketAddress server)
+        {
+            final String name = String.valueOf(server);
+            return name.startsWith("/") ? name.substring(1) : name;
+        }
+    }
+
+    /**
+     * Jump consistent hash (Lamping and Veach) over buckets, every server owning as many consecutive buckets as its
+     * weight. Adding or removing servers at the end of the list only moves the keys of those servers; anywhere else,
+     * the buckets after it shift and many more keys move.
+     */
+    private static final class Jump extends ServerPlacement
+    {
+        private final int [] buckets;
+
+        Jump(final int [] weights)
+        {
+            int total = 0;
+            for (final int weight : weights) {
+                total += weight;
+            }
+            this.buckets = new int [total];
+            int bucket = 0;
+            for (int server = 0; server < weights.length; server++) {
+                for (int i = 0; i < weights[server]; i++) {
+                    buckets[bucket++] = server;
+                }
+            }
+        }
+
+        @Override
+        int getServer(final String key)
+        {
+            return buckets[jump(hash64(key), buckets.length)];
+        }
+
+        static int jump(final long hash, final int bucketCount)
+        {
+            long key = hash;
+            long b = -1;
+            long j = 0;
+            while (j < bucketCount) {
+                b = j;
+                key = key * 2862933555777941757L + 1;
+                j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+            }
+            return (int) b;
+        }
+    }
+
+    /**
+     * Weighted rendezvous hashing: every server scores a key with <code>-weight / ln(u)</code>, where <code>u</code>
+     * is a uniform hash of key and server in (0, 1), and the best score wins. Any change of a server only moves keys
+     * to or from that server, at the price of scoring every server for every key.
+     */
+    private static final class Rendezvous extends ServerPlacement
+    {
+        private final long [] seeds;
+        private final double [] weights;
+
+        Rendezvous(final List<? extends SocketAddress> servers, final int [] weights)
+        {
+            this.seeds = new long [weights.length];
+            this.weights = new double [weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                seeds[i] = hash64(String.valueOf(servers.get(i)));
+                this.weights[i] = weights[i];
+            }
+        }
+
+        @Override
+        int getServer(final String key)
+        {
+            final long keyHash = hash64(key);
+            int best = 0;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < seeds.length; i++) {
+                // The top 53 bits make a double in (0, 1).
+                final double u = ((mix(keyHash ^ seeds[i]) >>> 11) + 0.5) / (1L << 53);
+                final double score = -weights[i] / Math.log(u);
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        /** The finalizer of SplitMix64, spreads every input bit over the whole output. */
+        private static long mix(final long value)
+        {
+            long z = value;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
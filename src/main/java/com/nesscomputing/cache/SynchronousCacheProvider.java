@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Collection;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Base class for providers that never block on I/O. The asynchronous operations simply run the
+ * synchronous version on the calling thread and return an already completed future.
+ */
+abstract class SynchronousCacheProvider implements InternalCacheProvider
+{
+    /**
+     * These providers keep values in arrays of their own, so there is nothing to pool.
+     */
+    @Override
+    public Map<String, CacheLease> lease(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        return CacheLease.of(get(namespace, keys, cacheStatistics));
+    }
+
+    @Override
+    public ListenableFuture<Void> setAsync(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable final CacheStatistics cacheStatistics)
+    {
+        try {
+            set(namespace, stores, cacheStatistics);
+            return Futures.immediateFuture(null);
+        }
+        catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public ListenableFuture<Map<String, byte[]>> getAsync(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        try {
+            return Futures.immediateFuture(get(namespace, keys, cacheStatistics));
+        }
+        catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public ListenableFuture<Void> clearAsync(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        try {
+            clear(namespace, keys, cacheStatistics);
+            return Futures.immediateFuture(null);
+        }
+        catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public ListenableFuture<Map<String, Boolean>> addAsync(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable final CacheStatistics cacheStatistics)
+    {
+        try {
+            return Futures.immediateFuture(add(namespace, stores, cacheStatistics));
+        }
+        catch (RuntimeException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+}
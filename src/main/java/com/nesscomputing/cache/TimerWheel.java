@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Hierarchical timer wheel for proactively expiring entries in O(1) per operation. Each wheel
+ * covers a power-of-two time span (about 1s, 1m, 1h, 1.5d and 6d buckets); advancing time
+ * expires due entries and cascades the remaining ones of a bucket down to finer wheels.
+ */
+@NotThreadSafe
+final class TimerWheel
+{
+    private static final int[] BUCKETS = { 64, 64, 32, 4, 1 };
+    private static final long[] SPANS = { 1L << 10, 1L << 16, 1L << 22, 1L << 27, 1L << 29, 1L << 29 };
+    private static final long[] SHIFT = { 10, 16, 22, 27, 29 };
+
+    private final Timed[][] wheel;
+    private long time;
+
+    TimerWheel(final long nowMillis)
+    {
+        this.time = nowMillis;
+        this.wheel = new Timed[BUCKETS.length][];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Timed[BUCKETS[i]];
+            for (int j = 0; j < wheel[i].length; j++) {
+                final Timed sentinel = new Timed();
+                sentinel.prevTimed = sentinel;
+                sentinel.nextTimed = sentinel;
+                wheel[i][j] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * Add an entry to the wheel according to its expiry time, moving it if it was already scheduled.
+     */
+    void schedule(final Timed timed)
+    {
+        deschedule(timed);
+        link(findBucket(timed.expiryMillis), timed);
+    }
+
+    /**
+     * Remove an entry from the wheel. Does nothing if the entry is not scheduled.
+     */
+    void deschedule(final Timed timed)
+    {
+        if (timed.nextTimed != null) {
+            timed.nextTimed.prevTimed = timed.prevTimed;
+            timed.prevTimed.nextTimed = timed.nextTimed;
+            timed.nextTimed = null;
+            timed.prevTimed = null;
+        }
+    }
+
+    /**
+     * Advance the wheel to the given time and hand every entry that is now expired to the listener.
+     * Expired entries are already descheduled when the listener sees them.
+     */
+    void advance(final long nowMillis, final Listener listener)
+    {
+        final long previous = time;
+        time = nowMillis;
+
+        for (int i = 0; i < SHIFT.length; i++) {
+            final long previousTicks = previous >>> SHIFT[i];
+            final long currentTicks = nowMillis >>> SHIFT[i];
+            if (currentTicks - previousTicks <= 0L) {
+                break;
+            }
+            expire(i, previousTicks, currentTicks - previousTicks, listener);
+        }
+    }
+
+    private void expire(final int index, final long previousTicks, final long delta, final Listener listener)
+    {
+        final Timed[] timerWheel = wheel[index];
+        final int mask = timerWheel.length - 1;
+        final int steps = (int) Math.min(delta + 1, timerWheel.length);
+        final int start = (int) (previousTicks & mask);
+        final int end = start + steps;
+
+        for (int i = start; i < end; i++) {
+            final Timed sentinel = timerWheel[i & mask];
+            Timed timed = sentinel.nextTimed;
+            sentinel.prevTimed = sentinel;
+            sentinel.nextTimed = sentinel;
+
+            while (timed != sentinel) {
+                final Timed next = timed.nextTimed;
+                timed.prevTimed = null;
+                timed.nextTimed = null;
+
+                if (timed.expiryMillis <= time) {
+                    listener.expired(timed);
+                }
+                else {
+                    link(findBucket(timed.expiryMillis), timed);
+                }
+                timed = next;
+            }
+        }
+    }
+
+    private Timed findBucket(final long expiryMillis)
+    {
+        final long duration = expiryMillis - time;
+        final int length = wheel.length - 1;
+        for (int i = 0; i < length; i++) {
+            if (duration < SPANS[i + 1]) {
+                final long ticks = expiryMillis >>> SHIFT[i];
+                return wheel[i][(int) (ticks & (wheel[i].length - 1))];
+            }
+        }
+        return wheel[length][0];
+    }
+
+    private static void link(final Timed sentinel, final Timed timed)
+    {
+        timed.prevTimed = sentinel.prevTimed;
+        timed.nextTimed = sentinel;
+        sentinel.prevTimed.nextTimed = timed;
+        sentinel.prevTimed = timed;
+    }
+
+    /**
+     * An entry that can be placed on the wheel.
+     */
+    static class Timed
+    {
+        private Timed prevTimed;
+        private Timed nextTimed;
+        long expiryMillis;
+    }
+
+    interface Listener
+    {
+        void expired(Timed timed);
+    }
+}
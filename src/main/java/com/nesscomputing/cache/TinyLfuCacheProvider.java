@@ -0,0 +1,565 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.joda.time.DateTime;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * In-JVM cache bounded by the number of bytes held, using the W-TinyLFU policy: new entries enter a
+ * small LRU admission window, and an entry leaving the window is only admitted to the main segmented
+ * LRU if a frequency sketch rates it as more popular than the entry it would displace.
+ *
+ * <p>Reads never lock. They are recorded in a lossy ring buffer that is replayed against the policy
+ * whenever it fills up or a write happens. Writes update the concurrent map directly and queue the
+ * matching policy change. Entries are expired proactively through a {@link TimerWheel}.
+ */
+@Singleton
+public class TinyLfuCacheProvider extends SynchronousCacheProvider
+{
+    private static final Log LOG = Log.findLog();
+
+    /** Rough per entry overhead: map entry, key entry, node and array headers. */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static final int READ_BUFFER_SIZE = 128;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final int PENDING = 0;
+    private static final int LINKED = 1;
+    private static final int DEAD = 2;
+
+    private final ConcurrentMap<Entry<String, String>, Node> data = Maps.newConcurrentMap();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Queue<Runnable> writeBuffer = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicReferenceArray<Node> readBuffer = new AtomicReferenceArray<Node>(READ_BUFFER_SIZE);
+    private final AtomicLong readBufferIndex = new AtomicLong();
+    private final AtomicInteger pendingReads = new AtomicInteger();
+
+    @GuardedBy("evictionLock")
+    private final AccessOrderDeque window = new AccessOrderDeque();
+    @GuardedBy("evictionLock")
+    private final AccessOrderDeque probation = new AccessOrderDeque();
+    @GuardedBy("evictionLock")
+    private final AccessOrderDeque protectedDeque = new AccessOrderDeque();
+    @GuardedBy("evictionLock")
+    private final FrequencySketch sketch;
+    @GuardedBy("evictionLock")
+    private final TimerWheel timerWheel = new TimerWheel(System.currentTimeMillis());
+    @GuardedBy("evictionLock")
+    private final Random random = new Random();
+
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    @GuardedBy("evictionLock")
+    private long weightedSize;
+    @GuardedBy("evictionLock")
+    private long windowWeightedSize;
+    @GuardedBy("evictionLock")
+    private long protectedWeightedSize;
+
+    private final TimerWheel.Listener expirer = new TimerWheel.Listener() {
+        @Override
+        public void expired(final TimerWheel.Timed timed) {
+            evict((Node) timed);
+        }
+    };
+
+    @Inject
+    TinyLfuCacheProvider(final CacheConfiguration config)
+    {
+        this(config.getJvmMaxBytes());
+    }
+
+    @VisibleForTesting
+    TinyLfuCacheProvider(final long maximumWeight)
+    {
+        Preconditions.checkArgument(maximumWeight > 0, "maximum weight must be positive");
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.max(1L, maximumWeight / 100L);
+        this.protectedMaximum = (maximumWeight - windowMaximum) * 8L / 10L;
+        // Assume about 1kB per entry to size the sketch; it is cheap (8 bytes per 16 counters).
+        this.sketch = new FrequencySketch(maximumWeight >>> 10);
+    }
+
+    @Override
+    public void set(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable final CacheStatistics cacheStatistics)
+    {
+        for (final CacheStore<byte []> store : stores) {
+            final Entry<String, String> key = Maps.immutableEntry(namespace, store.getKey());
+            final byte [] value = store.getData();
+            final Node node = (value == null) ? null : newNode(key, value, store.getExpiry());
+
+            final Node old = (node == null) ? data.remove(key) : data.put(key, node);
+            if (old != null) {
+                writeBuffer.add(new RemoveTask(old));
+            }
+            if (node != null) {
+                writeBuffer.add(new AddTask(node));
+            }
+        }
+        drainBuffers();
+    }
+
+    @Override
+    public Map<String, byte[]> get(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final Map<String, byte []> result = Maps.newHashMap();
+        final long now = System.currentTimeMillis();
+        boolean expired = false;
+
+        for (final String key : keys) {
+            final Entry<String, String> cacheKey = Maps.immutableEntry(namespace, key);
+            final Node node = data.get(cacheKey);
+            if (node == null) {
+                continue;
+            }
+            if (node.expiryMillis <= now) {
+                // The timer wheel only works at second granularity, remove the entry right away.
+                if (data.remove(cacheKey, node)) {
+                    writeBuffer.add(new RemoveTask(node));
+                    expired = true;
+                }
+                continue;
+            }
+            result.put(key, node.value);
+            recordRead(node);
+        }
+
+        if (expired) {
+            drainBuffers();
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @Override
+    public void clear(final String namespace, final Collection<String> keys, @Nullable final CacheStatistics cacheStatistics)
+    {
+        boolean removed = false;
+        for (final String key : keys) {
+            final Node old = data.remove(Maps.immutableEntry(namespace, key));
+            if (old != null) {
+                writeBuffer.add(new RemoveTask(old));
+                removed = true;
+            }
+        }
+        if (removed) {
+            drainBuffers();
+        }
+    }
+
+    @Override
+    public Map<String, Boolean> add(final String namespace, final Collection<CacheStore<byte []>> stores, @Nullable final CacheStatistics cacheStatistics)
+    {
+        final Map<String, Boolean> result = Maps.newHashMap();
+        final long now = System.currentTimeMillis();
+
+        for (final CacheStore<byte []> store : stores) {
+            final Entry<String, String> key = Maps.immutableEntry(namespace, store.getKey());
+            final byte [] value = store.getData();
+            if (value == null) {
+                result.put(store.getKey(), !data.containsKey(key));
+                continue;
+            }
+
+            final Node node = newNode(key, value, store.getExpiry());
+            Node old = data.putIfAbsent(key, node);
+            if (old != null && old.expiryMillis <= now && data.replace(key, old, node)) {
+                writeBuffer.add(new RemoveTask(old));
+                old = null;
+            }
+            if (old == null) {
+                writeBuffer.add(new AddTask(node));
+            }
+            result.put(store.getKey(), old == null);
+        }
+        drainBuffers();
+        return result;
+    }
+
+    @VisibleForTesting
+    long weightedSize()
+    {
+        evictionLock.lock();
+        try {
+            maintenance();
+            return weightedSize;
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private Node newNode(final Entry<String, String> key, final byte [] value, @Nullable final DateTime expiry)
+    {
+        final long weight = ENTRY_OVERHEAD + 2L * (key.getKey().length() + key.getValue().length()) + value.length;
+        return new Node(key, value, weight, expiry == null ? Long.MAX_VALUE : expiry.getMillis());
+    }
+
+    private void recordRead(final Node node)
+    {
+        final int index = (int) (readBufferIndex.getAndIncrement() & READ_BUFFER_MASK);
+        // Lossy: an undrained slot is simply overwritten, which only costs a little policy accuracy.
+        readBuffer.lazySet(index, node);
+        if (pendingReads.incrementAndGet() >= READ_BUFFER_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                maintenance();
+            }
+            finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void drainBuffers()
+    {
+        evictionLock.lock();
+        try {
+            maintenance();
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @GuardedBy("evictionLock")
+    private void maintenance()
+    {
+        pendingReads.set(0);
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            final Node node = readBuffer.getAndSet(i, null);
+            if (node != null) {
+                onAccess(node);
+            }
+        }
+
+        Runnable task;
+        while ((task = writeBuffer.poll()) != null) {
+            task.run();
+        }
+
+        timerWheel.advance(System.currentTimeMillis(), expirer);
+        evictEntries();
+    }
+
+    @GuardedBy("evictionLock")
+    private void onAccess(final Node node)
+    {
+        if (node.state != LINKED) {
+            return;
+        }
+        sketch.increment(node.keyHash);
+
+        switch (node.queue) {
+        case WINDOW:
+            window.moveToBack(node);
+            break;
+
+        case PROBATION:
+            probation.unlink(node);
+            protectedDeque.linkLast(node);
+            node.queue = PROTECTED;
+            protectedWeightedSize += node.weight;
+            demoteFromProtected();
+            break;
+
+        case PROTECTED:
+            protectedDeque.moveToBack(node);
+            break;
+
+        default:
+            throw new IllegalStateException("Unknown queue " + node.queue);
+        }
+    }
+
+    @GuardedBy("evictionLock")
+    private void demoteFromProtected()
+    {
+        while (protectedWeightedSize > protectedMaximum) {
+            final Node demoted = protectedDeque.peekFirst();
+            if (demoted == null) {
+                break;
+            }
+            protectedDeque.unlink(demoted);
+            probation.linkLast(demoted);
+            demoted.queue = PROBATION;
+            protectedWeightedSize -= demoted.weight;
+        }
+    }
+
+    @GuardedBy("evictionLock")
+    private void evictEntries()
+    {
+        // Entries overflowing the admission window become candidates at the back of the probation queue.
+        int candidates = 0;
+        while (windowWeightedSize > windowMaximum) {
+            final Node node = window.peekFirst();
+            if (node == null) {
+                break;
+            }
+            window.unlink(node);
+            probation.linkLast(node);
+            node.queue = PROBATION;
+            windowWeightedSize -= node.weight;
+            candidates++;
+        }
+
+        Node candidate = candidates > 0 ? probation.peekLast() : null;
+        while (weightedSize > maximumWeight) {
+            if (candidate != null && (candidates == 0 || candidate.state != LINKED)) {
+                candidate = null;
+            }
+
+            Node victim = probation.peekFirst();
+            if (victim == null || candidate == null || victim == candidate) {
+                if (victim == null) {
+                    victim = protectedDeque.peekFirst();
+                }
+                if (victim == null) {
+                    victim = window.peekFirst();
+                }
+                if (victim == null) {
+                    break;
+                }
+                if (victim == candidate) {
+                    candidate = null;
+                }
+                evict(victim);
+                continue;
+            }
+
+            final Node nextCandidate = candidate.prev;
+            candidates--;
+            if (admit(candidate, victim)) {
+                evict(victim);
+            }
+            else {
+                evict(candidate);
+            }
+            candidate = nextCandidate;
+        }
+    }
+
+    @GuardedBy("evictionLock")
+    private boolean admit(final Node candidate, final Node victim)
+    {
+        final int victimFrequency = sketch.frequency(victim.keyHash);
+        final int candidateFrequency = sketch.frequency(candidate.keyHash);
+        if (candidateFrequency > victimFrequency) {
+            return true;
+        }
+        if (candidateFrequency <= 5) {
+            return false;
+        }
+        // Admit a warm candidate once in a while so an attacker cannot pin a victim by flooding hash collisions.
+        return (random.nextInt() & 127) == 0;
+    }
+
+    @GuardedBy("evictionLock")
+    private void evict(final Node node)
+    {
+        data.remove(node.key, node);
+        unlink(node);
+    }
+
+    @GuardedBy("evictionLock")
+    private void unlink(final Node node)
+    {
+        if (node.state == LINKED) {
+            switch (node.queue) {
+            case WINDOW:
+                window.unlink(node);
+                windowWeightedSize -= node.weight;
+                break;
+            case PROBATION:
+                probation.unlink(node);
+                break;
+            case PROTECTED:
+                protectedDeque.unlink(node);
+                protectedWeightedSize -= node.weight;
+                break;
+            default:
+                throw new IllegalStateException("Unknown queue " + node.queue);
+            }
+            weightedSize -= node.weight;
+            timerWheel.deschedule(node);
+        }
+        node.state = DEAD;
+    }
+
+    private final class AddTask implements Runnable
+    {
+        private final Node node;
+
+        AddTask(final Node node)
+        {
+            this.node = node;
+        }
+
+        @Override
+        public void run()
+        {
+            if (node.state != PENDING) {
+                // Already replaced or removed before the policy saw it.
+                return;
+            }
+            if (node.weight > maximumWeight) {
+                LOG.debug("Not caching %s, weight %d exceeds maximum %d", node.key, node.weight, maximumWeight);
+                data.remove(node.key, node);
+                node.state = DEAD;
+                return;
+            }
+
+            node.state = LINKED;
+            node.queue = WINDOW;
+            window.linkLast(node);
+            windowWeightedSize += node.weight;
+            weightedSize += node.weight;
+            sketch.increment(node.keyHash);
+
+            if (node.expiryMillis != Long.MAX_VALUE) {
+                timerWheel.schedule(node);
+            }
+        }
+    }
+
+    private final class RemoveTask implements Runnable
+    {
+        private final Node node;
+
+        RemoveTask(final Node node)
+        {
+            this.node = node;
+        }
+
+        @Override
+        public void run()
+        {
+            unlink(node);
+        }
+    }
+
+    private static final class Node extends TimerWheel.Timed
+    {
+        private final Entry<String, String> key;
+        private final int keyHash;
+        private final byte [] value;
+        private final long weight;
+
+        private Node prev;
+        private Node next;
+        private int queue;
+        private int state = PENDING;
+
+        Node(final Entry<String, String> key, final byte [] value, final long weight, final long expiryMillis)
+        {
+            this.key = key;
+            this.keyHash = 31 * key.getKey().hashCode() + key.getValue().hashCode();
+            this.value = value;
+            this.weight = weight;
+            this.expiryMillis = expiryMillis;
+        }
+    }
+
+    /**
+     * Intrusive doubly linked list, least recently used entry first.
+     */
+    private static final class AccessOrderDeque
+    {
+        private Node first;
+        private Node last;
+
+        Node peekFirst()
+        {
+            return first;
+        }
+
+        Node peekLast()
+        {
+            return last;
+        }
+
+        void linkLast(final Node node)
+        {
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            }
+            else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        void unlink(final Node node)
+        {
+            if (node.prev == null) {
+                first = node.next;
+            }
+            else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            }
+            else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(final Node node)
+        {
+            if (node != last) {
+                unlink(node);
+                linkLast(node);
+            }
+        }
+    }
+}
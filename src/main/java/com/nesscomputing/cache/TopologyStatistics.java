@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.weakref.jmx.Managed;
+
+/**
+ * Bean to hold statistics about the memcached server list of a cache, see {@link MemcachedClientFactory}.
+ */
+@ThreadSafe
+public class TopologyStatistics {
+    private final String cacheName;
+    private final AtomicLong changes, incrementalChanges, clientRebuilds, nodesAdded, nodesRemoved, drainedNodes, drainTimeouts;
+    private final AtomicLong lastChangeMillis, maxChangeMillis, totalChangeMillis, lastChangeTime;
+    private volatile int generation;
+
+    public TopologyStatistics(String cacheName) {
+        this.cacheName = cacheName;
+        changes = new AtomicLong();
+        incrementalChanges = new AtomicLong();
+        clientRebuilds = new AtomicLong();
+        nodesAdded = new AtomicLong();
+        nodesRemoved = new AtomicLong();
+        drainedNodes = new AtomicLong();
+        drainTimeouts = new AtomicLong();
+        lastChangeMillis = new AtomicLong();
+        maxChangeMillis = new AtomicLong();
+        totalChangeMillis = new AtomicLong();
+        lastChangeTime = new AtomicLong();
+    }
+
+    @Managed
+    public String getCacheName() {
+        return cacheName;
+    }
+
+    /**
+     * @return the number of server lists applied so far.
+     */
+    @Managed
+    public int getGeneration() {
+        return generation;
+    }
+
+    @Managed
+    public long getChanges() {
+        return changes.get();
+    }
+
+    /**
+     * @return number of changes applied to the running client, keeping the connections to unchanged servers.
+     */
+    @Managed
+    public long getIncrementalChanges() {
+        return incrementalChanges.get();
+    }
+
+    /**
+     * @return number of times a new client was created, including the first one.
+     */
+    @Managed
+    public long getClientRebuilds() {
+        return clientRebuilds.get();
+    }
+
+    @Managed
+    public long getNodesAdded() {
+        return nodesAdded.get();
+    }
+
+    @Managed
+    public long getNodesRemoved() {
+        return nodesRemoved.get();
+    }
+
+    /**
+     * @return number of removed servers shut down after all operations sent to them had completed.
+     */
+    @Managed
+    public long getDrainedNodes() {
+        return drainedNodes.get();
+    }
+
+    /**
+     * @return number of removed servers shut down with operations still in flight because the drain timeout passed.
+     */
+    @Managed
+    public long getDrainTimeouts() {
+        return drainTimeouts.get();
+    }
+
+    /**
+     * @return how long applying the last change took, in milliseconds.
+     */
+    @Managed
+    public long getLastChangeMillis() {
+        return lastChangeMillis.get();
+    }
+
+    @Managed
+    public long getMaxChangeMillis() {
+        return maxChangeMillis.get();
+    }
+
+    @Managed
+    public double getAverageChangeMillis() {
+        final long count = changes.get();
+        return count == 0 ? 0.0 : (double) totalChangeMillis.get() / count;
+    }
+
+    /**
+     * @return when the last change was applied, in milliseconds since the epoch.
+     */
+    @Managed
+    public long getLastChangeTime() {
+        return lastChangeTime.get();
+    }
+
+    public void recordChange(int newGeneration, boolean incremental, long elapsedMillis) {
+        this.generation = newGeneration;
+        this.changes.incrementAndGet();
+        if (incremental) {
+            this.incrementalChanges.incrementAndGet();
+        }
+        else {
+            this.clientRebuilds.incrementAndGet();
+        }
+        this.lastChangeMillis.set(elapsedMillis);
+        this.totalChangeMillis.addAndGet(elapsedMillis);
+        this.lastChangeTime.set(System.currentTimeMillis());
+
+        long max = maxChangeMillis.get();
+        while (elapsedMillis > max && !maxChangeMillis.compareAndSet(max, elapsedMillis)) {
+            max = maxChangeMillis.get();
+        }
+    }
+
+    public void recordNodes(int added, int removed) {
+        this.nodesAdded.addAndGet(added);
+        this.nodesRemoved.addAndGet(removed);
+    }
+
+    public void recordDrained(boolean timedOut) {
+        if (timedOut) {
+            this.drainTimeouts.incrementAndGet();
+        }
+        else {
+            this.drainedNodes.incrementAndGet();
+        }
+    }
+}
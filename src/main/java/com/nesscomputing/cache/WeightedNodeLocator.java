@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
+import net.spy.memcached.ArrayModNodeLocator;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+import com.nesscomputing.cache.CacheConfiguration.NodeLocatorType;
+
+/**
+ * A {@link NodeLocator} for servers with weights, placing keys with one of the {@link ServerPlacement}s. A server
+ * of weight 2 gets twice the keys of a server of weight 1.
+ */
+final class WeightedNodeLocator implements NodeLocator
+{
+    private final NodeLocatorType type;
+    private volatile Servers servers;
+
+    WeightedNodeLocator(final NodeLocatorType type, final List<MemcachedNode> nodes, final Map<InetSocketAddress, Integer> weights)
+    {
+        this.type = type;
+        this.servers = new Servers(nodes, weights, ServerPlacement.create(type, addressesOf(nodes), weights));
+    }
+
+    private WeightedNodeLocator(final NodeLocatorType type, final Servers servers)
+    {
+        this.type = type;
+        this.servers = servers;
+    }
+
+    @Override
+    public MemcachedNode getPrimary(final String k)
+    {
+        final Servers current = servers;
+        return current.nodes.get(current.placement.getServer(k));
+    }
+
+    /**
+     * The servers after the primary in list order, to fail over to.
+     */
+    @Override
+    public Iterator<MemcachedNode> getSequence(final String k)
+    {
+        final Servers current = servers;
+        final int primary = current.placement.getServer(k);
+        return Iterators.concat(current.nodes.subList(primary + 1, current.nodes.size()).iterator(),
+                                current.nodes.subList(0, primary).iterator());
+    }
+
+    @Override
+    public Collection<MemcachedNode> getAll()
+    {
+        return servers.nodes;
+    }
+
+    /**
+     * Shares the placement with this locator, which is immutable, so copies are cheap.
+     */
+    @Override
+    public NodeLocator getReadonlyCopy()
+    {
+        final Servers current = servers;
+        // spymemcached does not make its read-only node wrapper public, borrow it from a locator that does.
+        final List<MemcachedNode> readonly = Lists.newArrayList(new ArrayModNodeLocator(current.nodes, DefaultHashAlgorithm.NATIVE_HASH).getReadonlyCopy().getAll());
+        return new WeightedNodeLocator(type, new Servers(readonly, current.weights, current.placement));
+    }
+
+    /**
+     * Changes the servers, keeping the weights.
+     */
+    @Override
+    public void updateLocator(final List<MemcachedNode> nodes)
+    {
+        updateLocator(nodes, servers.weights);
+    }
+
+    /**
+     * Changes the servers and their weights. Servers without a weight have weight 1.
+     */
+    public void updateLocator(final List<MemcachedNode> nodes, final Map<InetSocketAddress, Integer> weights)
+    {
+        servers = new Servers(nodes, weights, ServerPlacement.create(type, addressesOf(nodes), weights));
+    }
+
+    private static List<SocketAddress> addressesOf(final List<MemcachedNode> nodes)
+    {
+        final List<SocketAddress> result = Lists.newArrayListWithCapacity(nodes.size());
+        for (final MemcachedNode node : nodes) {
+            result.add(node.getSocketAddress());
+        }
+        return result;
+    }
+
+    private static final class Servers
+    {
+        private final List<MemcachedNode> nodes;
+        private final Map<InetSocketAddress, Integer> weights;
+        private final ServerPlacement placement;
+
+        Servers(final List<MemcachedNode> nodes, final Map<InetSocketAddress, Integer> weights, final ServerPlacement placement)
+        {
+            this.nodes = ImmutableList.copyOf(nodes);
+            this.weights = ImmutableMap.copyOf(weights);
+            this.placement = placement;
+        }
+    }
+}
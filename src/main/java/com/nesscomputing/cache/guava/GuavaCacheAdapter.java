@@ -17,35 +17,56 @@ package com.nesscomputing.cache.guava;
 
 import static com.google.common.base.Predicates.in;
 import static com.google.common.base.Predicates.not;
+import static com.google.common.base.Predicates.notNull;
+import static com.google.common.base.Predicates.or;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 
 import com.google.common.base.Function;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
 import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.inject.TypeLiteral;
 
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
 
+import com.nesscomputing.cache.CacheEnvelope;
+import com.nesscomputing.cache.CacheStore;
+import com.nesscomputing.cache.CacheStores;
 import com.nesscomputing.cache.NamespacedCache;
 import com.nesscomputing.logging.Log;
 
@@ -70,12 +91,30 @@ class GuavaCacheAdapter<K, V> implements LoadingCache<K, V> {
     private final Function<? super K, String> keySerializer;
     private final Function<? super V, byte[]> valueSerializer;
     private final Function<byte[], ? extends V> valueDeserializer;
+    private final Function<ByteBuffer, ? extends V> bufferValueDeserializer;
     private final CacheLoader<? super K, ? extends V> loader;
     private final Duration expiry;
     private final Duration expiryJitter;
+    private final double earlyRefreshBeta;
+    private final Duration staleExpiry;
+    private final Duration refreshAfterWrite;
+    private final Duration negativeExpiry;
+    private final Executor refreshExecutor;
 
     private final AtomicBoolean bulkLoadFailed = new AtomicBoolean();
 
+    /** Compute time of the most recent load, used for values written without the loader. */
+    private final AtomicLong lastComputeMillis = new AtomicLong();
+
+    /**
+     * Keys currently being looked up and loaded. Concurrent requests for the same key wait for the
+     * thread that got there first instead of hitting the cache and the loader again.
+     */
+    private final ConcurrentMap<K, Flight<V>> inFlight = Maps.newConcurrentMap();
+
+    /** Keys with a background refresh queued or running. */
+    private final ConcurrentMap<K, Boolean> refreshing = Maps.newConcurrentMap();
+
 
     @SuppressWarnings("unchecked")
     GuavaCacheAdapter(
@@ -83,19 +122,33 @@ class GuavaCacheAdapter<K, V> implements LoadingCache<K, V> {
             TypeLiteral<K> kClass,
             Function<? super K, String> keySerializer,
             Function<? super V, byte[]> valueSerializer,
-            Function<byte[], ? extends V> valueDeserializer,
+            @Nullable Function<byte[], ? extends V> valueDeserializer,
+            @Nullable Function<ByteBuffer, ? extends V> bufferValueDeserializer,
             CacheLoader<? super K, ? extends V> loader,
             Duration expiry,
-            Duration expiryJitter)
+            Duration expiryJitter,
+            double earlyRefreshBeta,
+            Duration staleExpiry,
+            Duration refreshAfterWrite,
+            @Nullable Duration negativeExpiry,
+            Executor refreshExecutor)
     {
+        Preconditions.checkArgument(refreshExecutor != null, "null refresh executor");
+        Preconditions.checkArgument(valueDeserializer != null ^ bufferValueDeserializer != null, "need exactly one value deserializer");
         this.cache = cache;
         this.kClass = kClass;
         this.keySerializer = ExceptionWrappingFunction.of(keySerializer);
         this.valueSerializer = ExceptionWrappingFunction.of(valueSerializer);
-        this.valueDeserializer = ExceptionWrappingFunction.of(valueDeserializer);
+        this.valueDeserializer = valueDeserializer == null ? null : ExceptionWrappingFunction.of(valueDeserializer);
+        this.bufferValueDeserializer = bufferValueDeserializer == null ? null : ExceptionWrappingFunction.of(bufferValueDeserializer);
         this.loader = Objects.firstNonNull(loader, NO_LOADER);
         this.expiry = expiry;
         this.expiryJitter = expiryJitter;
+        this.earlyRefreshBeta = earlyRefreshBeta;
+        this.staleExpiry = staleExpiry;
+        this.refreshAfterWrite = refreshAfterWrite;
+        this.negativeExpiry = negativeExpiry;
+        this.refreshExecutor = refreshExecutor;
     }
 
     @Override
@@ -117,35 +170,103 @@ class GuavaCacheAdapter<K, V> implements LoadingCache<K, V> {
     @Override
     public V get(K key, Callable<? extends V> valueLoader) throws ExecutionException {
         Preconditions.checkArgument(key != null, NULL_KEY);
-        V value = getIfPresent(key);
-        if (value != null) {
-            return value;
+
+        final Flight<V> flight = new Flight<V>();
+        final Flight<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            return awaitFlight(key, existing);
         }
 
         try {
-            value = valueLoader.call();
-        } catch (Exception e) {
-            throw new ExecutionException(e);
+            final Set<K> missing = Sets.newHashSet();
+            V value = getAllPresent(Collections.singleton(key), missing).get(key);
+            if (value == null) {
+                if (!missing.isEmpty()) {
+                    throw new InvalidCacheLoadException(String.format("key %s is cached as missing", key));
+                }
+                final long start = System.nanoTime();
+                try {
+                    value = valueLoader.call();
+                } catch (Exception e) {
+                    throw new ExecutionException(e);
+                }
+                if (value == null && negativeExpiry != null) {
+                    putMissing(Collections.singleton(key));
+                    throw new InvalidCacheLoadException(String.format("loader returned null for key %s", key));
+                }
+                put(key, value, computeMillisSince(start));
+            }
+            flight.future.set(value);
+            return value;
+        } catch (ExecutionException | RuntimeException | Error e) {
+            flight.future.setException(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
         }
+    }
 
-        put(key, value);
-        return value;
+    /**
+     * Wait for a lookup started by another thread and rethrow its failure the way the other thread saw it.
+     *
+     * @throws IllegalStateException if the lookup was started by this thread, e.g. a loader asking for its own key.
+     */
+    private V awaitFlight(final K key, final Flight<V> flight) throws ExecutionException {
+        if (flight.owner == Thread.currentThread()) {
+            throw new IllegalStateException("Recursive load of: " + key);
+        }
+        try {
+            return Uninterruptibles.getUninterruptibly(flight.future);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ExecutionException) {
+                throw new ExecutionException(cause.getCause());
+            }
+            Throwables.propagateIfPossible(cause);
+            throw e;
+        }
     }
 
     @Override
     public ImmutableMap<K, V> getAllPresent(Iterable<?> keys) {
+        return getAllPresent(keys, null);
+    }
+
+    /**
+     * @param missing if not null, receives the keys that are cached as missing.
+     */
+    private ImmutableMap<K, V> getAllPresent(Iterable<?> keys, @Nullable Set<K> missing) {
         @SuppressWarnings("unchecked")
         Iterable<? extends K> extendedKeys = ImmutableSet.copyOf((Iterable<? extends K>) keys);
         Map<String, ? extends K> keyStrings = Maps.uniqueIndex(extendedKeys, keySerializer);
         Map<String, byte[]> response = cache.get(keyStrings.keySet());
 
         Builder<K, V> result = ImmutableMap.builder();
+        final long now = System.currentTimeMillis();
 
         for (Entry<String, byte[]> e : response.entrySet()) {
             K key = keyStrings.get(e.getKey());
+            if (CacheEnvelope.isTombstone(e.getValue())) {
+                if (missing != null) {
+                    missing.add(key);
+                }
+                continue;
+            }
             try
             {
-                result.put(key, valueDeserializer.apply(e.getValue()));
+                final CacheEnvelope envelope = useEnvelope() ? CacheEnvelope.unwrap(e.getValue()) : null;
+                final V value = deserialize(e.getValue(), envelope);
+                result.put(key, value);
+                if (envelope == null) {
+                    continue;
+                }
+
+                // Past the logical expiry (or the refresh after write time) the value is stale, but still
+                // served until it leaves the cache.
+                final boolean stale = now >= envelope.getExpiryMillis();
+                if (stale || (earlyRefreshBeta > 0 && envelope.shouldRefreshEarly(now, earlyRefreshBeta))) {
+                    scheduleRefresh(key, value);
+                }
             } catch (Exception exc)
             {
                 invalidate(key);
@@ -156,18 +277,71 @@ class GuavaCacheAdapter<K, V> implements LoadingCache<K, V> {
         return result.build();
     }
 
-    @SuppressWarnings("unchecked") // Safe because the resulting Map is immutable and we only widen the key / narrow the value
+    /**
+     * Keys already being fetched by other threads are not looked up again; their results are shared.
+     * If such a shared fetch fails, this call fails the same way. Keys a shared fetch found cached as
+     * missing are left out, like the ones this call finds itself.
+     */
     @Override
     public ImmutableMap<K, V> getAll(Iterable<? extends K> keys) throws ExecutionException {
-        ImmutableMap<K, V> partialResult = getAllPresent(keys);
+        final Map<K, Flight<V>> owned = Maps.newLinkedHashMap();
+        final Map<K, Flight<V>> joined = Maps.newLinkedHashMap();
+        for (K key : ImmutableSet.copyOf(keys)) {
+            final Flight<V> flight = new Flight<V>();
+            final Flight<V> existing = inFlight.putIfAbsent(key, flight);
+            if (existing == null) {
+                owned.put(key, flight);
+            } else {
+                joined.put(key, existing);
+            }
+        }
+
+        final Map<K, V> result = Maps.newLinkedHashMap();
+        RuntimeException failure = null;
+        try {
+            result.putAll(owned.isEmpty() ? ImmutableMap.<K, V>of() : loadAll(owned.keySet()));
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            // Complete our own keys before waiting for anybody else's, so overlapping getAll calls cannot deadlock.
+            for (Entry<K, Flight<V>> e : owned.entrySet()) {
+                final V value = result.get(e.getKey());
+                if (value != null) {
+                    e.getValue().future.set(value);
+                } else {
+                    // Without a failure, the only keys left out are the ones cached as missing.
+                    e.getValue().future.setException(Objects.firstNonNull(failure,
+                            new InvalidCacheLoadException(String.format("key %s is cached as missing", e.getKey()))));
+                }
+                inFlight.remove(e.getKey(), e.getValue());
+            }
+        }
+
+        for (Entry<K, Flight<V>> e : joined.entrySet()) {
+            try {
+                result.put(e.getKey(), awaitFlight(e.getKey(), e.getValue()));
+            } catch (InvalidCacheLoadException icle) {
+                LOG.trace("Concurrent load found %s missing", e.getKey());
+            }
+        }
 
-        Set<? extends K> remaining = ImmutableSet.copyOf(Iterables.filter(keys, not(in(partialResult.keySet()))));
+        return ImmutableMap.copyOf(result);
+    }
+
+    @SuppressWarnings("unchecked") // Safe because the resulting Map is immutable and we only widen the key / narrow the value
+    private ImmutableMap<K, V> loadAll(Set<? extends K> keys) {
+        final Set<K> missing = Sets.newHashSet();
+        ImmutableMap<K, V> partialResult = getAllPresent(keys, missing);
+
+        Set<? extends K> remaining = ImmutableSet.copyOf(Iterables.filter(keys, not(or(in(partialResult.keySet()), in(missing)))));
 
         if (remaining.isEmpty())
         {
             return partialResult;
         }
 
+        final long start = System.nanoTime();
         Map<K, V> loaded = null;
         try {
             if (!bulkLoadFailed.get()) {
@@ -182,29 +356,34 @@ class GuavaCacheAdapter<K, V> implements LoadingCache<K, V> {
             return partialResult;
         }
 
+        final Set<K> failed = Sets.newHashSet();
         if (loaded == null) {
             loaded = Maps.newHashMap();
             for (K key : remaining) {
                 try {
                     loaded.put(key, loader.load(key));
                 } catch (Exception e) {
+                    failed.add(key);
                     LOG.error(e, "Exception from cache loader during getAll");
                 }
             }
         }
 
-
-        for (Entry<K, V> e : loaded.entrySet())
-        {
-            put(e.getKey(), e.getValue());
+        if (negativeExpiry != null) {
+            // Keys the loader answered for but had no value for are misses, remember them
+            loaded = Maps.newHashMap(Maps.filterValues(loaded, notNull()));
+            putMissing(Sets.difference(remaining, Sets.union(loaded.keySet(), failed)));
         }
 
-        if (!loaded.keySet().containsAll(remaining))
+        putAll(loaded, computeMillisSince(start));
+
+        final Set<? extends K> notLoaded = negativeExpiry == null ? Sets.difference(remaining, loaded.keySet()) : failed;
+        if (!notLoaded.isEmpty())
         {
             throw new IncompleteCacheLoadException(String.format(
                     "loader %s did not return keys %s for request of %s",
                     loader,
-                    Sets.difference(remaining, loaded.keySet()),
+                    notLoaded,
                     remaining));
         }
 
@@ -214,27 +393,184 @@ class GuavaCacheAdapter<K, V> implements LoadingCache<K, V> {
                 .build();
     }
 
+    /**
+     * Asynchronously reloads the key on the refresh executor, using {@link CacheLoader#reload} if a value is cached.
+     * Does nothing if a refresh for the key is already running. Readers keep getting the current value meanwhile.
+     */
     @Override
     public void refresh(K key) {
         Preconditions.checkArgument(key != null, NULL_KEY);
-        try {
-            put(key, loader.load(key));
-        } catch (Exception e) {
-            LOG.error(e, "Exception from cache loader during refresh");
-        }
+        scheduleRefresh(key, null);
     }
 
+    /**
+     * A value written directly has no compute time of its own for early refresh, so it gets the one of the most
+     * recent load. Until the loader has run once, such values are only refreshed once they expire.
+     */
     @Override
     public void put(K key, V value) {
+        put(key, value, lastComputeMillis.get());
+    }
+
+    private void put(K key, V value, long computeMillis) {
+        cache.set(Collections.singleton(toStore(key, value, computeMillis)));
+    }
+
+    /**
+     * Writes all entries with a single bulk cache operation.
+     */
+    private void putAll(Map<? extends K, ? extends V> m, long computeMillis) {
+        if (m.isEmpty()) {
+            return;
+        }
+        final List<CacheStore<byte[]>> stores = Lists.newArrayListWithCapacity(m.size());
+        for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            stores.add(toStore(entry.getKey(), entry.getValue(), computeMillis));
+        }
+        cache.set(stores);
+    }
+
+    /**
+     * Cache misses for keys the loader had no value for, see {@link GuavaCacheModuleBuilder#withNegativeCaching(Duration)}.
+     */
+    private void putMissing(Set<? extends K> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        final DateTime expiryTime = DateTime.now().plus(negativeExpiry);
+        final byte[] tombstone = CacheEnvelope.tombstone(expiryTime.getMillis());
+        final List<CacheStore<byte[]>> stores = Lists.newArrayListWithCapacity(keys.size());
+        for (K key : keys) {
+            stores.add(CacheStores.fromSharedBytes(keySerializer.apply(key), tombstone, expiryTime));
+        }
+        cache.set(stores);
+    }
+
+    /**
+     * @return the milliseconds since start, which is also remembered as the compute time of values written directly.
+     */
+    private long computeMillisSince(long start) {
+        final long computeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        lastComputeMillis.set(computeMillis);
+        return computeMillis;
+    }
+
+    private CacheStore<byte[]> toStore(K key, V value, long computeMillis) {
         Preconditions.checkArgument(key != null, NULL_KEY);
-        cache.set(keySerializer.apply(key), valueSerializer.apply(value), getExpiry());
+        final DateTime expiryTime = getExpiry();
+        byte[] data = valueSerializer.apply(value);
+        DateTime storeExpiry = expiryTime;
+        if (useEnvelope()) {
+            long logicalExpiry = expiryTime.getMillis();
+            if (refreshAfterWrite != null) {
+                logicalExpiry = Math.min(logicalExpiry, System.currentTimeMillis() + refreshAfterWrite.getMillis());
+            }
+            data = CacheEnvelope.wrap(data, computeMillis, logicalExpiry);
+            if (staleExpiry != null) {
+                final DateTime hardExpiry = DateTime.now().plus(staleExpiry);
+                if (hardExpiry.isAfter(storeExpiry)) {
+                    storeExpiry = hardExpiry;
+                }
+            }
+        }
+        return CacheStores.fromSharedBytes(keySerializer.apply(key), data, storeExpiry);
     }
 
+    private boolean useEnvelope() {
+        return earlyRefreshBeta > 0 || staleExpiry != null || refreshAfterWrite != null;
+    }
+
+    /**
+     * Reload a value in the background while readers keep getting the cached one. If the reload fails the cached
+     * value stays in place, so it keeps being served until its hard expiry. Needs a CacheLoader; values stored
+     * through {@link #get(Object, Callable)} alone are never refreshed.
+     *
+     * @param oldValue the cached value, or null to look it up on the refresh executor.
+     */
+    private void scheduleRefresh(final K key, @Nullable final V oldValue) {
+        if (loader == NO_LOADER || refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long start = System.nanoTime();
+                    final ListenableFuture<V> future;
+                    try {
+                        final V currentValue = oldValue != null ? oldValue : lookup(key);
+                        if (currentValue == null) {
+                            future = Futures.<V>immediateFuture(loader.load(key));
+                        } else {
+                            future = reload(key, currentValue);
+                        }
+                    } catch (Exception e) {
+                        refreshing.remove(key);
+                        LOG.warn(e, "Exception from cache loader during refresh of %s", key);
+                        return;
+                    }
+
+                    Futures.addCallback(future, new FutureCallback<V>() {
+                        @Override
+                        public void onSuccess(V value) {
+                            try {
+                                if (value != null) {
+                                    put(key, value, computeMillisSince(start));
+                                }
+                            } finally {
+                                refreshing.remove(key);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            refreshing.remove(key);
+                            LOG.warn(t, "Exception from cache loader during refresh of %s", key);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key);
+            LOG.debug(e, "Refresh of %s rejected", key);
+        }
+    }
+
+    /**
+     * Read the cached value without any of the refresh logic in {@link #getAllPresent(Iterable)}.
+     */
+    @CheckForNull
+    private V lookup(K key) {
+        final byte[] data = cache.get(keySerializer.apply(key));
+        if (data == null || CacheEnvelope.isTombstone(data)) {
+            return null;
+        }
+        return deserialize(data, useEnvelope() ? CacheEnvelope.unwrap(data) : null);
+    }
+
+    /**
+     * Buffer deserializers get a read-only view of the payload; only array deserializers of enveloped values
+     * need a copy.
+     */
+    private V deserialize(byte[] data, @Nullable CacheEnvelope envelope) {
+        if (bufferValueDeserializer != null) {
+            return bufferValueDeserializer.apply(envelope == null ? ByteBuffer.wrap(data).asReadOnlyBuffer() : envelope.getPayloadBuffer());
+        }
+        return valueDeserializer.apply(envelope == null ? data : envelope.getPayload());
+    }
+
+    @SuppressWarnings("unchecked") // The loader accepts any K and only produces V
+    private ListenableFuture<V> reload(K key, V oldValue) throws Exception {
+        return ((CacheLoader<K, V>) loader).reload(key, oldValue);
+    }
+
+    /**
+     * Uses the compute time of the most recent load, like {@link #put(Object, Object)}.
+     */
     @Override
     public void putAll(Map <? extends K, ? extends V> m) {
-    	for(Entry<? extends K, ? extends V> entry : m.entrySet()) {
-            put(entry.getKey(), entry.getValue());
-    	}
+        putAll(m, lastComputeMillis.get());
     }
 
     @SuppressWarnings("unchecked")
@@ -247,11 +583,19 @@ class GuavaCacheAdapter<K, V> implements LoadingCache<K, V> {
         }
     }
 
+    @SuppressWarnings("unchecked")
     @Override
     public void invalidateAll(Iterable<?> keys) {
+        final List<String> keyStrings = Lists.newArrayList();
         for (Object key : keys) {
             Preconditions.checkArgument(key != null, NULL_KEY);
-            invalidate(key);
+            // Same caveat as invalidate(Object)
+            if (kClass.getRawType().isAssignableFrom(key.getClass())) {
+                keyStrings.add(keySerializer.apply((K) key));
+            }
+        }
+        if (!keyStrings.isEmpty()) {
+            cache.clear(keyStrings);
         }
     }
 
@@ -307,6 +651,15 @@ class GuavaCacheAdapter<K, V> implements LoadingCache<K, V> {
         return result;
     }
 
+    /**
+     * A lookup in progress and the thread doing it.
+     */
+    private static final class Flight<V>
+    {
+        private final SettableFuture<V> future = SettableFuture.create();
+        private final Thread owner = Thread.currentThread();
+    }
+
     private static class ExceptionWrappingFunction<A, B> implements Function<A, B>
     {
         private final Function<A, B> func;
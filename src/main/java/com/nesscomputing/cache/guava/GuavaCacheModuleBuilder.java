@@ -16,6 +16,8 @@
 package com.nesscomputing.cache.guava;
 
 import java.lang.annotation.Annotation;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
 import org.joda.time.Duration;
 
@@ -98,6 +100,12 @@ public interface GuavaCacheModuleBuilder<K, V> {
      */
     GuavaCacheModuleBuilder<K, V> withValueSerializer(Function<? super V, byte[]> valueSerializerFunction, Function<byte[], ? extends V> valueDeserializerFunction);
 
+    /**
+     * Specify the value serialization function, with a deserializer that reads values from a read-only view
+     * of the cached bytes instead of an array. Saves copying values on their way into buffer based parsers.
+     */
+    GuavaCacheModuleBuilder<K, V> withBufferValueSerializer(Function<? super V, byte[]> valueSerializerFunction, Function<ByteBuffer, ? extends V> valueDeserializerFunction);
+
     /**
      * Specify the value serialization function.
      */
@@ -134,6 +142,52 @@ public interface GuavaCacheModuleBuilder<K, V> {
      */
     GuavaCacheModuleBuilder<K, V> withExpiration(Duration expiry, Duration expiryJitter);
 
+    /**
+     * Store values with a small header and refresh them in the background shortly before they expire
+     * ("probabilistic early expiration"). Readers keep getting the cached value while the cache loader runs.
+     * Refreshes run on the refresh executor.
+     *
+     * @param beta how eagerly to refresh; 1.0 is a good default, larger values refresh earlier.
+     */
+    GuavaCacheModuleBuilder<K, V> withEarlyRefresh(double beta);
+
+    /**
+     * Like {@link #withEarlyRefresh(double)}, running refreshes on the given executor.
+     */
+    GuavaCacheModuleBuilder<K, V> withEarlyRefresh(double beta, Executor refreshExecutor);
+
+    /**
+     * Keep values for up to <code>hardExpiry</code> after they were written. Once past the regular expiration a
+     * value is stale: it is still returned right away, and the cache loader's <code>reload</code> runs in the
+     * background. If the reload fails, the stale value keeps being served until the hard expiry.
+     */
+    GuavaCacheModuleBuilder<K, V> withStaleWhileRevalidate(Duration hardExpiry);
+
+    /**
+     * Like {@link #withStaleWhileRevalidate(Duration)}, running refreshes on the given executor.
+     */
+    GuavaCacheModuleBuilder<K, V> withStaleWhileRevalidate(Duration hardExpiry, Executor refreshExecutor);
+
+    /**
+     * Refresh values in the background once they are older than <code>refreshAfterWrite</code> and get read.
+     * Readers keep getting the current value while the cache loader's <code>reload</code> runs.
+     */
+    GuavaCacheModuleBuilder<K, V> withRefreshAfterWrite(Duration refreshAfterWrite);
+
+    /**
+     * Remember keys the cache loader has no value for, for <code>negativeExpiry</code>. A key is missing if
+     * <code>load</code> returns null or <code>loadAll</code> leaves it out. While the miss is cached,
+     * <code>get</code> throws {@link com.google.common.cache.CacheLoader.InvalidCacheLoadException} and
+     * <code>getAll</code> leaves the key out of its result, both without calling the loader.
+     */
+    GuavaCacheModuleBuilder<K, V> withNegativeCaching(Duration negativeExpiry);
+
+    /**
+     * Run <code>refresh</code> and all other background reloads on the given executor. By default a
+     * small bounded daemon thread pool owned by the cache is used.
+     */
+    GuavaCacheModuleBuilder<K, V> withRefreshExecutor(Executor refreshExecutor);
+
     /**
      * Configure and return this module with no cache loader configured
      */
@@ -17,11 +17,17 @@ package com.nesscomputing.cache.guava;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.ParameterizedType;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
@@ -52,8 +58,14 @@ class GuavaCacheModuleBuilderImpl<K, V> implements GuavaCacheModuleBuilder<K, V>
     private Function<? super K, String> keySerializerFunction;
     private Function<? super V, byte[]> valueSerializerFunction;
     private Function<byte[], ? extends V> valueDeserializerFunction;
+    private Function<ByteBuffer, ? extends V> bufferValueDeserializerFunction;
     private Duration expiry;
     private Duration expiryJitter;
+    private double earlyRefreshBeta;
+    private Duration staleExpiry;
+    private Duration refreshAfterWrite;
+    private Duration negativeExpiry;
+    private Executor refreshExecutor;
 
     private Key<? extends CacheLoader<? super K, ? extends V>> loaderKey;
 
@@ -219,6 +231,7 @@ class GuavaCacheModuleBuilderImpl<K, V> implements GuavaCacheModuleBuilder<K, V>
         this.valueDeserializerKey = newValueDeserializerKey;
         this.valueSerializerFunction = null;
         this.valueDeserializerFunction = null;
+        this.bufferValueDeserializerFunction = null;
         return this;
     }
 
@@ -228,6 +241,18 @@ class GuavaCacheModuleBuilderImpl<K, V> implements GuavaCacheModuleBuilder<K, V>
             Function<byte[], ? extends V> withValueDeserializerFunction) {
         this.valueSerializerFunction = withValueSerializerFunction;
         this.valueDeserializerFunction = withValueDeserializerFunction;
+        this.bufferValueDeserializerFunction = null;
+        return this;
+    }
+
+    @Override
+    public GuavaCacheModuleBuilder<K, V> withBufferValueSerializer(
+            Function<? super V, byte[]> withValueSerializerFunction,
+            Function<ByteBuffer, ? extends V> withValueDeserializerFunction) {
+        Preconditions.checkArgument(withValueDeserializerFunction != null, "null value deserializer");
+        this.valueSerializerFunction = withValueSerializerFunction;
+        this.valueDeserializerFunction = null;
+        this.bufferValueDeserializerFunction = withValueDeserializerFunction;
         return this;
     }
 
@@ -243,6 +268,57 @@ class GuavaCacheModuleBuilderImpl<K, V> implements GuavaCacheModuleBuilder<K, V>
         return this;
     }
 
+    @Override
+    public GuavaCacheModuleBuilderImpl<K, V> withEarlyRefresh(double beta) {
+        return withEarlyRefresh(beta, null);
+    }
+
+    @Override
+    public GuavaCacheModuleBuilderImpl<K, V> withEarlyRefresh(double beta, Executor withRefreshExecutor) {
+        Preconditions.checkArgument(beta > 0, "beta must be positive");
+        this.earlyRefreshBeta = beta;
+        if (withRefreshExecutor != null) {
+            this.refreshExecutor = withRefreshExecutor;
+        }
+        return this;
+    }
+
+    @Override
+    public GuavaCacheModuleBuilderImpl<K, V> withStaleWhileRevalidate(Duration hardExpiry) {
+        return withStaleWhileRevalidate(hardExpiry, null);
+    }
+
+    @Override
+    public GuavaCacheModuleBuilderImpl<K, V> withStaleWhileRevalidate(Duration hardExpiry, Executor withRefreshExecutor) {
+        Preconditions.checkArgument(hardExpiry != null, "hard expiry must not be null");
+        this.staleExpiry = hardExpiry;
+        if (withRefreshExecutor != null) {
+            this.refreshExecutor = withRefreshExecutor;
+        }
+        return this;
+    }
+
+    @Override
+    public GuavaCacheModuleBuilderImpl<K, V> withRefreshAfterWrite(Duration withRefreshAfterWrite) {
+        Preconditions.checkArgument(withRefreshAfterWrite != null, "refresh after write must not be null");
+        this.refreshAfterWrite = withRefreshAfterWrite;
+        return this;
+    }
+
+    @Override
+    public GuavaCacheModuleBuilderImpl<K, V> withNegativeCaching(Duration withNegativeExpiry) {
+        Preconditions.checkArgument(withNegativeExpiry != null, "negative expiry must not be null");
+        this.negativeExpiry = withNegativeExpiry;
+        return this;
+    }
+
+    @Override
+    public GuavaCacheModuleBuilderImpl<K, V> withRefreshExecutor(Executor withRefreshExecutor) {
+        Preconditions.checkArgument(withRefreshExecutor != null, "refresh executor must not be null");
+        this.refreshExecutor = withRefreshExecutor;
+        return this;
+    }
+
     @Override
     public Module build() {
         return build((Key<CacheLoader<? super K, ? extends V>>) null);
@@ -278,7 +354,7 @@ class GuavaCacheModuleBuilderImpl<K, V> implements GuavaCacheModuleBuilder<K, V>
         Preconditions.checkState(keySerializerKey != null, "somehow you got a null key serializer key?");
 
         Preconditions.checkState(valueSerializerKey != null, "somehow you got a null value serializer key?");
-        Preconditions.checkState(valueDeserializerKey != null, "somehow you got a null value deserializer key?");
+        Preconditions.checkState(valueDeserializerKey != null || bufferValueDeserializerFunction != null, "somehow you got a null value deserializer key?");
 
         return new AbstractModule() {
             @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -336,9 +412,20 @@ class GuavaCacheModuleBuilderImpl<K, V> implements GuavaCacheModuleBuilder<K, V>
 
             final Function<? super K, String> keySerializerImpl = injector.getInstance(keySerializerKey);
             final Function<? super V, byte[]> valueSerializerImpl = injector.getInstance(valueSerializerKey);
-            final Function<byte[], ? extends V> valueDeserializerImpl = injector.getInstance(valueDeserializerKey);
+            final Function<byte[], ? extends V> valueDeserializerImpl = bufferValueDeserializerFunction == null ? injector.getInstance(valueDeserializerKey) : null;
+
+            Executor executor = refreshExecutor;
+            if (executor == null) {
+                // Refreshes are best effort; when the queue is full they are rejected rather than queued without bound.
+                // A pool only grows past its core size once the queue is full, so all threads are core threads that time out.
+                final ThreadPoolExecutor threadPool = new ThreadPoolExecutor(4, 4, 30, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(1024),
+                        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ness-cache-refresh-" + namespace + "-%d").build());
+                threadPool.allowCoreThreadTimeOut(true);
+                executor = threadPool;
+            }
 
-            return new GuavaCacheAdapter<K, V>(cache, kClass, keySerializerImpl, valueSerializerImpl, valueDeserializerImpl, cacheLoader, expiry, expiryJitter);
+            return new GuavaCacheAdapter<K, V>(cache, kClass, keySerializerImpl, valueSerializerImpl, valueDeserializerImpl, bufferValueDeserializerFunction, cacheLoader, expiry, expiryJitter, earlyRefreshBeta, staleExpiry, refreshAfterWrite, negativeExpiry, executor);
         }
     }
 }
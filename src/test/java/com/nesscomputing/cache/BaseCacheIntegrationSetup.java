@@ -17,6 +17,7 @@ package com.nesscomputing.cache;
 
 import java.net.InetSocketAddress;
 
+import org.joda.time.DateTime;
 import org.junit.After;
 import org.junit.Before;
 
@@ -52,6 +53,22 @@ public abstract class BaseCacheIntegrationSetup extends BaseCachingTests
         daemon.start();
     }
 
+    /**
+     * The memcached client connects in the background and cancels every operation issued before that,
+     * so tests must not start before it is connected.
+     */
+    protected final void waitForConnection()
+        throws InterruptedException
+    {
+        final NamespacedCache probe = cache.withNamespace("connection-probe");
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (probe.get("probe") == null && System.currentTimeMillis() < deadline) {
+            probe.set("probe", new byte[] { 1 }, new DateTime().plusMinutes(1));
+            Thread.sleep(10L);
+        }
+        probe.clear("probe");
+    }
+
     @After
     public final void tearDownJMemcache()
     {
@@ -19,8 +19,12 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.joda.time.DateTime;
@@ -28,7 +32,13 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
@@ -92,6 +102,71 @@ public abstract class BaseCachingTests {
         assertTrue(cache.get("test2", Collections.singleton("x z ")).isEmpty());
     }
 
+    @Test
+    public void testBufferViews() throws Exception {
+        final NamespacedCache namedCache = cache.withNamespace("buffers");
+        final Function<ByteBuffer, String> decoder = new Function<ByteBuffer, String>() {
+            @Override
+            public String apply(final ByteBuffer input) {
+                return Charsets.UTF_8.decode(input).toString();
+            }
+        };
+
+        assertNull(namedCache.getBuffer("a"));
+        assertNull(namedCache.getStream("a"));
+        assertNull(namedCache.get("a", decoder));
+
+        namedCache.set("a", "hello".getBytes(Charsets.UTF_8), new DateTime().plusMinutes(1));
+        final ByteBuffer buffer = namedCache.getBuffer("a");
+        assertTrue(buffer.isReadOnly());
+        Assert.assertEquals(5, buffer.remaining());
+        Assert.assertEquals("hello", decoder.apply(buffer));
+        Assert.assertEquals("hello", new String(ByteStreams.toByteArray(namedCache.getStream("a")), Charsets.UTF_8));
+        Assert.assertEquals("hello", namedCache.get("a", decoder));
+        Assert.assertEquals(ImmutableMap.of("a", "hello"), namedCache.get(ImmutableList.of("a", "b"), decoder));
+        Assert.assertEquals(ImmutableSet.of("a"), namedCache.getBuffers(ImmutableList.of("a", "b")).keySet());
+    }
+
+    @Test
+    public void testLeases() throws Exception {
+        final NamespacedCache namedCache = cache.withNamespace("leases");
+        assertNull(namedCache.lease("a"));
+
+        namedCache.set("a", "hello".getBytes(Charsets.UTF_8), new DateTime().plusMinutes(1));
+        final CacheLease lease = namedCache.lease("a");
+        try {
+            Assert.assertEquals(5, lease.getLength());
+            Assert.assertEquals("hello", Charsets.UTF_8.decode(lease.getBuffer()).toString());
+        }
+        finally {
+            lease.close();
+        }
+        Assert.assertEquals(ImmutableSet.of("a"), namedCache.lease(ImmutableList.of("a", "b")).keySet());
+    }
+
+    @Test
+    public void testWriterOperations() throws Exception {
+        final NamespacedCache namedCache = cache.withNamespace("writer");
+        final byte[] value = Strings.repeat("some value ", 1000).getBytes(Charsets.UTF_8);
+
+        namedCache.set("a", new CacheValueWriter() {
+            @Override
+            public void writeTo(final OutputStream out) throws IOException {
+                out.write(value, 0, 10);
+                out.write(value, 10, value.length - 10);
+            }
+        }, new DateTime().plusMinutes(1));
+        assertArrayEquals(value, namedCache.get("a"));
+
+        namedCache.setAsync("b", new CacheValueWriter() {
+            @Override
+            public void writeTo(final OutputStream out) throws IOException {
+                out.write(value);
+            }
+        }, new DateTime().plusMinutes(1)).get();
+        assertArrayEquals(value, namedCache.get("b"));
+    }
+
     @Test
     public void testAddOperation() throws Exception
     {
@@ -112,4 +187,56 @@ public abstract class BaseCachingTests {
         // Second add should not succeed.
         Assert.assertFalse(result2);
     }
+
+    @Test
+    public void testAsyncOperations() throws Exception
+    {
+        final byte [] bytes = "foo".getBytes(Charsets.UTF_8);
+        final NamespacedCache namedCache = cache.withNamespace("async");
+
+        assertNull(namedCache.getAsync("a").get());
+
+        namedCache.setAsync("a", bytes, new DateTime().plusMinutes(1)).get();
+        assertArrayEquals(bytes, namedCache.getAsync("a").get());
+        assertArrayEquals(bytes, namedCache.getAsync(ImmutableList.of("a", "b")).get().get("a"));
+
+        Assert.assertTrue(namedCache.addAsync("b", bytes, null).get());
+        Assert.assertFalse(namedCache.addAsync("b", bytes, null).get());
+
+        namedCache.clearAsync(ImmutableList.of("a", "b")).get();
+        assertTrue(namedCache.getAsync(ImmutableList.of("a", "b")).get().isEmpty());
+    }
+
+    @Test
+    public void testBatchOperations() throws Exception
+    {
+        final String ns = "batch";
+        final DateTime expiry = new DateTime().plusMinutes(1);
+        final List<CacheStore<byte []>> sets = Lists.newArrayList();
+        final List<CacheStore<byte []>> adds = Lists.newArrayList();
+        final List<String> keys = Lists.newArrayList();
+        for (int i = 0; i < 200; i++) {
+            final byte [] bytes = Integer.toString(i).getBytes(Charsets.UTF_8);
+            if (i % 2 == 0) {
+                sets.add(new CacheStore<byte []>("key" + i, bytes, expiry));
+            }
+            adds.add(new CacheStore<byte []>("key" + i, bytes, expiry));
+            keys.add("key" + i);
+        }
+
+        cache.set(ns, sets);
+
+        final Map<String, Boolean> results = cache.add(ns, adds);
+        Assert.assertEquals(200, results.size());
+        for (int i = 0; i < 200; i++) {
+            Assert.assertEquals("key" + i, i % 2 != 0, results.get("key" + i));
+        }
+
+        final Map<String, byte []> fetch = cache.get(ns, keys);
+        Assert.assertEquals(200, fetch.size());
+        assertArrayEquals("199".getBytes(Charsets.UTF_8), fetch.get("key199"));
+
+        cache.clear(ns, keys);
+        assertTrue(cache.get(ns, keys).isEmpty());
+    }
 }
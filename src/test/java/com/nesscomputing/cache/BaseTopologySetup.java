@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.service.discovery.client.DiscoveryClient;
+import com.nesscomputing.service.discovery.client.ReadOnlyDiscoveryClient;
+import com.nesscomputing.service.discovery.client.ServiceInformation;
+import com.nesscomputing.service.discovery.testing.client.MockedDiscoveryClient;
+import com.nesscomputing.testing.lessio.AllowDNSResolution;
+import com.nesscomputing.testing.lessio.AllowNetworkAccess;
+import com.nesscomputing.testing.lessio.AllowNetworkListen;
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.MemCacheDaemon;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap.EvictionPolicy;
+
+/**
+ * Set up several memcached servers on localhost, announced through a mocked discovery client that tests can change
+ * while the cache runs.
+ */
+@AllowDNSResolution
+@AllowNetworkListen(ports = {0})
+@AllowNetworkAccess(endpoints = {"127.0.0.1:0"})
+public abstract class BaseTopologySetup
+{
+    protected static final int NUM_WRITES = 300;
+
+    protected final DiscoveryClient discovery = MockedDiscoveryClient.builder().build();
+    protected final List<MemCacheDaemon<LocalCacheElement>> daemons = Lists.newArrayList();
+    protected final List<ServiceInformation> announcements = Lists.newArrayList();
+    protected final Map<String, byte []> written = Maps.newHashMap();
+
+    protected MemcachedClientFactory clientFactory;
+
+    @Inject
+    Lifecycle lifecycle;
+
+    @Inject
+    @Named("test")
+    NessCache cache;
+
+    /**
+     * Starts the given number of servers and a cache that knows about the first few of them.
+     *
+     * @param config additional configuration, as pairs of keys and values.
+     */
+    protected final void start(final int servers, final int announced, final String... config) throws Exception
+    {
+        for (int i = 0; i < servers; i++) {
+            final int port = NetUtils.findUnusedPort();
+            final MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
+            final CacheStorage<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(EvictionPolicy.FIFO, 10000, 10000000);
+            daemon.setCache(new CacheImpl(storage));
+            daemon.setBinary(true);
+            daemon.setAddr(new InetSocketAddress("127.0.0.1", port));
+            daemon.start();
+            daemons.add(daemon);
+
+            final ServiceInformation announcement = ServiceInformation.forService("memcached", "test", "memcache", "127.0.0.1", port);
+            announcements.add(announcement);
+            if (i < announced) {
+                discovery.announce(announcement);
+            }
+        }
+
+        final List<String> settings = Lists.newArrayList("ness.cache", "MEMCACHE",
+                                                         "ness.cache.synchronous", "true",
+                                                         "ness.cache.rediscover-interval", "20ms",
+                                                         "ness.cache.jmx", "false");
+        settings.addAll(Arrays.asList(config));
+        final Config fixedConfig = Config.getFixedConfig(settings.toArray(new String [settings.size()]));
+
+        final CacheModule cacheModule = new CacheModule("test");
+        Guice.createInjector(cacheModule,
+                             new LifecycleModule(),
+                             new AbstractModule() {
+            @Override
+            protected void configure() {
+                requestInjection (BaseTopologySetup.this);
+                bind (ReadOnlyDiscoveryClient.class).toInstance(discovery);
+                bind (Config.class).toInstance(fixedConfig);
+            }
+        });
+        clientFactory = cacheModule.getChildInjector().getInstance(MemcachedClientFactory.class);
+
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        waitForServers(announced);
+    }
+
+    @After
+    public final void tearDownTopology()
+    {
+        if (lifecycle != null) {
+            lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        }
+        for (final MemCacheDaemon<LocalCacheElement> daemon : daemons) {
+            daemon.stop();
+        }
+    }
+
+    /**
+     * Operations for servers the client is not connected to yet get cancelled.
+     */
+    protected final void waitForServers(final int count) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (!isConnected(clientFactory.get(), count) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        if (!isConnected(clientFactory.get(), count)) {
+            throw new AssertionError("Not connected to " + count + " servers");
+        }
+    }
+
+    protected static boolean isConnected(final MemcachedClient client, final int count)
+    {
+        if (client == null || client.getNodeLocator().getAll().size() != count) {
+            return false;
+        }
+        for (final MemcachedNode node : client.getNodeLocator().getAll()) {
+            if (!node.isActive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected final void writeLots(final String namespace)
+    {
+        final Random random = new Random(1234);
+        final DateTime expiry = new DateTime().plusHours(1);
+        final NamespacedCache c = cache.withNamespace(namespace);
+        for (int i = 0; i < NUM_WRITES; i++) {
+            final byte [] data = new byte [4];
+            random.nextBytes(data);
+            c.set("key-" + i, data, expiry);
+            written.put("key-" + i, data);
+        }
+    }
+
+    protected final long items(final int daemon)
+    {
+        return daemons.get(daemon).getCache().getCurrentItems();
+    }
+}
@@ -39,7 +39,7 @@ public class CacheIntegrationTest extends BaseCacheIntegrationSetup {
     Lifecycle lifecycle;
 
     @Before
-    public final void setUpClient() {
+    public final void setUpClient() throws Exception {
         final Config config = Config.getFixedConfig("ness.cache", "MEMCACHE",
                                                     "ness.cache.synchronous", "true",
                                                     "ness.cache.uri", "memcache://localhost:" + PORT,
@@ -56,6 +56,7 @@ public class CacheIntegrationTest extends BaseCacheIntegrationSetup {
             }
         });
         lifecycle.executeTo(LifecycleStage.START_STAGE);
+        waitForConnection();
     }
 
     @After
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import com.nesscomputing.service.discovery.client.ReadOnlyDiscoveryClient;
+
+import org.easymock.EasyMock;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.testing.lessio.AllowDNSResolution;
+import com.nesscomputing.testing.lessio.AllowNetworkAccess;
+
+@AllowDNSResolution
+@AllowNetworkAccess(endpoints = {"127.0.0.1:0"})
+public class ChunkedMemcacheIntegrationTest extends BaseCacheIntegrationSetup {
+    @Inject
+    Lifecycle lifecycle;
+
+    @Before
+    public final void setUpClient() throws Exception {
+        final Config config = Config.getFixedConfig("ness.cache", "MEMCACHE",
+                                                    "ness.cache.synchronous", "true",
+                                                    "ness.cache.uri", "memcache://localhost:" + PORT,
+                                                    "ness.cache.max-value-size", "100000",
+                                                    "ness.cache.max-chunked-value-size", "1000000",
+                                                    "ness.cache.chunk-size", "30000",
+                                                    "ness.cache.jmx", "false");
+
+        Guice.createInjector(new CacheModule("test"),
+                             new LifecycleModule(),
+                             new AbstractModule() {
+            @Override
+            protected void configure() {
+                requestInjection (ChunkedMemcacheIntegrationTest.this);
+                bind (ReadOnlyDiscoveryClient.class).toInstance(EasyMock.createNiceMock(ReadOnlyDiscoveryClient.class));
+                bind (Config.class).toInstance(config);
+            }
+        });
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        waitForConnection();
+    }
+
+    @After
+    public final void stopLifecycle() {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testLargeValues() throws Exception {
+        final NamespacedCache namedCache = cache.withNamespace("chunked");
+        final byte [] large = randomBytes(250000);
+        final byte [] small = randomBytes(100);
+
+        namedCache.set("large", large, new DateTime().plusMinutes(1));
+        namedCache.set("small", small, new DateTime().plusMinutes(1));
+
+        assertArrayEquals(large, namedCache.get("large"));
+        assertArrayEquals(large, namedCache.getAsync("large").get());
+        assertArrayEquals(large, namedCache.getAsync(ImmutableList.of("large", "small")).get().get("large"));
+        assertArrayEquals(small, namedCache.get(ImmutableList.of("large", "small")).get("small"));
+
+        final byte [] replacement = randomBytes(120000);
+        namedCache.set("large", replacement, new DateTime().plusMinutes(1));
+        assertArrayEquals(replacement, namedCache.get("large"));
+
+        namedCache.clear("large");
+        assertNull(namedCache.get("large"));
+    }
+
+    @Test
+    public void testLargeAdd() throws Exception {
+        final NamespacedCache namedCache = cache.withNamespace("chunked");
+        final byte [] large = randomBytes(250000);
+
+        assertTrue(namedCache.add("added", large, new DateTime().plusMinutes(1)));
+        assertFalse(namedCache.add("added", randomBytes(250000), new DateTime().plusMinutes(1)));
+        assertFalse(namedCache.addAsync("added", randomBytes(250000), new DateTime().plusMinutes(1)).get());
+        assertArrayEquals(large, namedCache.get("added"));
+
+        assertTrue(namedCache.addAsync("async", large, new DateTime().plusMinutes(1)).get());
+        assertArrayEquals(large, namedCache.get("async"));
+    }
+
+    @Test
+    public void testTooLarge() {
+        final CacheStatistics stats = new CacheStatistics("chunked");
+        final InternalCacheProvider provider = ((NessCacheImpl) cache).provider;
+
+        provider.set("chunked", ImmutableList.of(CacheStores.fromSharedBytes("huge", randomBytes(1000001), new DateTime().plusMinutes(1)),
+                                                 CacheStores.fromSharedBytes("large", randomBytes(1000000), new DateTime().plusMinutes(1))), stats);
+
+        assertEquals(1, stats.getOversizedStores());
+        assertEquals(1, stats.getChunkedStores());
+        assertTrue(cache.get("chunked", ImmutableList.of("huge")).isEmpty());
+        assertEquals(1000000, cache.get("chunked", ImmutableList.of("large")).get("large").length);
+    }
+
+    private static byte [] randomBytes(final int length) {
+        final byte [] result = new byte [length];
+        new Random().nextBytes(result);
+        return result;
+    }
+}
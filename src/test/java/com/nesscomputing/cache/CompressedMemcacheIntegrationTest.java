@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+
+import com.nesscomputing.service.discovery.client.ReadOnlyDiscoveryClient;
+
+import org.easymock.EasyMock;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.testing.lessio.AllowDNSResolution;
+import com.nesscomputing.testing.lessio.AllowNetworkAccess;
+
+@AllowDNSResolution
+@AllowNetworkAccess(endpoints = {"127.0.0.1:0"})
+public class CompressedMemcacheIntegrationTest extends BaseCacheIntegrationSetup {
+    @Inject
+    Lifecycle lifecycle;
+
+    @Before
+    public final void setUpClient() throws Exception {
+        final Config config = Config.getFixedConfig("ness.cache", "MEMCACHE",
+                                                    "ness.cache.synchronous", "true",
+                                                    "ness.cache.uri", "memcache://localhost:" + PORT,
+                                                    "ness.cache.max-value-size", "100000",
+                                                    "ness.cache.max-chunked-value-size", "1000000",
+                                                    "ness.cache.chunk-size", "30000",
+                                                    "ness.cache.compression", "DEFLATE",
+                                                    "ness.cache.compression-threshold", "0",
+                                                    "ness.cache.buffer-pool-size", "16000000",
+                                                    "ness.cache.jmx", "false");
+
+        Guice.createInjector(new CacheModule("test"),
+                             new LifecycleModule(),
+                             new AbstractModule() {
+            @Override
+            protected void configure() {
+                requestInjection (CompressedMemcacheIntegrationTest.this);
+                bind (ReadOnlyDiscoveryClient.class).toInstance(EasyMock.createNiceMock(ReadOnlyDiscoveryClient.class));
+                bind (Config.class).toInstance(config);
+            }
+        });
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        waitForConnection();
+    }
+
+    @After
+    public final void stopLifecycle() {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testCompressedValues() throws Exception {
+        final CacheStatistics stats = new CacheStatistics("compressed");
+        final InternalCacheProvider provider = ((NessCacheImpl) cache).provider;
+        final byte [] json = Strings.repeat("{\"id\":12345,\"name\":\"somebody\",\"tags\":[\"a\",\"b\"]},", 5000).getBytes(Charsets.UTF_8);
+
+        // Too large for a single item, but fits once compressed.
+        provider.set("compressed", ImmutableList.of(CacheStores.fromSharedBytes("json", json, new DateTime().plusMinutes(1))), stats);
+        assertEquals(0, stats.getOversizedStores());
+        assertEquals(0, stats.getChunkedStores());
+
+        final NamespacedCache namedCache = cache.withNamespace("compressed");
+        assertArrayEquals(json, namedCache.get("json"));
+        assertArrayEquals(json, namedCache.getAsync("json").get());
+    }
+
+    @Test
+    public void testCompressedChunks() throws Exception {
+        final CacheStatistics stats = new CacheStatistics("compressed");
+        final InternalCacheProvider provider = ((NessCacheImpl) cache).provider;
+        final byte [] large = randomBytes(250000);
+
+        // Random data does not compress, so it is chunked as is.
+        provider.set("compressed", ImmutableList.of(CacheStores.fromSharedBytes("random", large, new DateTime().plusMinutes(1))), stats);
+        assertEquals(1, stats.getChunkedStores());
+        assertArrayEquals(large, cache.withNamespace("compressed").get("random"));
+
+        final StringBuilder text = new StringBuilder();
+        final Random random = new Random();
+        while (text.length() < 2000000) {
+            text.append("{\"id\":").append(random.nextInt()).append(",\"score\":").append(random.nextDouble()).append("},");
+        }
+        final byte [] json = text.toString().getBytes(Charsets.UTF_8);
+
+        // Compressed, but still needs chunks.
+        provider.set("compressed", ImmutableList.of(CacheStores.fromSharedBytes("json", json, new DateTime().plusMinutes(1))), stats);
+        assertEquals(0, stats.getOversizedStores());
+        assertEquals(2, stats.getChunkedStores());
+        assertArrayEquals(json, cache.withNamespace("compressed").get("json"));
+    }
+
+    @Test
+    public void testLeases() throws Exception {
+        final NamespacedCache namedCache = cache.withNamespace("compressed");
+        final byte [] json = Strings.repeat("{\"id\":12345,\"name\":\"somebody\",\"tags\":[\"a\",\"b\"]},", 5000).getBytes(Charsets.UTF_8);
+        final byte [] large = randomBytes(250000);
+        namedCache.set("json", json, new DateTime().plusMinutes(1));
+        namedCache.set("random", large, new DateTime().plusMinutes(1));
+
+        // The second round gets the buffers the first round gave back.
+        for (int i = 0; i < 2; i++) {
+            final Map<String, CacheLease> leases = namedCache.lease(ImmutableList.of("json", "random", "missing"));
+            assertEquals(ImmutableSet.of("json", "random"), leases.keySet());
+            assertEquals(ByteBuffer.wrap(json), leases.get("json").getBuffer());
+            assertEquals(ByteBuffer.wrap(large), leases.get("random").getBuffer());
+            for (final CacheLease lease : leases.values()) {
+                lease.close();
+            }
+        }
+    }
+
+    private static byte [] randomBytes(final int length) {
+        final byte [] result = new byte [length];
+        new Random().nextBytes(result);
+        return result;
+    }
+}
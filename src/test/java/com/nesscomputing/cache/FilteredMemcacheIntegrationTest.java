@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import com.nesscomputing.service.discovery.client.ReadOnlyDiscoveryClient;
+
+import org.easymock.EasyMock;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.testing.lessio.AllowDNSResolution;
+import com.nesscomputing.testing.lessio.AllowNetworkAccess;
+
+/**
+ * Runs the usual tests with membership filters on all their namespaces.
+ */
+@AllowDNSResolution
+@AllowNetworkAccess(endpoints = {"127.0.0.1:0"})
+public class FilteredMemcacheIntegrationTest extends BaseCacheIntegrationSetup {
+    @Inject
+    Lifecycle lifecycle;
+
+    private Config config;
+
+    @Before
+    public final void setUpClient() throws Exception {
+        config = Config.getFixedConfig("ness.cache", "MEMCACHE",
+                                                    "ness.cache.synchronous", "true",
+                                                    "ness.cache.uri", "memcache://localhost:" + PORT,
+                                                    "ness.cache.membership-filter.namespaces", "connection-probe,test,async,buffers,leases,writer,filtered",
+                                                    "ness.cache.membership-filter.expected-keys", "10000",
+                                                    "ness.cache.membership-filter.snapshot-interval", "1h",
+                                                    "ness.cache.max-value-size", "10000",
+                                                    "ness.cache.max-chunked-value-size", "1000000",
+                                                    "ness.cache.jmx", "false");
+
+        createClient(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        waitForConnection();
+    }
+
+    private void createClient(final Object target) {
+        Guice.createInjector(new CacheModule("test"),
+                             new LifecycleModule(),
+                             new AbstractModule() {
+            @Override
+            protected void configure() {
+                requestInjection (target);
+                bind (ReadOnlyDiscoveryClient.class).toInstance(EasyMock.createNiceMock(ReadOnlyDiscoveryClient.class));
+                bind (Config.class).toInstance(config);
+            }
+        });
+    }
+
+    private static MembershipFilters filtersOf(final NessCache nessCache) {
+        return ((MemcacheProvider) ((NessCacheImpl) nessCache).provider).membershipFilters;
+    }
+
+    static class Client {
+        @Inject
+        Lifecycle lifecycle;
+
+        @Inject
+        @Named("test")
+        NessCache cache;
+    }
+
+    @After
+    public final void stopLifecycle() {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testAbsentKeysSkipped() throws Exception {
+        filtersOf(cache).snapshot();
+        final CacheStatistics stats = new CacheStatistics("filtered");
+        final InternalCacheProvider provider = ((NessCacheImpl) cache).provider;
+        provider.set("filtered", ImmutableList.of(CacheStores.fromSharedBytes("a", new byte [] { 1 }, new DateTime().plusMinutes(1))), stats);
+
+        assertTrue(provider.get("filtered", ImmutableList.of("b", "c"), stats).isEmpty());
+        assertEquals(2, stats.getFilterRejectedKeys());
+        assertEquals(1, stats.getFilterAvoidedFetches());
+
+        final Map<String, byte []> result = provider.get("filtered", ImmutableList.of("a", "b"), stats);
+        assertEquals(ImmutableSet.of("a"), result.keySet());
+        assertArrayEquals(new byte [] { 1 }, result.get("a"));
+        assertEquals(3, stats.getFilterRejectedKeys());
+        assertEquals(1, stats.getFilterAvoidedFetches());
+        assertEquals(1, stats.getFilterPassedKeys());
+        assertEquals(0.0, stats.getFilterFalsePositiveRate(), 0.0);
+
+        // Cleared keys are known to be absent again.
+        provider.clear("filtered", ImmutableList.of("a"), stats);
+        assertTrue(provider.get("filtered", ImmutableList.of("a"), stats).isEmpty());
+        assertEquals(2, stats.getFilterAvoidedFetches());
+
+        // Unfiltered namespaces always go to memcached.
+        assertTrue(provider.get("unfiltered", ImmutableList.of("a"), stats).isEmpty());
+        assertEquals(2, stats.getFilterAvoidedFetches());
+    }
+
+    @Test
+    public void testSnapshots() throws Exception {
+        final MembershipFilters filters = filtersOf(cache);
+        cache.withNamespace("filtered").set("a", new byte [] { 1 }, new DateTime().plusMinutes(1));
+        filters.snapshot();
+
+        // A client that starts later learns about the key from the snapshot, and adds its own keys to it.
+        final Client client = new Client();
+        createClient(client);
+        client.lifecycle.executeTo(LifecycleStage.START_STAGE);
+        try {
+            final MembershipFilters other = filtersOf(client.cache);
+            other.recordWrites("filtered", ImmutableList.of(CacheStores.fromSharedBytes("b", new byte [] { 2 }, new DateTime().plusMinutes(1))));
+            other.snapshot();
+            assertEquals(ImmutableList.of("a", "b"), other.mightContain("filtered", ImmutableList.of("a", "b", "c"), null));
+        }
+        finally {
+            client.lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        }
+
+        filters.snapshot();
+        assertEquals(ImmutableList.of("a", "b"), filters.mightContain("filtered", ImmutableList.of("a", "b", "c"), null));
+    }
+
+    @Test
+    public void testClearsWinOverSnapshots() throws Exception {
+        final MembershipFilters filters = filtersOf(cache);
+        final NamespacedCache filtered = cache.withNamespace("filtered");
+        filtered.set("a", new byte [] { 1 }, new DateTime().plusMinutes(1));
+        filtered.set("b", new byte [] { 2 }, new DateTime().plusMinutes(1));
+        filters.snapshot();
+
+        // The copy in memcached still holds the key, but the clear is newer.
+        filtered.clear("a");
+        filters.snapshot();
+        assertEquals(ImmutableList.of("b"), filters.mightContain("filtered", ImmutableList.of("a", "b"), null));
+
+        // The clear also reached the copy, so a client that starts later does not know the key either.
+        final Client client = new Client();
+        createClient(client);
+        client.lifecycle.executeTo(LifecycleStage.START_STAGE);
+        try {
+            final MembershipFilters other = filtersOf(client.cache);
+            other.snapshot();
+            assertEquals(ImmutableList.of("b"), other.mightContain("filtered", ImmutableList.of("a", "b"), null));
+        }
+        finally {
+            client.lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        }
+    }
+
+    @Test
+    public void testNotFilteredWithoutSnapshots() throws Exception {
+        config = Config.getFixedConfig("ness.cache", "MEMCACHE",
+                                       "ness.cache.uri", "memcache://localhost:" + PORT,
+                                       "ness.cache.membership-filter.namespaces", "filtered",
+                                       "ness.cache.jmx", "false");
+        final Client client = new Client();
+        createClient(client);
+        final MembershipFilters other = filtersOf(client.cache);
+        assertEquals(ImmutableList.of("a", "b"), other.mightContain("filtered", ImmutableList.of("a", "b"), null));
+    }
+}
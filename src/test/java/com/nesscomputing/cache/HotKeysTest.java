@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.config.TimeSpan;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+public class HotKeysTest {
+    private static final String NS = "hot";
+
+    private final DateTime expiry = new DateTime().plusHours(1);
+    private final FakeTicker ticker = new FakeTicker();
+    private final CacheStatistics stats = new CacheStatistics(NS);
+
+    private NonEvictingJvmCacheProvider provider;
+    private NessCacheImpl cache;
+    private Runnable duringRead = null;
+
+    @Before
+    public final void setUp() {
+        final CacheConfiguration config = new CacheConfiguration() {
+            @Override
+            public double getHotKeyThreshold() {
+                return 10.0;
+            }
+            @Override
+            public TimeSpan getHotKeyWindow() {
+                return new TimeSpan(1, TimeUnit.SECONDS);
+            }
+            @Override
+            public TimeSpan getHotKeyTtl() {
+                return new TimeSpan(500, TimeUnit.MILLISECONDS);
+            }
+        };
+
+        provider = new NonEvictingJvmCacheProvider() {
+            @Override
+            public Map<String, byte []> get(final String namespace, final Collection<String> keys, final CacheStatistics cacheStatistics) {
+                final Map<String, byte []> result = super.get(namespace, keys, cacheStatistics);
+                if (duringRead != null) {
+                    final Runnable action = duringRead;
+                    duringRead = null;
+                    action.run();
+                }
+                return result;
+            }
+        };
+        cache = new NessCacheImpl(provider);
+        cache.injectHotKeys(new HotKeys(config, ticker));
+        cache.injectCacheStatisticsManager(new CacheStatisticsManager() {
+            @Override
+            public Map<String, CacheStatistics> getCacheStatistics() {
+                return Collections.singletonMap(NS, stats);
+            }
+            @Override
+            public CacheStatistics getCacheStatistics(final String namespace) {
+                return stats;
+            }
+        });
+    }
+
+    private void setBehindCache(final String key, final byte [] value) {
+        provider.set(NS, ImmutableList.of(CacheStores.fromSharedBytes(key, value, expiry)), null);
+    }
+
+    @Test
+    public void testHotKeysServedLocally() {
+        setBehindCache("hot", new byte [] { 1 });
+        setBehindCache("cold", new byte [] { 1 });
+
+        // 20 reads per second of one key and 5 of the other.
+        for (int i = 0; i < 20; i++) {
+            cache.withNamespace(NS).get("hot");
+            if (i % 4 == 0) {
+                cache.withNamespace(NS).get("cold");
+            }
+        }
+        ticker.advance(1, TimeUnit.SECONDS);
+
+        // The first read of the next window finds out about the hot key and keeps its value.
+        assertArrayEquals(new byte [] { 1 }, cache.withNamespace(NS).get("hot"));
+        assertEquals(ImmutableList.of("hot", "cold"), ImmutableList.copyOf(stats.getTopKeyRates().keySet()));
+        assertEquals(20.0, stats.getTopKeyRates().get("hot"), 0.01);
+        assertEquals("hot=20.0/s, cold=5.0/s", stats.getTopKeys());
+
+        setBehindCache("hot", new byte [] { 2 });
+        setBehindCache("cold", new byte [] { 2 });
+        assertArrayEquals(new byte [] { 1 }, cache.withNamespace(NS).get("hot"));
+        assertArrayEquals(new byte [] { 2 }, cache.withNamespace(NS).get("cold"));
+        assertEquals(1, stats.getHotKeyHits());
+
+        // Mixed reads take the hot key from the JVM and the others from the cache.
+        final Map<String, byte []> both = cache.withNamespace(NS).get(ImmutableList.of("hot", "cold"));
+        assertArrayEquals(new byte [] { 1 }, both.get("hot"));
+        assertArrayEquals(new byte [] { 2 }, both.get("cold"));
+        assertEquals(2, stats.getHotKeyHits());
+
+        // The local copy only lives for the ttl.
+        ticker.advance(500, TimeUnit.MILLISECONDS);
+        assertArrayEquals(new byte [] { 2 }, cache.withNamespace(NS).get("hot"));
+    }
+
+    @Test
+    public void testWritesDropLocalCopy() throws Exception {
+        setBehindCache("hot", new byte [] { 1 });
+        for (int i = 0; i < 20; i++) {
+            cache.withNamespace(NS).get("hot");
+        }
+        ticker.advance(1, TimeUnit.SECONDS);
+        cache.withNamespace(NS).get("hot");
+        assertTrue(stats.getTopKeys().startsWith("hot="));
+
+        cache.withNamespace(NS).set("hot", new byte [] { 2 }, expiry);
+        assertArrayEquals(new byte [] { 2 }, cache.withNamespace(NS).get("hot"));
+        assertArrayEquals(new byte [] { 2 }, cache.getAsync(NS, ImmutableSet.of("hot")).get().get("hot"));
+        assertEquals(1, stats.getHotKeyHits());
+
+        cache.withNamespace(NS).clear("hot");
+        assertEquals(null, cache.withNamespace(NS).get("hot"));
+    }
+
+    @Test
+    public void testWriteDuringReadIsNotUndone() {
+        setBehindCache("hot", new byte [] { 1 });
+        for (int i = 0; i < 20; i++) {
+            cache.withNamespace(NS).get("hot");
+        }
+        ticker.advance(1, TimeUnit.SECONDS);
+
+        // The read that makes the key hot returns the old value, but must not keep it past the write.
+        duringRead = new Runnable() {
+            @Override
+            public void run() {
+                cache.withNamespace(NS).set("hot", new byte [] { 2 }, expiry);
+            }
+        };
+        assertArrayEquals(new byte [] { 1 }, cache.withNamespace(NS).get("hot"));
+        assertArrayEquals(new byte [] { 2 }, cache.withNamespace(NS).get("hot"));
+        assertEquals(0, stats.getHotKeyHits());
+    }
+
+    @Test
+    public void testKeysCoolDown() {
+        setBehindCache("hot", new byte [] { 1 });
+        for (int i = 0; i < 20; i++) {
+            cache.withNamespace(NS).get("hot");
+        }
+        ticker.advance(1, TimeUnit.SECONDS);
+        cache.withNamespace(NS).get("hot");
+
+        // Only one read in this window, so the key is no longer hot in the next.
+        ticker.advance(1, TimeUnit.SECONDS);
+        setBehindCache("hot", new byte [] { 2 });
+        assertArrayEquals(new byte [] { 2 }, cache.withNamespace(NS).get("hot"));
+        assertEquals(0, stats.getHotKeyHits());
+    }
+
+    private static final class FakeTicker extends Ticker {
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(final long time, final TimeUnit unit) {
+            nanos += unit.toNanos(time);
+        }
+    }
+}
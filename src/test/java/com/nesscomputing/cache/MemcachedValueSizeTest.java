@@ -78,7 +78,7 @@ public class MemcachedValueSizeTest
         MemcachedClientFactory clientFactory = EasyMock.createMock(MemcachedClientFactory.class);
         EasyMock.expect(clientFactory.get()).andReturn(client).anyTimes();
         EasyMock.replay(clientFactory);
-        provider = new MemcacheProvider(new CacheConfiguration() { }, clientFactory);
+        provider = new MemcacheProvider(new CacheConfiguration() { }, clientFactory, CompressionDictionaries.none(), new BufferPool(0, false, null), MembershipFilters.none());
     }
 
     @Test
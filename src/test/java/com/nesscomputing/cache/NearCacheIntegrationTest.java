@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Random;
+
+import com.nesscomputing.service.discovery.client.ReadOnlyDiscoveryClient;
+
+import org.easymock.EasyMock;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.testing.lessio.AllowDNSResolution;
+import com.nesscomputing.testing.lessio.AllowNetworkAccess;
+
+@AllowDNSResolution
+@AllowNetworkAccess(endpoints = {"127.0.0.1:0"})
+public class NearCacheIntegrationTest extends BaseCacheIntegrationSetup {
+    @Inject
+    Lifecycle lifecycle;
+
+    @Before
+    public final void setUpClient() throws Exception {
+        final Config config = Config.getFixedConfig("ness.cache", "MEMCACHE_NEAR",
+                                                    "ness.cache.synchronous", "true",
+                                                    "ness.cache.uri", "memcache://localhost:" + PORT,
+                                                    "ness.cache.max-value-size", "65536",
+                                                    "ness.cache.jmx", "false");
+
+        Guice.createInjector(new CacheModule("test"),
+                             new LifecycleModule(),
+                             new AbstractModule() {
+            @Override
+            protected void configure() {
+                requestInjection (NearCacheIntegrationTest.this);
+                bind (ReadOnlyDiscoveryClient.class).toInstance(EasyMock.createNiceMock(ReadOnlyDiscoveryClient.class));
+                bind (Config.class).toInstance(config);
+            }
+        });
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        waitForConnection();
+    }
+
+    @After
+    public final void stopLifecycle() {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testNearHits() {
+        final InternalCacheProvider provider = ((NessCacheImpl) cache).provider;
+        assertTrue(provider instanceof NearCacheProvider);
+
+        final CacheStatistics stats = new CacheStatistics("near");
+        provider.set("near", Collections.singleton(CacheStores.fromSharedBytes("a", new byte[] { 1 }, new DateTime().plusMinutes(1))), stats);
+
+        assertArrayEquals(new byte[] { 1 }, provider.get("near", Collections.singleton("a"), stats).get("a"));
+        assertArrayEquals(new byte[] { 1 }, provider.get("near", Collections.singleton("a"), stats).get("a"));
+        assertEquals(2, stats.getNearCacheHits());
+
+        provider.clear("near", Collections.singleton("a"), stats);
+        assertTrue(provider.get("near", Collections.singleton("a"), stats).isEmpty());
+        assertEquals(2, stats.getNearCacheHits());
+    }
+
+    @Test
+    public void testOversizedValuesNotKept() {
+        final InternalCacheProvider provider = ((NessCacheImpl) cache).provider;
+        final CacheStatistics stats = new CacheStatistics("near");
+        final DateTime expiry = new DateTime().plusMinutes(1);
+        provider.set("near", Collections.singleton(CacheStores.fromSharedBytes("a", new byte[] { 1 }, expiry)), stats);
+
+        // Random data does not compress below the limit.
+        final byte [] large = new byte [131072];
+        new Random(1234).nextBytes(large);
+        provider.set("near", Collections.singleton(CacheStores.fromSharedBytes("a", large, expiry)), stats);
+        assertEquals(1, stats.getOversizedStores());
+        assertArrayEquals(new byte[] { 1 }, provider.get("near", Collections.singleton("a"), stats).get("a"));
+        assertEquals(0, stats.getNearCacheHits());
+
+        provider.setAsync("near", Collections.singleton(CacheStores.fromSharedBytes("b", large, expiry)), stats);
+        assertTrue(provider.get("near", Collections.singleton("b"), stats).isEmpty());
+        assertEquals(0, stats.getNearCacheHits());
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+
+import org.easymock.EasyMock;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.testing.lessio.AllowDNSResolution;
+
+@AllowDNSResolution
+public class OffHeapCacheTest extends BaseCachingTests {
+    @Inject
+    Lifecycle lifecycle;
+
+    @Before
+    public final void setUpClient() {
+
+        final Config config = Config.getFixedConfig("ness.cache", "JVM_OFFHEAP",
+                                                    "ness.cache.jmx", "false");
+
+        Guice.createInjector(new CacheModule("test"),
+                             new AbstractModule() {
+            @Override
+            protected void configure() {
+                requestInjection (OffHeapCacheTest.this);
+                bind (Lifecycle.class).toInstance(EasyMock.createMock(Lifecycle.class));
+
+                bind (Config.class).toInstance(config);
+            }
+        });
+    }
+
+    @Test
+    public void testBoundedBySlabs() {
+        final OffHeapCacheProvider provider = new OffHeapCacheProvider(64 * 1024, 2, 8 * 1024);
+        final byte [] value = new byte [1000];
+        final DateTime expiry = new DateTime().plusHours(1);
+
+        for (int i = 0; i < 1000; i++) {
+            provider.set("ns", Collections.singleton(CacheStores.fromSharedBytes("key" + i, value, expiry)), null);
+        }
+
+        assertEquals(64 * 1024, provider.allocatedBytes());
+        assertTrue(provider.get("ns", Collections.singleton("key999"), null).containsKey("key999"));
+        assertTrue(provider.get("ns", Collections.singleton("key0"), null).isEmpty());
+    }
+
+    @Test
+    public void testReferencedEntriesSurvive() {
+        final OffHeapCacheProvider provider = new OffHeapCacheProvider(64 * 1024, 1, 8 * 1024);
+        final byte [] value = new byte [1000];
+        final DateTime expiry = new DateTime().plusHours(1);
+
+        provider.set("ns", Collections.singleton(CacheStores.fromSharedBytes("hot", new byte [] {1, 2, 3}, expiry)), null);
+        for (int i = 0; i < 1000; i++) {
+            provider.set("ns", Collections.singleton(CacheStores.fromSharedBytes("cold" + i, value, expiry)), null);
+            final Map<String, byte []> result = provider.get("ns", Collections.singleton("hot"), null);
+            assertArrayEquals("hot key evicted at " + i, new byte [] {1, 2, 3}, result.get("hot"));
+        }
+    }
+
+    @Test
+    public void testOversizedValueNotCached() {
+        final OffHeapCacheProvider provider = new OffHeapCacheProvider(64 * 1024, 1, 1024);
+        provider.set("ns", Collections.singleton(CacheStores.fromSharedBytes("big", new byte [2048], new DateTime().plusHours(1))), null);
+
+        assertTrue(provider.get("ns", Collections.singleton("big"), null).isEmpty());
+    }
+
+    @Test
+    public void testExpiredEntriesAreNotReturned() throws Exception {
+        final OffHeapCacheProvider provider = new OffHeapCacheProvider(64 * 1024, 1, 8 * 1024);
+        provider.set("ns", Collections.singleton(CacheStores.fromSharedBytes("a", new byte [10], new DateTime().plusMillis(50))), null);
+        Thread.sleep(100);
+
+        assertTrue(provider.get("ns", Collections.singleton("a"), null).isEmpty());
+        assertTrue(provider.add("ns", Collections.singleton(CacheStores.fromSharedBytes("a", new byte [10], new DateTime().plusHours(1))), null).get("a"));
+    }
+}
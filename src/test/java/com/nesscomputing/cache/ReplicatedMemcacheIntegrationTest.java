@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.nesscomputing.service.discovery.client.ReadOnlyDiscoveryClient;
+
+import org.easymock.EasyMock;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.testing.lessio.AllowDNSResolution;
+import com.nesscomputing.testing.lessio.AllowNetworkAccess;
+import com.nesscomputing.testing.lessio.AllowNetworkListen;
+import com.thimbleware.jmemcached.CacheImpl;
+import com.thimbleware.jmemcached.Key;
+import com.thimbleware.jmemcached.LocalCacheElement;
+import com.thimbleware.jmemcached.MemCacheDaemon;
+import com.thimbleware.jmemcached.storage.CacheStorage;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap;
+import com.thimbleware.jmemcached.storage.hash.ConcurrentLinkedHashMap.EvictionPolicy;
+
+/**
+ * Replicated namespaces on three memcached servers.
+ */
+@AllowDNSResolution
+@AllowNetworkListen(ports = {0})
+@AllowNetworkAccess(endpoints = {"127.0.0.1:0"})
+public class ReplicatedMemcacheIntegrationTest {
+    private static final String NS = "replicated";
+
+    private final List<MemCacheDaemon<LocalCacheElement>> daemons = Lists.newArrayList();
+    private final DateTime expiry = new DateTime().plusHours(1);
+
+    @Inject
+    Lifecycle lifecycle;
+
+    @Inject
+    @Named("test")
+    NessCache cache;
+
+    @Before
+    public final void setUp() throws Exception {
+        final List<String> uris = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            final int port = NetUtils.findUnusedPort();
+            daemons.add(createDaemon(port));
+            uris.add("memcache://localhost:" + port);
+        }
+
+        final Config config = Config.getFixedConfig("ness.cache", "MEMCACHE",
+                                                    "ness.cache.synchronous", "true",
+                                                    "ness.cache.uri", uris.get(0) + "," + uris.get(1) + "," + uris.get(2),
+                                                    "ness.cache.replication.namespaces", NS + ":3,connection-probe:3",
+                                                    "ness.cache.max-value-size", "10000",
+                                                    "ness.cache.max-chunked-value-size", "1000000",
+                                                    "ness.cache.jmx", "false");
+
+        Guice.createInjector(new CacheModule("test"),
+                             new LifecycleModule(),
+                             new AbstractModule() {
+            @Override
+            protected void configure() {
+                requestInjection (ReplicatedMemcacheIntegrationTest.this);
+                bind (ReadOnlyDiscoveryClient.class).toInstance(EasyMock.createNiceMock(ReadOnlyDiscoveryClient.class));
+                bind (Config.class).toInstance(config);
+            }
+        });
+
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        waitForConnections();
+    }
+
+    @After
+    public final void tearDown() {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        for (final MemCacheDaemon<LocalCacheElement> daemon : daemons) {
+            daemon.stop();
+        }
+    }
+
+    private static MemCacheDaemon<LocalCacheElement> createDaemon(final int port) {
+        final MemCacheDaemon<LocalCacheElement> daemon = new MemCacheDaemon<LocalCacheElement>();
+        final CacheStorage<Key, LocalCacheElement> storage = ConcurrentLinkedHashMap.create(EvictionPolicy.FIFO, 10000, 10000000);
+        daemon.setCache(new CacheImpl(storage));
+        daemon.setBinary(true);
+        daemon.setAddr(new InetSocketAddress("127.0.0.1", port));
+        daemon.start();
+        return daemon;
+    }
+
+    /**
+     * Operations issued before the client is connected to a server get cancelled; wait until a value made it to all three.
+     */
+    private void waitForConnections() throws InterruptedException {
+        final NamespacedCache probe = cache.withNamespace("connection-probe");
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (!Arrays.equals(new long [] { 1, 1, 1 }, items()) && System.currentTimeMillis() < deadline) {
+            probe.set("probe", new byte [] { 1 }, expiry);
+            Thread.sleep(10L);
+        }
+        probe.clear("probe");
+        assertArrayEquals(new long [] { 0, 0, 0 }, items());
+    }
+
+    private long [] items() {
+        final long [] result = new long [daemons.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = daemons.get(i).getCache().getCurrentItems();
+        }
+        return result;
+    }
+
+    @Test
+    public void testCopiesOnEveryServer() {
+        final NamespacedCache c = cache.withNamespace(NS);
+        for (int i = 0; i < 10; i++) {
+            c.set("key-" + i, new byte [] { (byte) i }, expiry);
+        }
+        assertArrayEquals(new long [] { 10, 10, 10 }, items());
+
+        // Other namespaces are not replicated.
+        cache.withNamespace("single").set("key", new byte [] { 1 }, expiry);
+        final long [] items = items();
+        assertEquals(31, items[0] + items[1] + items[2]);
+    }
+
+    @Test
+    public void testReadsSurviveLostCopies() throws Exception {
+        final NamespacedCache c = cache.withNamespace(NS);
+        final List<String> keys = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            keys.add("key-" + i);
+            c.set("key-" + i, new byte [] { (byte) i }, expiry);
+        }
+
+        daemons.get(0).getCache().flush_all();
+        daemons.get(1).getCache().flush_all();
+
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(new byte [] { (byte) i }, c.get("key-" + i));
+        }
+        assertEquals(20, c.get(keys).size());
+
+        final Map<String, byte []> async = ((NessCacheImpl) cache).provider.getAsync(NS, keys, null).get();
+        assertEquals(20, async.size());
+        assertArrayEquals(new byte [] { 7 }, async.get("key-7"));
+    }
+
+    @Test
+    public void testClearRemovesAllCopies() {
+        final NamespacedCache c = cache.withNamespace(NS);
+        c.set("key", new byte [] { 1 }, expiry);
+        assertArrayEquals(new long [] { 1, 1, 1 }, items());
+
+        c.clear("key");
+        assertArrayEquals(new long [] { 0, 0, 0 }, items());
+        assertNull(c.get("key"));
+    }
+
+    @Test
+    public void testAddReplicates() {
+        final NamespacedCache c = cache.withNamespace(NS);
+        assertTrue(c.add("key", new byte [] { 1 }, expiry));
+        assertArrayEquals(new long [] { 1, 1, 1 }, items());
+
+        assertFalse(c.add("key", new byte [] { 2 }, expiry));
+        daemons.get(0).getCache().flush_all();
+        daemons.get(1).getCache().flush_all();
+        assertArrayEquals(new byte [] { 1 }, c.get("key"));
+    }
+
+    @Test
+    public void testLargeValuesReplaceCopies() {
+        final NamespacedCache c = cache.withNamespace(NS);
+        c.set("key", new byte [] { 1 }, expiry);
+
+        final byte [] large = new byte [25000];
+        new Random(1234).nextBytes(large);
+        c.set("key", large, expiry);
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(large, c.get("key"));
+        }
+        assertArrayEquals(large, c.get(ImmutableList.of("key")).get("key"));
+    }
+}
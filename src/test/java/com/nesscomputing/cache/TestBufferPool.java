@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBufferPool
+{
+    @Test
+    public void testReuse()
+    {
+        final BufferPool pool = new BufferPool(1024 * 1024, false, null);
+
+        final byte [] small = pool.acquire(100);
+        Assert.assertEquals(1024, small.length);
+        final byte [] large = pool.acquire(100000);
+        Assert.assertEquals(131072, large.length);
+        Assert.assertEquals(2, pool.getOutstanding());
+        Assert.assertEquals(0, pool.getHits());
+
+        pool.release(small);
+        pool.release(large);
+        Assert.assertEquals(0, pool.getOutstanding());
+
+        Assert.assertSame(small, pool.acquire(1000));
+        Assert.assertSame(large, pool.acquire(70000));
+        Assert.assertEquals(2, pool.getHits());
+        Assert.assertEquals(0.5, pool.getHitRate(), 0.001);
+    }
+
+    @Test
+    public void testSharedAcrossThreads() throws Exception
+    {
+        final BufferPool pool = new BufferPool(1024 * 1024, false, null);
+        final byte [] first = pool.acquire(1000);
+        final byte [] second = pool.acquire(1000);
+        pool.release(first);
+        // The thread local slot is taken, so this one goes to the shared pool.
+        pool.release(second);
+        Assert.assertEquals(1024, pool.getPooledBytes());
+
+        final byte [][] other = new byte [1][];
+        final Thread thread = new Thread() {
+            @Override
+            public void run()
+            {
+                other[0] = pool.acquire(1000);
+            }
+        };
+        thread.start();
+        thread.join();
+        Assert.assertSame(second, other[0]);
+        Assert.assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testLimits()
+    {
+        final BufferPool pool = new BufferPool(300000, false, null);
+        final byte [] [] buffers = new byte [4][];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(100000);
+        }
+        for (final byte [] buffer : buffers) {
+            pool.release(buffer);
+        }
+        // Two buffers fit into the pool, the others are dropped.
+        Assert.assertEquals(262144, pool.getPooledBytes());
+        Assert.assertEquals(2, pool.getDiscarded());
+
+        // Too large to pool, and buffers that did not come from the pool.
+        Assert.assertEquals(20000000, pool.acquire(20000000).length);
+        pool.release(new byte [3000]);
+        Assert.assertEquals(3, pool.getDiscarded());
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        final BufferPool pool = new BufferPool(0, false, null);
+        final byte [] buffer = pool.acquire(1000);
+        Assert.assertEquals(1000, buffer.length);
+        pool.release(buffer);
+        Assert.assertNotSame(buffer, pool.acquire(1000));
+        Assert.assertEquals(0, pool.getHits());
+        Assert.assertEquals(1, pool.getOutstanding());
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCacheEnvelope
+{
+    @Test
+    public void testRoundTrip()
+    {
+        final byte [] payload = new byte [] { 1, 2, 3 };
+        final CacheEnvelope envelope = CacheEnvelope.unwrap(CacheEnvelope.wrap(payload, 42L, 123456789L));
+
+        Assert.assertNotNull(envelope);
+        Assert.assertArrayEquals(payload, envelope.getPayload());
+        Assert.assertEquals(42, envelope.getComputeMillis());
+        Assert.assertEquals(123456789L, envelope.getExpiryMillis());
+    }
+
+    @Test
+    public void testPayloadBuffer()
+    {
+        final CacheEnvelope envelope = CacheEnvelope.unwrap(CacheEnvelope.wrap(new byte [] { 1, 2, 3 }, 42L, 123456789L));
+
+        final ByteBuffer buffer = envelope.getPayloadBuffer();
+        Assert.assertTrue(buffer.isReadOnly());
+        Assert.assertEquals(3, buffer.remaining());
+        Assert.assertEquals(1, buffer.get(0));
+        Assert.assertEquals(3, buffer.get(2));
+    }
+
+    @Test
+    public void testPlainValue()
+    {
+        Assert.assertNull(CacheEnvelope.unwrap(new byte [] { 1, 2, 3 }));
+        Assert.assertNull(CacheEnvelope.unwrap(new byte [CacheEnvelope.HEADER_LENGTH + 10]));
+    }
+
+    @Test
+    public void testEarlyRefresh()
+    {
+        final long now = System.currentTimeMillis();
+
+        // Far from expiry compared to the compute time: never refresh.
+        final CacheEnvelope fresh = CacheEnvelope.unwrap(CacheEnvelope.wrap(new byte [0], 1L, now + 3600000L));
+        // Past expiry: always refresh.
+        final CacheEnvelope expired = CacheEnvelope.unwrap(CacheEnvelope.wrap(new byte [0], 1L, now - 1L));
+
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertFalse(fresh.shouldRefreshEarly(now, 1.0));
+            Assert.assertTrue(expired.shouldRefreshEarly(now, 1.0));
+        }
+    }
+
+    @Test
+    public void testTombstone()
+    {
+        final byte [] tombstone = CacheEnvelope.tombstone(123456789L);
+
+        Assert.assertTrue(CacheEnvelope.isTombstone(tombstone));
+        Assert.assertTrue(CacheEnvelope.unwrap(tombstone).isTombstone());
+        Assert.assertEquals(123456789L, CacheEnvelope.unwrap(tombstone).getExpiryMillis());
+        Assert.assertEquals(0, CacheEnvelope.unwrap(tombstone).getPayload().length);
+
+        Assert.assertFalse(CacheEnvelope.isTombstone(null));
+        Assert.assertFalse(CacheEnvelope.isTombstone(new byte [0]));
+        Assert.assertFalse(CacheEnvelope.isTombstone(CacheEnvelope.wrap(new byte [0], 0L, 123456789L)));
+        Assert.assertFalse(CacheEnvelope.unwrap(CacheEnvelope.wrap(new byte [0], 0L, 123456789L)).isTombstone());
+    }
+}
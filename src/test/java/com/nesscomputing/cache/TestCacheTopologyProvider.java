@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCacheTopologyProvider
+{
+    @Test
+    public void testWeightsFromUri()
+    {
+        final CacheConfiguration config = new CacheConfiguration() {
+            @Override
+            public List<URI> getCacheUri() {
+                return ImmutableList.of(URI.create("memcache://127.0.0.1:11211?weight=3"),
+                                        URI.create("memcache://127.0.0.1:11212"),
+                                        URI.create("memcache://127.0.0.1:11213?foo=bar&weight=bogus"));
+            }
+        };
+
+        final CacheTopologyProvider provider = new CacheTopologyProvider(config, null, "test");
+        Assert.assertEquals(3, provider.get().size());
+        Assert.assertEquals(ImmutableMap.of(new InetSocketAddress("127.0.0.1", 11211), 3), provider.getWeights());
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestChunkManifest
+{
+    private final byte [] data = new byte [2500];
+
+    public TestChunkManifest()
+    {
+        new Random(1234L).nextBytes(data);
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        final ChunkManifest manifest = ChunkManifest.fromBytes(ChunkManifest.forValue(data, 1000).toBytes());
+
+        Assert.assertNotNull(manifest);
+        Assert.assertEquals(3, manifest.getChunkCount());
+
+        final List<byte []> chunks = manifest.split(data);
+        Assert.assertEquals(3, chunks.size());
+        Assert.assertEquals(500, chunks.get(2).length);
+        Assert.assertArrayEquals(data, manifest.reassemble(chunks));
+    }
+
+    @Test
+    public void testChunkKeys()
+    {
+        final ChunkManifest first = ChunkManifest.forValue(data, 1000);
+        final ChunkManifest second = ChunkManifest.forValue(data, 1000);
+
+        Assert.assertFalse(first.getChunkKey("a", 0).equals(first.getChunkKey("a", 1)));
+        Assert.assertFalse(first.getChunkKey("a", 0).equals(first.getChunkKey("b", 0)));
+        // Every write gets fresh chunk keys.
+        Assert.assertFalse(first.getChunkKey("a", 0).equals(second.getChunkKey("a", 0)));
+    }
+
+    @Test
+    public void testMissingChunk()
+    {
+        final ChunkManifest manifest = ChunkManifest.forValue(data, 1000);
+        final List<byte []> chunks = Lists.newArrayList(manifest.split(data));
+        chunks.set(1, null);
+
+        Assert.assertNull(manifest.reassemble(chunks));
+        Assert.assertNull(manifest.reassemble(chunks.subList(0, 1)));
+    }
+
+    @Test
+    public void testDamagedChunk()
+    {
+        final ChunkManifest manifest = ChunkManifest.forValue(data, 1000);
+        final List<byte []> chunks = Lists.newArrayList(manifest.split(data));
+
+        final byte [] damaged = chunks.get(1).clone();
+        damaged[17]++;
+        chunks.set(1, damaged);
+        Assert.assertNull(manifest.reassemble(chunks));
+
+        chunks.set(1, Arrays.copyOf(damaged, 999));
+        Assert.assertNull(manifest.reassemble(chunks));
+    }
+
+    @Test
+    public void testNotAManifest()
+    {
+        Assert.assertNull(ChunkManifest.fromBytes(new byte [] { 1, 2, 3 }));
+        Assert.assertNull(ChunkManifest.fromBytes(new byte [21]));
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.io.File;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import net.spy.memcached.CachedData;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCompressionDictionaries
+{
+    private final List<byte []> samples = Lists.newArrayList();
+    private byte [] dictionary;
+
+    @Before
+    public void setUp()
+    {
+        final DictionaryTrainer trainer = new DictionaryTrainer();
+        for (int i = 0; i < 500; i++) {
+            final byte [] sample = value(i);
+            samples.add(sample);
+            trainer.addSample(sample);
+        }
+        dictionary = trainer.train();
+    }
+
+    private static byte [] value(final int i)
+    {
+        return ("{\"userId\":" + i + ",\"displayName\":\"user" + i + "\",\"status\":\"ACTIVE\",\"preferences\":{\"notifications\":true,\"language\":\"en_US\"}}").getBytes(Charsets.UTF_8);
+    }
+
+    @Test
+    public void testTrainer()
+    {
+        Assert.assertTrue(dictionary.length > 0);
+        Assert.assertTrue(dictionary.length <= DictionaryTrainer.MAX_DICTIONARY_SIZE);
+        Assert.assertTrue(new String(dictionary, Charsets.ISO_8859_1).contains("\"notifications\":true"));
+
+        // Nothing in common, nothing to learn.
+        Assert.assertEquals(0, new DictionaryTrainer().addSample("abcdefghijklmnop".getBytes(Charsets.UTF_8)).train().length);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        final CompressionDictionaries dictionaries = new CompressionDictionaries(ImmutableMap.of("users", dictionary));
+        final MemcacheCodec codec = dictionaries.forNamespace("users");
+        Assert.assertNotNull(codec);
+        Assert.assertNull(dictionaries.forNamespace("other"));
+        Assert.assertEquals(CompressionDictionaries.CODEC_ID, codec.getId());
+
+        int plain = 0;
+        int trained = 0;
+        for (final byte [] sample : samples) {
+            final byte [] compressed = codec.compress(sample);
+            Assert.assertArrayEquals(sample, codec.decompress(compressed));
+            Assert.assertArrayEquals(sample, dictionaries.getDecoder().decompress(compressed));
+            plain += MemcacheCodec.DEFLATE.compress(sample).length;
+            trained += compressed.length;
+        }
+        Assert.assertTrue("trained " + trained + ", plain " + plain, trained * 2 < plain);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testUnknownDictionary() throws Exception
+    {
+        final byte [] compressed = new CompressionDictionaries(ImmutableMap.of("users", dictionary)).forNamespace("users").compress(samples.get(0));
+        CompressionDictionaries.none().getDecoder().decompress(compressed);
+    }
+
+    @Test
+    public void testTranscoder()
+    {
+        final CompressionDictionaries dictionaries = new CompressionDictionaries(ImmutableMap.of("users", dictionary));
+        final MemcacheCodec codec = dictionaries.forNamespace("users");
+        final CachedData data = new MemcacheByteArrayTranscoder().encode(new MemcacheCodec.Compressed(codec, codec.compress(samples.get(0))));
+
+        Assert.assertArrayEquals(samples.get(0), (byte []) new MemcacheByteArrayTranscoder(dictionaries).decode(data));
+        // Without the dictionary, the value is a miss.
+        Assert.assertNull(new MemcacheByteArrayTranscoder().decode(data));
+    }
+
+    @Test
+    public void testLoadFromDirectory() throws Exception
+    {
+        final File directory = Files.createTempDir();
+        try {
+            Files.write(dictionary, new File(directory, "users" + CompressionDictionaries.FILE_SUFFIX));
+            Files.write(dictionary, new File(directory, "README"));
+
+            final CompressionDictionaries dictionaries = new CompressionDictionaries(new CacheConfiguration() {
+                @Override
+                public File getMemcachedCompressionDictionaries() {
+                    return directory;
+                }
+            });
+            Assert.assertNotNull(dictionaries.forNamespace("users"));
+            Assert.assertNull(dictionaries.forNamespace("README"));
+        }
+        finally {
+            for (final File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+}
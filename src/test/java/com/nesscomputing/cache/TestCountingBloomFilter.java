@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestCountingBloomFilter
+{
+    @Test
+    public void testAddAndRemove()
+    {
+        final CountingBloomFilter filter = CountingBloomFilter.forExpectedKeys(1000, 0.01);
+        Assert.assertFalse(filter.mightContain("a"));
+
+        filter.add("a");
+        filter.add("b");
+        Assert.assertTrue(filter.mightContain("a"));
+        Assert.assertTrue(filter.mightContain("b"));
+
+        filter.remove("a");
+        Assert.assertFalse(filter.mightContain("a"));
+        Assert.assertTrue(filter.mightContain("b"));
+
+        // Removing a key that was never added leaves everything else alone.
+        filter.remove("c");
+        Assert.assertTrue(filter.mightContain("b"));
+    }
+
+    @Test
+    public void testFalsePositiveRate()
+    {
+        final CountingBloomFilter filter = CountingBloomFilter.forExpectedKeys(10000, 0.01);
+        Assert.assertEquals(7, filter.getHashes());
+        for (int i = 0; i < 10000; i++) {
+            filter.add("key-" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(filter.mightContain("key-" + i));
+            if (filter.mightContain("other-" + i)) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("false positives: " + falsePositives, falsePositives < 200);
+    }
+
+    @Test
+    public void testSaturatedCountersStay()
+    {
+        final CountingBloomFilter filter = new CountingBloomFilter(16, 1);
+        for (int i = 0; i < 20; i++) {
+            filter.add("a");
+        }
+        for (int i = 0; i < 20; i++) {
+            filter.remove("a");
+        }
+        Assert.assertTrue(filter.mightContain("a"));
+    }
+
+    @Test
+    public void testSnapshots()
+    {
+        final CountingBloomFilter first = CountingBloomFilter.forExpectedKeys(1000, 0.01);
+        final CountingBloomFilter second = CountingBloomFilter.forExpectedKeys(1000, 0.01);
+        first.add("a");
+        second.add("b");
+
+        Assert.assertTrue(second.merge(first.toSnapshot()));
+        Assert.assertTrue(second.mightContain("a"));
+        Assert.assertTrue(second.mightContain("b"));
+        Assert.assertFalse(second.mightContain("c"));
+
+        Assert.assertFalse(second.merge(CountingBloomFilter.forExpectedKeys(2000, 0.01).toSnapshot()));
+        Assert.assertFalse(second.merge(new byte [3]));
+    }
+
+    @Test
+    public void testRemovalsWinOverSnapshots()
+    {
+        final CountingBloomFilter first = CountingBloomFilter.forExpectedKeys(1000, 0.01);
+        final CountingBloomFilter second = CountingBloomFilter.forExpectedKeys(1000, 0.01);
+        first.add("a");
+        first.add("b");
+        second.add("a");
+        second.remove("a");
+
+        Assert.assertTrue(second.merge(first.toSnapshot(), ImmutableList.of("a")));
+        Assert.assertFalse(second.mightContain("a"));
+        Assert.assertTrue(second.mightContain("b"));
+
+        // A key added again after its removal is taken from the snapshot as usual.
+        final CountingBloomFilter third = CountingBloomFilter.forExpectedKeys(1000, 0.01);
+        third.add("a");
+        Assert.assertTrue(third.merge(first.toSnapshot(), ImmutableList.of("a")));
+        Assert.assertTrue(third.mightContain("a"));
+    }
+}
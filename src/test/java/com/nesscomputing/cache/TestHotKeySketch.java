@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestHotKeySketch
+{
+    @Test
+    public void testExactBelowCapacity()
+    {
+        final HotKeySketch sketch = new HotKeySketch(4);
+        for (final String key : ImmutableList.of("a", "b", "a", "c", "a", "b")) {
+            sketch.add(key);
+        }
+        Assert.assertEquals(ImmutableList.of("a", "b", "c"), ImmutableList.copyOf(sketch.getCounts().keySet()));
+        Assert.assertEquals(Long.valueOf(3), sketch.getCounts().get("a"));
+        Assert.assertEquals(ImmutableSet.of("a", "b"), sketch.getKeysSeenAtLeast(2));
+
+        sketch.clear();
+        Assert.assertTrue(sketch.getCounts().isEmpty());
+    }
+
+    @Test
+    public void testFindsHeavyHitters()
+    {
+        final HotKeySketch sketch = new HotKeySketch(64);
+        final Random random = new Random(1234);
+        for (int i = 0; i < 100000; i++) {
+            // One in five reads goes to "hot", one in ten to "warm", the rest are spread over many keys.
+            final int r = random.nextInt(10);
+            sketch.add(r < 2 ? "hot" : r == 2 ? "warm" : "key-" + random.nextInt(10000));
+        }
+
+        final Map<String, Long> counts = sketch.getCounts();
+        Assert.assertEquals("hot", counts.keySet().iterator().next());
+        Assert.assertTrue(counts.get("hot") >= 20000);
+        Assert.assertTrue(counts.containsKey("warm"));
+        Assert.assertEquals(ImmutableSet.of("hot", "warm"), sketch.getKeysSeenAtLeast(5000));
+    }
+}
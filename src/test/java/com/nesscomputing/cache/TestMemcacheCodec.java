@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+import net.spy.memcached.CachedData;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMemcacheCodec
+{
+    private final byte [] json = Strings.repeat("{\"id\":12345,\"name\":\"somebody\",\"tags\":[\"a\",\"b\"]},", 200).getBytes(Charsets.UTF_8);
+
+    @Test
+    public void testDeflateRoundTrip() throws Exception
+    {
+        final byte [] compressed = MemcacheCodec.DEFLATE.compress(json);
+        Assert.assertTrue(compressed.length * 5 < json.length);
+        Assert.assertArrayEquals(json, MemcacheCodec.DEFLATE.decompress(compressed));
+
+        Assert.assertArrayEquals(new byte [0], MemcacheCodec.DEFLATE.decompress(MemcacheCodec.DEFLATE.compress(new byte [0])));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testTruncated() throws Exception
+    {
+        final byte [] compressed = MemcacheCodec.DEFLATE.compress(json);
+        MemcacheCodec.DEFLATE.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+
+    @Test
+    public void testCodecIds()
+    {
+        Assert.assertSame(MemcacheCodec.NONE, MemcacheCodec.forId(MemcacheCodec.NONE.getId()));
+        Assert.assertSame(MemcacheCodec.DEFLATE, MemcacheCodec.forId(MemcacheCodec.DEFLATE.getId()));
+        Assert.assertNull(MemcacheCodec.forId(15));
+    }
+
+    @Test
+    public void testTranscoder()
+    {
+        final MemcacheByteArrayTranscoder transcoder = new MemcacheByteArrayTranscoder();
+
+        // Values written before compression existed.
+        Assert.assertArrayEquals(json, (byte []) transcoder.decode(new CachedData(1, json, Integer.MAX_VALUE)));
+        Assert.assertNull(transcoder.decode(new CachedData(0, new byte [0], Integer.MAX_VALUE)));
+
+        final CachedData compressed = transcoder.encode(new MemcacheCodec.Compressed(MemcacheCodec.DEFLATE, MemcacheCodec.DEFLATE.compress(json)));
+        Assert.assertTrue(compressed.getData().length < json.length);
+        Assert.assertArrayEquals(json, (byte []) transcoder.decode(compressed));
+
+        // Unknown codecs and damaged values read as misses.
+        Assert.assertNull(transcoder.decode(new CachedData(1 | 15 << 4, json, Integer.MAX_VALUE)));
+        Assert.assertNull(transcoder.decode(new CachedData(compressed.getFlags(), Arrays.copyOf(compressed.getData(), 10), Integer.MAX_VALUE)));
+
+        final ChunkManifest manifest = (ChunkManifest) transcoder.decode(transcoder.encode(ChunkManifest.forValue(json, 1000, MemcacheCodec.DEFLATE)));
+        Assert.assertSame(MemcacheCodec.DEFLATE, manifest.getCodec());
+    }
+
+    @Test
+    public void testOversizedValues()
+    {
+        final MemcacheByteArrayTranscoder transcoder = new MemcacheByteArrayTranscoder(CompressionDictionaries.none(), null, json.length - 1);
+
+        // Compressed values and chunked values that would be larger than the limit are misses.
+        Assert.assertNull(transcoder.decode(transcoder.encode(new MemcacheCodec.Compressed(MemcacheCodec.DEFLATE, MemcacheCodec.DEFLATE.compress(json)))));
+        Assert.assertNull(transcoder.decode(transcoder.encode(ChunkManifest.forValue(json, 1000, MemcacheCodec.NONE))));
+
+        // A length that was damaged or forged does not get a buffer of that size.
+        final byte [] forged = MemcacheCodec.DEFLATE.compress(new byte [10]);
+        forged[0] = 0x7f;
+        Assert.assertNull(transcoder.decode(transcoder.encode(new MemcacheCodec.Compressed(MemcacheCodec.DEFLATE, forged))));
+    }
+
+    @Test
+    public void testTombstoneTranscoding()
+    {
+        final MemcacheByteArrayTranscoder transcoder = new MemcacheByteArrayTranscoder();
+        final CachedData data = transcoder.encode(CacheEnvelope.tombstone(123456789L));
+
+        // Readers that do not know cached misses take items without flags for null.
+        Assert.assertEquals(0, data.getFlags());
+        Assert.assertTrue(CacheEnvelope.isTombstone((byte []) transcoder.decode(data)));
+        Assert.assertFalse(CacheEnvelope.isTombstone((byte []) transcoder.decode(transcoder.encode(new byte [0]))));
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Random;
+
+import com.google.common.base.Charsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMemcacheKeyEncoder
+{
+    // Keys must stay identical to what the old Base64 String round trip produced.
+    @Test
+    public void testSameAsBase64()
+    {
+        final Random rand = new Random();
+
+        for (int i = 0; i < 1000; i++) {
+            final char [] chars = new char[rand.nextInt(100)];
+            for (int j = 0; j < chars.length; j++) {
+                switch (rand.nextInt(4)) {
+                case 0:
+                    chars[j] = (char) rand.nextInt(0x80);
+                    break;
+                case 1:
+                    chars[j] = (char) rand.nextInt(0x800);
+                    break;
+                default:
+                    // includes paired and unpaired surrogates
+                    chars[j] = (char) rand.nextInt(0x10000);
+                    break;
+                }
+            }
+            final String key = new String(chars);
+
+            Assert.assertEquals("ns:" + new String(Base64.encode(key), Charsets.UTF_8), MemcacheKeyEncoder.BASE64.encode("ns:", key));
+        }
+    }
+
+    @Test
+    public void testSurrogatePair()
+    {
+        final String key = "a\uD83D\uDE00b";
+        Assert.assertEquals(new String(Base64.encode(key), Charsets.UTF_8), MemcacheKeyEncoder.BASE64.encode("", key));
+    }
+
+    @Test
+    public void testNone()
+    {
+        Assert.assertEquals("ns:key", MemcacheKeyEncoder.NONE.encode("ns:", "key"));
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSegmentedOutputStream
+{
+    @Test
+    public void testManySegments() throws Exception
+    {
+        final byte [] data = new byte [3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(data);
+
+        final SegmentedOutputStream out = new SegmentedOutputStream();
+        int offset = 0;
+        for (int length = 1; offset < data.length; length = length * 3 + 1) {
+            final int written = Math.min(length, data.length - offset);
+            out.write(data, offset, written);
+            offset += written;
+            if (offset < data.length) {
+                out.write(data[offset++] & 0xff);
+            }
+        }
+
+        Assert.assertEquals(data.length, out.size());
+        Assert.assertArrayEquals(data, out.toByteArray());
+        Assert.assertSame(out.toByteArray(), out.toByteArray());
+
+        out.write(42);
+        final byte [] longer = out.toByteArray();
+        Assert.assertEquals(data.length + 1, longer.length);
+        Assert.assertArrayEquals(data, Arrays.copyOf(longer, data.length));
+        Assert.assertEquals(42, longer[data.length]);
+    }
+
+    @Test
+    public void testExpectedSize() throws Exception
+    {
+        final byte [] data = new byte [] { 1, 2, 3 };
+        final SegmentedOutputStream out = new SegmentedOutputStream(3);
+        out.write(data);
+        Assert.assertArrayEquals(data, out.toByteArray());
+
+        Assert.assertEquals(0, new SegmentedOutputStream(0).toByteArray().length);
+        Assert.assertEquals(0, new SegmentedOutputStream().toByteArray().length);
+    }
+}
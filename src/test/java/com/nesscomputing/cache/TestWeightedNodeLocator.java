@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.KetamaNodeLocator;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.nesscomputing.cache.CacheConfiguration.NodeLocatorType;
+
+public class TestWeightedNodeLocator
+{
+    private static final int KEYS = 20000;
+
+    private static List<MemcachedNode> nodes(final int count)
+    {
+        final List<MemcachedNode> result = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            final MemcachedNode node = EasyMock.createNiceMock(MemcachedNode.class);
+            EasyMock.expect(node.getSocketAddress()).andReturn(new InetSocketAddress("127.0.0.1", 11211 + i)).anyTimes();
+            EasyMock.replay(node);
+            result.add(node);
+        }
+        return result;
+    }
+
+    private static int [] countKeys(final NodeLocator locator, final List<MemcachedNode> nodes)
+    {
+        final int [] counts = new int [nodes.size()];
+        for (int i = 0; i < KEYS; i++) {
+            counts[nodes.indexOf(locator.getPrimary("key-" + i))]++;
+        }
+        return counts;
+    }
+
+    @Test
+    public void testKetamaSameAsSpymemcached()
+    {
+        final List<MemcachedNode> nodes = nodes(5);
+        final NodeLocator spy = new KetamaNodeLocator(nodes, DefaultHashAlgorithm.KETAMA_HASH);
+        final NodeLocator ness = new WeightedNodeLocator(NodeLocatorType.KETAMA, nodes, ImmutableMap.<InetSocketAddress, Integer>of());
+        for (int i = 0; i < KEYS; i++) {
+            Assert.assertSame(spy.getPrimary("key-" + i), ness.getPrimary("key-" + i));
+        }
+    }
+
+    @Test
+    public void testWeights()
+    {
+        final List<MemcachedNode> nodes = nodes(3);
+        final Map<InetSocketAddress, Integer> weights = ImmutableMap.of((InetSocketAddress) nodes.get(1).getSocketAddress(), 2);
+        for (final NodeLocatorType type : NodeLocatorType.values()) {
+            final int [] counts = countKeys(new WeightedNodeLocator(type, nodes, weights), nodes);
+            Assert.assertEquals(type.name(), 0.25, counts[0] / (double) KEYS, 0.05);
+            Assert.assertEquals(type.name(), 0.50, counts[1] / (double) KEYS, 0.05);
+            Assert.assertEquals(type.name(), 0.25, counts[2] / (double) KEYS, 0.05);
+        }
+    }
+
+    @Test
+    public void testAddingServerOnlyMovesKeysToIt()
+    {
+        final List<MemcachedNode> nodes = nodes(5);
+        for (final NodeLocatorType type : NodeLocatorType.values()) {
+            final WeightedNodeLocator locator = new WeightedNodeLocator(type, nodes.subList(0, 4), ImmutableMap.<InetSocketAddress, Integer>of());
+            final NodeLocator before = locator.getReadonlyCopy();
+            locator.updateLocator(nodes);
+
+            int moved = 0;
+            for (int i = 0; i < KEYS; i++) {
+                final MemcachedNode node = locator.getPrimary("key-" + i);
+                if (!node.getSocketAddress().equals(before.getPrimary("key-" + i).getSocketAddress())) {
+                    Assert.assertSame(type.name(), nodes.get(4), node);
+                    moved++;
+                }
+            }
+            Assert.assertEquals(type.name(), 0.2, moved / (double) KEYS, 0.05);
+        }
+    }
+
+    @Test
+    public void testRemovingServerOnlyMovesItsKeys()
+    {
+        final List<MemcachedNode> nodes = nodes(5);
+        final List<MemcachedNode> remaining = Lists.newArrayList(nodes);
+        final MemcachedNode removed = remaining.remove(2);
+
+        // Jump hash can only lose servers at the end without moving other keys.
+        for (final NodeLocatorType type : new NodeLocatorType [] { NodeLocatorType.KETAMA, NodeLocatorType.RENDEZVOUS }) {
+            final WeightedNodeLocator locator = new WeightedNodeLocator(type, nodes, ImmutableMap.<InetSocketAddress, Integer>of());
+            final NodeLocator before = locator.getReadonlyCopy();
+            locator.updateLocator(remaining);
+
+            for (int i = 0; i < KEYS; i++) {
+                final MemcachedNode node = locator.getPrimary("key-" + i);
+                if (!node.getSocketAddress().equals(before.getPrimary("key-" + i).getSocketAddress())) {
+                    Assert.assertEquals(type.name(), removed.getSocketAddress(), before.getPrimary("key-" + i).getSocketAddress());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUpdateKeepsWeights()
+    {
+        final List<MemcachedNode> nodes = nodes(3);
+        final WeightedNodeLocator locator = new WeightedNodeLocator(NodeLocatorType.RENDEZVOUS, nodes.subList(0, 2),
+                                                                    ImmutableMap.of((InetSocketAddress) nodes.get(0).getSocketAddress(), 3));
+        locator.updateLocator(nodes);
+        final int [] counts = countKeys(locator, nodes);
+        Assert.assertEquals(0.6, counts[0] / (double) KEYS, 0.05);
+    }
+
+    @Test
+    public void testReadonlyCopy()
+    {
+        final List<MemcachedNode> nodes = nodes(3);
+        final NodeLocator locator = new WeightedNodeLocator(NodeLocatorType.JUMP, nodes, ImmutableMap.<InetSocketAddress, Integer>of());
+        final NodeLocator copy = locator.getReadonlyCopy();
+        Assert.assertEquals(3, copy.getAll().size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(locator.getPrimary("key-" + i).getSocketAddress(), copy.getPrimary("key-" + i).getSocketAddress());
+        }
+
+        try {
+            copy.getPrimary("key").addOp(null);
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException expected) {
+            // read only
+        }
+    }
+
+    @Test
+    public void testSequenceSkipsPrimary()
+    {
+        final List<MemcachedNode> nodes = nodes(4);
+        final NodeLocator locator = new WeightedNodeLocator(NodeLocatorType.KETAMA, nodes, ImmutableMap.<InetSocketAddress, Integer>of());
+        final List<MemcachedNode> sequence = Lists.newArrayList(locator.getSequence("key"));
+        Assert.assertEquals(3, sequence.size());
+        Assert.assertFalse(sequence.contains(locator.getPrimary("key")));
+    }
+}
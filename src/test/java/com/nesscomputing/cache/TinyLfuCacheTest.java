@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+
+import org.easymock.EasyMock;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.testing.lessio.AllowDNSResolution;
+
+@AllowDNSResolution
+public class TinyLfuCacheTest extends BaseCachingTests {
+    @Inject
+    Lifecycle lifecycle;
+
+    @Before
+    public final void setUpClient() {
+
+        final Config config = Config.getFixedConfig("ness.cache", "JVM_TINYLFU",
+                                                    "ness.cache.jmx", "false");
+
+        Guice.createInjector(new CacheModule("test"),
+                             new AbstractModule() {
+            @Override
+            protected void configure() {
+                requestInjection (TinyLfuCacheTest.this);
+                bind (Lifecycle.class).toInstance(EasyMock.createMock(Lifecycle.class));
+
+                bind (Config.class).toInstance(config);
+            }
+        });
+    }
+
+    @Test
+    public void testBoundedByWeight() {
+        final TinyLfuCacheProvider provider = new TinyLfuCacheProvider(1024 * 1024);
+        final byte [] value = new byte [1000];
+        final DateTime expiry = new DateTime().plusHours(1);
+
+        for (int i = 0; i < 5000; i++) {
+            provider.set("ns", Collections.singleton(CacheStores.fromSharedBytes("key" + i, value, expiry)), null);
+        }
+
+        assertTrue(provider.weightedSize() <= 1024 * 1024);
+        // The most recent write is still in the admission window.
+        assertTrue(provider.get("ns", Collections.singleton("key4999"), null).containsKey("key4999"));
+    }
+
+    @Test
+    public void testFrequentKeysSurvive() {
+        final TinyLfuCacheProvider provider = new TinyLfuCacheProvider(64 * 1024);
+        final byte [] value = new byte [1000];
+        final DateTime expiry = new DateTime().plusHours(1);
+
+        provider.set("ns", Collections.singleton(CacheStores.fromSharedBytes("hot", value, expiry)), null);
+        for (int i = 0; i < 1000; i++) {
+            provider.set("ns", Collections.singleton(CacheStores.fromSharedBytes("cold" + i, value, expiry)), null);
+            assertEquals("hot key evicted at " + i, 1, provider.get("ns", Collections.singleton("hot"), null).size());
+        }
+    }
+
+    @Test
+    public void testOversizedValueNotCached() {
+        final TinyLfuCacheProvider provider = new TinyLfuCacheProvider(1024);
+        provider.set("ns", Collections.singleton(CacheStores.fromSharedBytes("big", new byte [2048], new DateTime().plusHours(1))), null);
+
+        assertTrue(provider.get("ns", Collections.singleton("big"), null).isEmpty());
+        assertEquals(0, provider.weightedSize());
+    }
+
+    @Test
+    public void testExpiredEntriesAreRemoved() throws Exception {
+        final TinyLfuCacheProvider provider = new TinyLfuCacheProvider(64 * 1024);
+        provider.set("ns", Collections.singleton(CacheStores.fromSharedBytes("a", new byte [10], new DateTime().plusMillis(50))), null);
+        Thread.sleep(100);
+
+        assertTrue(provider.get("ns", Collections.singleton("a"), null).isEmpty());
+        assertEquals(0, provider.weightedSize());
+    }
+}
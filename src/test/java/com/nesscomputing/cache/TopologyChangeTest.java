@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.junit.Test;
+
+/**
+ * Servers coming and going while the client runs.
+ */
+public class TopologyChangeTest extends BaseTopologySetup {
+    private static final String NS = "topology";
+
+    private void start(final boolean incremental) throws Exception {
+        start(3, 3, "ness.cache.topology.incremental", String.valueOf(incremental));
+    }
+
+    private void changeTopology(final Runnable change) throws Exception {
+        final int generation = clientFactory.getTopologyGeneration();
+        change.run();
+        clientFactory.waitTopologyChange(generation);
+        assertEquals(generation + 1, clientFactory.getTopologyGeneration());
+    }
+
+    @Test
+    public void testIncrementalChanges() throws Exception {
+        start(true);
+        final MemcachedClient client = clientFactory.get();
+        writeLots(NS);
+        final long items0 = items(0), items1 = items(1), items2 = items(2);
+        assertEquals(NUM_WRITES, items0 + items1 + items2);
+
+        changeTopology(new Runnable() {
+            @Override
+            public void run() {
+                discovery.unannounce(announcements.get(1));
+            }
+        });
+        waitForServers(2);
+        assertSame(client, clientFactory.get());
+        assertEquals(items0 + items2, cache.get(NS, written.keySet()).size());
+
+        final TopologyStatistics stats = clientFactory.getTopologyStatistics();
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (stats.getDrainedNodes() + stats.getDrainTimeouts() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, stats.getDrainedNodes());
+
+        changeTopology(new Runnable() {
+            @Override
+            public void run() {
+                discovery.announce(announcements.get(1));
+            }
+        });
+        waitForServers(3);
+        assertSame(client, clientFactory.get());
+
+        // The server that came back still has its values.
+        final Map<String, byte []> found = cache.get(NS, written.keySet());
+        assertEquals(NUM_WRITES, found.size());
+        for (final Map.Entry<String, byte []> entry : written.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(), found.get(entry.getKey()));
+        }
+
+        assertEquals(3, stats.getGeneration());
+        assertEquals(3, stats.getChanges());
+        assertEquals(2, stats.getIncrementalChanges());
+        assertEquals(1, stats.getClientRebuilds());
+        assertEquals(1, stats.getNodesAdded());
+        assertEquals(1, stats.getNodesRemoved());
+    }
+
+    @Test
+    public void testRebuildWhenNotIncremental() throws Exception {
+        start(false);
+        final MemcachedClient client = clientFactory.get();
+        writeLots(NS);
+
+        changeTopology(new Runnable() {
+            @Override
+            public void run() {
+                discovery.unannounce(announcements.get(1));
+            }
+        });
+        waitForServers(2);
+        assertNotSame(client, clientFactory.get());
+        assertEquals(items(0) + items(2), cache.get(NS, written.keySet()).size());
+        assertEquals(2, clientFactory.getTopologyStatistics().getClientRebuilds());
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Reading keys from the servers they were on before a server joined.
+ */
+public class TopologyWarmUpTest extends BaseTopologySetup {
+    private static final String NS = "warm-up";
+
+    private final CacheStatistics stats = new CacheStatistics(NS);
+
+    private InternalCacheProvider provider;
+
+    /**
+     * Starts three servers and a client that knows about the first two.
+     */
+    private void start(final String warmUp, final boolean incremental) throws Exception {
+        start(3, 2,
+              "ness.cache.topology.incremental", String.valueOf(incremental),
+              "ness.cache.topology.warm-up", warmUp);
+        provider = ((NessCacheImpl) cache).provider;
+        writeLots(NS);
+    }
+
+    private void addThirdServer() throws Exception {
+        final int generation = clientFactory.getTopologyGeneration();
+        discovery.announce(announcements.get(2));
+        clientFactory.waitTopologyChange(generation);
+        waitForServers(3);
+    }
+
+    /**
+     * The previous servers need a moment to connect after the change, until then reads from them are cancelled.
+     */
+    private MemcachedClient waitForPreviousServers() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (System.currentTimeMillis() < deadline) {
+            final MemcachedClient previous = clientFactory.getPreviousClient();
+            if (isConnected(previous, 2)) {
+                return previous;
+            }
+            Thread.sleep(10L);
+        }
+        throw new AssertionError("Not connected to the previous servers");
+    }
+
+    @Test
+    public void testMovedKeysCopiedForward() throws Exception {
+        start("10s", true);
+        assertEquals(0, items(2));
+        addThirdServer();
+        waitForPreviousServers();
+
+        final Map<String, byte []> found = provider.get(NS, written.keySet(), stats);
+        assertEquals(NUM_WRITES, found.size());
+        for (final Map.Entry<String, byte []> entry : written.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(), found.get(entry.getKey()));
+        }
+        final long moved = stats.getWarmUpHits();
+        assertTrue(moved > 0);
+
+        // The values that moved end up on the new server, where the next read finds them.
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (items(2) < moved && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(moved, items(2));
+        assertEquals(NUM_WRITES, provider.getAsync(NS, written.keySet(), stats).get().size());
+        assertEquals(moved, stats.getWarmUpHits());
+    }
+
+    @Test
+    public void testTombstonesNotCopiedForward() throws Exception {
+        start("10s", true);
+        final DateTime expiry = new DateTime().plusMinutes(1);
+        final List<CacheStore<byte []>> tombstones = Lists.newArrayList();
+        for (final String key : written.keySet()) {
+            tombstones.add(CacheStores.fromSharedBytes(key, CacheEnvelope.tombstone(expiry.getMillis()), expiry));
+        }
+        provider.set(NS, tombstones, stats);
+        addThirdServer();
+        waitForPreviousServers();
+
+        // The misses are still served from the previous servers, but their lost expiry must not be copied forward.
+        final Map<String, byte []> found = provider.get(NS, written.keySet(), stats);
+        assertEquals(NUM_WRITES, found.size());
+        for (final byte [] value : found.values()) {
+            assertTrue(CacheEnvelope.isTombstone(value));
+        }
+        assertTrue(stats.getWarmUpHits() > 0);
+        Thread.sleep(200L);
+        assertEquals(0, items(2));
+    }
+
+    @Test
+    public void testClearedKeysStayCleared() throws Exception {
+        start("10s", true);
+        addThirdServer();
+        waitForPreviousServers();
+
+        provider.clear(NS, written.keySet(), stats);
+        assertTrue(provider.get(NS, written.keySet(), stats).isEmpty());
+        assertEquals(0, stats.getWarmUpHits());
+    }
+
+    @Test
+    public void testReplacedClientKeptForWarmUp() throws Exception {
+        start("10s", false);
+        final MemcachedClient client = clientFactory.get();
+        addThirdServer();
+        assertSame(client, clientFactory.getPreviousClient());
+
+        assertEquals(NUM_WRITES, provider.lease(NS, written.keySet(), stats).size());
+        assertTrue(stats.getWarmUpHits() > 0);
+    }
+
+    @Test
+    public void testWarmUpEnds() throws Exception {
+        start("500ms", true);
+        addThirdServer();
+        assertNotNull(clientFactory.getPreviousClient());
+
+        final long deadline = System.currentTimeMillis() + 5000L;
+        while (clientFactory.getPreviousClient() != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertNull(clientFactory.getPreviousClient());
+        assertEquals(items(0) + items(1), NUM_WRITES);
+        assertTrue(provider.get(NS, written.keySet(), stats).size() < NUM_WRITES);
+        assertEquals(0, stats.getWarmUpHits());
+    }
+
+    @Test
+    public void testMovedKeysMissWithoutWarmUp() throws Exception {
+        start("0s", true);
+        addThirdServer();
+        assertNull(clientFactory.getPreviousClient());
+        assertTrue(provider.get(NS, written.keySet(), stats).size() < NUM_WRITES);
+        assertEquals(0, stats.getWarmUpHits());
+    }
+}
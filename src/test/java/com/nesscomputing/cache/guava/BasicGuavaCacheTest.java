@@ -18,9 +18,21 @@ package com.nesscomputing.cache.guava;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 import org.junit.Before;
@@ -30,7 +42,10 @@ import org.junit.runner.RunWith;
 import com.google.common.base.Charsets;
 import com.google.common.base.Functions;
 import com.google.common.cache.Cache;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
@@ -99,4 +114,117 @@ public class BasicGuavaCacheTest {
         }));
         assertEquals(Collections.singleton("foo"), myCache.getAllPresent(ImmutableList.of("foo", "foo")).keySet());
     }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<byte[]> loader = new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                loads.incrementAndGet();
+                release.await();
+                return "bar".getBytes(Charsets.UTF_8);
+            }
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            final List<Future<byte[]>> results = Lists.newArrayList();
+            for (int i = 0; i < 10; i++) {
+                results.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return myCache.get("foo", loader);
+                    }
+                }));
+            }
+
+            Thread.sleep(200);
+            release.countDown();
+
+            for (Future<byte[]> result : results) {
+                assertArrayEquals("bar".getBytes(Charsets.UTF_8), result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRecursiveLoadFails() throws Exception {
+        try {
+            myCache.get("foo", new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return myCache.get("foo", this);
+                }
+            });
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testGetAllFailsWithJoinedLoad() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return myCache.get("foo", new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws Exception {
+                            started.countDown();
+                            release.await();
+                            throw new IOException("load failed");
+                        }
+                    });
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            final Future<Map<String, byte[]>> all = executor.submit(new Callable<Map<String, byte[]>>() {
+                @Override
+                public Map<String, byte[]> call() throws Exception {
+                    return ((LoadingCache<String, byte[]>) myCache).getAll(ImmutableList.of("foo"));
+                }
+            });
+            Thread.sleep(200);
+            release.countDown();
+
+            try {
+                all.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ExecutionException);
+                assertTrue(e.getCause().getCause() instanceof IOException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBulkOperations() throws Exception {
+        final Map<String, byte[]> values = ImmutableMap.of("a", new byte[] { 1 }, "b", new byte[] { 2 }, "c", new byte[] { 3 });
+        myCache.putAll(values);
+
+        final Map<String, byte[]> present = myCache.getAllPresent(ImmutableList.of("a", "b", "c", "d"));
+        assertEquals(values.keySet(), present.keySet());
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            assertArrayEquals(entry.getValue(), present.get(entry.getKey()));
+        }
+
+        final Map<String, byte[]> all = ((LoadingCache<String, byte[]>) myCache).getAll(ImmutableList.of("a", "b", "c"));
+        assertEquals(values.keySet(), all.keySet());
+        assertArrayEquals(new byte[] { 2 }, all.get("b"));
+
+        myCache.invalidateAll(ImmutableList.of("a", "c", "d"));
+        assertEquals(Collections.singleton("b"), myCache.getAllPresent(ImmutableList.of("a", "b", "c")).keySet());
+    }
 }
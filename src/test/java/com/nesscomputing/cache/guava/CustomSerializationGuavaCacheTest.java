@@ -18,11 +18,13 @@ package com.nesscomputing.cache.guava;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.Callable;
 
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.cache.Cache;
+import com.google.common.primitives.Ints;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
@@ -95,4 +97,37 @@ public class CustomSerializationGuavaCacheTest {
             }
         }));
     }
+
+    @Test
+    public void testBufferDeserializer() throws Exception {
+
+        Function<Integer, byte[]> intSerializer = new Function<Integer, byte[]>() {
+            @Override
+            public byte[] apply(Integer input) {
+                return Ints.toByteArray(input);
+            }
+        };
+
+        Function<ByteBuffer, Integer> intDeserializer = new Function<ByteBuffer, Integer>() {
+            @Override
+            public Integer apply(ByteBuffer input) {
+                return input.getInt();
+            }
+        };
+
+        Guice.createInjector(
+                lifecycleRule.getLifecycleModule(),
+                new ConfigModule(config),
+                new CacheModule("test"),
+                NessGuavaCaches.newModuleBuilder("test", "test-ns", String.class, Integer.class)
+                    .withKeySerializer(Functions.toStringFunction())
+                    .withBufferValueSerializer(intSerializer, intDeserializer)
+                    .withEarlyRefresh(1.0)
+                    .build()
+            ).injectMembers(this);
+
+        assertNull(myCache.getIfPresent("foo"));
+        myCache.put("foo", 123456);
+        assertEquals(123456, (int) myCache.getIfPresent("foo"));
+    }
 }
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache.guava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import com.nesscomputing.cache.CacheModule;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.config.ConfigModule;
+import com.nesscomputing.lifecycle.junit.LifecycleRule;
+import com.nesscomputing.lifecycle.junit.LifecycleRunner;
+import com.nesscomputing.lifecycle.junit.LifecycleStatement;
+import com.nesscomputing.testing.lessio.AllowDNSResolution;
+
+@AllowDNSResolution
+@RunWith(LifecycleRunner.class)
+public class EarlyRefreshGuavaCacheTest {
+
+    private static final Function<String, byte[]> STRING_SERIALIZER = new Function<String, byte[]>() {
+        @Override
+        public byte[] apply(String input) {
+            return input.getBytes(Charsets.UTF_8);
+        }
+    };
+
+    private static final Function<byte[], String> STRING_DESERIALIZER = new Function<byte[], String>() {
+        @Override
+        public String apply(byte[] input) {
+            return new String(input, Charsets.UTF_8);
+        }
+    };
+
+    @LifecycleRule
+    public LifecycleStatement lifecycleRule = LifecycleStatement.defaultLifecycle();
+
+    @Inject
+    @Named("test-ns")
+    LoadingCache<String, String> myCache;
+
+    Config config = Config.getFixedConfig("ness.cache.test", "JVM");
+
+    final AtomicInteger loads = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        Guice.createInjector(
+                lifecycleRule.getLifecycleModule(),
+                new ConfigModule(config),
+                new CacheModule("test"),
+                NessGuavaCaches.newModuleBuilder("test", "test-ns", String.class, String.class)
+                    .withKeySerializer(Functions.toStringFunction())
+                    .withValueSerializer(STRING_SERIALIZER, STRING_DESERIALIZER)
+                    .withExpiration(Duration.standardMinutes(1))
+                    .withEarlyRefresh(1e6, MoreExecutors.sameThreadExecutor())
+                    .build(new CacheLoader<String, String>() {
+                        @Override
+                        public String load(String key) throws Exception {
+                            Thread.sleep(10);
+                            return key + loads.incrementAndGet();
+                        }
+                    })
+            ).injectMembers(this);
+    }
+
+    @Test
+    public void testRefreshServesCachedValue() throws Exception {
+        assertEquals("foo1", myCache.get("foo"));
+
+        // 10ms compute time times a huge beta always lands past the expiry, so this read refreshes.
+        assertEquals("foo1", myCache.getIfPresent("foo"));
+        assertEquals(2, loads.get());
+        assertTrue(myCache.getIfPresent("foo").startsWith("foo"));
+    }
+
+    @Test
+    public void testWrittenValuesRefreshAfterLoad() throws Exception {
+        // Without a load there is no compute time, so written values are not refreshed early.
+        myCache.putAll(ImmutableMap.of("foo", "written", "bar", "written"));
+        assertEquals("written", myCache.getIfPresent("foo"));
+        assertEquals(0, loads.get());
+
+        assertEquals("baz1", myCache.get("baz"));
+
+        // Now they get the compute time of that load.
+        myCache.putAll(ImmutableMap.of("foo", "written", "bar", "written"));
+        assertEquals("written", myCache.getIfPresent("foo"));
+        assertEquals(2, loads.get());
+        myCache.put("bar", "written");
+        assertEquals("written", myCache.getIfPresent("bar"));
+        assertEquals(3, loads.get());
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache.guava;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import com.nesscomputing.cache.CacheModule;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.config.ConfigModule;
+import com.nesscomputing.lifecycle.junit.LifecycleRule;
+import com.nesscomputing.lifecycle.junit.LifecycleRunner;
+import com.nesscomputing.lifecycle.junit.LifecycleStatement;
+import com.nesscomputing.testing.lessio.AllowDNSResolution;
+
+@AllowDNSResolution
+@RunWith(LifecycleRunner.class)
+public class NegativeCachingGuavaCacheTest {
+
+    private static final Function<String, byte[]> STRING_SERIALIZER = new Function<String, byte[]>() {
+        @Override
+        public byte[] apply(String input) {
+            return input.getBytes(Charsets.UTF_8);
+        }
+    };
+
+    private static final Function<byte[], String> STRING_DESERIALIZER = new Function<byte[], String>() {
+        @Override
+        public String apply(byte[] input) {
+            return new String(input, Charsets.UTF_8);
+        }
+    };
+
+    @LifecycleRule
+    public LifecycleStatement lifecycleRule = LifecycleStatement.defaultLifecycle();
+
+    @Inject
+    @Named("test-ns")
+    LoadingCache<String, String> myCache;
+
+    Config config = Config.getFixedConfig("ness.cache.test", "JVM");
+
+    final AtomicInteger loads = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        Guice.createInjector(
+                lifecycleRule.getLifecycleModule(),
+                new ConfigModule(config),
+                new CacheModule("test"),
+                NessGuavaCaches.newModuleBuilder("test", "test-ns", String.class, String.class)
+                    .withKeySerializer(Functions.toStringFunction())
+                    .withValueSerializer(STRING_SERIALIZER, STRING_DESERIALIZER)
+                    .withExpiration(Duration.standardMinutes(1))
+                    .withNegativeCaching(Duration.standardMinutes(1))
+                    .build(new CacheLoader<String, String>() {
+                        @Override
+                        public String load(String key) throws Exception {
+                            loads.incrementAndGet();
+                            return key.startsWith("missing") ? null : key.toUpperCase();
+                        }
+                    })
+            ).injectMembers(this);
+    }
+
+    @Test
+    public void testMissCached() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            try {
+                myCache.get("missing");
+                fail();
+            } catch (InvalidCacheLoadException e) {
+                // expected
+            }
+        }
+        assertEquals(1, loads.get());
+        assertNull(myCache.getIfPresent("missing"));
+        assertEquals(ImmutableMap.of(), myCache.getAllPresent(Arrays.asList("missing")));
+    }
+
+    @Test
+    public void testGetAllLeavesOutMisses() throws Exception {
+        assertEquals(ImmutableMap.of("a", "A"), myCache.getAll(Arrays.asList("a", "missing1")));
+        assertEquals(2, loads.get());
+
+        assertEquals(ImmutableMap.of("a", "A", "b", "B"), myCache.getAll(Arrays.asList("a", "b", "missing1")));
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void testPutReplacesMiss() throws Exception {
+        assertNull(myCache.getIfPresent("missing"));
+        try {
+            myCache.get("missing");
+            fail();
+        } catch (InvalidCacheLoadException e) {
+            // expected
+        }
+
+        myCache.put("missing", "found");
+        assertEquals("found", myCache.get("missing"));
+
+        myCache.invalidate("missing");
+        try {
+            myCache.get("missing");
+            fail();
+        } catch (InvalidCacheLoadException e) {
+            // expected
+        }
+        assertEquals(2, loads.get());
+    }
+}
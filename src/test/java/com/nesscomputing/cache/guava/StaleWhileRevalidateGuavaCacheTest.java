@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.cache.guava;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import com.nesscomputing.cache.CacheModule;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.config.ConfigModule;
+import com.nesscomputing.lifecycle.junit.LifecycleRule;
+import com.nesscomputing.lifecycle.junit.LifecycleRunner;
+import com.nesscomputing.lifecycle.junit.LifecycleStatement;
+import com.nesscomputing.testing.lessio.AllowDNSResolution;
+
+@AllowDNSResolution
+@RunWith(LifecycleRunner.class)
+public class StaleWhileRevalidateGuavaCacheTest {
+
+    private static final Function<String, byte[]> STRING_SERIALIZER = new Function<String, byte[]>() {
+        @Override
+        public byte[] apply(String input) {
+            return input.getBytes(Charsets.UTF_8);
+        }
+    };
+
+    private static final Function<byte[], String> STRING_DESERIALIZER = new Function<byte[], String>() {
+        @Override
+        public String apply(byte[] input) {
+            return new String(input, Charsets.UTF_8);
+        }
+    };
+
+    @LifecycleRule
+    public LifecycleStatement lifecycleRule = LifecycleStatement.defaultLifecycle();
+
+    @Inject
+    @Named("test-ns")
+    LoadingCache<String, String> myCache;
+
+    Config config = Config.getFixedConfig("ness.cache.test", "JVM");
+
+    final AtomicInteger loads = new AtomicInteger();
+    final AtomicBoolean failing = new AtomicBoolean();
+
+    @Before
+    public void setUp() throws Exception {
+        Guice.createInjector(
+                lifecycleRule.getLifecycleModule(),
+                new ConfigModule(config),
+                new CacheModule("test"),
+                NessGuavaCaches.newModuleBuilder("test", "test-ns", String.class, String.class)
+                    .withKeySerializer(Functions.toStringFunction())
+                    .withValueSerializer(STRING_SERIALIZER, STRING_DESERIALIZER)
+                    .withExpiration(Duration.millis(50))
+                    .withStaleWhileRevalidate(Duration.standardMinutes(1), MoreExecutors.sameThreadExecutor())
+                    .build(new CacheLoader<String, String>() {
+                        @Override
+                        public String load(String key) throws Exception {
+                            if (failing.get()) {
+                                throw new IllegalStateException("backend down");
+                            }
+                            return key + loads.incrementAndGet();
+                        }
+                    })
+            ).injectMembers(this);
+    }
+
+    @Test
+    public void testServeStaleAndRevalidate() throws Exception {
+        assertEquals("foo1", myCache.get("foo"));
+        Thread.sleep(100);
+
+        // Stale: served as is, reloaded in the background.
+        assertEquals("foo1", myCache.getIfPresent("foo"));
+        assertEquals("foo2", myCache.getIfPresent("foo"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testServeStaleIfError() throws Exception {
+        assertEquals("foo1", myCache.get("foo"));
+        failing.set(true);
+        Thread.sleep(100);
+
+        assertEquals("foo1", myCache.getIfPresent("foo"));
+        assertEquals("foo1", myCache.get("foo"));
+        assertEquals(1, loads.get());
+    }
+}